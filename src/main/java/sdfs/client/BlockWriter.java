@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) Jipzingking 2016.
+ */
+
+package sdfs.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Streams a block to a data node as fixed-size packets.
+ * <p>
+ * A packet is sent as soon as it is full, while later data is still being produced.
+ * At most MAX_OUTSTANDING_PACKETS packets wait for their acks, so memory on both sides stays bounded.
+ * The data node forwards every packet down the pipeline of other replicas, an ack covers the whole pipeline.
+ * Not thread safe.
+ */
+public class BlockWriter implements Closeable {
+    public static final int PACKET_SIZE = 64 * 1024;
+    public static final int MAX_OUTSTANDING_PACKETS = 8;
+
+    private final DataNodeStub dataNodeStub;
+    private final UUID fileUuid;
+    private final int blockNumber;
+    private final List<InetSocketAddress> pipeline;
+    //reused by every packet, it is encoded before writePacketAsync returns
+    private final byte[] packet = new byte[PACKET_SIZE];
+    private int packetLength = 0;
+    private int packetOffset;
+    private int seqNo = 0;
+    private final Deque<CompletableFuture<Void>> acks = new ArrayDeque<>();
+    private CompletableFuture<Void> closeFuture;
+
+    BlockWriter(DataNodeStub dataNodeStub, UUID fileUuid, int blockNumber, int offset, List<InetSocketAddress> pipeline) {
+        this.dataNodeStub = dataNodeStub;
+        this.fileUuid = fileUuid;
+        this.blockNumber = blockNumber;
+        this.pipeline = pipeline;
+        this.packetOffset = offset;
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        write(ByteBuffer.wrap(b, off, len));
+    }
+
+    public void write(ByteBuffer src) throws IOException {
+        if (closeFuture != null)
+            throw new IllegalStateException("block writer is closed");
+        while (src.hasRemaining()) {
+            int len = Math.min(src.remaining(), PACKET_SIZE - packetLength);
+            src.get(packet, packetLength, len);
+            packetLength += len;
+            if (packetLength == PACKET_SIZE)
+                sendPacket(false);
+        }
+    }
+
+    /**
+     * Continue the stream at offset, e.g. to skip bytes that are not modified. Buffered bytes are sent first.
+     */
+    public void position(int offset) throws IOException {
+        if (closeFuture != null)
+            throw new IllegalStateException("block writer is closed");
+        if (offset == packetOffset + packetLength)
+            return;
+        if (packetLength > 0)
+            sendPacket(false);
+        packetOffset = offset;
+    }
+
+    private void sendPacket(boolean last) throws IOException {
+        //wait for the oldest ack if the window is full
+        while (acks.size() >= MAX_OUTSTANDING_PACKETS)
+            SdfsRmi.join(acks.poll());
+        acks.add(dataNodeStub.writePacketAsync(fileUuid, blockNumber, packetOffset, seqNo++, last, packet, packetLength, pipeline));
+        packetOffset += packetLength;
+        packetLength = 0;
+    }
+
+    /**
+     * Send the last packet without waiting for the acks.
+     *
+     * @return future completed when every packet is acked
+     */
+    public CompletableFuture<Void> closeAsync() throws IOException {
+        if (closeFuture == null) {
+            sendPacket(true);
+            closeFuture = CompletableFuture.allOf(acks.toArray(new CompletableFuture<?>[acks.size()]));
+            acks.clear();
+        }
+        return closeFuture;
+    }
+
+    @Override
+    public void close() throws IOException {
+        SdfsRmi.join(closeAsync());
+    }
+}
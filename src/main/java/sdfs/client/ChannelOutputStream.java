@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) Jipzingking 2016.
+ */
+
+package sdfs.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Writes to a blocking socket channel.
+ * Unlike Channels.newOutputStream, it does not hold the blocking lock, so it never waits for the reader thread.
+ */
+class ChannelOutputStream extends OutputStream {
+    private final SocketChannel channel;
+
+    ChannelOutputStream(SocketChannel channel) {
+        this.channel = channel;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        write(ByteBuffer.wrap(b, off, len));
+    }
+
+    void write(ByteBuffer src) throws IOException {
+        while (src.hasRemaining())
+            channel.write(src);
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright (c) Jipzingking 2016.
+ */
+
+package sdfs.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+/**
+ * The connection broke before the response arrived.
+ * Unlike an exception thrown by server, the call may not have reached server at all.
+ */
+public class ConnectionClosedException extends IOException {
+    private static final long serialVersionUID = 4733418416339066571L;
+    private final boolean requestSent;
+
+    ConnectionClosedException(InetSocketAddress address, Throwable cause, boolean requestSent) {
+        super("connection to " + address + " is closed", cause);
+        this.requestSent = requestSent;
+    }
+
+    /**
+     * @return false if the request never left the client, so server has not run it
+     */
+    public boolean isRequestSent() {
+        return requestSent;
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) Jipzingking 2016.
+ */
+
+package sdfs.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keep-alive connections grouped by server address.
+ * Connections are multiplexed, so a few of them per address are enough for any number of concurrent calls.
+ */
+public class ConnectionPool {
+    /**
+     * Must be smaller than the server side idle timeout,
+     * so that the client never picks a connection the server is about to close.
+     */
+    public static final long DEFAULT_IDLE_TIMEOUT = 30 * 1000;
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_ADDRESS = 2;
+
+    private final Map<InetSocketAddress, SdfsConnection[]> connections = new HashMap<>();
+    private final long idleTimeout;
+    private final int maxConnectionsPerAddress;
+
+    public ConnectionPool(long idleTimeout, int maxConnectionsPerAddress) {
+        if (idleTimeout <= 0 || maxConnectionsPerAddress <= 0)
+            throw new IllegalArgumentException();
+        this.idleTimeout = idleTimeout;
+        this.maxConnectionsPerAddress = maxConnectionsPerAddress;
+    }
+
+    /**
+     * @return the least loaded open connection, a new one is opened if every open connection is busy and the cap is not reached
+     */
+    synchronized SdfsConnection get(InetSocketAddress address) throws IOException {
+        SdfsConnection[] slots = connections.computeIfAbsent(address, k -> new SdfsConnection[maxConnectionsPerAddress]);
+        long now = System.currentTimeMillis();
+        int emptySlot = -1;
+        SdfsConnection leastLoaded = null;
+        for (int i = 0; i < slots.length; i++) {
+            SdfsConnection connection = slots[i];
+            if (connection != null && !connection.isClosed() && connection.getPendingCallCount() == 0
+                    && now - connection.getLastUsedTime() >= idleTimeout)
+                connection.close();
+            if (connection == null || connection.isClosed()) {
+                slots[i] = null;
+                if (emptySlot < 0)
+                    emptySlot = i;
+            } else if (leastLoaded == null || connection.getPendingCallCount() < leastLoaded.getPendingCallCount()) {
+                leastLoaded = connection;
+            }
+        }
+        if (leastLoaded != null && (leastLoaded.getPendingCallCount() == 0 || emptySlot < 0))
+            return leastLoaded;
+        SdfsConnection connection = new SdfsConnection(address);
+        slots[emptySlot] = connection;
+        return connection;
+    }
+
+    public synchronized int getConnectionCount(InetSocketAddress address) {
+        SdfsConnection[] slots = connections.get(address);
+        int count = 0;
+        if (slots != null) {
+            for (SdfsConnection connection : slots) {
+                if (connection != null && !connection.isClosed())
+                    count++;
+            }
+        }
+        return count;
+    }
+
+    public synchronized void closeAll() {
+        for (SdfsConnection[] slots : connections.values()) {
+            for (SdfsConnection connection : slots) {
+                if (connection != null)
+                    connection.close();
+            }
+        }
+        connections.clear();
+    }
+}
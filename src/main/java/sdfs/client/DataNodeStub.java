@@ -2,15 +2,23 @@
  * Copyright (c) Jipzingking 2016.
  */
 
-//package sdfs.client;
+package sdfs.client;
 
+import sdfs.datanode.LocalBlock;
 import sdfs.protocol.IDataNodeProtocol;
+import sdfs.protocol.RpcCodec;
+import sdfs.protocol.RpcOpcode;
+import sdfs.protocol.RpcWritable;
 
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 public class DataNodeStub implements IDataNodeProtocol {
 
@@ -21,22 +29,151 @@ public class DataNodeStub implements IDataNodeProtocol {
         this.dataNodeAddress = new InetSocketAddress(inetAddress, 4341);
     }
 
+    public DataNodeStub(InetSocketAddress dataNodeAddress){
+        this.dataNodeAddress = dataNodeAddress;
+    }
+
 
     @Override
     public byte[] read(UUID fileUuid, int blockNumber, int offset, int size) throws IndexOutOfBoundsException, IOException {
-        String method = "read";
-        Class<?>[] paraType = {UUID.class, int.class, int.class, int.class};
-        Object[] paras = {fileUuid, blockNumber, offset, size};
-        byte[] b = (byte[]) sdfs.client.SdfsRmi.send(dataNodeAddress, method, paraType, paras);
-        return b;
+        return SdfsRmi.join(readAsync(fileUuid, blockNumber, offset, size));
+    }
+
+    /**
+     * Same as read, but return at once, so that reads of many blocks share the latency.
+     */
+    public CompletableFuture<byte[]> readAsync(UUID fileUuid, int blockNumber, int offset, int size) {
+        byte[] b = new byte[size];
+        //shorter than size if the block file ends before
+        return readAsync(fileUuid, blockNumber, offset, size, ByteBuffer.wrap(b)).thenApply(n -> n == size ? b : Arrays.copyOf(b, n));
+    }
+
+    /**
+     * Same as read, but the data node puts it behind client I/O and under its background bandwidth,
+     * e.g. to copy a block for re-replication.
+     */
+    public byte[] readInBackground(UUID fileUuid, int blockNumber, int offset, int size) throws IOException {
+        return SdfsRmi.send(dataNodeAddress, RpcOpcode.READ_IN_BACKGROUND, readRequest(fileUuid, blockNumber, offset, size), in -> RpcCodec.readBytes(in));
+    }
+
+    /**
+     * Read at most size bytes of a block straight from the socket into dst, which may be a direct buffer.
+     *
+     * @param dst buffer with at least size bytes remaining, its position is advanced by the bytes read
+     * @return the number of bytes read, less than size if the block file ends before
+     */
+    public int read(UUID fileUuid, int blockNumber, int offset, int size, ByteBuffer dst) throws IndexOutOfBoundsException, IOException {
+        return SdfsRmi.join(readAsync(fileUuid, blockNumber, offset, size, dst));
+    }
+
+    /**
+     * Same as read into dst, but return at once. dst should not be touched until the future completes.
+     */
+    public CompletableFuture<Integer> readAsync(UUID fileUuid, int blockNumber, int offset, int size, ByteBuffer dst) {
+        if (size < 0 || dst.remaining() < size)
+            throw new IndexOutOfBoundsException();
+        return SdfsRmi.sendAsync(dataNodeAddress, RpcOpcode.READ, readRequest(fileUuid, blockNumber, offset, size), in -> {
+            int length = in.readInt();
+            if (length > size)
+                throw new IOException("data node returned " + length + " bytes, more than " + size);
+            ByteBuffer target = dst.duplicate();
+            target.limit(target.position() + length);
+            in.readFully(target);
+            dst.position(target.position());
+            return length;
+        });
     }
 
     @Override
     public void write(UUID fileUuid, int blockNumber, int offset, byte[] b) throws IndexOutOfBoundsException, IOException {
+        SdfsRmi.join(writeAsync(fileUuid, blockNumber, offset, b));
+    }
+
+    /**
+     * Same as write, but return once the data is sent, so that writes of many blocks share the latency.
+     * The data is streamed as packets, b could be reused when this method returns.
+     */
+    public CompletableFuture<Void> writeAsync(UUID fileUuid, int blockNumber, int offset, byte[] b) {
+        try {
+            BlockWriter blockWriter = openBlockWriter(fileUuid, blockNumber, offset);
+            blockWriter.write(b, 0, b.length);
+            return blockWriter.closeAsync();
+        } catch (IOException e) {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        }
+    }
+
+    /**
+     * Stream a block starting at offset, the data could be produced piece by piece.
+     */
+    public BlockWriter openBlockWriter(UUID fileUuid, int blockNumber, int offset) {
+        return openBlockWriter(fileUuid, blockNumber, offset, Collections.emptyList());
+    }
+
+    /**
+     * Stream a block to this data node, which forwards it down the pipeline to the other replicas.
+     */
+    public BlockWriter openBlockWriter(UUID fileUuid, int blockNumber, int offset, List<InetSocketAddress> pipeline) {
+        return new BlockWriter(this, fileUuid, blockNumber, offset, pipeline);
+    }
+
+    @Override
+    public void writePacket(UUID fileUuid, int blockNumber, int offset, int seqNo, boolean last, byte[] b, List<InetSocketAddress> pipeline) throws IndexOutOfBoundsException, IOException {
+        SdfsRmi.join(writePacketAsync(fileUuid, blockNumber, offset, seqNo, last, b, b.length, pipeline));
+    }
+
+    @Override
+    public void copyOnWrite(UUID fileUuid, int originBlockNumber, int blockNumber, int offset, byte[] b, List<InetSocketAddress> pipeline) throws IndexOutOfBoundsException, IOException {
+        SdfsRmi.join(copyOnWriteAsync(fileUuid, originBlockNumber, blockNumber, offset, b, pipeline));
+    }
+
+    public CompletableFuture<Void> copyOnWriteAsync(UUID fileUuid, int originBlockNumber, int blockNumber, int offset, byte[] b, List<InetSocketAddress> pipeline) {
+        return SdfsRmi.sendAsync(dataNodeAddress, RpcOpcode.COPY_ON_WRITE, out -> {
+            RpcCodec.writeUuid(out, fileUuid);
+            out.writeInt(originBlockNumber);
+            out.writeInt(blockNumber);
+            out.writeInt(offset);
+            RpcCodec.writeBytes(out, b);
+            RpcCodec.writeAddressList(out, pipeline);
+        }, null);
+    }
+
+    @Override
+    public LocalBlock getLocalBlock(UUID fileUuid, int blockNumber) throws IOException {
+        return SdfsRmi.send(dataNodeAddress, RpcOpcode.GET_LOCAL_BLOCK, out -> {
+            RpcCodec.writeUuid(out, fileUuid);
+            out.writeInt(blockNumber);
+        }, in -> RpcCodec.readNullable(in, LocalBlock::readFrom));
+    }
+
+    /**
+     * The first length bytes of b are encoded before this method returns.
+     */
+    public CompletableFuture<Void> writePacketAsync(UUID fileUuid, int blockNumber, int offset, int seqNo, boolean last, byte[] b, int length, List<InetSocketAddress> pipeline) {
+        return SdfsRmi.sendAsync(dataNodeAddress, RpcOpcode.WRITE_PACKET, out -> {
+            RpcCodec.writeUuid(out, fileUuid);
+            out.writeInt(blockNumber);
+            out.writeInt(offset);
+            out.writeInt(seqNo);
+            out.writeBoolean(last);
+            out.writeInt(length);
+            out.write(b, 0, length);
+            RpcCodec.writeAddressList(out, pipeline);
+        }, null);
+    }
+
+    public InetSocketAddress getDataNodeAddress() {
+        return dataNodeAddress;
+    }
 
-        String method = "write";
-        Class<?>[] paraType = {UUID.class, int.class, int.class, byte[].class};
-        Object[] paras = {fileUuid, blockNumber, offset, b};
-        sdfs.client.SdfsRmi.send(dataNodeAddress, method, paraType, paras);
+    private static RpcWritable readRequest(UUID fileUuid, int blockNumber, int offset, int size) {
+        return out -> {
+            RpcCodec.writeUuid(out, fileUuid);
+            out.writeInt(blockNumber);
+            out.writeInt(offset);
+            out.writeInt(size);
+        };
     }
 }
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) Jipzingking 2016.
+ */
+
+package sdfs.client;
+
+import sdfs.protocol.INameNodeProtocol;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Renews the leases of the files open on a name node every LEASE_RENEW_INTERVAL from a background thread,
+ * all of them in one call. The thread runs only while any file is open.
+ */
+public class LeaseRenewer {
+    private final NameNodeStub nameNodeStub;
+    //everything below is guarded by this
+    private final Set<UUID> fileUuids = new HashSet<>();
+    private Thread thread;
+
+    LeaseRenewer(NameNodeStub nameNodeStub) {
+        this.nameNodeStub = nameNodeStub;
+    }
+
+    public synchronized void add(UUID fileUuid) {
+        fileUuids.add(fileUuid);
+        if (thread == null) {
+            thread = new Thread(this::renewLoop, "sdfs-lease-renewer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    public synchronized void remove(UUID fileUuid) {
+        fileUuids.remove(fileUuid);
+    }
+
+    private void renewLoop() {
+        while (true) {
+            List<UUID> renewed;
+            synchronized (this) {
+                long wakeUpTime = System.currentTimeMillis() + INameNodeProtocol.LEASE_RENEW_INTERVAL;
+                try {
+                    long delay;
+                    while ((delay = wakeUpTime - System.currentTimeMillis()) > 0)
+                        wait(delay);
+                } catch (InterruptedException e) {
+                    thread = null;
+                    return;
+                }
+                if (fileUuids.isEmpty()) {
+                    thread = null;
+                    return;
+                }
+                renewed = new ArrayList<>(fileUuids);
+            }
+            try {
+                nameNodeStub.renewLeases(renewed);
+            } catch (IOException e) {
+                //the next round tries again, the lease lasts several rounds
+                System.err.println("cannot renew leases: " + e);
+            }
+        }
+    }
+}
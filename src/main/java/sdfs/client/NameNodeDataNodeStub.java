@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) Jipzingking 2016.
+ */
+
+package sdfs.client;
+
+import sdfs.namenode.ReplicationWork;
+import sdfs.protocol.INameNodeDataNodeProtocol;
+import sdfs.protocol.RpcCodec;
+import sdfs.protocol.RpcOpcode;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Used by data nodes to talk to name node.
+ */
+public class NameNodeDataNodeStub implements INameNodeDataNodeProtocol {
+    private final InetSocketAddress nameNodeAddress;
+
+    public NameNodeDataNodeStub(InetSocketAddress nameNodeAddress) {
+        this.nameNodeAddress = nameNodeAddress;
+    }
+
+    @Override
+    public UUID registerDataNode(String host, int port) throws IOException {
+        return SdfsRmi.send(nameNodeAddress, RpcOpcode.REGISTER_DATA_NODE, out -> {
+            out.writeUTF(host);
+            out.writeInt(port);
+        }, RpcCodec::readUuid);
+    }
+
+    @Override
+    public List<Integer> sendHeartbeat(UUID dataNodeId, long capacity, long remaining, int blockCount, int activeStreams) throws IllegalStateException, IOException {
+        return SdfsRmi.send(nameNodeAddress, RpcOpcode.HEARTBEAT, out -> {
+            RpcCodec.writeUuid(out, dataNodeId);
+            out.writeLong(capacity);
+            out.writeLong(remaining);
+            out.writeInt(blockCount);
+            out.writeInt(activeStreams);
+        }, RpcCodec::readIntList);
+    }
+
+    @Override
+    public void blockReport(UUID dataNodeId, List<Integer> blockNumbers) throws IllegalStateException, IOException {
+        SdfsRmi.send(nameNodeAddress, RpcOpcode.BLOCK_REPORT, out -> {
+            RpcCodec.writeUuid(out, dataNodeId);
+            RpcCodec.writeIntList(out, blockNumbers);
+        }, null);
+    }
+
+    @Override
+    public void blockReceivedAndDeleted(UUID dataNodeId, List<Integer> receivedBlockNumbers, List<Integer> deletedBlockNumbers) throws IllegalStateException, IOException {
+        SdfsRmi.send(nameNodeAddress, RpcOpcode.BLOCK_RECEIVED_AND_DELETED, out -> {
+            RpcCodec.writeUuid(out, dataNodeId);
+            RpcCodec.writeIntList(out, receivedBlockNumbers);
+            RpcCodec.writeIntList(out, deletedBlockNumbers);
+        }, null);
+    }
+
+    @Override
+    public ReplicationWork getReplicationWork(UUID dataNodeId) throws IllegalStateException, IOException {
+        return SdfsRmi.send(nameNodeAddress, RpcOpcode.GET_REPLICATION_WORK, out -> RpcCodec.writeUuid(out, dataNodeId), ReplicationWork::readFrom);
+    }
+
+    @Override
+    public void commitReplicationWork(UUID dataNodeId, UUID replicationWorkUuid) throws IllegalStateException, IOException {
+        SdfsRmi.send(nameNodeAddress, RpcOpcode.COMMIT_REPLICATION_WORK, out -> {
+            RpcCodec.writeUuid(out, dataNodeId);
+            RpcCodec.writeUuid(out, replicationWorkUuid);
+        }, null);
+    }
+}
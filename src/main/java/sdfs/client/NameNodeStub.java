@@ -4,23 +4,25 @@
 
 package sdfs.client;
 
-import sdfs.exception.SDFSFileAlreadyExistException;
-import sdfs.namenode.LocatedBlock;
+import sdfs.filetree.BlockInfo;
+import sdfs.filetree.ErasureCodingPolicy;
+import sdfs.filetree.DirNode;
 import sdfs.namenode.SDFSFileChannel;
 import sdfs.protocol.INameNodeProtocol;
+import sdfs.protocol.RpcCodec;
+import sdfs.protocol.RpcOpcode;
 
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.net.URISyntaxException;
-import java.nio.channels.OverlappingFileLockException;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 public class NameNodeStub implements INameNodeProtocol {
 
 
     InetSocketAddress nameNodeAddress;
+    private LeaseRenewer leaseRenewer;
 
     public NameNodeStub(InetSocketAddress nameNodeAddress){
         this.nameNodeAddress = nameNodeAddress;
@@ -30,101 +32,52 @@ public class NameNodeStub implements INameNodeProtocol {
 
     @Override
     public SDFSFileChannel openReadonly(String fileUri) throws IOException {
-        String method = "openReadonly";
-        Class<?>[] paraType = {String.class};
-        Object[] paras = {fileUri};
-        Object object = SdfsRmi.send(nameNodeAddress, method, paraType, paras);
-        if(object instanceof IOException)
-            throw (IOException)object;
-        if(object instanceof  SDFSFileChannel)
-            return (SDFSFileChannel)object;
-        //SDFSFileChannel sdfsFileChannel = (SDFSFileChannel)SdfsRmi.send(nameNodeAddress, method, paraType, paras);
-       // return sdfsFileChannel;
-        return null;
+        return SdfsRmi.send(nameNodeAddress, RpcOpcode.OPEN_READONLY, out -> RpcCodec.writeString(out, fileUri),
+                in -> RpcCodec.readNullable(in, SDFSFileChannel::readFrom));
     }
 
     @Override
     public SDFSFileChannel openReadwrite(String fileUri) throws IndexOutOfBoundsException, IllegalStateException, IOException{
-        String method = "openReadwrite";
-        Class<?>[] paraType = {String.class};
-        Object[] paras = {fileUri};
-        Object object = SdfsRmi.send(nameNodeAddress, method, paraType, paras);
-        if(object instanceof IndexOutOfBoundsException)
-            throw (IndexOutOfBoundsException)object;
-        if(object instanceof OverlappingFileLockException)
-            throw (OverlappingFileLockException)object;
-        if(object instanceof IllegalStateException)
-            throw (IllegalStateException)object;
-        if(object instanceof IOException)
-            throw (IOException)object;
-        if(object instanceof  SDFSFileChannel)
-            return (SDFSFileChannel)object;
-        return null;
-
+        return SdfsRmi.send(nameNodeAddress, RpcOpcode.OPEN_READWRITE, out -> RpcCodec.writeString(out, fileUri),
+                in -> RpcCodec.readNullable(in, SDFSFileChannel::readFrom));
     }
 
     @Override
     public SDFSFileChannel create(String fileUri) throws IllegalStateException, IOException {
-        String method = "create";
-        Class<?>[] paraType = {String.class};
-        Object[] paras = {fileUri};
-        Object object = SdfsRmi.send(nameNodeAddress, method, paraType, paras);
-        if(object instanceof FileNotFoundException)
-            throw (FileNotFoundException)object;
-        if(object instanceof SDFSFileAlreadyExistException)
-            throw (SDFSFileAlreadyExistException)object;
-        if(object instanceof IllegalStateException)
-            throw (IllegalStateException)object;
-        if(object instanceof  SDFSFileChannel)
-            return (SDFSFileChannel)object;
-        return null;
+        return create(fileUri, null);
     }
 
     @Override
-    public void closeReadonlyFile(UUID fileUuid) throws IllegalStateException, IOException {
-        String method = "closeReadonlyFile";
-        Class<?>[] paraType = {UUID.class};
-        Object[] paras = {fileUuid};
-        Object object =  SdfsRmi.send(nameNodeAddress, method, paraType, paras);
-        if(object instanceof IllegalStateException)
-            throw (IllegalStateException)object;
-        if(object instanceof IOException)
-            throw (IOException)object;
+    public SDFSFileChannel create(String fileUri, ErasureCodingPolicy erasureCodingPolicy) throws IllegalStateException, IOException {
+        return SdfsRmi.send(nameNodeAddress, RpcOpcode.CREATE, out -> {
+            RpcCodec.writeString(out, fileUri);
+            RpcCodec.writeNullable(out, erasureCodingPolicy);
+        }, in -> RpcCodec.readNullable(in, SDFSFileChannel::readFrom));
+    }
 
+    @Override
+    public void closeReadonlyFile(UUID fileUuid) throws IllegalStateException, IOException {
+        SdfsRmi.send(nameNodeAddress, RpcOpcode.CLOSE_READONLY_FILE, out -> RpcCodec.writeUuid(out, fileUuid), null);
     }
 
     @Override
     public void closeReadwriteFile(UUID fileUuid, int newFileSize) throws IllegalStateException, IllegalArgumentException, IOException {
-        String method = "closeReadwriteFile";
-        Class<?>[] paraType = {UUID.class, int.class};
-        Object[] paras = {fileUuid, newFileSize};
-        Object object = SdfsRmi.send(nameNodeAddress, method, paraType, paras);
-        if(object instanceof IndexOutOfBoundsException)
-            throw (IndexOutOfBoundsException)object;
-        if(object instanceof IllegalStateException)
-            throw (IllegalStateException)object;
-        if(object instanceof IOException)
-            throw (IOException)object;
+        SdfsRmi.send(nameNodeAddress, RpcOpcode.CLOSE_READWRITE_FILE, out -> {
+            RpcCodec.writeUuid(out, fileUuid);
+            out.writeInt(newFileSize);
+        }, null);
     }
 
     @Override
     public void mkdir(String fileUri) throws IOException {
-        String method = "mkdir";
-        Class<?>[] paraType = {String.class};
-        Object[] paras = {fileUri};
-        Object object = SdfsRmi.send(nameNodeAddress, method, paraType, paras);
-        if(object instanceof IOException)
-            throw (IOException)object;
+        SdfsRmi.send(nameNodeAddress, RpcOpcode.MKDIR, out -> RpcCodec.writeString(out, fileUri), null);
     }
 
     @Override
-    public LocatedBlock addBlock(UUID fileUuid) {
-        String method = "addBlock";
-        Class<?>[] paraType = {UUID.class};
-        Object[] paras = {fileUuid};
+    public BlockInfo addBlock(UUID fileUuid) {
         try {
-            LocatedBlock locatedBlock = (LocatedBlock)SdfsRmi.send(nameNodeAddress, method, paraType, paras);
-            return locatedBlock;
+            return SdfsRmi.send(nameNodeAddress, RpcOpcode.ADD_BLOCK, out -> RpcCodec.writeUuid(out, fileUuid),
+                    in -> RpcCodec.readNullable(in, BlockInfo::readFrom));
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -132,65 +85,75 @@ public class NameNodeStub implements INameNodeProtocol {
     }
 
     @Override
-    public List<LocatedBlock> addBlocks(UUID fileUuid, int blockAmount) {
-        String method = "addBlocks";
-        Class<?>[] paraType = {UUID.class, int.class};
-        Object[] paras = {fileUuid, blockAmount};
+    public List<BlockInfo> addBlocks(UUID fileUuid, int blockAmount) {
         try {
-            List<LocatedBlock> locatedBlocks = (List<LocatedBlock>)SdfsRmi.send(nameNodeAddress, method, paraType, paras);
-            return locatedBlocks;
+            return SdfsRmi.join(addBlocksAsync(fileUuid, blockAmount));
         } catch (IOException e) {
             e.printStackTrace();
         }
         return null;
     }
 
+    /**
+     * Same as addBlocks, but return at once, so that the client could keep working while blocks are allocated.
+     */
+    public CompletableFuture<List<BlockInfo>> addBlocksAsync(UUID fileUuid, int blockAmount) {
+        return SdfsRmi.sendAsync(nameNodeAddress, RpcOpcode.ADD_BLOCKS, out -> {
+            RpcCodec.writeUuid(out, fileUuid);
+            out.writeInt(blockAmount);
+        }, in -> RpcCodec.readList(in, BlockInfo::readFrom));
+    }
+
     @Override
     public void removeLastBlock(UUID fileUuid) throws IllegalStateException {
-        String method = "removeLastBlock";
-        Class<?>[] paraType = {UUID.class};
-        Object[] paras = {fileUuid};
         try {
-            Object object = SdfsRmi.send(nameNodeAddress, method, paraType, paras);
-            if(object instanceof IllegalStateException)
-                throw (IllegalStateException)object;
+            SdfsRmi.send(nameNodeAddress, RpcOpcode.REMOVE_LAST_BLOCK, out -> RpcCodec.writeUuid(out, fileUuid), null);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    @Override
+    public BlockInfo copyOnWriteBlock(UUID fileUuid, int blockIndex) throws IllegalStateException, IndexOutOfBoundsException, IOException {
+        return SdfsRmi.send(nameNodeAddress, RpcOpcode.COPY_ON_WRITE_BLOCK, out -> {
+            RpcCodec.writeUuid(out, fileUuid);
+            out.writeInt(blockIndex);
+        }, BlockInfo::readFrom);
+    }
+
     @Override
     public void removeLastBlocks(UUID fileUuid, int blockAmount) throws IllegalStateException {
-        String method = "removeLastBlocks";
-        Class<?>[] paraType = {UUID.class, int.class};
-        Object[] paras = {fileUuid, blockAmount};
         try {
-            Object object = SdfsRmi.send(nameNodeAddress, method, paraType, paras);
-            if(object instanceof IllegalStateException)
-                throw (IllegalStateException)object;
+            SdfsRmi.send(nameNodeAddress, RpcOpcode.REMOVE_LAST_BLOCKS, out -> {
+                RpcCodec.writeUuid(out, fileUuid);
+                out.writeInt(blockAmount);
+            }, null);
         }catch (IOException e) {
             e.printStackTrace();
         }
 
     }
 
+    @Override
+    public void renewLeases(List<UUID> fileUuids) throws IOException {
+        SdfsRmi.send(nameNodeAddress, RpcOpcode.RENEW_LEASES, out -> RpcCodec.writeUuidList(out, fileUuids), null);
+    }
+
+    /**
+     * @return the renewer of the leases of every file opened through this stub
+     */
+    public synchronized LeaseRenewer getLeaseRenewer() {
+        if (leaseRenewer == null)
+            leaseRenewer = new LeaseRenewer(this);
+        return leaseRenewer;
+    }
+
     public void delete(String fileUri) throws IOException {
-        String method = "delete";
-        Class<?>[] paraType = {String.class};
-        Object[] paras = {fileUri};
-        Object object = SdfsRmi.send(nameNodeAddress, method, paraType, paras);
-        if(object instanceof IOException)
-            throw (IOException)object;
-    }
-
-    public Object list(String fileUri) throws IOException{
-        String method = "list";
-        Class<?>[] paraType = {String.class};
-        Object[] paras = {fileUri};
-        Object object = SdfsRmi.send(nameNodeAddress, method, paraType, paras);
-        if(object instanceof IOException)
-            throw (IOException)object;
-        return object;
+        SdfsRmi.send(nameNodeAddress, RpcOpcode.DELETE, out -> RpcCodec.writeString(out, fileUri), null);
+    }
+
+    public DirNode list(String fileUri) throws IOException{
+        return SdfsRmi.send(nameNodeAddress, RpcOpcode.LIST, out -> RpcCodec.writeString(out, fileUri), DirNode::readEntriesFrom);
     }
 
 }
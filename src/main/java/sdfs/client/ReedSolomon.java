@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) Jipzingking 2016.
+ */
+
+package sdfs.client;
+
+/**
+ * Systematic Reed-Solomon code over GF(2^8): the data units are kept as they are and parity units are added.
+ * <p>
+ * The coding matrix is a Vandermonde matrix made systematic, so that any dataUnits rows of it can be inverted.
+ * Any dataUnits of the units, data or parity, are then enough to rebuild the others.
+ */
+public class ReedSolomon {
+    //x^8 + x^4 + x^3 + x^2 + 1
+    private static final int GENERATOR = 0x11d;
+    private static final byte[] EXP = new byte[512];
+    private static final int[] LOG = new int[256];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = (byte) x;
+            LOG[x] = i;
+            x <<= 1;
+            if (x >= 256)
+                x ^= GENERATOR;
+        }
+        //no modulo when multiplying
+        for (int i = 255; i < EXP.length; i++)
+            EXP[i] = EXP[i - 255];
+    }
+
+    private final int dataUnits;
+    private final int parityUnits;
+    //(dataUnits + parityUnits) x dataUnits, the first dataUnits rows are the identity
+    private final byte[][] matrix;
+
+    public ReedSolomon(int dataUnits, int parityUnits) {
+        if (dataUnits <= 0 || parityUnits < 0 || dataUnits + parityUnits > 255)
+            throw new IllegalArgumentException();
+        this.dataUnits = dataUnits;
+        this.parityUnits = parityUnits;
+        int units = dataUnits + parityUnits;
+        byte[][] vandermonde = new byte[units][dataUnits];
+        for (int r = 0; r < units; r++) {
+            for (int c = 0; c < dataUnits; c++)
+                vandermonde[r][c] = power(r, c);
+        }
+        byte[][] top = new byte[dataUnits][];
+        System.arraycopy(vandermonde, 0, top, 0, dataUnits);
+        this.matrix = multiply(vandermonde, invert(top));
+    }
+
+    /**
+     * Compute the parity units from the data units, over [offset, offset + length) of every unit.
+     *
+     * @param units the dataUnits data units followed by the parityUnits parity units
+     */
+    public void encode(byte[][] units, int offset, int length) {
+        for (int p = 0; p < parityUnits; p++)
+            combine(matrix[dataUnits + p], units, offset, length, units[dataUnits + p]);
+    }
+
+    /**
+     * Rebuild the missing data units from the present ones, over [offset, offset + length) of every unit.
+     * Missing parity units are left as they are.
+     *
+     * @param units   the dataUnits data units followed by the parityUnits parity units, missing ones are overwritten
+     * @param present which units hold their data
+     * @throws IllegalArgumentException if fewer than dataUnits units are present
+     */
+    public void decode(byte[][] units, boolean[] present, int offset, int length) {
+        int[] rows = new int[dataUnits];
+        int found = 0;
+        for (int i = 0; i < units.length && found < dataUnits; i++) {
+            if (present[i])
+                rows[found++] = i;
+        }
+        if (found < dataUnits)
+            throw new IllegalArgumentException("only " + found + " of " + dataUnits + " units are present");
+        byte[][] subMatrix = new byte[dataUnits][];
+        byte[][] sources = new byte[dataUnits][];
+        for (int i = 0; i < dataUnits; i++) {
+            subMatrix[i] = matrix[rows[i]];
+            sources[i] = units[rows[i]];
+        }
+        //rows of the inverse turn the present units back into the data units
+        byte[][] decoding = invert(subMatrix);
+        for (int d = 0; d < dataUnits; d++) {
+            if (!present[d])
+                combine(decoding[d], sources, offset, length, units[d]);
+        }
+    }
+
+    /**
+     * dst = sum of coefficients[i] * sources[i], over [offset, offset + length).
+     */
+    private static void combine(byte[] coefficients, byte[][] sources, int offset, int length, byte[] dst) {
+        for (int j = offset; j < offset + length; j++)
+            dst[j] = 0;
+        for (int i = 0; i < coefficients.length; i++) {
+            int c = coefficients[i] & 0xff;
+            if (c == 0)
+                continue;
+            int logC = LOG[c];
+            byte[] src = sources[i];
+            for (int j = offset; j < offset + length; j++) {
+                int s = src[j] & 0xff;
+                if (s != 0)
+                    dst[j] ^= EXP[logC + LOG[s]];
+            }
+        }
+    }
+
+    private static byte multiply(byte a, byte b) {
+        if (a == 0 || b == 0)
+            return 0;
+        return EXP[LOG[a & 0xff] + LOG[b & 0xff]];
+    }
+
+    private static byte power(int a, int n) {
+        if (n == 0)
+            return 1;
+        if (a == 0)
+            return 0;
+        return EXP[(LOG[a] * n) % 255];
+    }
+
+    private static byte[][] multiply(byte[][] a, byte[][] b) {
+        byte[][] c = new byte[a.length][b[0].length];
+        for (int r = 0; r < a.length; r++) {
+            for (int col = 0; col < b[0].length; col++) {
+                byte sum = 0;
+                for (int i = 0; i < b.length; i++)
+                    sum ^= multiply(a[r][i], b[i][col]);
+                c[r][col] = sum;
+            }
+        }
+        return c;
+    }
+
+    /**
+     * Gauss-Jordan elimination of a square matrix, which is left unchanged.
+     */
+    private static byte[][] invert(byte[][] m) {
+        int n = m.length;
+        byte[][] work = new byte[n][2 * n];
+        for (int r = 0; r < n; r++) {
+            System.arraycopy(m[r], 0, work[r], 0, n);
+            work[r][n + r] = 1;
+        }
+        for (int c = 0; c < n; c++) {
+            int pivot = c;
+            while (pivot < n && work[pivot][c] == 0)
+                pivot++;
+            if (pivot == n)
+                throw new ArithmeticException("singular matrix");
+            byte[] row = work[pivot];
+            work[pivot] = work[c];
+            work[c] = row;
+            byte inverse = EXP[255 - LOG[row[c] & 0xff]];
+            for (int i = 0; i < 2 * n; i++)
+                row[i] = multiply(row[i], inverse);
+            for (int r = 0; r < n; r++) {
+                byte factor = work[r][c];
+                if (r == c || factor == 0)
+                    continue;
+                for (int i = 0; i < 2 * n; i++)
+                    work[r][i] ^= multiply(factor, row[i]);
+            }
+        }
+        byte[][] inverse = new byte[n][n];
+        for (int r = 0; r < n; r++)
+            System.arraycopy(work[r], n, inverse[r], 0, n);
+        return inverse;
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) Jipzingking 2016.
+ */
+
+package sdfs.client
+
+import spock.lang.Specification
+
+class ReedSolomonTest extends Specification {
+    static final int UNIT_SIZE = 1000
+
+    def "Test round trip with units missing"() {
+        def codec = new ReedSolomon(dataUnits, parityUnits)
+        def random = new Random(dataUnits * 31 + parityUnits)
+        def units = new byte[dataUnits + parityUnits][UNIT_SIZE]
+        for (int i = 0; i < dataUnits; i++)
+            random.nextBytes(units[i])
+        codec.encode(units, 0, UNIT_SIZE)
+        def expected = units.collect { it.clone() }
+
+        expect:
+        //every way to lose parityUnits units
+        combinations(dataUnits + parityUnits, parityUnits).every { lost ->
+            def damaged = units.collect { it.clone() } as byte[][]
+            def present = new boolean[dataUnits + parityUnits]
+            Arrays.fill(present, true)
+            for (int i : lost) {
+                present[i] = false
+                Arrays.fill(damaged[i], (byte) 0)
+            }
+            codec.decode(damaged, present, 0, UNIT_SIZE)
+            (0..<dataUnits).every { Arrays.equals(damaged[it], expected[it]) }
+        }
+
+        where:
+        dataUnits | parityUnits
+        3         | 2
+        6         | 3
+        1         | 1
+        4         | 0
+    }
+
+    def "Test decode a range of the units"() {
+        def codec = new ReedSolomon(3, 2)
+        def units = new byte[5][UNIT_SIZE]
+        new Random(1).with { r -> (0..<3).each { r.nextBytes(units[it]) } }
+        codec.encode(units, 0, UNIT_SIZE)
+        def expected = units[1].clone()
+        Arrays.fill(units[1], (byte) 0)
+        def present = [true, false, true, true, true] as boolean[]
+
+        when:
+        codec.decode(units, present, 100, 200)
+
+        then:
+        Arrays.equals(Arrays.copyOfRange(units[1], 100, 300), Arrays.copyOfRange(expected, 100, 300))
+        units[1][99] == 0
+        units[1][300] == 0
+    }
+
+    def "Test too many units missing"() {
+        def codec = new ReedSolomon(3, 2)
+        def units = new byte[5][UNIT_SIZE]
+
+        when:
+        codec.decode(units, [true, false, false, false, true] as boolean[], 0, UNIT_SIZE)
+
+        then:
+        thrown IllegalArgumentException
+    }
+
+    private static List<List<Integer>> combinations(int n, int k) {
+        if (k == 0)
+            return [[]]
+        if (n < k)
+            return []
+        def without = combinations(n - 1, k)
+        def with = combinations(n - 1, k - 1).collect { it + [n - 1] }
+        return without + with
+    }
+}
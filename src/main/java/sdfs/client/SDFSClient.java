@@ -4,8 +4,10 @@
 
 package sdfs.client;
 
+import sdfs.datanode.DataNodeServer;
 import sdfs.filetree.DirNode;
 import sdfs.filetree.Entry;
+import sdfs.filetree.ErasureCodingPolicy;
 import sdfs.filetree.Node;
 import sdfs.namenode.SDFSFileChannel;
 
@@ -34,6 +36,7 @@ public class SDFSClient implements ISimpleDistributedFileSystem {
 
     InetSocketAddress nameNodeAddress;
     int fileDataBlockCacheSize;
+    int readChunkSize = SDFSFileChannel.DEFAULT_READ_CHUNK_SIZE;
     public NameNodeStub nameNodeStub;
 
 
@@ -45,6 +48,16 @@ public class SDFSClient implements ISimpleDistributedFileSystem {
         nameNodeStub = new NameNodeStub(nameNodeAddress);
     }
 
+    /**
+     * @param readChunkSize blocks are fetched from data nodes in chunks of this size, so a small read does not fetch a whole block
+     */
+    public SDFSClient(InetSocketAddress nameNodeAddress, int fileDataBlockCacheSize, int readChunkSize) {
+        this(nameNodeAddress, fileDataBlockCacheSize);
+        if (readChunkSize <= 0 || readChunkSize > DataNodeServer.BLOCK_SIZE)
+            throw new IllegalArgumentException();
+        this.readChunkSize = readChunkSize;
+    }
+
 
     @Override
     public SDFSFileChannel openReadonly(String fileUri) throws IOException {
@@ -55,7 +68,7 @@ public class SDFSClient implements ISimpleDistributedFileSystem {
             e.printStackTrace();
         }
         SDFSFileChannel sdfsFileChannel = nameNodeStub.openReadonly(fileUri);
-        sdfsFileChannel.fix(nameNodeStub, fileDataBlockCacheSize);
+        sdfsFileChannel.fix(nameNodeStub, fileDataBlockCacheSize, readChunkSize);
         return sdfsFileChannel;
     }
 
@@ -63,13 +76,20 @@ public class SDFSClient implements ISimpleDistributedFileSystem {
     @Override
     public SDFSFileChannel create(String fileUri) throws IOException {
         //todo your code here
+        return create(fileUri, null);
+    }
+
+    /**
+     * @param erasureCodingPolicy the blocks are erasure coded with it instead of replicated, e.g. for cold files
+     */
+    public SDFSFileChannel create(String fileUri, ErasureCodingPolicy erasureCodingPolicy) throws IOException {
         try {
             fileUri = parseUri(fileUri);
         } catch (URISyntaxException e) {
             e.printStackTrace();
         }
-        SDFSFileChannel sdfsFileChannel = nameNodeStub.create(fileUri);
-        sdfsFileChannel.fix(nameNodeStub, fileDataBlockCacheSize);
+        SDFSFileChannel sdfsFileChannel = nameNodeStub.create(fileUri, erasureCodingPolicy);
+        sdfsFileChannel.fix(nameNodeStub, fileDataBlockCacheSize, readChunkSize);
         return sdfsFileChannel;
     }
 
@@ -83,7 +103,7 @@ public class SDFSClient implements ISimpleDistributedFileSystem {
             e.printStackTrace();
         }
         SDFSFileChannel sdfsFileChannel = nameNodeStub.openReadwrite(fileUri);
-        sdfsFileChannel.fix(nameNodeStub, fileDataBlockCacheSize);
+        sdfsFileChannel.fix(nameNodeStub, fileDataBlockCacheSize, readChunkSize);
         return sdfsFileChannel;
     }
 
@@ -118,7 +138,7 @@ public class SDFSClient implements ISimpleDistributedFileSystem {
 
     public void list(String fileUri) throws IOException, URISyntaxException {
         fileUri = parseUri(fileUri);
-        DirNode dirNode = (DirNode) nameNodeStub.list(fileUri);
+        DirNode dirNode = nameNodeStub.list(fileUri);
         Iterator<Entry> iter = dirNode.iterator();
         String type;
         while(iter.hasNext()){
@@ -160,12 +180,14 @@ public class SDFSClient implements ISimpleDistributedFileSystem {
         } else if (args[0].equals("put")) {
             String lpath = args[1];
             String rpath = args[2];
+            //e.g. put a.bin sdfs://localhost:4343/a.bin RS-6-3
+            ErasureCodingPolicy erasureCodingPolicy = args.length > 3 ? ErasureCodingPolicy.forName(args[3]) : null;
             File file = new File(lpath);
             FileInputStream in = new FileInputStream(file);
             FileChannel fileChannel = in.getChannel();
             ByteBuffer byteBuffer = ByteBuffer.allocate(1024);
             int len = 0;
-            SDFSFileChannel sdfsFileChannel = client.create(rpath);
+            SDFSFileChannel sdfsFileChannel = client.create(rpath, erasureCodingPolicy);
             while ((len = fileChannel.read(byteBuffer)) > 0) {
                 byteBuffer.flip();
                 byteBuffer.limit(len);
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) Jipzingking 2016.
+ */
+
+package sdfs.client;
+
+import sdfs.protocol.RpcBuffer;
+import sdfs.protocol.RpcCodec;
+import sdfs.protocol.RpcDecoder;
+import sdfs.protocol.RpcInput;
+import sdfs.protocol.RpcWritable;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A keep-alive connection to a name node or data node, shared by many concurrent calls.
+ * <p>
+ * Every request is tagged with a request id, so calls are pipelined without waiting for each other.
+ * A reader thread decodes responses in arrival order and completes the future of the matching call.
+ * Continuations attached to those futures without an executor run on the reader thread, they should not block.
+ */
+class SdfsConnection {
+    private final InetSocketAddress address;
+    private final SocketChannel channel;
+    private final DataOutputStream out;
+    private final SocketChannelInput in;
+    //guarded by out
+    private final RpcBuffer requestBuffer = new RpcBuffer();
+    private final Map<Integer, PendingCall<?>> pendingCalls = new ConcurrentHashMap<>();
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+    private volatile long lastUsedTime;
+    private volatile boolean closed = false;
+
+    SdfsConnection(InetSocketAddress address) throws IOException {
+        this.address = address;
+        this.channel = SocketChannel.open(address);
+        channel.socket().setTcpNoDelay(true);
+        channel.socket().setKeepAlive(true);
+        out = new DataOutputStream(new BufferedOutputStream(new ChannelOutputStream(channel), RpcCodec.BUFFER_SIZE));
+        in = new SocketChannelInput(channel);
+        lastUsedTime = System.currentTimeMillis();
+        Thread reader = new Thread(this::readLoop, "sdfs-rpc-reader-" + address);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * @return future of the result. It fails with the exception thrown by server,
+     * or with {@link ConnectionClosedException} if the connection broke.
+     */
+    <T> CompletableFuture<T> call(byte opcode, RpcWritable request, RpcDecoder<T> response) {
+        PendingCall<T> call = new PendingCall<>(response);
+        int requestId = nextRequestId.incrementAndGet();
+        pendingCalls.put(requestId, call);
+        lastUsedTime = System.currentTimeMillis();
+        synchronized (out) {
+            try {
+                requestBuffer.reset();
+                if (request != null)
+                    request.writeTo(requestBuffer.dataOutput());
+            } catch (IOException e) {
+                //the request could not be encoded, the connection is still fine
+                pendingCalls.remove(requestId);
+                call.future.completeExceptionally(e);
+                return call.future;
+            }
+            try {
+                if (closed)
+                    throw new IOException("closed");
+                //from here on part of it may reach server
+                call.sent = true;
+                RpcCodec.writeRequestHeader(out, opcode, requestId, requestBuffer.size());
+                requestBuffer.writeTo(out);
+                out.flush();
+            } catch (IOException e) {
+                close(e);
+            }
+        }
+        return call.future;
+    }
+
+    private void readLoop() {
+        try {
+            while (true) {
+                int requestId = in.readInt();
+                byte status = in.readByte();
+                int length = RpcCodec.checkFrameLength(in.readInt());
+                in.startPayload(length);
+                lastUsedTime = System.currentTimeMillis();
+                PendingCall<?> call = pendingCalls.remove(requestId);
+                if (call == null)
+                    throw new IOException("unknown request id " + requestId);
+                call.complete(status, in);
+                //a decoder that failed or stopped early leaves the rest of the payload
+                in.endPayload();
+            }
+        } catch (IOException e) {
+            close(e);
+        }
+    }
+
+    int getPendingCallCount() {
+        return pendingCalls.size();
+    }
+
+    InetSocketAddress getAddress() {
+        return address;
+    }
+
+    long getLastUsedTime() {
+        return lastUsedTime;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    void close() {
+        close(null);
+    }
+
+    private void close(Throwable cause) {
+        closed = true;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        //fail the calls registered before closed is visible to them, later ones fail in call
+        for (Integer requestId : pendingCalls.keySet()) {
+            PendingCall<?> call = pendingCalls.remove(requestId);
+            if (call != null)
+                call.future.completeExceptionally(new ConnectionClosedException(address, cause, call.sent));
+        }
+    }
+
+    private static class PendingCall<T> {
+        private final RpcDecoder<T> decoder;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+        //set under the output lock before the request is written
+        private volatile boolean sent = false;
+
+        PendingCall(RpcDecoder<T> decoder) {
+            this.decoder = decoder;
+        }
+
+        /**
+         * Decode the payload from in, a decoder that fails fails the call, not the connection.
+         */
+        void complete(byte status, RpcInput in) {
+            try {
+                if (status != RpcCodec.STATUS_OK)
+                    future.completeExceptionally(RpcCodec.readException(in));
+                else
+                    future.complete(decoder == null ? null : decoder.readFrom(in));
+            } catch (IOException | RuntimeException e) {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+}
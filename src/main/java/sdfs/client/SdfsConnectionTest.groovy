@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) Jipzingking 2016.
+ */
+
+package sdfs.client
+
+import sdfs.protocol.RpcCodec
+import sdfs.protocol.RpcDecoder
+import spock.lang.Specification
+
+import java.nio.ByteBuffer
+import java.nio.channels.ServerSocketChannel
+import java.nio.channels.SocketChannel
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+
+class SdfsConnectionTest extends Specification {
+    def server = ServerSocketChannel.open().bind(new InetSocketAddress("localhost", 0))
+    def connection = new SdfsConnection(server.localAddress as InetSocketAddress)
+    def socket = server.accept()
+
+    def cleanup() {
+        connection.close()
+        socket.close()
+        server.close()
+    }
+
+    //answer the next request with payload, cut after length bytes
+    def respond(byte[] payload, int length = payload.length) {
+        def header = ByteBuffer.allocate(RpcCodec.REQUEST_HEADER_LENGTH)
+        while (header.hasRemaining())
+            socket.read(header)
+        def request = ByteBuffer.allocate(header.getInt(6))
+        while (request.hasRemaining())
+            socket.read(request)
+        def response = ByteBuffer.allocate(RpcCodec.RESPONSE_HEADER_LENGTH + length)
+        response.putInt(header.getInt(2)).put(RpcCodec.STATUS_OK).putInt(payload.length).put(payload, 0, length).flip()
+        while (response.hasRemaining())
+            socket.write(response)
+    }
+
+    def "Test decoder failure fails its call and not the connection"() {
+        given:
+        def failing = connection.call((byte) 1, null, { in ->
+            in.readInt()
+            throw new IOException("bad response")
+        } as RpcDecoder)
+        respond(ByteBuffer.allocate(8).putInt(1).putInt(2).array())
+
+        when:
+        failing.get(5, TimeUnit.SECONDS)
+
+        then:
+        def e = thrown(ExecutionException)
+        e.cause.message == "bad response"
+
+        when:
+        //the unread half of the payload is skipped
+        def next = connection.call((byte) 1, null, { in -> in.readInt() } as RpcDecoder)
+        respond(ByteBuffer.allocate(4).putInt(3).array())
+
+        then:
+        next.get(5, TimeUnit.SECONDS) == 3
+        !connection.closed
+    }
+
+    def "Test connection closed in the middle of a payload fails the call"() {
+        given:
+        def call = connection.call((byte) 1, null, { in -> in.readLong() } as RpcDecoder)
+        respond(new byte[8], 4)
+        socket.close()
+
+        when:
+        call.get(5, TimeUnit.SECONDS)
+
+        then:
+        thrown(ExecutionException)
+        connection.closed
+    }
+
+    def "Test call on a closed connection was not sent"() {
+        given:
+        connection.close()
+
+        when:
+        connection.call((byte) 1, null, null).get(5, TimeUnit.SECONDS)
+
+        then:
+        def e = thrown(ExecutionException)
+        e.cause instanceof ConnectionClosedException
+        !(e.cause as ConnectionClosedException).requestSent
+    }
+
+    def "Test call closed before its response may have been sent"() {
+        given:
+        def call = connection.call((byte) 1, null, null)
+        //server reads the request, then the connection breaks
+        def request = ByteBuffer.allocate(RpcCodec.REQUEST_HEADER_LENGTH)
+        while (request.hasRemaining())
+            socket.read(request)
+        socket.close()
+
+        when:
+        call.get(5, TimeUnit.SECONDS)
+
+        then:
+        def e = thrown(ExecutionException)
+        e.cause instanceof ConnectionClosedException
+        (e.cause as ConnectionClosedException).requestSent
+    }
+}
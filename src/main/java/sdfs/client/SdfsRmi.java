@@ -1,36 +1,79 @@
 package sdfs.client;
 
-import javafx.beans.binding.ObjectExpression;
-import sdfs.namenode.SDFSFileChannel;
+import sdfs.protocol.RpcDecoder;
+import sdfs.protocol.RpcOpcode;
+import sdfs.protocol.RpcWritable;
 
 import java.io.IOException;
-import java.io.ObjectInput;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.InetAddress;
+import java.io.InterruptedIOException;
 import java.net.InetSocketAddress;
-import java.net.Socket;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 public class SdfsRmi {
 
-    public static Object send(InetSocketAddress inetSocketAddress, String method, Class<?>[] paraType, Object[] paras) throws IOException {
-        Socket socket = new Socket(inetSocketAddress.getHostName(), inetSocketAddress.getPort());
-        ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-        out.writeObject(method);
-        out.writeObject(paraType);
-        out.writeObject(paras);
+    //shared by NameNodeStub and DataNodeStub
+    private static final ConnectionPool connectionPool = new ConnectionPool(ConnectionPool.DEFAULT_IDLE_TIMEOUT, ConnectionPool.DEFAULT_MAX_CONNECTIONS_PER_ADDRESS);
+    //calls with the same result whether server ran them once or twice, e.g. a write of the same bytes to the same offset
+    private static final Set<Byte> IDEMPOTENT_OPCODES = new HashSet<>(Arrays.asList(RpcOpcode.LIST, RpcOpcode.CLOSE_READONLY_FILE,
+            RpcOpcode.RENEW_LEASES, RpcOpcode.BLOCK_REPORT, RpcOpcode.READ, RpcOpcode.READ_IN_BACKGROUND, RpcOpcode.WRITE,
+            RpcOpcode.GET_LOCAL_BLOCK));
 
+    /**
+     * @param request  encoder of the arguments, null if there is no argument
+     * @param response decoder of the result, null if the method returns void
+     */
+    public static <T> T send(InetSocketAddress inetSocketAddress, byte opcode, RpcWritable request, RpcDecoder<T> response) throws IOException {
+        try {
+            return join(sendAsync(inetSocketAddress, opcode, request, response));
+        } catch (ConnectionClosedException e) {
+            //the pooled connection may be closed by server, retry once on a fresh one,
+            //unless server may have run the call already and running it twice is not the same
+            if (e.isRequestSent() && !IDEMPOTENT_OPCODES.contains(opcode))
+                throw e;
+            return join(sendAsync(inetSocketAddress, opcode, request, response));
+        }
+    }
+
+    /**
+     * Pipeline a call on a shared connection without waiting for the response.
+     */
+    public static <T> CompletableFuture<T> sendAsync(InetSocketAddress inetSocketAddress, byte opcode, RpcWritable request, RpcDecoder<T> response) {
+        try {
+            return connectionPool.get(inetSocketAddress).call(opcode, request, response);
+        } catch (IOException e) {
+            CompletableFuture<T> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        }
+    }
 
-        ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
-        Object object = null;
+    /**
+     * Wait for a call and throw the exception thrown by server as if it is thrown locally.
+     */
+    public static <T> T join(CompletableFuture<T> future) throws IOException {
         try {
-            object = in.readObject();
-        } catch (ClassNotFoundException e) {
-            e.printStackTrace();
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new IOException(cause);
         }
-        socket.close();
-        return object;
     }
 
+    public static ConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
 
 }
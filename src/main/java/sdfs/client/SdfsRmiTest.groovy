@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) Jipzingking 2016.
+ */
+
+package sdfs.client
+
+import sdfs.protocol.RpcCodec
+import sdfs.protocol.RpcOpcode
+import spock.lang.Specification
+
+import java.nio.ByteBuffer
+import java.nio.channels.ServerSocketChannel
+import java.util.concurrent.atomic.AtomicInteger
+
+class SdfsRmiTest extends Specification {
+    def server = ServerSocketChannel.open().bind(new InetSocketAddress("localhost", 0))
+    def address = server.localAddress as InetSocketAddress
+    def requests = new AtomicInteger()
+    def serverThread = Thread.start {
+        //every request is read, then the connection breaks before the response
+        while (server.isOpen()) {
+            try {
+                def socket = server.accept()
+                def header = ByteBuffer.allocate(RpcCodec.REQUEST_HEADER_LENGTH)
+                while (header.hasRemaining() && socket.read(header) >= 0) ;
+                requests.incrementAndGet()
+                socket.close()
+            } catch (IOException ignored) {
+                return
+            }
+        }
+    }
+
+    def cleanup() {
+        server.close()
+        serverThread.join()
+    }
+
+    def "Test call that may have run is not sent again"() {
+        when:
+        SdfsRmi.send(address, RpcOpcode.ADD_BLOCKS, null, null)
+
+        then:
+        thrown(ConnectionClosedException)
+        requests.get() == 1
+    }
+
+    def "Test idempotent call is sent again"() {
+        when:
+        SdfsRmi.send(address, RpcOpcode.LIST, null, null)
+
+        then:
+        thrown(ConnectionClosedException)
+        requests.get() == 2
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) Jipzingking 2016.
+ */
+
+package sdfs.client;
+
+import sdfs.datanode.LocalBlock;
+import sdfs.filetree.BlockInfo;
+import sdfs.namenode.LocatedBlock;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+/**
+ * Reads blocks of a data node on the same host straight from its files instead of over a socket.
+ * <p>
+ * The data node is asked once where a block lies, see {@link sdfs.protocol.IDataNodeProtocol#getLocalBlock},
+ * and the region is memory mapped read only. A block the data node refuses, or whose file cannot be opened,
+ * is read through the data node as before, for REFUSAL_TIMEOUT before the data node is asked again, since
+ * a block being written is refused until it is finished. Blocks are never changed in place once readers may hold them,
+ * so a mapping stays valid until the owner of the channel writes the block, see {@link #invalidate(BlockInfo)}.
+ * Disabled with -Dsdfs.client.shortCircuit=false.
+ */
+public class ShortCircuitReader {
+    public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("sdfs.client.shortCircuit", "true"));
+    public static final int MAX_MAPPED_BLOCKS = 256;
+    public static final long REFUSAL_TIMEOUT = 3 * 1000;
+    private static final Map<InetAddress, Boolean> localAddresses = new ConcurrentHashMap<>();
+
+    //everything below is guarded by this
+    private final Map<LocatedBlock, ByteBuffer> mappedBlocks = new LinkedHashMap<LocatedBlock, ByteBuffer>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<LocatedBlock, ByteBuffer> eldest) {
+            return size() > MAX_MAPPED_BLOCKS;
+        }
+    };
+    //block refused to the time it may be asked for again
+    private final Map<LocatedBlock, Long> refusedBlocks = new LinkedHashMap<LocatedBlock, Long>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<LocatedBlock, Long> eldest) {
+            return size() > MAX_MAPPED_BLOCKS;
+        }
+    };
+    //counts the calls to invalidate, a block located before one is not cached
+    private long invalidations = 0;
+
+    /**
+     * @return whether the address is of a network interface of this host
+     */
+    public static boolean isLocal(InetAddress address) {
+        if (!ENABLED)
+            return false;
+        return localAddresses.computeIfAbsent(address, a -> {
+            if (a.isLoopbackAddress() || a.isAnyLocalAddress())
+                return true;
+            try {
+                return NetworkInterface.getByInetAddress(a) != null;
+            } catch (SocketException e) {
+                return false;
+            }
+        });
+    }
+
+    /**
+     * Same as {@link DataNodeStub#readAsync(UUID, int, int, int, ByteBuffer)}, completed at once if the block is local.
+     */
+    public CompletableFuture<Integer> readAsync(UUID fileUuid, LocatedBlock locatedBlock, int offset, int size, ByteBuffer dst) {
+        ByteBuffer mapped = isLocal(locatedBlock.getInetAddress()) ? map(fileUuid, locatedBlock) : null;
+        if (mapped == null)
+            return new DataNodeStub(locatedBlock.getDataNodeAddress()).readAsync(fileUuid, locatedBlock.getBlockNumber(), offset, size, dst);
+        if (size < 0 || dst.remaining() < size)
+            throw new IndexOutOfBoundsException();
+        int count = max(0, min(size, mapped.limit() - offset));
+        if (count > 0) {
+            ByteBuffer region = mapped.duplicate();
+            region.limit(offset + count).position(offset);
+            dst.put(region);
+        }
+        return CompletableFuture.completedFuture(count);
+    }
+
+    /**
+     * Drop the mappings of every replica or unit of a block, the next read asks the data node again.
+     */
+    public synchronized void invalidate(BlockInfo blockInfo) {
+        invalidations++;
+        for (LocatedBlock locatedBlock : blockInfo.getLocatedBlocks()) {
+            mappedBlocks.remove(locatedBlock);
+            refusedBlocks.remove(locatedBlock);
+        }
+    }
+
+    public synchronized void clear() {
+        invalidations++;
+        mappedBlocks.clear();
+        refusedBlocks.clear();
+    }
+
+    /**
+     * @return the mapped block, or null to read it through the data node
+     */
+    private ByteBuffer map(UUID fileUuid, LocatedBlock locatedBlock) {
+        long located;
+        synchronized (this) {
+            ByteBuffer mapped = mappedBlocks.get(locatedBlock);
+            if (mapped != null)
+                return mapped;
+            Long refusedUntil = refusedBlocks.get(locatedBlock);
+            if (refusedUntil != null && System.currentTimeMillis() < refusedUntil)
+                return null;
+            located = invalidations;
+        }
+        //other blocks are read meanwhile, a slow data node holds up only its own
+        ByteBuffer mapped = null;
+        try {
+            LocalBlock localBlock = new DataNodeStub(locatedBlock.getDataNodeAddress()).getLocalBlock(fileUuid, locatedBlock.getBlockNumber());
+            if (localBlock != null) {
+                //the mapping outlives the channel, and the file if the data node deletes it
+                try (FileChannel channel = FileChannel.open(Paths.get(localBlock.getPath()), StandardOpenOption.READ)) {
+                    mapped = channel.map(FileChannel.MapMode.READ_ONLY, localBlock.getOffset(), localBlock.getLength());
+                }
+            }
+        } catch (IOException e) {
+            //the data node reports the error again when read through
+            return null;
+        }
+        synchronized (this) {
+            //the block may have been written since it was located
+            if (located != invalidations)
+                return null;
+            if (mapped == null) {
+                refusedBlocks.put(locatedBlock, System.currentTimeMillis() + REFUSAL_TIMEOUT);
+            } else {
+                refusedBlocks.remove(locatedBlock);
+                mappedBlocks.put(locatedBlock, mapped);
+            }
+        }
+        return mapped;
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) Jipzingking 2016.
+ */
+
+package sdfs.client
+
+import sdfs.datanode.LocalBlock
+import sdfs.namenode.LocatedBlock
+import sdfs.protocol.RpcCodec
+import sdfs.protocol.RpcDispatcher
+import sdfs.protocol.RpcOpcode
+import sdfs.server.RpcServer
+import sdfs.server.RpcServerConfig
+import spock.lang.Specification
+
+import java.nio.ByteBuffer
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class ShortCircuitReaderTest extends Specification {
+    static final int PORT = 45601
+    static final byte[] DATA = (0..<64).collect { it as byte } as byte[]
+
+    def dir = File.createTempDir()
+    def blockFile = new File(dir, "block")
+    def servers = []
+    def reader = new ShortCircuitReader()
+    def fileUuid = UUID.randomUUID()
+
+    def setup() {
+        blockFile.bytes = DATA
+    }
+
+    def cleanup() {
+        servers*.close()
+        dir.deleteDir()
+    }
+
+    //a data node that answers reads over the socket and locates blocks with locate
+    def startDataNode(int port, AtomicInteger reads, Closure<LocalBlock> locate) {
+        def dispatcher = new RpcDispatcher()
+        dispatcher.register(RpcOpcode.READ, { in, out ->
+            RpcCodec.readUuid(in)
+            in.readInt()
+            int offset = in.readInt()
+            int size = in.readInt()
+            reads.incrementAndGet()
+            RpcCodec.writeBytes(out, Arrays.copyOfRange(DATA, offset, offset + size))
+        })
+        dispatcher.register(RpcOpcode.GET_LOCAL_BLOCK, { in, out -> RpcCodec.writeNullable(out, locate()) })
+        def server = new RpcServer(new RpcServerConfig(port), dispatcher)
+        server.start()
+        servers << server
+        new LocatedBlock(InetAddress.getLoopbackAddress(), port, 1)
+    }
+
+    def read(LocatedBlock locatedBlock) {
+        def dst = ByteBuffer.allocate(16)
+        reader.readAsync(fileUuid, locatedBlock, 8, 16, dst).get(5, TimeUnit.SECONDS)
+        dst.array()
+    }
+
+    def "Test refused block is asked for again later"() {
+        given:
+        def reads = new AtomicInteger()
+        def refuse = true
+        def asked = new AtomicInteger()
+        def locatedBlock = startDataNode(PORT, reads, {
+            asked.incrementAndGet()
+            refuse ? null : new LocalBlock(blockFile.absolutePath, 0, DATA.length)
+        })
+
+        when:
+        def first = read(locatedBlock)
+        refuse = false
+        def second = read(locatedBlock)
+
+        then:
+        first == Arrays.copyOfRange(DATA, 8, 24)
+        second == first
+        //refused for a while, both read through the data node
+        asked.get() == 1
+        reads.get() == 2
+
+        when:
+        sleep(ShortCircuitReader.REFUSAL_TIMEOUT + 100)
+        def third = read(locatedBlock)
+        def fourth = read(locatedBlock)
+
+        then:
+        third == first
+        fourth == first
+        asked.get() == 2
+        reads.get() == 2
+    }
+
+    def "Test slow data node does not hold up reads of another"() {
+        given:
+        def release = new CountDownLatch(1)
+        def slow = startDataNode(PORT + 1, new AtomicInteger(), {
+            release.await()
+            null
+        })
+        def fast = startDataNode(PORT + 2, new AtomicInteger(), { new LocalBlock(blockFile.absolutePath, 0, DATA.length) })
+        def slowRead = Thread.start { read(slow) }
+
+        when:
+        sleep(200)
+        def data = CompletableFuture.supplyAsync { read(fast) }.get(5, TimeUnit.SECONDS)
+
+        then:
+        data == Arrays.copyOfRange(DATA, 8, 24)
+
+        cleanup:
+        release.countDown()
+        slowRead.join()
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) Jipzingking 2016.
+ */
+
+package sdfs.client;
+
+import sdfs.protocol.RpcCodec;
+import sdfs.protocol.RpcInput;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Response input read from a blocking socket channel.
+ * Bulk data is read from the socket straight into the destination buffer, which may be a direct one.
+ */
+class SocketChannelInput extends RpcInput {
+    private final ChannelStream stream;
+    //stream position where the payload being read ends
+    private long payloadEnd = 0;
+
+    SocketChannelInput(SocketChannel channel) {
+        this(new ChannelStream(channel));
+    }
+
+    private SocketChannelInput(ChannelStream stream) {
+        super(stream);
+        this.stream = stream;
+    }
+
+    /**
+     * A payload of length bytes comes next.
+     */
+    void startPayload(int length) {
+        payloadEnd = stream.position + length;
+    }
+
+    /**
+     * Skip what is left of the payload being read.
+     *
+     * @throws IOException if more than the payload was read, the stream is out of sync then
+     */
+    void endPayload() throws IOException {
+        if (stream.position > payloadEnd)
+            throw new IOException("response was read past its payload");
+        while (stream.position < payloadEnd) {
+            if (stream.skip(payloadEnd - stream.position) <= 0 && stream.read() < 0)
+                throw new EOFException();
+        }
+    }
+
+    @Override
+    public long remaining() {
+        return Math.max(0, payloadEnd - stream.position);
+    }
+
+    @Override
+    public void readFully(ByteBuffer dst) throws IOException {
+        stream.readFully(dst);
+    }
+
+    private static class ChannelStream extends InputStream {
+        private final SocketChannel channel;
+        //always in read mode, the unread bytes are between position and limit
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(RpcCodec.BUFFER_SIZE);
+        //bytes read so far
+        private long position = 0;
+
+        ChannelStream(SocketChannel channel) {
+            this.channel = channel;
+            buffer.flip();
+        }
+
+        private boolean fill() throws IOException {
+            buffer.clear();
+            int n = channel.read(buffer);
+            buffer.flip();
+            return n > 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!buffer.hasRemaining() && !fill())
+                return -1;
+            position++;
+            return buffer.get() & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (buffer.hasRemaining()) {
+                len = Math.min(len, buffer.remaining());
+                buffer.get(b, off, len);
+                position += len;
+                return len;
+            }
+            //large reads bypass the buffer
+            if (len >= buffer.capacity()) {
+                int n = channel.read(ByteBuffer.wrap(b, off, len));
+                if (n > 0)
+                    position += n;
+                return n;
+            }
+            if (!fill())
+                return -1;
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            position += len;
+            return len;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+
+        void readFully(ByteBuffer dst) throws IOException {
+            position += dst.remaining();
+            if (buffer.hasRemaining()) {
+                ByteBuffer buffered = buffer.duplicate();
+                buffered.limit(buffered.position() + Math.min(buffered.remaining(), dst.remaining()));
+                buffer.position(buffered.limit());
+                dst.put(buffered);
+            }
+            while (dst.hasRemaining()) {
+                if (channel.read(dst) < 0)
+                    throw new EOFException();
+            }
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) Jipzingking 2016.
+ */
+
+package sdfs.datanode;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps transfers under a bandwidth by sleeping once the bytes of the current period are used up.
+ */
+class BandwidthThrottler {
+    private static final long PERIOD_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
+    private final long bytesPerPeriod;
+    //everything below is guarded by this
+    private long periodStart = System.nanoTime();
+    private long periodBytes = 0;
+
+    /**
+     * @param bytesPerSecond the bandwidth, at least 2 bytes per second
+     */
+    BandwidthThrottler(long bytesPerSecond) {
+        if (bytesPerSecond < 2)
+            throw new IllegalArgumentException();
+        this.bytesPerPeriod = bytesPerSecond * PERIOD_NANOS / TimeUnit.SECONDS.toNanos(1);
+    }
+
+    /**
+     * Count bytes just transferred, and wait until the bandwidth allows more.
+     */
+    synchronized void throttle(long bytes) throws InterruptedIOException {
+        long now = System.nanoTime();
+        if (now - periodStart >= PERIOD_NANOS) {
+            periodStart = now;
+            periodBytes = 0;
+        }
+        periodBytes += bytes;
+        while (periodBytes > bytesPerPeriod) {
+            long delay = periodStart + PERIOD_NANOS - System.nanoTime();
+            if (delay > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted while throttled");
+                }
+            }
+            periodStart += PERIOD_NANOS;
+            periodBytes -= bytesPerPeriod;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) Jipzingking 2016.
+ */
+
+package sdfs.datanode;
+
+import sdfs.namenode.LocatedBlock;
+import sdfs.namenode.ReplicationWork;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * Does the replication works of a data node one by one on a background thread.
+ * Blocks are copied in the order of the work, under a bandwidth limit so that clients are not starved.
+ */
+class BlockReplicator implements Closeable {
+    private final DataNodeServer dataNode;
+    private final BandwidthThrottler throttler;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "sdfs-replicator");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param bandwidth bytes per second copied at most
+     */
+    BlockReplicator(DataNodeServer dataNode, long bandwidth) {
+        this.dataNode = dataNode;
+        this.throttler = new BandwidthThrottler(bandwidth);
+    }
+
+    /**
+     * @param done called with the id of the work once every block of it is copied or has failed
+     */
+    void submit(ReplicationWork work, Consumer<UUID> done) {
+        executor.execute(() -> {
+            replicate(work);
+            done.accept(work.getReplicationWorkUuid());
+        });
+    }
+
+    private void replicate(ReplicationWork work) {
+        for (Map.Entry<Integer, LocatedBlock> e : work.getReplicationWork().entrySet()) {
+            int blockNumber = e.getKey();
+            LocatedBlock source = e.getValue();
+            try {
+                if (source == null) {
+                    dataNode.deleteBlock(blockNumber);
+                } else {
+                    throttler.throttle(dataNode.copyBlock(work.getReplicationWorkUuid(), blockNumber, source.getDataNodeAddress()));
+                }
+            } catch (InterruptedIOException ex) {
+                return;
+            } catch (IOException | RuntimeException ex) {
+                //name node schedules it again
+                System.err.println("cannot replicate block " + blockNumber + " from " + (source == null ? null : source.getDataNodeAddress()) + ": " + ex);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
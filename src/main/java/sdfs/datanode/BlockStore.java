@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) Jipzingking 2016.
+ */
+
+package sdfs.datanode;
+
+import sdfs.protocol.FileRegion;
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Where a data node keeps the content of its blocks.
+ * The length of a block is the largest offset ever written to it, offsets are checked by the caller.
+ */
+public interface BlockStore extends Closeable {
+    /**
+     * Read from offset until dst is full or the block ends.
+     *
+     * @return the number of bytes read
+     * @throws FileNotFoundException if the block does not exist
+     */
+    int read(int blockNumber, int offset, ByteBuffer dst) throws IOException;
+
+    /**
+     * Locate at most size bytes from offset without reading them, the region is shorter if the block ends earlier.
+     * The caller must release the region.
+     *
+     * @throws FileNotFoundException if the block does not exist
+     */
+    FileRegion readRegion(int blockNumber, int offset, int size) throws IOException;
+
+    /**
+     * Write all the remaining bytes of src at offset, the block is created if it does not exist.
+     */
+    void write(int blockNumber, int offset, ByteBuffer src) throws IOException;
+
+    /**
+     * Hint that the block is about to be written up to capacity bytes, e.g. by a block stream,
+     * so that it could be laid out in one piece. Nothing is done by default.
+     */
+    default void reserve(int blockNumber, int capacity) throws IOException {
+    }
+
+    /**
+     * Remove a block, nothing happens if it does not exist.
+     */
+    void delete(int blockNumber) throws IOException;
+
+    /**
+     * @return every block in the store, in no particular order
+     */
+    List<Integer> getBlockNumbers() throws IOException;
+
+    /**
+     * Locate a block in a local file, for a client on the same host to read it without the data node.
+     * A block is not moved by writes within its length, but may be moved by writes past it, or by compaction.
+     *
+     * @return null if the block is not kept in one piece of a file. Null by default.
+     * @throws FileNotFoundException if the block does not exist
+     */
+    default LocalBlock getLocalBlock(int blockNumber) throws IOException {
+        return null;
+    }
+
+    /**
+     * Force every write and delete completed before this call to disk.
+     */
+    void sync() throws IOException;
+
+    /**
+     * @return where disk I/O on the block should run, so that callers are not held by a busy disk.
+     * The calling thread by default.
+     */
+    default Executor getExecutor(int blockNumber) {
+        return Runnable::run;
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) Jipzingking 2016.
+ */
+
+package sdfs.datanode;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Tracks the packets of a block stream until the last one has arrived.
+ */
+class BlockWriteStream {
+    private final BlockStore blockStore;
+    private final int blockNumber;
+    private int writtenPackets = 0;
+    //unknown until the last packet arrives
+    private int totalPackets = -1;
+    private long lastActiveTime = System.currentTimeMillis();
+    private boolean closed = false;
+
+    BlockWriteStream(BlockStore blockStore, int blockNumber) {
+        this.blockStore = blockStore;
+        this.blockNumber = blockNumber;
+    }
+
+    /**
+     * @return true if every packet of the stream has been written and the stream is closed
+     */
+    synchronized boolean write(int offset, int seqNo, boolean last, byte[] b) throws IOException {
+        if (closed)
+            throw new IllegalStateException("block stream is already closed");
+        //more packets are coming
+        if (writtenPackets == 0 && !last)
+            blockStore.reserve(blockNumber, DataNodeServer.BLOCK_SIZE);
+        blockStore.write(blockNumber, offset, ByteBuffer.wrap(b));
+        writtenPackets++;
+        if (last)
+            totalPackets = seqNo + 1;
+        lastActiveTime = System.currentTimeMillis();
+        if (writtenPackets == totalPackets) {
+            close();
+            return true;
+        }
+        return false;
+    }
+
+    synchronized long getLastActiveTime() {
+        return lastActiveTime;
+    }
+
+    synchronized void close() {
+        closed = true;
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright (c) Jipzingking 2016.
+ */
+
+package sdfs.datanode;
+
+import sdfs.protocol.FileRegion;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Keeps hot blocks of another store in off-heap memory.
+ * <p>
+ * The memory is allocated once as a direct buffer and cut into slots of BLOCK_SIZE, so the cache costs no garbage
+ * collection. Blocks are evicted by 2Q: a block read for the first time enters a small FIFO queue, and only a block
+ * read again, while in that queue or soon after leaving it, is promoted to the main LRU queue. A scan over many
+ * cold blocks thus only churns the small queue and never flushes the hot ones.
+ * <p>
+ * A read that misses is served from the store, only the bytes it asks for, and the whole block is loaded into
+ * the cache by a background thread. Concurrent misses on the same block share one load. A block is dropped on
+ * every write or delete.
+ */
+public class CachingBlockStore implements BlockStore {
+    private final BlockStore store;
+    private final int slotCount;
+    //at most this many slots are held by the first-read queue
+    private final int maxFirstReadSlots;
+    //at most this many evicted block numbers are remembered
+    private final int maxGhosts;
+    //everything below is guarded by this
+    private final Deque<ByteBuffer> freeSlots = new ArrayDeque<>();
+    //blocks read once, oldest first
+    private final LinkedHashMap<Integer, Entry> firstRead = new LinkedHashMap<>();
+    //blocks read more than once, least recently used first
+    private final LinkedHashMap<Integer, Entry> hot = new LinkedHashMap<>(16, 0.75f, true);
+    //recently evicted from firstRead, without data
+    private final LinkedHashSet<Integer> ghosts = new LinkedHashSet<>();
+    private final Map<Integer, Load> loads = new HashMap<>();
+    private long hitCount = 0;
+    private long missCount = 0;
+    private final ExecutorService loader = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "sdfs-cache-loader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param capacity the memory for cached blocks in bytes, rounded down to whole blocks
+     */
+    public CachingBlockStore(BlockStore store, long capacity) {
+        this.store = store;
+        this.slotCount = (int) (capacity / DataNodeServer.BLOCK_SIZE);
+        if (slotCount <= 0)
+            throw new IllegalArgumentException("capacity is less than a block");
+        this.maxFirstReadSlots = Math.max(1, slotCount / 4);
+        this.maxGhosts = Math.max(1, slotCount / 2);
+        ByteBuffer memory = ByteBuffer.allocateDirect(slotCount * DataNodeServer.BLOCK_SIZE);
+        for (int i = 0; i < slotCount; i++) {
+            memory.limit((i + 1) * DataNodeServer.BLOCK_SIZE);
+            memory.position(i * DataNodeServer.BLOCK_SIZE);
+            freeSlots.add(memory.slice());
+        }
+    }
+
+    @Override
+    public int read(int blockNumber, int offset, ByteBuffer dst) throws IOException {
+        Entry entry = pin(blockNumber);
+        if (entry == null)
+            return store.read(blockNumber, offset, dst);
+        try {
+            ByteBuffer slice = entry.slice(offset, dst.remaining());
+            int read = slice.remaining();
+            dst.put(slice);
+            return read;
+        } finally {
+            unpin(entry);
+        }
+    }
+
+    @Override
+    public FileRegion readRegion(int blockNumber, int offset, int size) throws IOException {
+        Entry entry = pin(blockNumber);
+        if (entry == null)
+            return store.readRegion(blockNumber, offset, size);
+        return new FileRegion(entry.slice(offset, size), () -> unpin(entry));
+    }
+
+    @Override
+    public void write(int blockNumber, int offset, ByteBuffer src) throws IOException {
+        try {
+            store.write(blockNumber, offset, src);
+        } finally {
+            invalidate(blockNumber);
+        }
+    }
+
+    @Override
+    public void reserve(int blockNumber, int capacity) throws IOException {
+        store.reserve(blockNumber, capacity);
+    }
+
+    @Override
+    public void delete(int blockNumber) throws IOException {
+        try {
+            store.delete(blockNumber);
+        } finally {
+            invalidate(blockNumber);
+        }
+    }
+
+    @Override
+    public List<Integer> getBlockNumbers() throws IOException {
+        return store.getBlockNumbers();
+    }
+
+    @Override
+    public LocalBlock getLocalBlock(int blockNumber) throws IOException {
+        return store.getLocalBlock(blockNumber);
+    }
+
+    @Override
+    public void sync() throws IOException {
+        store.sync();
+    }
+
+    @Override
+    public Executor getExecutor(int blockNumber) {
+        return store.getExecutor(blockNumber);
+    }
+
+    @Override
+    public void close() throws IOException {
+        loader.shutdownNow();
+        store.close();
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * @return the number of blocks in memory
+     */
+    public synchronized int getCachedBlockCount() {
+        return firstRead.size() + hot.size();
+    }
+
+    /**
+     * @return the cached block. null if missed, then the block is read from store while it is loaded.
+     */
+    private synchronized Entry pin(int blockNumber) {
+        Entry entry = hot.get(blockNumber);
+        if (entry == null) {
+            entry = firstRead.remove(blockNumber);
+            if (entry != null)
+                hot.put(blockNumber, entry);
+        }
+        if (entry != null) {
+            hitCount++;
+            entry.refs++;
+            return entry;
+        }
+        missCount++;
+        if (!loads.containsKey(blockNumber)) {
+            //not cached if every slot is pinned
+            ByteBuffer slot = allocateSlot();
+            if (slot != null) {
+                Load load = new Load(new Entry(blockNumber, slot));
+                loads.put(blockNumber, load);
+                try {
+                    loader.execute(() -> load(load));
+                } catch (RejectedExecutionException e) {
+                    //closed
+                    loads.remove(blockNumber);
+                    freeSlots.add(slot);
+                }
+            }
+        }
+        return null;
+    }
+
+    private void load(Load load) {
+        Entry entry = load.entry;
+        try {
+            ByteBuffer target = entry.slot.duplicate();
+            target.clear();
+            entry.length = store.read(entry.blockNumber, 0, target);
+        } catch (IOException | RuntimeException e) {
+            //the read that missed got the error itself
+            synchronized (this) {
+                loads.remove(entry.blockNumber);
+                freeSlots.add(entry.slot);
+            }
+            return;
+        }
+        synchronized (this) {
+            loads.remove(entry.blockNumber);
+            //a write during the load may have been missed
+            if (load.stale) {
+                freeSlots.add(entry.slot);
+                return;
+            }
+            entry.cached = true;
+            if (ghosts.remove(entry.blockNumber))
+                hot.put(entry.blockNumber, entry);
+            else
+                firstRead.put(entry.blockNumber, entry);
+        }
+    }
+
+    private void unpin(Entry entry) {
+        synchronized (this) {
+            entry.refs--;
+            if (entry.refs == 0 && !entry.cached)
+                freeSlots.add(entry.slot);
+        }
+    }
+
+    private synchronized void invalidate(int blockNumber) {
+        Entry entry = firstRead.remove(blockNumber);
+        if (entry == null)
+            entry = hot.remove(blockNumber);
+        if (entry != null)
+            uncache(entry);
+        Load load = loads.get(blockNumber);
+        if (load != null)
+            load.stale = true;
+    }
+
+    /**
+     * @return a free slot, blocks are evicted if needed. null if every cached block is pinned.
+     */
+    private ByteBuffer allocateSlot() {
+        while (freeSlots.isEmpty()) {
+            Entry victim;
+            if (!firstRead.isEmpty() && (firstRead.size() > maxFirstReadSlots || hot.isEmpty())) {
+                victim = removeEldest(firstRead);
+                ghosts.add(victim.blockNumber);
+                if (ghosts.size() > maxGhosts) {
+                    Iterator<Integer> iter = ghosts.iterator();
+                    iter.next();
+                    iter.remove();
+                }
+            } else if (!hot.isEmpty()) {
+                victim = removeEldest(hot);
+            } else {
+                return null;
+            }
+            //a pinned block gives its slot back when it is unpinned
+            uncache(victim);
+        }
+        return freeSlots.poll();
+    }
+
+    private static Entry removeEldest(LinkedHashMap<Integer, Entry> queue) {
+        Iterator<Entry> iter = queue.values().iterator();
+        Entry eldest = iter.next();
+        iter.remove();
+        return eldest;
+    }
+
+    private void uncache(Entry entry) {
+        entry.cached = false;
+        if (entry.refs == 0)
+            freeSlots.add(entry.slot);
+    }
+
+    private static class Entry {
+        private final int blockNumber;
+        private final ByteBuffer slot;
+        private int length;
+        //guarded by the cache
+        private int refs = 0;
+        private boolean cached = false;
+
+        Entry(int blockNumber, ByteBuffer slot) {
+            this.blockNumber = blockNumber;
+            this.slot = slot;
+        }
+
+        ByteBuffer slice(int offset, int size) {
+            int count = Math.max(0, Math.min(size, length - offset));
+            ByteBuffer view = slot.duplicate();
+            view.limit(offset + count);
+            view.position(offset);
+            return view.slice();
+        }
+    }
+
+    private static class Load {
+        private final Entry entry;
+        //guarded by the cache
+        private boolean stale = false;
+
+        Load(Entry entry) {
+            this.entry = entry;
+        }
+    }
+}
@@ -4,15 +4,34 @@
 
 package sdfs.datanode;
 
+import sdfs.client.DataNodeStub;
+import sdfs.client.NameNodeDataNodeStub;
+import sdfs.client.SdfsRmi;
+import sdfs.namenode.NameNodeServer;
+import sdfs.protocol.FileRegion;
 import sdfs.protocol.IDataNodeProtocol;
+import sdfs.protocol.INameNodeDataNodeProtocol;
+import sdfs.protocol.RpcAsyncTransferHandler;
+import sdfs.protocol.RpcCodec;
+import sdfs.protocol.RpcDispatcher;
+import sdfs.protocol.RpcOpcode;
+import sdfs.server.RpcServer;
+import sdfs.server.RpcServerConfig;
 
 import java.io.*;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.PriorityQueue;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 
 public class DataNodeServer implements IDataNodeProtocol {
     /**
@@ -21,14 +40,106 @@ public class DataNodeServer implements IDataNodeProtocol {
      */
     public static final int BLOCK_SIZE = 128 * 1024;
     public static final int DATA_NODE_PORT = 4341;
-    String workingDir = "DataNodeFile/";
+    /**
+     * A block stream without any packet for this milliseconds is treated as abandoned by its client.
+     */
+    public static final long WRITE_STREAM_TIMEOUT = 60 * 1000;
+    /**
+     * Bytes per second a data node copies at most for re-replication, -Dsdfs.datanode.replicationBandwidth overrides it.
+     * Background I/O of every volume is kept under it too.
+     */
+    public static final long DEFAULT_REPLICATION_BANDWIDTH = 4L * 1024 * 1024;
+    private final long replicationBandwidth = Long.getLong("sdfs.datanode.replicationBandwidth", DEFAULT_REPLICATION_BANDWIDTH);
+    //-Dsdfs.datanode.shortCircuit=false makes clients on the same host read through the data node too
+    private final boolean shortCircuit = Boolean.parseBoolean(System.getProperty("sdfs.datanode.shortCircuit", "true"));
+    private final List<File> dirs;
+    private final BlockStore blockStore;
+    private final Map<Integer, BlockWriteStream> writeStreams = new ConcurrentHashMap<>();
+    //one per I/O executor of the block store, that is per volume
+    private final Map<Executor, IoScheduler> ioSchedulers = new ConcurrentHashMap<>();
+    private final int ioQueueDepth = Integer.getInteger("sdfs.datanode.ioQueueDepth",
+            Integer.getInteger("sdfs.datanode.volumeThreads", VolumeBlockStore.DEFAULT_THREADS_PER_VOLUME));
+    //every block in the store, a block added or removed is reported to name node
+    private final Set<Integer> blockNumbers = ConcurrentHashMap.newKeySet();
+    private volatile NameNodeReporter reporter;
+
+
+    /**
+     * Hot blocks are cached off heap in front of the block store.
+     */
+    public static final long DEFAULT_CACHE_SIZE = 64L * 1024 * 1024;
+
+    /**
+     * Blocks are packed into segment files by default. -Dsdfs.datanode.blockStore=mmap keeps one memory mapped
+     * file per block instead, and -Dsdfs.datanode.blockStore=file opens the block file on every call.
+     * -Dsdfs.datanode.cacheSize sets the bytes of the block cache, 0 turns it off.
+     * A write is acknowledged once it is synced to disk, together with the writes around it.
+     * -Dsdfs.datanode.maxSyncDelay sets the milliseconds a write may wait for others to share its sync,
+     * -Dsdfs.datanode.sync=false acknowledges writes before they are durable.
+     * <p>
+     * Every directory is a volume with its own store and -Dsdfs.datanode.volumeThreads I/O threads.
+     * New blocks are placed round robin, -Dsdfs.datanode.placement=availableSpace places them on the volume
+     * with the most free space instead.
+     * The I/O of a volume is shared fairly between files, see {@link IoScheduler}, with at most
+     * -Dsdfs.datanode.ioQueueDepth requests on its threads at once.
+     */
+    public DataNodeServer() throws IOException {
+        this(new File("DataNodeFile/"));
+    }
+
+    public DataNodeServer(File dir) throws IOException {
+        this(Collections.singletonList(dir));
+    }
 
+    /**
+     * @param dirs the data directories, each should be on its own disk
+     */
+    public DataNodeServer(List<File> dirs) throws IOException {
+        this(dirs, createBlockStore(dirs));
+    }
 
-    public DataNodeServer() {
-        //initial dirs
-        File dir = new File(workingDir);
-        if (!dir.exists())
-            dir.mkdirs();
+    /**
+     * @param dir the directory holding the blocks of blockStore, whose disk space is reported to name node
+     */
+    public DataNodeServer(File dir, BlockStore blockStore) throws IOException {
+        this(Collections.singletonList(dir), blockStore);
+    }
+
+    public DataNodeServer(List<File> dirs, BlockStore blockStore) throws IOException {
+        this.dirs = new ArrayList<>(dirs);
+        this.blockStore = blockStore;
+        blockNumbers.addAll(blockStore.getBlockNumbers());
+    }
+
+    private static BlockStore createBlockStore(List<File> dirs) throws IOException {
+        //synced per volume, a disk only waits for its own writes
+        List<BlockStore> stores = new ArrayList<>();
+        for (File dir : dirs) {
+            BlockStore store = createBaseBlockStore(dir);
+            if (Boolean.parseBoolean(System.getProperty("sdfs.datanode.sync", "true")))
+                store = new GroupCommitBlockStore(store, Long.getLong("sdfs.datanode.maxSyncDelay", GroupCommitBlockStore.DEFAULT_MAX_SYNC_DELAY));
+            stores.add(store);
+        }
+        VolumeBlockStore.Placement placement = "availableSpace".equals(System.getProperty("sdfs.datanode.placement"))
+                ? VolumeBlockStore.Placement.AVAILABLE_SPACE : VolumeBlockStore.Placement.ROUND_ROBIN;
+        BlockStore blockStore = new VolumeBlockStore(dirs, stores,
+                Integer.getInteger("sdfs.datanode.volumeThreads", VolumeBlockStore.DEFAULT_THREADS_PER_VOLUME), placement);
+        long cacheSize = Long.getLong("sdfs.datanode.cacheSize", DEFAULT_CACHE_SIZE);
+        return cacheSize > 0 ? new CachingBlockStore(blockStore, cacheSize) : blockStore;
+    }
+
+    private static BlockStore createBaseBlockStore(File dir) throws IOException {
+        String type = System.getProperty("sdfs.datanode.blockStore", "segment");
+        switch (type) {
+            case "segment":
+                return new SegmentBlockStore(dir, Long.getLong("sdfs.datanode.segmentSize", SegmentBlockStore.DEFAULT_SEGMENT_SIZE));
+            case "mmap":
+                return new MappedBlockStore(dir, Integer.getInteger("sdfs.datanode.maxOpenBlocks", MappedBlockStore.DEFAULT_MAX_OPEN_BLOCKS));
+            case "file":
+                return new FileBlockStore(dir);
+            default:
+                throw new IllegalArgumentException("unknown block store " + type);
+        }
     }
 
 
@@ -36,105 +147,322 @@ public class DataNodeServer implements IDataNodeProtocol {
     //    private final Map<UUID, Set<Integer>> uuidReadonlyPermissionCache = new HashMap<>();
     //    private final Map<UUID, Set<Integer>> uuidReadwritePermissionCache = new HashMap<>();
 
-    @Override
-    public byte[] read(UUID fileUuid, int blockNumber, int offset, int size) throws IndexOutOfBoundsException, IOException {
+    public BlockStore getBlockStore() {
+        return blockStore;
+    }
 
-        byte[] b = new byte[size];
-        File file = new File(workingDir + blockNumber + ".block");
+    /**
+     * Register to name node and keep it informed from now on.
+     *
+     * @param host the host name or address clients should connect to
+     * @param port the port this data node listens on
+     */
+    public synchronized void startReporting(INameNodeDataNodeProtocol nameNode, String host, int port) {
+        if (reporter != null)
+            throw new IllegalStateException("already reporting");
+        reporter = new NameNodeReporter(this, nameNode, host, port, replicationBandwidth);
+        reporter.start();
+    }
 
-        //check whether file exists
-        if (!file.exists()) {
-            throw new FileNotFoundException();
+    public synchronized void stopReporting() {
+        if (reporter != null) {
+            reporter.close();
+            reporter = null;
         }
+    }
 
-        //check IndexOutOfBoundsException
-        long file_size = file.length();
-        if (offset < 0 || offset > BLOCK_SIZE) {
-            throw new IndexOutOfBoundsException();
+    /**
+     * Remove a block from this data node, nothing happens if it does not exist.
+     */
+    public void deleteBlock(int blockNumber) throws IOException {
+        blockStore.delete(blockNumber);
+        if (blockNumbers.remove(blockNumber)) {
+            NameNodeReporter reporter = this.reporter;
+            if (reporter != null)
+                reporter.blockDeleted(blockNumber);
         }
+    }
+
+    /**
+     * Copy a whole block from another data node, replacing any stale copy here.
+     *
+     * @return the bytes copied
+     */
+    int copyBlock(UUID fileUuid, int blockNumber, InetSocketAddress source) throws IOException {
+        //background on both data nodes, client I/O goes first
+        byte[] b = new DataNodeStub(source).readInBackground(fileUuid, blockNumber, 0, BLOCK_SIZE);
+        SdfsRmi.join(submitIo(fileUuid, IoScheduler.Priority.BACKGROUND, blockNumber, b.length, () -> {
+            replaceBlock(blockNumber, ByteBuffer.wrap(b));
+            return null;
+        }));
+        return b.length;
+    }
+
+    /**
+     * Write a whole block from offset 0 as one durable write, the old block of the same number is removed first.
+     */
+    private void replaceBlock(int blockNumber, ByteBuffer src) throws IOException {
+        //a longer old block would keep its tail
+        if (blockNumbers.contains(blockNumber))
+            blockStore.delete(blockNumber);
+        blockStore.write(blockNumber, 0, src);
+        blockWritten(blockNumber);
+    }
+
+    private void blockWritten(int blockNumber) {
+        if (blockNumbers.add(blockNumber)) {
+            NameNodeReporter reporter = this.reporter;
+            if (reporter != null)
+                reporter.blockReceived(blockNumber);
+        }
+    }
 
-        //read data into byte array
-        FileInputStream in = new FileInputStream(file);
-        in.skip(offset);
-        int rsize = in.read(b, 0, size);
+    long getCapacity() {
+        long capacity = 0;
+        for (File dir : dirs)
+            capacity += dir.getTotalSpace();
+        return capacity;
+    }
+
+    long getRemaining() {
+        long remaining = 0;
+        for (File dir : dirs)
+            remaining += dir.getUsableSpace();
+        return remaining;
+    }
 
-        return b;
+    int getBlockCount() {
+        return blockNumbers.size();
+    }
 
+    int getActiveStreamCount() {
+        return writeStreams.size();
     }
 
     @Override
-    public void write(UUID fileUuid, int blockNumber, int offset, byte[] b) throws IndexOutOfBoundsException, IOException {
-        File file = new File(workingDir + blockNumber + ".block");
-        if (offset < 0 || offset > BLOCK_SIZE) {
+    public byte[] read(UUID fileUuid, int blockNumber, int offset, int size) throws IndexOutOfBoundsException, IOException {
+        //check IndexOutOfBoundsException
+        if (offset < 0 || size < 0 || offset > BLOCK_SIZE - size) {
             throw new IndexOutOfBoundsException();
         }
-        RandomAccessFile out = new RandomAccessFile(file, "rw");
-        out.skipBytes(offset);
-        out.write(b, 0, b.length);
-        out.close();
+
+        //exactly the bytes read, shorter than size if the block ends before
+        byte[] b = new byte[size];
+        int n = blockStore.read(blockNumber, offset, ByteBuffer.wrap(b));
+        return n == size ? b : Arrays.copyOf(b, n);
     }
 
-    public static void main(String args[]) throws IOException {
-        DataNodeServer dataNodeServer = new DataNodeServer();
-        ServerSocket serverSocket = new ServerSocket(DATA_NODE_PORT);
-        while (true) {
-            Socket socket = null;
-            try {
-                socket = serverSocket.accept();
-                ServerThread thread = new ServerThread(socket, dataNodeServer);
-                thread.start();
-
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+    /**
+     * Locate the bytes read(fileUuid, blockNumber, offset, size) would return, without reading them.
+     * The region stops at the end of block file, so it may be shorter than size.
+     */
+    public FileRegion readRegion(UUID fileUuid, int blockNumber, int offset, int size) throws IndexOutOfBoundsException, IOException {
+        //check IndexOutOfBoundsException
+        if (offset < 0 || size < 0 || offset > BLOCK_SIZE - size) {
+            throw new IndexOutOfBoundsException();
         }
+        return blockStore.readRegion(blockNumber, offset, size);
+    }
 
+    @Override
+    public LocalBlock getLocalBlock(UUID fileUuid, int blockNumber) throws IOException {
+        if (!blockNumbers.contains(blockNumber))
+            throw new FileNotFoundException("block " + blockNumber);
+        //a block being streamed is still growing
+        if (!shortCircuit || writeStreams.containsKey(blockNumber))
+            return null;
+        return blockStore.getLocalBlock(blockNumber);
     }
 
-}
+    @Override
+    public void write(UUID fileUuid, int blockNumber, int offset, byte[] b) throws IndexOutOfBoundsException, IOException {
+        if (offset < 0 || offset > BLOCK_SIZE - b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        blockStore.write(blockNumber, offset, ByteBuffer.wrap(b));
+        blockWritten(blockNumber);
+    }
 
-class ServerThread extends Thread {
+    /**
+     * Run disk I/O on a block on the I/O threads of its volume, in fair order between files.
+     *
+     * @param cost the bytes read or written
+     */
+    private <T> CompletableFuture<T> submitIo(UUID fileUuid, IoScheduler.Priority priority, int blockNumber, int cost, Callable<T> task) {
+        IoScheduler scheduler = ioSchedulers.computeIfAbsent(blockStore.getExecutor(blockNumber),
+                executor -> new IoScheduler(executor, ioQueueDepth, replicationBandwidth));
+        return scheduler.submit(fileUuid, priority, cost, task);
+    }
 
-    Socket socket;
-    DataNodeServer dataNodeServer;
+    private <T> CompletableFuture<T> submitIo(UUID fileUuid, int blockNumber, int cost, Callable<T> task) {
+        return submitIo(fileUuid, IoScheduler.Priority.FOREGROUND, blockNumber, cost, task);
+    }
 
-    public ServerThread(Socket socket, DataNodeServer dataNodeServer) {
-        this.socket = socket;
-        this.dataNodeServer = dataNodeServer;
+    /**
+     * @return the opcode to handler table of this data node
+     */
+    public RpcDispatcher createDispatcher() {
+        RpcDispatcher dispatcher = new RpcDispatcher();
+        //the block is sent straight from file to socket, in the same layout as RpcCodec.writeBytes
+        //it is located on the volume of the block in fair order, the worker is not held by a busy disk
+        dispatcher.registerAsyncTransfer(RpcOpcode.READ, readHandler(IoScheduler.Priority.FOREGROUND));
+        dispatcher.registerAsyncTransfer(RpcOpcode.READ_IN_BACKGROUND, readHandler(IoScheduler.Priority.BACKGROUND));
+        dispatcher.registerAsync(RpcOpcode.WRITE, in -> {
+            UUID fileUuid = RpcCodec.readUuid(in);
+            int blockNumber = in.readInt();
+            int offset = in.readInt();
+            byte[] b = RpcCodec.readBytes(in);
+            return submitIo(fileUuid, blockNumber, b.length, () -> {
+                write(fileUuid, blockNumber, offset, b);
+                return null;
+            });
+        });
+        dispatcher.register(RpcOpcode.GET_LOCAL_BLOCK, (in, out) -> {
+            UUID fileUuid = RpcCodec.readUuid(in);
+            RpcCodec.writeNullable(out, getLocalBlock(fileUuid, in.readInt()));
+        });
+        dispatcher.registerAsync(RpcOpcode.COPY_ON_WRITE, in -> {
+            UUID fileUuid = RpcCodec.readUuid(in);
+            int originBlockNumber = in.readInt();
+            int blockNumber = in.readInt();
+            int offset = in.readInt();
+            byte[] b = RpcCodec.readBytes(in);
+            return copyOnWriteAsync(fileUuid, originBlockNumber, blockNumber, offset, b, RpcCodec.readAddressList(in)).thenApply(v -> null);
+        });
+        //the worker is not held while the rest of the pipeline acks
+        dispatcher.registerAsync(RpcOpcode.WRITE_PACKET, in -> {
+            UUID fileUuid = RpcCodec.readUuid(in);
+            int blockNumber = in.readInt();
+            int offset = in.readInt();
+            int seqNo = in.readInt();
+            boolean last = in.readBoolean();
+            byte[] b = RpcCodec.readBytes(in);
+            return writePacketAsync(fileUuid, blockNumber, offset, seqNo, last, b, RpcCodec.readAddressList(in)).thenApply(v -> null);
+        });
+        return dispatcher;
     }
 
-    public Socket getSocket() {
-        return socket;
+    private RpcAsyncTransferHandler readHandler(IoScheduler.Priority priority) {
+        return (in, out) -> {
+            UUID fileUuid = RpcCodec.readUuid(in);
+            int blockNumber = in.readInt();
+            int offset = in.readInt();
+            int size = in.readInt();
+            return submitIo(fileUuid, priority, blockNumber, size, () -> {
+                FileRegion region = readRegion(fileUuid, blockNumber, offset, size);
+                out.writeInt((int) region.remaining());
+                return region;
+            });
+        };
     }
 
-    public void run() {
-        try {
-            ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
-//            System.out.println(1);
-            String method = (String) in.readObject();
-            Class<?>[] paraType = (Class<?>[]) in.readObject();
-            Object[] paras = (Object[]) in.readObject();
+    @Override
+    public void writePacket(UUID fileUuid, int blockNumber, int offset, int seqNo, boolean last, byte[] b, List<InetSocketAddress> pipeline) throws IndexOutOfBoundsException, IOException {
+        SdfsRmi.join(writePacketAsync(fileUuid, blockNumber, offset, seqNo, last, b, pipeline));
+    }
 
-            Class<?> cla = Class.forName("sdfs.datanode.DataNodeServer");
-            Method m = cla.getMethod(method, paraType);
-            Object result = m.invoke(dataNodeServer, paras);
+    /**
+     * Forward the packet to the next data node of the pipeline, then write it here while it is on the way.
+     * The future completes once the packet is written here and the rest of the pipeline acks.
+     */
+    public CompletableFuture<Void> writePacketAsync(UUID fileUuid, int blockNumber, int offset, int seqNo, boolean last, byte[] b, List<InetSocketAddress> pipeline) throws IndexOutOfBoundsException, IOException {
+        if (offset < 0 || offset > BLOCK_SIZE - b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (pipeline.isEmpty()) {
+            return submitIo(fileUuid, blockNumber, b.length, () -> {
+                writePacketLocally(blockNumber, offset, seqNo, last, b);
+                return null;
+            });
+        }
+        InetSocketAddress next = pipeline.get(0);
+        CompletableFuture<Void> downstream = new DataNodeStub(next)
+                .writePacketAsync(fileUuid, blockNumber, offset, seqNo, last, b, b.length, pipeline.subList(1, pipeline.size()))
+                .exceptionally(e -> {
+                    //this replica is still good, the missing ones are found by block reports
+                    if (seqNo == 0 || last)
+                        System.err.println("cannot forward block " + blockNumber + " to " + next + ": " + e);
+                    return null;
+                });
+        CompletableFuture<Void> local = submitIo(fileUuid, blockNumber, b.length, () -> {
+            writePacketLocally(blockNumber, offset, seqNo, last, b);
+            return null;
+        });
+        return local.thenCombine(downstream, (x, y) -> null);
+    }
 
-            ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-            out.writeObject(result);
+    @Override
+    public void copyOnWrite(UUID fileUuid, int originBlockNumber, int blockNumber, int offset, byte[] b, List<InetSocketAddress> pipeline) throws IndexOutOfBoundsException, IOException {
+        SdfsRmi.join(copyOnWriteAsync(fileUuid, originBlockNumber, blockNumber, offset, b, pipeline));
+    }
 
-        } catch (IOException | ClassNotFoundException | IllegalAccessException | NoSuchMethodException | InvocationTargetException e) {
-            e.printStackTrace();
-        } finally {
-            try {
-                if (socket != null)
-                    socket.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+    /**
+     * Forward the copy to the next data node of the pipeline, then copy here while it is on the way.
+     * Only the patch b travels, the origin block is read from the local disk.
+     */
+    public CompletableFuture<Void> copyOnWriteAsync(UUID fileUuid, int originBlockNumber, int blockNumber, int offset, byte[] b, List<InetSocketAddress> pipeline) throws IndexOutOfBoundsException {
+        if (offset < 0 || offset > BLOCK_SIZE - b.length) {
+            throw new IndexOutOfBoundsException();
         }
+        //the origin may be on another volume, each block is read or written only by the threads of its own
+        CompletableFuture<Void> local = submitIo(fileUuid, originBlockNumber, BLOCK_SIZE, () -> {
+            byte[] data = new byte[BLOCK_SIZE];
+            int length = blockStore.read(originBlockNumber, 0, ByteBuffer.wrap(data));
+            System.arraycopy(b, 0, data, offset, b.length);
+            return ByteBuffer.wrap(data, 0, Math.max(length, offset + b.length));
+        }).thenCompose(data -> submitIo(fileUuid, blockNumber, data.remaining(), () -> {
+            replaceBlock(blockNumber, data);
+            return null;
+        }));
+        if (pipeline.isEmpty())
+            return local;
+        InetSocketAddress next = pipeline.get(0);
+        CompletableFuture<Void> downstream = new DataNodeStub(next)
+                .copyOnWriteAsync(fileUuid, originBlockNumber, blockNumber, offset, b, pipeline.subList(1, pipeline.size()))
+                .exceptionally(e -> {
+                    //this replica is still good, the missing ones are found by block reports
+                    System.err.println("cannot forward block " + blockNumber + " to " + next + ": " + e);
+                    return null;
+                });
+        return local.thenCombine(downstream, (x, y) -> null);
+    }
 
+    private void writePacketLocally(int blockNumber, int offset, int seqNo, boolean last, byte[] b) throws IOException {
+        BlockWriteStream stream = writeStreams.get(blockNumber);
+        if (stream == null) {
+            closeAbandonedStreams();
+            stream = writeStreams.computeIfAbsent(blockNumber, k -> new BlockWriteStream(blockStore, blockNumber));
+        }
+        if (stream.write(offset, seqNo, last, b))
+            writeStreams.remove(blockNumber, stream);
+        blockWritten(blockNumber);
     }
-}
 
+    private void closeAbandonedStreams() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<Integer, BlockWriteStream> e : writeStreams.entrySet()) {
+            BlockWriteStream stream = e.getValue();
+            if (now - stream.getLastActiveTime() > WRITE_STREAM_TIMEOUT && writeStreams.remove(e.getKey(), stream))
+                stream.close();
+        }
+    }
 
+    /**
+     * Several data nodes could run on one host, each with its own -Dsdfs.datanode.port and -Dsdfs.datanode.dir.
+     * -Dsdfs.datanode.dir is a comma separated list of data directories, one per disk.
+     * -Dsdfs.datanode.host is the host clients connect to, name node is at -Dsdfs.namenode.host and -Dsdfs.namenode.port.
+     */
+    public static void main(String args[]) throws IOException {
+        int port = Integer.getInteger("sdfs.datanode.port", DATA_NODE_PORT);
+        List<File> dirs = new ArrayList<>();
+        for (String dir : System.getProperty("sdfs.datanode.dir", "DataNodeFile/").split(","))
+            dirs.add(new File(dir.trim()));
+        DataNodeServer dataNodeServer = new DataNodeServer(dirs);
+        RpcServer server = new RpcServer(new RpcServerConfig(port), dataNodeServer.createDispatcher());
+        server.start();
+        InetSocketAddress nameNodeAddress = new InetSocketAddress(System.getProperty("sdfs.namenode.host", "localhost"),
+                Integer.getInteger("sdfs.namenode.port", NameNodeServer.NAME_NODE_PORT));
+        dataNodeServer.startReporting(new NameNodeDataNodeStub(nameNodeAddress), System.getProperty("sdfs.datanode.host", "localhost"), port);
+    }
 
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) Jipzingking 2016.
+ */
+
+package sdfs.datanode
+
+import sdfs.protocol.FileRegion
+import spock.lang.Specification
+
+import java.nio.ByteBuffer
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executor
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+class DataNodeServerTest extends Specification {
+    def dir = File.createTempDir()
+    def store = new TwoVolumeStore(new SegmentBlockStore(dir, 1024 * 1024))
+    def dataNodeServer = new DataNodeServer(dir, store)
+
+    def cleanup() {
+        store.close()
+        dir.deleteDir()
+    }
+
+    def "Test copy on write reads and writes each block on its own volume"() {
+        given:
+        store.write(1, 0, ByteBuffer.wrap([1, 2, 3, 4] as byte[]))
+        store.threads.clear()
+
+        when:
+        dataNodeServer.copyOnWriteAsync(UUID.randomUUID(), 1, 2, 1, [9] as byte[], []).get(5, TimeUnit.SECONDS)
+
+        then:
+        store.threads == [1: "volume-1", 2: "volume-0"]
+        def copy = new byte[4]
+        store.read(2, 0, ByteBuffer.wrap(copy)) == 4
+        copy == [1, 9, 3, 4] as byte[]
+    }
+
+    //even blocks on one volume and odd ones on the other, each block remembers the last thread that touched it
+    static class TwoVolumeStore implements BlockStore {
+        private final BlockStore store
+        private final List<ExecutorService> volumes = (0..1).collect { i -> Executors.newSingleThreadExecutor { r -> new Thread(r, "volume-" + i) } }
+        final Map<Integer, String> threads = new ConcurrentHashMap<>()
+
+        TwoVolumeStore(BlockStore store) {
+            this.store = store
+        }
+
+        int read(int blockNumber, int offset, ByteBuffer dst) {
+            threads[blockNumber] = Thread.currentThread().name
+            store.read(blockNumber, offset, dst)
+        }
+
+        FileRegion readRegion(int blockNumber, int offset, int size) {
+            store.readRegion(blockNumber, offset, size)
+        }
+
+        void write(int blockNumber, int offset, ByteBuffer src) {
+            threads[blockNumber] = Thread.currentThread().name
+            store.write(blockNumber, offset, src)
+        }
+
+        void delete(int blockNumber) {
+            store.delete(blockNumber)
+        }
+
+        List<Integer> getBlockNumbers() {
+            store.blockNumbers
+        }
+
+        void sync() {
+            store.sync()
+        }
+
+        Executor getExecutor(int blockNumber) {
+            volumes[blockNumber % 2]
+        }
+
+        void close() {
+            volumes*.shutdown()
+            store.close()
+        }
+    }
+}
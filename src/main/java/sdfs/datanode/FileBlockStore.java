@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) Jipzingking 2016.
+ */
+
+package sdfs.datanode;
+
+import sdfs.protocol.FileRegion;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * One file per block, opened on every call.
+ * Nothing is kept open, so it suits a data node with far more blocks than file descriptors.
+ */
+public class FileBlockStore implements BlockStore {
+    static final Pattern BLOCK_NAME = Pattern.compile("(\\d+)\\.block");
+
+    private final File dir;
+    //blocks written since the last sync, guarded by this
+    private Set<Integer> unsynced = new HashSet<>();
+    //a block file was created or deleted since the last sync, guarded by this
+    private boolean directoryChanged = false;
+
+    public FileBlockStore(File dir) {
+        this.dir = dir;
+        if (!dir.exists())
+            dir.mkdirs();
+    }
+
+    File blockFile(int blockNumber) {
+        return new File(dir, blockNumber + ".block");
+    }
+
+    private FileChannel openForRead(int blockNumber) throws IOException {
+        File file = blockFile(blockNumber);
+        if (!file.exists())
+            throw new FileNotFoundException(file.getPath());
+        return FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    }
+
+    @Override
+    public int read(int blockNumber, int offset, ByteBuffer dst) throws IOException {
+        try (FileChannel channel = openForRead(blockNumber)) {
+            int read = 0;
+            long position = offset;
+            while (dst.hasRemaining()) {
+                int n = channel.read(dst, position);
+                if (n < 0)
+                    break;
+                read += n;
+                position += n;
+            }
+            return read;
+        }
+    }
+
+    @Override
+    public FileRegion readRegion(int blockNumber, int offset, int size) throws IOException {
+        FileChannel channel = openForRead(blockNumber);
+        long count = Math.max(0, Math.min(size, channel.size() - offset));
+        return new FileRegion(channel, offset, count, true);
+    }
+
+    @Override
+    public void write(int blockNumber, int offset, ByteBuffer src) throws IOException {
+        File file = blockFile(blockNumber);
+        boolean created = !file.exists();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            long position = offset;
+            while (src.hasRemaining())
+                position += channel.write(src, position);
+        }
+        //only after the write, so that the next sync covers it
+        synchronized (this) {
+            unsynced.add(blockNumber);
+            directoryChanged |= created;
+        }
+    }
+
+    @Override
+    public void delete(int blockNumber) {
+        if (blockFile(blockNumber).delete()) {
+            synchronized (this) {
+                directoryChanged = true;
+            }
+        }
+    }
+
+    @Override
+    public List<Integer> getBlockNumbers() {
+        List<Integer> blockNumbers = new ArrayList<>();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Matcher matcher = BLOCK_NAME.matcher(file.getName());
+                if (matcher.matches())
+                    blockNumbers.add(Integer.parseInt(matcher.group(1)));
+            }
+        }
+        return blockNumbers;
+    }
+
+    @Override
+    public LocalBlock getLocalBlock(int blockNumber) throws FileNotFoundException {
+        return LocalBlock.ofFile(blockFile(blockNumber));
+    }
+
+    @Override
+    public void sync() throws IOException {
+        Set<Integer> blockNumbers;
+        boolean syncDirectory;
+        synchronized (this) {
+            blockNumbers = unsynced;
+            unsynced = new HashSet<>();
+            syncDirectory = directoryChanged;
+            directoryChanged = false;
+        }
+        List<Integer> pending = new ArrayList<>(blockNumbers);
+        try {
+            while (!pending.isEmpty()) {
+                File file = blockFile(pending.get(pending.size() - 1));
+                //a block deleted since its write has nothing to sync
+                if (file.exists()) {
+                    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                        channel.force(false);
+                    }
+                }
+                pending.remove(pending.size() - 1);
+            }
+            if (syncDirectory)
+                syncDirectory(dir);
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                unsynced.addAll(pending);
+                directoryChanged |= syncDirectory;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Make created and deleted files of a directory durable. Not every platform can open a directory,
+     * there the file system is trusted to do it.
+     */
+    static void syncDirectory(File dir) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+        } catch (IOException e) {
+            return;
+        }
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+}
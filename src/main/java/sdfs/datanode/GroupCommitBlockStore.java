@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) Jipzingking 2016.
+ */
+
+package sdfs.datanode;
+
+import sdfs.protocol.FileRegion;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Makes every write and delete of another store durable before it returns, with one sync for many of them.
+ * <p>
+ * A finished write joins the open batch and waits. A single sync thread closes the batch, syncs the store
+ * once and wakes up all of its writers. The batch is closed at once if no other write is still running,
+ * so a lone writer is not delayed, otherwise it waits at most maxSyncDelay for them to join.
+ * Writes arriving during a sync gather in the next batch.
+ */
+public class GroupCommitBlockStore implements BlockStore {
+    public static final long DEFAULT_MAX_SYNC_DELAY = 2;
+
+    private final BlockStore store;
+    private final long maxSyncDelayNanos;
+    private final Thread syncer;
+    //everything below is guarded by this
+    //writes started but not finished, they are likely to join the open batch soon
+    private int running = 0;
+    private Batch open = new Batch();
+    private long syncCount = 0;
+    private boolean closed = false;
+
+    /**
+     * @param maxSyncDelay the milliseconds a finished write may wait for running ones before its batch is synced
+     */
+    public GroupCommitBlockStore(BlockStore store, long maxSyncDelay) {
+        if (maxSyncDelay < 0)
+            throw new IllegalArgumentException();
+        this.store = store;
+        this.maxSyncDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxSyncDelay);
+        this.syncer = new Thread(this::syncLoop, "sdfs-group-commit");
+        syncer.setDaemon(true);
+        syncer.start();
+    }
+
+    @Override
+    public int read(int blockNumber, int offset, ByteBuffer dst) throws IOException {
+        return store.read(blockNumber, offset, dst);
+    }
+
+    @Override
+    public FileRegion readRegion(int blockNumber, int offset, int size) throws IOException {
+        return store.readRegion(blockNumber, offset, size);
+    }
+
+    @Override
+    public void write(int blockNumber, int offset, ByteBuffer src) throws IOException {
+        begin();
+        try {
+            store.write(blockNumber, offset, src);
+        } catch (IOException | RuntimeException e) {
+            abort();
+            throw e;
+        }
+        commit();
+    }
+
+    @Override
+    public void reserve(int blockNumber, int capacity) throws IOException {
+        store.reserve(blockNumber, capacity);
+    }
+
+    @Override
+    public void delete(int blockNumber) throws IOException {
+        begin();
+        try {
+            store.delete(blockNumber);
+        } catch (IOException | RuntimeException e) {
+            abort();
+            throw e;
+        }
+        commit();
+    }
+
+    @Override
+    public List<Integer> getBlockNumbers() throws IOException {
+        return store.getBlockNumbers();
+    }
+
+    @Override
+    public LocalBlock getLocalBlock(int blockNumber) throws IOException {
+        return store.getLocalBlock(blockNumber);
+    }
+
+    /**
+     * Join the open batch like a write does.
+     */
+    @Override
+    public void sync() throws IOException {
+        begin();
+        commit();
+    }
+
+    @Override
+    public Executor getExecutor(int blockNumber) {
+        return store.getExecutor(blockNumber);
+    }
+
+    /**
+     * Pending batches are synced before the store is closed.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            syncer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        store.close();
+    }
+
+    /**
+     * @return the number of syncs done, each for a batch of writes
+     */
+    public synchronized long getSyncCount() {
+        return syncCount;
+    }
+
+    private synchronized void begin() throws IOException {
+        if (closed)
+            throw new IOException("block store is closed");
+        running++;
+    }
+
+    private synchronized void abort() {
+        running--;
+        notifyAll();
+    }
+
+    /**
+     * Wait until the finished write is durable.
+     */
+    private void commit() throws IOException {
+        Batch batch;
+        synchronized (this) {
+            running--;
+            batch = open;
+            if (batch.writers++ == 0)
+                batch.startTime = System.nanoTime();
+            notifyAll();
+        }
+        try {
+            batch.done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted before the write is synced");
+        }
+        if (batch.error != null)
+            throw new IOException("sync failed", batch.error);
+    }
+
+    private void syncLoop() {
+        while (true) {
+            Batch batch;
+            synchronized (this) {
+                try {
+                    while (true) {
+                        if (open.writers > 0) {
+                            long delay = open.startTime + maxSyncDelayNanos - System.nanoTime();
+                            if (running == 0 || closed || delay <= 0)
+                                break;
+                            TimeUnit.NANOSECONDS.timedWait(this, delay);
+                        } else if (closed && running == 0) {
+                            return;
+                        } else {
+                            wait();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                batch = open;
+                open = new Batch();
+                syncCount++;
+            }
+            try {
+                store.sync();
+            } catch (IOException | RuntimeException e) {
+                batch.error = e;
+            }
+            batch.done.countDown();
+        }
+    }
+
+    private static class Batch {
+        private final CountDownLatch done = new CountDownLatch(1);
+        //guarded by the store
+        private int writers = 0;
+        private long startTime;
+        //set before done is counted down
+        private Exception error;
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) Jipzingking 2016.
+ */
+
+package sdfs.datanode
+
+import sdfs.protocol.FileRegion
+import spock.lang.Specification
+
+import java.nio.ByteBuffer
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+
+class GroupCommitBlockStoreTest extends Specification {
+    def store = new SyncRecordingStore()
+
+    def "Test write is synced before it returns"() {
+        def groupCommit = new GroupCommitBlockStore(store, 2)
+
+        when:
+        groupCommit.write(1, 0, ByteBuffer.wrap(new byte[10]))
+        groupCommit.delete(2)
+
+        then:
+        store.synced == [1, 2] as Set
+        groupCommit.syncCount == 2
+
+        cleanup:
+        groupCommit.close()
+    }
+
+    def "Test concurrent writes share syncs"() {
+        store.syncTime = 5
+        def groupCommit = new GroupCommitBlockStore(store, 2)
+        def executor = Executors.newFixedThreadPool(16)
+        def tasks = (0..<400).collect { i ->
+            (Callable) {
+                groupCommit.write(i, 0, ByteBuffer.wrap(new byte[10]))
+                //durable once it returns
+                store.isSynced(i)
+            }
+        }
+
+        when:
+        def results = executor.invokeAll(tasks)*.get()
+
+        then:
+        results.every()
+        groupCommit.syncCount < 400
+
+        cleanup:
+        executor.shutdown()
+        groupCommit.close()
+    }
+
+    def "Test a failed sync fails its writes"() {
+        def groupCommit = new GroupCommitBlockStore(store, 2)
+        store.failSync = true
+
+        when:
+        groupCommit.write(1, 0, ByteBuffer.wrap(new byte[10]))
+
+        then:
+        thrown IOException
+
+        when:
+        store.failSync = false
+        groupCommit.write(2, 0, ByteBuffer.wrap(new byte[10]))
+
+        then:
+        store.isSynced(2)
+
+        cleanup:
+        groupCommit.close()
+    }
+
+    def "Test no write after close"() {
+        def groupCommit = new GroupCommitBlockStore(store, 2)
+        groupCommit.close()
+
+        when:
+        groupCommit.write(1, 0, ByteBuffer.wrap(new byte[10]))
+
+        then:
+        thrown IOException
+        store.closed
+    }
+
+    /**
+     * Remembers which writes and deletes a sync has covered.
+     */
+    static class SyncRecordingStore implements BlockStore {
+        private final Set<Integer> unsynced = new HashSet<>()
+        final Set<Integer> synced = new HashSet<>()
+        volatile long syncTime = 0
+        volatile boolean failSync = false
+        volatile boolean closed = false
+
+        synchronized boolean isSynced(int blockNumber) {
+            return synced.contains(blockNumber)
+        }
+
+        @Override
+        int read(int blockNumber, int offset, ByteBuffer dst) {
+            return 0
+        }
+
+        @Override
+        FileRegion readRegion(int blockNumber, int offset, int size) {
+            return null
+        }
+
+        @Override
+        synchronized void write(int blockNumber, int offset, ByteBuffer src) {
+            unsynced.add(blockNumber)
+        }
+
+        @Override
+        void reserve(int blockNumber, int capacity) {
+        }
+
+        @Override
+        synchronized void delete(int blockNumber) {
+            unsynced.add(blockNumber)
+        }
+
+        @Override
+        List<Integer> getBlockNumbers() {
+            return []
+        }
+
+        @Override
+        LocalBlock getLocalBlock(int blockNumber) {
+            return null
+        }
+
+        @Override
+        void sync() throws IOException {
+            Set<Integer> pending
+            synchronized (this) {
+                pending = new HashSet<>(unsynced)
+            }
+            if (syncTime > 0)
+                Thread.sleep(syncTime)
+            if (failSync)
+                throw new IOException("disk failed")
+            synchronized (this) {
+                synced.addAll(pending)
+                unsynced.removeAll(pending)
+            }
+        }
+
+        @Override
+        void close() {
+            closed = true
+        }
+    }
+}
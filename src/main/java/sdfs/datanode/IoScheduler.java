@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) Jipzingking 2016.
+ */
+
+package sdfs.datanode;
+
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Orders the disk I/O of one volume by weighted fair queuing, instead of running it in arrival order.
+ * <p>
+ * The I/O of every file is a flow, which gets a share of the volume in proportion to its weight whatever
+ * the number of requests it sends. This is start time fair queuing over bytes: a request is tagged with the
+ * virtual time its flow may start it at, and the request with the smallest tag runs next.
+ * At most maxInFlight requests run at once on the executor of the volume, the others wait here.
+ * <p>
+ * Background I/O, such as re-replication, is weighted lower than client I/O and also kept under a bandwidth,
+ * so that it yields to clients on a busy volume and does not fill an idle one.
+ */
+class IoScheduler {
+    enum Priority {
+        FOREGROUND(4), BACKGROUND(1);
+
+        private final int weight;
+
+        Priority(int weight) {
+            this.weight = weight;
+        }
+    }
+
+    //wakes up background requests held back by the bandwidth
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "sdfs-io-scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final Comparator<Request<?>> BY_START_TAG = Comparator.<Request<?>>comparingDouble(r -> r.startTag).thenComparingLong(r -> r.seqNo);
+
+    private final Executor executor;
+    private final int maxInFlight;
+    private final long backgroundBandwidth;
+    //everything below is guarded by this
+    private final PriorityQueue<Request<?>> foreground = new PriorityQueue<>(BY_START_TAG);
+    private final PriorityQueue<Request<?>> background = new PriorityQueue<>(BY_START_TAG);
+    private final Map<Flow, FlowState> flows = new HashMap<>();
+    private double virtualTime = 0;
+    private long seqNo = 0;
+    private int inFlight = 0;
+    private double backgroundBytes;
+    private long lastRefill = System.nanoTime();
+    private boolean wakeUpScheduled = false;
+
+    /**
+     * @param executor            the I/O threads of the volume
+     * @param maxInFlight         requests given to executor at once, about its thread count
+     * @param backgroundBandwidth bytes per second of background I/O at most, 0 for no limit
+     */
+    IoScheduler(Executor executor, int maxInFlight, long backgroundBandwidth) {
+        if (maxInFlight <= 0 || backgroundBandwidth < 0)
+            throw new IllegalArgumentException();
+        this.executor = executor;
+        this.maxInFlight = maxInFlight;
+        this.backgroundBandwidth = backgroundBandwidth;
+        this.backgroundBytes = getBackgroundBurst();
+    }
+
+    /**
+     * @param fileUuid the flow of the request
+     * @param cost     bytes read or written by task
+     */
+    <T> CompletableFuture<T> submit(UUID fileUuid, Priority priority, int cost, Callable<T> task) {
+        Request<T> request = new Request<>(new Flow(fileUuid, priority), Math.max(cost, 1), task);
+        synchronized (this) {
+            FlowState state = flows.computeIfAbsent(request.flow, k -> new FlowState());
+            request.startTag = Math.max(virtualTime, state.finishTag);
+            request.seqNo = seqNo++;
+            state.finishTag = request.startTag + (double) request.cost / priority.weight;
+            state.queued++;
+            (priority == Priority.FOREGROUND ? foreground : background).add(request);
+        }
+        dispatch();
+        return request.future;
+    }
+
+    /**
+     * Hand the next requests to the executor while there is room.
+     */
+    private void dispatch() {
+        while (true) {
+            Request<?> request;
+            synchronized (this) {
+                if (inFlight >= maxInFlight || (request = next()) == null)
+                    return;
+                inFlight++;
+            }
+            try {
+                executor.execute(request);
+            } catch (RejectedExecutionException e) {
+                synchronized (this) {
+                    inFlight--;
+                }
+                request.future.completeExceptionally(new IOException("data node is closed"));
+            }
+        }
+    }
+
+    /**
+     * @return the queued request with the smallest start tag, background ones only within the bandwidth
+     */
+    private Request<?> next() {
+        Request<?> request = foreground.peek();
+        Request<?> candidate = background.peek();
+        if (candidate != null && (request == null || BY_START_TAG.compare(candidate, request) < 0) && mayRunBackground(candidate))
+            request = candidate;
+        if (request == null)
+            return null;
+        (request.flow.priority == Priority.FOREGROUND ? foreground : background).poll();
+        virtualTime = Math.max(virtualTime, request.startTag);
+        flows.get(request.flow).queued--;
+        //a flow idle until the virtual time starts again from it, it cannot save up a share
+        flows.values().removeIf(state -> state.queued == 0 && state.finishTag <= virtualTime);
+        return request;
+    }
+
+    private boolean mayRunBackground(Request<?> request) {
+        if (backgroundBandwidth == 0)
+            return true;
+        long now = System.nanoTime();
+        backgroundBytes = Math.min(getBackgroundBurst(), backgroundBytes + (now - lastRefill) * backgroundBandwidth / 1e9);
+        lastRefill = now;
+        if (backgroundBytes > 0) {
+            backgroundBytes -= request.cost;
+            return true;
+        }
+        if (!wakeUpScheduled) {
+            wakeUpScheduled = true;
+            long delay = (long) (-backgroundBytes * 1e9 / backgroundBandwidth) + 1;
+            timer.schedule(() -> {
+                synchronized (this) {
+                    wakeUpScheduled = false;
+                }
+                dispatch();
+            }, delay, TimeUnit.NANOSECONDS);
+        }
+        return false;
+    }
+
+    //half a second of background bandwidth may be used at once
+    private double getBackgroundBurst() {
+        return backgroundBandwidth / 2.0;
+    }
+
+    private void completed() {
+        synchronized (this) {
+            inFlight--;
+        }
+        dispatch();
+    }
+
+    private static class Flow {
+        private final UUID fileUuid;
+        private final Priority priority;
+
+        Flow(UUID fileUuid, Priority priority) {
+            this.fileUuid = fileUuid;
+            this.priority = priority;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            Flow flow = (Flow) o;
+
+            return fileUuid.equals(flow.fileUuid) && priority == flow.priority;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * fileUuid.hashCode() + priority.hashCode();
+        }
+    }
+
+    private static class FlowState {
+        //virtual time the last queued request of the flow finishes at
+        private double finishTag;
+        private int queued;
+    }
+
+    private class Request<T> implements Runnable {
+        private final Flow flow;
+        private final int cost;
+        private final Callable<T> task;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+        private double startTag;
+        private long seqNo;
+
+        Request(Flow flow, int cost, Callable<T> task) {
+            this.flow = flow;
+            this.cost = cost;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            T result;
+            try {
+                result = task.call();
+            } catch (Throwable e) {
+                completed();
+                future.completeExceptionally(e);
+                return;
+            }
+            //the next request starts before the callbacks of this one run
+            completed();
+            future.complete(result);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) Jipzingking 2016.
+ */
+
+package sdfs.datanode
+
+import spock.lang.Specification
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+import static sdfs.datanode.IoScheduler.Priority.BACKGROUND
+import static sdfs.datanode.IoScheduler.Priority.FOREGROUND
+
+class IoSchedulerTest extends Specification {
+    def executor = Executors.newSingleThreadExecutor()
+    def order = Collections.synchronizedList([])
+    def release = new CountDownLatch(1)
+
+    def cleanup() {
+        release.countDown()
+        executor.shutdownNow()
+    }
+
+    def "Test flows share the volume whatever the number of requests they send"() {
+        given:
+        def scheduler = blockedScheduler(0)
+        def a = UUID.randomUUID()
+        def b = UUID.randomUUID()
+        //a queues all of its requests before b sends any
+        def futures = (0..<20).collect { submit(scheduler, a, FOREGROUND, 4096, "a") } +
+                (0..<20).collect { submit(scheduler, b, FOREGROUND, 4096, "b") }
+
+        when:
+        release.countDown()
+        futures*.get(5, TimeUnit.SECONDS)
+
+        then:
+        order.size() == 40
+        //b is not queued behind every request of a
+        order.subList(0, 20).count("b") in 9..11
+    }
+
+    def "Test background I/O yields to foreground I/O without starving"() {
+        given:
+        def scheduler = blockedScheduler(0)
+        def replicated = UUID.randomUUID()
+        def read = UUID.randomUUID()
+        def futures = (0..<20).collect { submit(scheduler, replicated, BACKGROUND, 4096, "bg") } +
+                (0..<20).collect { submit(scheduler, read, FOREGROUND, 4096, "fg") }
+
+        when:
+        release.countDown()
+        futures*.get(5, TimeUnit.SECONDS)
+
+        then:
+        def first = order.subList(0, 20)
+        first.count("fg") >= 15
+        first.count("bg") > 0
+    }
+
+    def "Test background I/O is kept under its bandwidth"() {
+        given:
+        def scheduler = new IoScheduler(executor, 1, 100 * 1024)
+        def startTime = System.nanoTime()
+
+        when:
+        (0..<10).collect { submit(scheduler, UUID.randomUUID(), FOREGROUND, 25 * 1024, "fg") }*.get(5, TimeUnit.SECONDS)
+        def foregroundTime = System.nanoTime() - startTime
+        (0..<10).collect { submit(scheduler, UUID.randomUUID(), BACKGROUND, 25 * 1024, "bg") }*.get(5, TimeUnit.SECONDS)
+        def backgroundTime = System.nanoTime() - startTime - foregroundTime
+
+        then:
+        foregroundTime < TimeUnit.MILLISECONDS.toNanos(500)
+        //half a second of burst, then 100KB a second for the rest
+        backgroundTime > TimeUnit.MILLISECONDS.toNanos(1500)
+    }
+
+    def "Test failed request does not stop the ones after it"() {
+        given:
+        def scheduler = new IoScheduler(executor, 1, 0)
+        def uuid = UUID.randomUUID()
+
+        when:
+        def failed = scheduler.submit(uuid, FOREGROUND, 1, { throw new IOException("disk error") })
+        def next = submit(scheduler, uuid, FOREGROUND, 1, "next")
+        failed.get(5, TimeUnit.SECONDS)
+
+        then:
+        def e = thrown(ExecutionException)
+        e.cause instanceof IOException
+        next.get(5, TimeUnit.SECONDS) == "next"
+    }
+
+    def "Test requests fail once the volume is closed"() {
+        given:
+        def scheduler = new IoScheduler(executor, 1, 0)
+        executor.shutdown()
+
+        when:
+        submit(scheduler, UUID.randomUUID(), FOREGROUND, 1, "closed").get(5, TimeUnit.SECONDS)
+
+        then:
+        def e = thrown(ExecutionException)
+        e.cause instanceof IOException
+    }
+
+    //one request at a time, held until release so that the others queue up
+    private IoScheduler blockedScheduler(long backgroundBandwidth) {
+        def scheduler = new IoScheduler(executor, 1, backgroundBandwidth)
+        scheduler.submit(UUID.randomUUID(), FOREGROUND, 1, { release.await() })
+        scheduler
+    }
+
+    private submit(IoScheduler scheduler, UUID fileUuid, IoScheduler.Priority priority, int cost, String name) {
+        scheduler.submit(fileUuid, priority, cost, {
+            order << name
+            name
+        })
+    }
+}
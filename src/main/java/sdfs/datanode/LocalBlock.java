@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) Jipzingking 2016.
+ */
+
+package sdfs.datanode;
+
+import sdfs.protocol.RpcCodec;
+import sdfs.protocol.RpcWritable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+/**
+ * Where the bytes of a block lie in the local file system of its data node, handed to a client on the same host
+ * so that it reads them from the file itself instead of through the data node.
+ */
+public class LocalBlock implements RpcWritable {
+    private final String path;
+    private final long offset;
+    private final int length;
+
+    public LocalBlock(String path, long offset, int length) {
+        this.path = path;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * @param file a file holding one whole block
+     * @throws FileNotFoundException if the file does not exist
+     */
+    static LocalBlock ofFile(File file) throws FileNotFoundException {
+        if (!file.exists())
+            throw new FileNotFoundException(file.getPath());
+        return new LocalBlock(file.getAbsolutePath(), 0, (int) file.length());
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return where the block starts in the file
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return the length of the block when it was located, a later append is not seen
+     */
+    public int getLength() {
+        return length;
+    }
+
+    @Override
+    public void writeTo(DataOutput out) throws IOException {
+        RpcCodec.writeString(out, path);
+        out.writeLong(offset);
+        out.writeInt(length);
+    }
+
+    public static LocalBlock readFrom(DataInput in) throws IOException {
+        return new LocalBlock(RpcCodec.readString(in), in.readLong(), in.readInt());
+    }
+}
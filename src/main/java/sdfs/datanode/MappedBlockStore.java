@@ -0,0 +1,324 @@
+/*
+ * Copyright (c) Jipzingking 2016.
+ */
+
+package sdfs.datanode;
+
+import sdfs.protocol.FileRegion;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+
+/**
+ * One file per block, served from memory mapped buffers.
+ * <p>
+ * The most recently used blocks stay open in a bounded handle cache, so a read or write on them
+ * costs no open, close or read syscall. Reads hand a slice of the mapping to the server, which writes it
+ * to socket directly. Writes inside the mapped range go to the mapping, writes extending the block
+ * go through the channel and the block is mapped again on the next read.
+ * <p>
+ * A mapping lives until it is garbage collected, even after its handle is evicted and its channel is closed,
+ * so a region handed out is never invalidated by eviction.
+ */
+public class MappedBlockStore implements BlockStore {
+    public static final int DEFAULT_MAX_OPEN_BLOCKS = 256;
+
+    private final File dir;
+    private final int maxOpenBlocks;
+    //access ordered, the eldest handle is evicted first. guarded by this
+    private final LinkedHashMap<Integer, MappedBlock> openBlocks = new LinkedHashMap<>(16, 0.75f, true);
+    //blocks written since the last sync, guarded by this
+    private Set<Integer> unsynced = new HashSet<>();
+    //a block file was created or deleted since the last sync, guarded by this
+    private boolean directoryChanged = false;
+    private boolean closed = false;
+
+    public MappedBlockStore(File dir, int maxOpenBlocks) {
+        if (maxOpenBlocks <= 0)
+            throw new IllegalArgumentException();
+        this.dir = dir;
+        this.maxOpenBlocks = maxOpenBlocks;
+        if (!dir.exists())
+            dir.mkdirs();
+    }
+
+    File blockFile(int blockNumber) {
+        return new File(dir, blockNumber + ".block");
+    }
+
+    @Override
+    public int read(int blockNumber, int offset, ByteBuffer dst) throws IOException {
+        MappedBlock block = acquire(blockNumber, false);
+        try {
+            ByteBuffer slice = block.slice(offset, dst.remaining());
+            int read = slice.remaining();
+            dst.put(slice);
+            return read;
+        } finally {
+            release(block);
+        }
+    }
+
+    @Override
+    public FileRegion readRegion(int blockNumber, int offset, int size) throws IOException {
+        MappedBlock block = acquire(blockNumber, false);
+        try {
+            return new FileRegion(block.slice(offset, size));
+        } finally {
+            release(block);
+        }
+    }
+
+    @Override
+    public void write(int blockNumber, int offset, ByteBuffer src) throws IOException {
+        boolean created = !blockFile(blockNumber).exists();
+        MappedBlock block = acquire(blockNumber, true);
+        try {
+            block.write(offset, src);
+        } finally {
+            release(block);
+        }
+        //only after the write, so that the next sync covers it
+        synchronized (this) {
+            unsynced.add(blockNumber);
+            directoryChanged |= created;
+        }
+    }
+
+    @Override
+    public void delete(int blockNumber) {
+        MappedBlock block;
+        synchronized (this) {
+            block = openBlocks.remove(blockNumber);
+            if (block != null) {
+                block.evicted = true;
+                if (block.refs > 0)
+                    block = null;
+            }
+        }
+        if (block != null)
+            block.close();
+        //a block still being read keeps its mapping, the file is unlinked under it
+        if (blockFile(blockNumber).delete()) {
+            synchronized (this) {
+                directoryChanged = true;
+            }
+        }
+    }
+
+    @Override
+    public List<Integer> getBlockNumbers() {
+        List<Integer> blockNumbers = new ArrayList<>();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Matcher matcher = FileBlockStore.BLOCK_NAME.matcher(file.getName());
+                if (matcher.matches())
+                    blockNumbers.add(Integer.parseInt(matcher.group(1)));
+            }
+        }
+        return blockNumbers;
+    }
+
+    @Override
+    public LocalBlock getLocalBlock(int blockNumber) throws FileNotFoundException {
+        return LocalBlock.ofFile(blockFile(blockNumber));
+    }
+
+    /**
+     * Both the mapping and the channel are forced, a block is written through either of them.
+     */
+    @Override
+    public void sync() throws IOException {
+        Set<Integer> blockNumbers;
+        boolean syncDirectory;
+        synchronized (this) {
+            blockNumbers = unsynced;
+            unsynced = new HashSet<>();
+            syncDirectory = directoryChanged;
+            directoryChanged = false;
+        }
+        List<Integer> pending = new ArrayList<>(blockNumbers);
+        try {
+            while (!pending.isEmpty()) {
+                int blockNumber = pending.get(pending.size() - 1);
+                MappedBlock block = null;
+                try {
+                    block = acquire(blockNumber, false);
+                } catch (FileNotFoundException e) {
+                    //deleted since its write, nothing to sync
+                }
+                if (block != null) {
+                    try {
+                        block.force();
+                    } finally {
+                        release(block);
+                    }
+                }
+                pending.remove(pending.size() - 1);
+            }
+            if (syncDirectory)
+                FileBlockStore.syncDirectory(dir);
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                unsynced.addAll(pending);
+                directoryChanged |= syncDirectory;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return the number of block handles currently open
+     */
+    public synchronized int getOpenBlockCount() {
+        return openBlocks.size();
+    }
+
+    private MappedBlock acquire(int blockNumber, boolean create) throws IOException {
+        synchronized (this) {
+            if (closed)
+                throw new IOException("block store is closed");
+            MappedBlock block = openBlocks.get(blockNumber);
+            if (block != null) {
+                block.refs++;
+                return block;
+            }
+        }
+        //open outside of the lock, so that a slow open does not hold up the cached blocks
+        File file = blockFile(blockNumber);
+        FileChannel channel;
+        if (create) {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } else {
+            if (!file.exists())
+                throw new FileNotFoundException(file.getPath());
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        MappedBlock opened = new MappedBlock(channel);
+        List<MappedBlock> evicted = new ArrayList<>();
+        MappedBlock block;
+        synchronized (this) {
+            block = openBlocks.get(blockNumber);
+            if (block == null && !closed) {
+                block = opened;
+                openBlocks.put(blockNumber, block);
+                block.refs++;
+                Iterator<MappedBlock> iter = openBlocks.values().iterator();
+                while (openBlocks.size() > maxOpenBlocks) {
+                    MappedBlock eldest = iter.next();
+                    iter.remove();
+                    eldest.evicted = true;
+                    if (eldest.refs == 0)
+                        evicted.add(eldest);
+                }
+            } else if (block != null) {
+                block.refs++;
+            }
+        }
+        if (block != opened)
+            opened.close();
+        for (MappedBlock e : evicted)
+            e.close();
+        if (block == null)
+            throw new IOException("block store is closed");
+        return block;
+    }
+
+    private void release(MappedBlock block) {
+        boolean close;
+        synchronized (this) {
+            block.refs--;
+            close = block.evicted && block.refs == 0;
+        }
+        if (close)
+            block.close();
+    }
+
+    @Override
+    public void close() {
+        List<MappedBlock> idle = new ArrayList<>();
+        synchronized (this) {
+            closed = true;
+            for (MappedBlock block : openBlocks.values()) {
+                block.evicted = true;
+                if (block.refs == 0)
+                    idle.add(block);
+            }
+            openBlocks.clear();
+        }
+        for (MappedBlock block : idle)
+            block.close();
+    }
+
+    private static class MappedBlock {
+        private final FileChannel channel;
+        private long length;
+        //maps [0, mapped.capacity()) of the file, it may be shorter than length after the block is extended
+        private MappedByteBuffer mapped;
+        //guarded by the store
+        private int refs = 0;
+        private boolean evicted = false;
+
+        MappedBlock(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.length = channel.size();
+        }
+
+        /**
+         * @return a view of at most size bytes from offset, cut at the end of block
+         */
+        synchronized ByteBuffer slice(int offset, int size) throws IOException {
+            int count = (int) Math.max(0, Math.min(size, length - offset));
+            if (count == 0)
+                return ByteBuffer.allocate(0);
+            if (mapped == null || mapped.capacity() < offset + count)
+                mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+            ByteBuffer view = mapped.duplicate();
+            view.position(offset);
+            view.limit(offset + count);
+            return view.slice();
+        }
+
+        synchronized void write(int offset, ByteBuffer src) throws IOException {
+            int end = offset + src.remaining();
+            if (mapped != null && end <= mapped.capacity()) {
+                ByteBuffer view = mapped.duplicate();
+                view.position(offset);
+                view.put(src);
+            } else {
+                long position = offset;
+                while (src.hasRemaining())
+                    position += channel.write(src, position);
+            }
+            length = Math.max(length, end);
+        }
+
+        synchronized void force() throws IOException {
+            if (mapped != null)
+                mapped.force();
+            channel.force(false);
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) Jipzingking 2016.
+ */
+
+package sdfs.datanode;
+
+import sdfs.namenode.ReplicationWork;
+import sdfs.protocol.INameNodeDataNodeProtocol;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Keeps name node informed about a data node from a background thread.
+ * <p>
+ * The data node registers and sends a full block report, then a heartbeat every HEARTBEAT_INTERVAL.
+ * Blocks received or deleted are reported as soon as the last report returns, so concurrent changes go in one report.
+ * The blocks in no file are deleted as the heartbeat reply says.
+ * If a call fails, e.g. name node restarted and no longer knows the data node, it registers and reports everything again.
+ * <p>
+ * Replication work is fetched after a heartbeat and handed to a {@link BlockReplicator}. Once it is done the copied
+ * blocks are reported, then the work is committed and the next one fetched at once.
+ */
+class NameNodeReporter implements Closeable {
+    private final DataNodeServer dataNode;
+    private final INameNodeDataNodeProtocol nameNode;
+    private final String host;
+    private final int port;
+    private final Thread thread;
+    private final BlockReplicator replicator;
+    //null until registered and fully reported, only touched by the reporter thread
+    private UUID dataNodeId;
+    //a replication work is being done, only touched by the reporter thread
+    private boolean replicating = false;
+    //everything below is guarded by this
+    private Set<Integer> received = new LinkedHashSet<>();
+    private Set<Integer> deleted = new LinkedHashSet<>();
+    private UUID finishedWork = null;
+    private boolean closed = false;
+
+    /**
+     * @param replicationBandwidth bytes per second copied at most by replication works
+     */
+    NameNodeReporter(DataNodeServer dataNode, INameNodeDataNodeProtocol nameNode, String host, int port, long replicationBandwidth) {
+        this.dataNode = dataNode;
+        this.nameNode = nameNode;
+        this.host = host;
+        this.port = port;
+        this.replicator = new BlockReplicator(dataNode, replicationBandwidth);
+        this.thread = new Thread(this::reportLoop, "sdfs-namenode-reporter");
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    synchronized void blockReceived(int blockNumber) {
+        deleted.remove(blockNumber);
+        received.add(blockNumber);
+        notifyAll();
+    }
+
+    synchronized void blockDeleted(int blockNumber) {
+        received.remove(blockNumber);
+        deleted.add(blockNumber);
+        notifyAll();
+    }
+
+    private synchronized void replicationWorkDone(UUID replicationWorkUuid) {
+        finishedWork = replicationWorkUuid;
+        notifyAll();
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        replicator.close();
+    }
+
+    private void reportLoop() {
+        long nextHeartbeatTime = 0;
+        boolean failing = false;
+        while (true) {
+            long retryTime = 0;
+            try {
+                if (dataNodeId == null) {
+                    UUID id = nameNode.registerDataNode(host, port);
+                    //everything changed before this point is in the full report
+                    synchronized (this) {
+                        received.clear();
+                        deleted.clear();
+                    }
+                    nameNode.blockReport(id, dataNode.getBlockStore().getBlockNumbers());
+                    dataNodeId = id;
+                    nextHeartbeatTime = 0;
+                }
+                long now = System.currentTimeMillis();
+                boolean heartbeatSent = false;
+                if (now >= nextHeartbeatTime) {
+                    List<Integer> invalidated = nameNode.sendHeartbeat(dataNodeId, dataNode.getCapacity(), dataNode.getRemaining(), dataNode.getBlockCount(), dataNode.getActiveStreamCount());
+                    //reported deleted below
+                    for (int blockNumber : invalidated) {
+                        try {
+                            dataNode.deleteBlock(blockNumber);
+                        } catch (IOException e) {
+                            //told again after the next full report
+                            e.printStackTrace();
+                        }
+                    }
+                    nextHeartbeatTime = now + INameNodeDataNodeProtocol.HEARTBEAT_INTERVAL;
+                    heartbeatSent = true;
+                }
+                List<Integer> receivedBlockNumbers;
+                List<Integer> deletedBlockNumbers;
+                UUID finished;
+                synchronized (this) {
+                    receivedBlockNumbers = new ArrayList<>(received);
+                    deletedBlockNumbers = new ArrayList<>(deleted);
+                    received.clear();
+                    deleted.clear();
+                    finished = finishedWork;
+                    finishedWork = null;
+                }
+                if (!receivedBlockNumbers.isEmpty() || !deletedBlockNumbers.isEmpty())
+                    nameNode.blockReceivedAndDeleted(dataNodeId, receivedBlockNumbers, deletedBlockNumbers);
+                //the copied blocks are reported above, before the work is committed
+                if (finished != null) {
+                    replicating = false;
+                    nameNode.commitReplicationWork(dataNodeId, finished);
+                }
+                if (!replicating && (heartbeatSent || finished != null)) {
+                    ReplicationWork work = nameNode.getReplicationWork(dataNodeId);
+                    if (!work.isEmpty()) {
+                        replicating = true;
+                        replicator.submit(work, this::replicationWorkDone);
+                    }
+                }
+                failing = false;
+            } catch (IllegalStateException e) {
+                //not registered, do it at once
+                dataNodeId = null;
+                continue;
+            } catch (IOException | RuntimeException e) {
+                //the lost reports are covered by the full report after registering again
+                if (!failing)
+                    System.err.println("cannot report to name node: " + e);
+                failing = true;
+                dataNodeId = null;
+                retryTime = System.currentTimeMillis() + INameNodeDataNodeProtocol.HEARTBEAT_INTERVAL;
+            }
+            synchronized (this) {
+                try {
+                    while (!closed) {
+                        long wakeUpTime = retryTime > 0 ? retryTime : nextHeartbeatTime;
+                        long delay = wakeUpTime - System.currentTimeMillis();
+                        if (delay <= 0 || (retryTime == 0 && (!received.isEmpty() || !deleted.isEmpty() || finishedWork != null)))
+                            break;
+                        wait(delay);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (closed)
+                    return;
+            }
+        }
+    }
+}
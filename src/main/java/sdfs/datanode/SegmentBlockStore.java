@@ -0,0 +1,593 @@
+/*
+ * Copyright (c) Jipzingking 2016.
+ */
+
+package sdfs.datanode;
+
+import sdfs.protocol.FileRegion;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Blocks packed into large append-only segment files, so that millions of blocks need only a few files.
+ * <p>
+ * A segment is a sequence of records: [magic:4][blockNumber:4][length:4][capacity:4][data:capacity].
+ * A record with length -1 is a tombstone of a deleted block.
+ * An in-memory index maps every block to its newest record and is rebuilt by scanning the segments at startup.
+ * <p>
+ * A write within the capacity of the record, or to the last record of the active segment, is done in place.
+ * A block stream reserves a whole block up front, so its packets land in one record even if other streams interleave.
+ * Any other write appends a new copy of the whole block and turns the old record into garbage.
+ * Sealed segments with less than COMPACTION_THRESHOLD of live data are compacted in background:
+ * their live blocks are appended again and synced before the segment file is deleted.
+ */
+public class SegmentBlockStore implements BlockStore {
+    public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+    public static final double COMPACTION_THRESHOLD = 0.5;
+
+    private static final int RECORD_MAGIC = 0x53444653;
+    private static final int HEADER_LENGTH = 16;
+    private static final int TOMBSTONE = -1;
+    private static final Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d+)\\.seg");
+    private static final Pattern LEGACY_BLOCK_NAME = Pattern.compile("(\\d+)\\.block");
+
+    private final File dir;
+    private final long segmentSize;
+    //everything below is guarded by this
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private final Map<Integer, Extent> index = new HashMap<>();
+    private Segment active;
+    //the last record of the active segment, null if it is garbage or a tombstone
+    private Extent tail;
+    private boolean compactionScheduled = false;
+    //segments written since the last sync
+    private Set<Segment> unsynced = new HashSet<>();
+    //a segment file was created or deleted since the last sync
+    private boolean directoryChanged = false;
+    private boolean closed = false;
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "sdfs-segment-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public SegmentBlockStore(File dir, long segmentSize) throws IOException {
+        if (segmentSize <= 0)
+            throw new IllegalArgumentException();
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        if (!dir.exists())
+            dir.mkdirs();
+        synchronized (this) {
+            recover();
+            importLegacyBlocks();
+            for (Segment segment : segments.values())
+                maybeCompact(segment);
+        }
+    }
+
+    @Override
+    public int read(int blockNumber, int offset, ByteBuffer dst) throws IOException {
+        Extent extent = pin(blockNumber);
+        try {
+            int count = Math.max(0, Math.min(dst.remaining(), extent.length - offset));
+            ByteBuffer target = dst.duplicate();
+            target.limit(target.position() + count);
+            long position = extent.dataOffset() + offset;
+            while (target.hasRemaining()) {
+                int n = extent.segment.channel.read(target, position);
+                if (n < 0)
+                    throw new IOException("segment " + extent.segment.id + " is truncated");
+                position += n;
+            }
+            dst.position(dst.position() + count);
+            return count;
+        } finally {
+            unpin(extent.segment);
+        }
+    }
+
+    @Override
+    public FileRegion readRegion(int blockNumber, int offset, int size) throws IOException {
+        Extent extent = pin(blockNumber);
+        long count = Math.max(0, Math.min(size, extent.length - offset));
+        //the segment is not deleted by compaction until the region is sent
+        return new FileRegion(extent.segment.channel, extent.dataOffset() + offset, count, () -> unpin(extent.segment));
+    }
+
+    @Override
+    public synchronized void write(int blockNumber, int offset, ByteBuffer src) throws IOException {
+        checkOpen();
+        int end = offset + src.remaining();
+        Extent old = index.get(blockNumber);
+        if (old != null && (end <= old.capacity || old == tail)) {
+            writeFully(old.segment.channel, src, old.dataOffset() + offset);
+            unsynced.add(old.segment);
+            if (end > old.length)
+                resize(blockNumber, old, end, Math.max(old.capacity, end));
+            return;
+        }
+        Extent extent = appendRecord(blockNumber, old, old == null ? end : Math.max(old.length, end), 0);
+        writeFully(extent.segment.channel, src, extent.dataOffset() + offset);
+        //the header goes last, a record cut by a crash is dropped by recovery
+        writeHeader(extent, blockNumber);
+    }
+
+    /**
+     * The room is garbage until it is written or compacted.
+     */
+    @Override
+    public synchronized void reserve(int blockNumber, int capacity) throws IOException {
+        checkOpen();
+        Extent old = index.get(blockNumber);
+        if (old != null && old.capacity >= capacity)
+            return;
+        if (old != null && old == tail) {
+            resize(blockNumber, old, old.length, capacity);
+            return;
+        }
+        writeHeader(appendRecord(blockNumber, old, old == null ? 0 : old.length, capacity), blockNumber);
+    }
+
+    /**
+     * Replace a record by a longer one at the same place.
+     */
+    private void resize(int blockNumber, Extent old, int length, int capacity) throws IOException {
+        Extent extent = new Extent(old.segment, old.headerOffset, length, capacity);
+        writeHeader(extent, blockNumber);
+        unsynced.add(old.segment);
+        index.put(blockNumber, extent);
+        old.segment.liveBytes += length - old.length;
+        if (old == tail) {
+            tail = extent;
+            active.size = Math.max(active.size, extent.dataOffset() + capacity);
+        }
+    }
+
+    /**
+     * Start a new record of a block at the end of the active segment, holding a copy of the old record if any.
+     * The caller writes its header once the data is in place.
+     */
+    private Extent appendRecord(int blockNumber, Extent old, int length, int capacity) throws IOException {
+        Segment segment = activeSegment();
+        Extent extent = new Extent(segment, segment.size, length, Math.max(length, capacity));
+        if (old != null) {
+            //copy on write, the block is small
+            ByteBuffer content = ByteBuffer.allocate(old.length);
+            readFully(old, content);
+            content.flip();
+            writeFully(segment.channel, content, extent.dataOffset());
+        }
+        segment.size = extent.dataOffset() + extent.capacity;
+        unsynced.add(segment);
+        append(blockNumber, extent);
+        tail = extent;
+        return extent;
+    }
+
+    @Override
+    public synchronized void delete(int blockNumber) throws IOException {
+        checkOpen();
+        Extent old = index.remove(blockNumber);
+        if (old == null)
+            return;
+        if (old == tail)
+            tail = null;
+        old.segment.liveBytes -= old.length;
+        appendTombstone(blockNumber);
+        maybeCompact(old.segment);
+    }
+
+    @Override
+    public synchronized List<Integer> getBlockNumbers() {
+        return new ArrayList<>(index.keySet());
+    }
+
+    /**
+     * Blocks are refused, a segment file holds other blocks too, which a client given its path could read.
+     */
+    @Override
+    public synchronized LocalBlock getLocalBlock(int blockNumber) throws IOException {
+        checkOpen();
+        if (!index.containsKey(blockNumber))
+            throw new FileNotFoundException("block " + blockNumber);
+        return null;
+    }
+
+    /**
+     * Only the segments written since the last sync are forced, usually just the active one.
+     */
+    @Override
+    public void sync() throws IOException {
+        Set<Segment> pending;
+        boolean syncDirectory;
+        synchronized (this) {
+            checkOpen();
+            pending = unsynced;
+            unsynced = new HashSet<>();
+            syncDirectory = directoryChanged;
+            directoryChanged = false;
+            //not closed under the sync by compaction
+            for (Segment segment : pending)
+                segment.refs++;
+        }
+        IOException error = null;
+        for (Segment segment : pending) {
+            try {
+                if (error == null && !segment.obsolete)
+                    segment.channel.force(false);
+            } catch (IOException e) {
+                error = e;
+            }
+            unpin(segment);
+        }
+        if (error == null && syncDirectory) {
+            try {
+                FileBlockStore.syncDirectory(dir);
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        if (error != null) {
+            synchronized (this) {
+                //forced again on the next sync
+                for (Segment segment : pending) {
+                    if (!segment.retired)
+                        unsynced.add(segment);
+                }
+                directoryChanged |= syncDirectory;
+            }
+            throw error;
+        }
+    }
+
+    /**
+     * @return the number of segment files, including the active one
+     */
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    @Override
+    public void close() {
+        List<Segment> idle = new ArrayList<>();
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+            for (Segment segment : segments.values()) {
+                segment.retired = true;
+                if (segment.refs == 0)
+                    idle.add(segment);
+            }
+            segments.clear();
+            index.clear();
+        }
+        compactor.shutdown();
+        for (Segment segment : idle)
+            segment.close();
+    }
+
+    private synchronized Extent pin(int blockNumber) throws IOException {
+        checkOpen();
+        Extent extent = index.get(blockNumber);
+        if (extent == null)
+            throw new FileNotFoundException("block " + blockNumber);
+        extent.segment.refs++;
+        return extent;
+    }
+
+    private void unpin(Segment segment) {
+        boolean close;
+        synchronized (this) {
+            segment.refs--;
+            close = segment.retired && segment.refs == 0;
+        }
+        if (close)
+            segment.close();
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed)
+            throw new IOException("block store is closed");
+    }
+
+    /**
+     * @return the active segment, a new one is started if it is full
+     */
+    private Segment activeSegment() throws IOException {
+        if (active == null || active.size >= segmentSize) {
+            Segment sealed = active;
+            int id = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+            active = new Segment(id, new File(dir, String.format("segment-%08d.seg", id)));
+            segments.put(id, active);
+            directoryChanged = true;
+            tail = null;
+            if (sealed != null)
+                maybeCompact(sealed);
+        }
+        return active;
+    }
+
+    private void append(int blockNumber, Extent extent) {
+        Extent old = index.put(blockNumber, extent);
+        extent.segment.liveBytes += extent.length;
+        if (old != null) {
+            old.segment.liveBytes -= old.length;
+            maybeCompact(old.segment);
+        }
+    }
+
+    private void appendTombstone(int blockNumber) throws IOException {
+        Segment segment = activeSegment();
+        Extent tombstone = new Extent(segment, segment.size, TOMBSTONE, 0);
+        writeHeader(tombstone, blockNumber);
+        segment.size = tombstone.dataOffset();
+        unsynced.add(segment);
+        segment.tombstones.add(blockNumber);
+        tail = null;
+    }
+
+    private void maybeCompact(Segment segment) {
+        if (segment == active || segment.retired || compactionScheduled || closed)
+            return;
+        if (segment.liveBytes >= segment.size * COMPACTION_THRESHOLD)
+            return;
+        compactionScheduled = true;
+        compactor.execute(this::compact);
+    }
+
+    private void compact() {
+        while (true) {
+            Segment victim = null;
+            synchronized (this) {
+                if (closed)
+                    return;
+                for (Segment segment : segments.values()) {
+                    if (segment != active && segment.liveBytes < segment.size * COMPACTION_THRESHOLD) {
+                        victim = segment;
+                        break;
+                    }
+                }
+                if (victim == null) {
+                    compactionScheduled = false;
+                    return;
+                }
+            }
+            try {
+                compact(victim);
+            } catch (IOException e) {
+                e.printStackTrace();
+                synchronized (this) {
+                    compactionScheduled = false;
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Move the live blocks of a sealed segment to the active one, then delete the segment.
+     * The store is locked for one block at a time, so reads and writes go on during compaction.
+     */
+    private void compact(Segment victim) throws IOException {
+        List<Integer> blockNumbers = new ArrayList<>();
+        synchronized (this) {
+            for (Map.Entry<Integer, Extent> e : index.entrySet()) {
+                if (e.getValue().segment == victim)
+                    blockNumbers.add(e.getKey());
+            }
+        }
+        for (int blockNumber : blockNumbers) {
+            synchronized (this) {
+                if (closed)
+                    return;
+                Extent old = index.get(blockNumber);
+                if (old == null || old.segment != victim)
+                    continue;
+                //unused capacity is dropped
+                writeHeader(appendRecord(blockNumber, old, old.length, 0), blockNumber);
+            }
+        }
+        synchronized (this) {
+            if (closed)
+                return;
+            //an older segment may still hold a dead record of a deleted block, keep its tombstone alive
+            if (segments.firstKey() != victim.id) {
+                for (int blockNumber : victim.tombstones) {
+                    if (!index.containsKey(blockNumber))
+                        appendTombstone(blockNumber);
+                }
+            }
+        }
+        //the copies must be on disk before the only durable version is deleted
+        sync();
+        boolean close;
+        synchronized (this) {
+            if (closed)
+                return;
+            segments.remove(victim.id);
+            unsynced.remove(victim);
+            directoryChanged = true;
+            victim.retired = true;
+            victim.obsolete = true;
+            close = victim.refs == 0;
+        }
+        if (close)
+            victim.close();
+    }
+
+    /**
+     * Rebuild the index from the segments, the newest record of a block wins.
+     */
+    private void recover() throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+        for (File file : files) {
+            Matcher matcher = SEGMENT_NAME.matcher(file.getName());
+            if (matcher.matches()) {
+                int id = Integer.parseInt(matcher.group(1));
+                segments.put(id, new Segment(id, file));
+            }
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        for (Segment segment : segments.values()) {
+            long fileSize = segment.channel.size();
+            long position = 0;
+            while (position + HEADER_LENGTH <= fileSize) {
+                header.clear();
+                while (header.hasRemaining() && segment.channel.read(header, position + header.position()) >= 0) ;
+                header.flip();
+                int magic = header.getInt();
+                int blockNumber = header.getInt();
+                int length = header.getInt();
+                int capacity = header.getInt();
+                //the unwritten room reserved by the last record is not in the file
+                if (magic != RECORD_MAGIC || length < TOMBSTONE || capacity < length || position + HEADER_LENGTH + Math.max(length, 0) > fileSize)
+                    break;
+                if (length == TOMBSTONE) {
+                    Extent old = index.remove(blockNumber);
+                    if (old != null)
+                        old.segment.liveBytes -= old.length;
+                    segment.tombstones.add(blockNumber);
+                } else {
+                    append(blockNumber, new Extent(segment, position, length, capacity));
+                }
+                position += HEADER_LENGTH + capacity;
+            }
+            if (position < fileSize) {
+                //a record cut by a crash, or garbage after the last record
+                segment.channel.truncate(position);
+            }
+            segment.size = position;
+        }
+        if (!segments.isEmpty())
+            active = segments.lastEntry().getValue();
+    }
+
+    /**
+     * Move blocks stored one file per block by an older data node into segments.
+     */
+    private void importLegacyBlocks() throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+        List<File> imported = new ArrayList<>();
+        for (File file : files) {
+            Matcher matcher = LEGACY_BLOCK_NAME.matcher(file.getName());
+            if (!matcher.matches())
+                continue;
+            int blockNumber = Integer.parseInt(matcher.group(1));
+            //imported again even if a record is found, an import cut by a crash may have left it half on disk
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                ByteBuffer content = ByteBuffer.allocate((int) channel.size());
+                while (content.hasRemaining() && channel.read(content) >= 0) ;
+                content.flip();
+                write(blockNumber, 0, content);
+            }
+            imported.add(file);
+        }
+        if (imported.isEmpty())
+            return;
+        //the copies must be on disk before the only durable version is deleted
+        sync();
+        for (File file : imported)
+            file.delete();
+    }
+
+    private void readFully(Extent extent, ByteBuffer dst) throws IOException {
+        long position = extent.dataOffset();
+        while (dst.hasRemaining()) {
+            int n = extent.segment.channel.read(dst, position);
+            if (n < 0)
+                throw new IOException("segment " + extent.segment.id + " is truncated");
+            position += n;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer src, long position) throws IOException {
+        while (src.hasRemaining())
+            position += channel.write(src, position);
+    }
+
+    private static void writeHeader(Extent extent, int blockNumber) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.putInt(RECORD_MAGIC).putInt(blockNumber).putInt(extent.length).putInt(extent.capacity);
+        header.flip();
+        writeFully(extent.segment.channel, header, extent.headerOffset);
+    }
+
+    private static class Segment {
+        private final int id;
+        private final File file;
+        private final FileChannel channel;
+        //append position
+        private long size = 0;
+        //bytes of records still in the index
+        private long liveBytes = 0;
+        //blocks whose tombstone is in this segment
+        private final Set<Integer> tombstones = new HashSet<>();
+        private int refs = 0;
+        //no longer in the store, closed once unpinned
+        private boolean retired = false;
+        //compacted, the file is deleted once closed
+        private boolean obsolete = false;
+
+        Segment(int id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        /**
+         * Only called once the segment is retired and unpinned.
+         */
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (obsolete)
+                file.delete();
+        }
+    }
+
+    /**
+     * Immutable, a record that grows is replaced by a new extent.
+     */
+    private static class Extent {
+        private final Segment segment;
+        private final long headerOffset;
+        private final int length;
+        private final int capacity;
+
+        Extent(Segment segment, long headerOffset, int length, int capacity) {
+            this.segment = segment;
+            this.headerOffset = headerOffset;
+            this.length = length;
+            this.capacity = capacity;
+        }
+
+        long dataOffset() {
+            return headerOffset + HEADER_LENGTH;
+        }
+    }
+}
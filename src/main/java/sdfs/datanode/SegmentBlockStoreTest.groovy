@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) Jipzingking 2016.
+ */
+
+package sdfs.datanode
+
+import spock.lang.Specification
+
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.StandardOpenOption
+
+class SegmentBlockStoreTest extends Specification {
+    def dir = File.createTempDir()
+
+    def cleanup() {
+        dir.deleteDir()
+    }
+
+    def "Test blocks are not given out as segment files"() {
+        def store = new SegmentBlockStore(dir, 1024 * 1024)
+        store.write(1, 0, ByteBuffer.wrap(bytes(1000, 1)))
+
+        expect:
+        //the segment holds other blocks too
+        store.getLocalBlock(1) == null
+
+        when:
+        store.getLocalBlock(2)
+
+        then:
+        thrown FileNotFoundException
+
+        cleanup:
+        store.close()
+    }
+
+    def "Test recovery after a crash in the middle of a record"() {
+        def store = new SegmentBlockStore(dir, 1024 * 1024)
+        store.write(1, 0, ByteBuffer.wrap(bytes(1000, 1)))
+        store.write(2, 0, ByteBuffer.wrap(bytes(1000, 2)))
+        store.sync()
+        store.close()
+        //the second record is cut as if the data node died while writing it
+        def segment = dir.listFiles().find { it.name.endsWith(".seg") }
+        FileChannel.open(segment.toPath(), StandardOpenOption.WRITE).withCloseable { it.truncate(segment.length() - 500) }
+
+        when:
+        store = new SegmentBlockStore(dir, 1024 * 1024)
+
+        then:
+        read(store, 1) == bytes(1000, 1)
+        store.getBlockNumbers() == [1]
+
+        when:
+        read(store, 2)
+
+        then:
+        thrown FileNotFoundException
+
+        when:
+        //the torn record is overwritten by the next one
+        store.write(3, 0, ByteBuffer.wrap(bytes(300, 3)))
+        store.sync()
+        store.close()
+        store = new SegmentBlockStore(dir, 1024 * 1024)
+
+        then:
+        read(store, 1) == bytes(1000, 1)
+        read(store, 3) == bytes(300, 3)
+        store.getBlockNumbers().sort() == [1, 3]
+
+        cleanup:
+        store.close()
+    }
+
+    def "Test delete survives restart"() {
+        def store = new SegmentBlockStore(dir, 1024 * 1024)
+        store.write(1, 0, ByteBuffer.wrap(bytes(100, 1)))
+        store.write(2, 0, ByteBuffer.wrap(bytes(100, 2)))
+        store.delete(1)
+        store.sync()
+        store.close()
+
+        when:
+        store = new SegmentBlockStore(dir, 1024 * 1024)
+
+        then:
+        store.getBlockNumbers() == [2]
+        read(store, 2) == bytes(100, 2)
+
+        cleanup:
+        store.close()
+    }
+
+    def "Test compaction keeps the live blocks"() {
+        def segmentSize = 64 * 1024
+        def store = new SegmentBlockStore(dir, segmentSize)
+        def random = new Random(7)
+        def model = [:]
+        //every block is replaced many times, which leaves most of the sealed segments as garbage
+        for (int i = 0; i < 2000; i++) {
+            int blockNumber = random.nextInt(20)
+            def b = bytes(1000 + random.nextInt(3000), i)
+            store.delete(blockNumber)
+            store.write(blockNumber, 0, ByteBuffer.wrap(b))
+            model[blockNumber] = b
+        }
+        def written = 2000L * 2500 / segmentSize
+        def deadline = System.currentTimeMillis() + 10000
+        while (store.getSegmentCount() > written / 4 && System.currentTimeMillis() < deadline)
+            Thread.sleep(50)
+
+        expect:
+        store.getSegmentCount() <= written / 4
+        dir.listFiles().findAll { it.name.endsWith(".seg") }.size() <= store.getSegmentCount()
+        model.every { blockNumber, b -> read(store, blockNumber) == b }
+
+        when:
+        store.close()
+        store = new SegmentBlockStore(dir, segmentSize)
+
+        then:
+        store.getBlockNumbers().sort() == model.keySet().sort()
+        model.every { blockNumber, b -> read(store, blockNumber) == b }
+
+        cleanup:
+        store.close()
+    }
+
+    def "Test legacy block files are imported"() {
+        new File(dir, "7.block").bytes = bytes(500, 7)
+
+        when:
+        def store = new SegmentBlockStore(dir, 1024 * 1024)
+
+        then:
+        read(store, 7) == bytes(500, 7)
+        !new File(dir, "7.block").exists()
+
+        when:
+        store.close()
+        store = new SegmentBlockStore(dir, 1024 * 1024)
+
+        then:
+        read(store, 7) == bytes(500, 7)
+
+        cleanup:
+        store.close()
+    }
+
+    private static byte[] bytes(int length, int seed) {
+        def b = new byte[length]
+        new Random(seed).nextBytes(b)
+        return b
+    }
+
+    private static byte[] read(BlockStore store, int blockNumber) {
+        def dst = ByteBuffer.allocate(DataNodeServer.BLOCK_SIZE)
+        int n = store.read(blockNumber, 0, dst)
+        return Arrays.copyOf(dst.array(), n)
+    }
+}
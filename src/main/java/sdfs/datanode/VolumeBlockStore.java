@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) Jipzingking 2016.
+ */
+
+package sdfs.datanode;
+
+import sdfs.protocol.FileRegion;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Spreads blocks over several volumes, each a directory on its own disk with its own store.
+ * <p>
+ * A block lives on one volume, found from the blocks each store holds on startup. A new block is placed
+ * round robin by default, so that writes use every disk, or on the volume with the most free space.
+ * Every volume has its own I/O threads, see {@link #getExecutor(int)}, so a slow disk only holds up its own blocks.
+ */
+public class VolumeBlockStore implements BlockStore {
+    public static final int DEFAULT_THREADS_PER_VOLUME = 8;
+
+    public enum Placement {
+        ROUND_ROBIN, AVAILABLE_SPACE
+    }
+
+    private final List<Volume> volumes = new ArrayList<>();
+    private final Placement placement;
+    private final Map<Integer, Volume> blockVolumes = new ConcurrentHashMap<>();
+    private final AtomicInteger nextVolume = new AtomicInteger();
+
+    /**
+     * @param dirs   the directory of every volume, its disk space decides the placement
+     * @param stores the store of every volume, in the same order as dirs
+     */
+    public VolumeBlockStore(List<File> dirs, List<BlockStore> stores, int threadsPerVolume, Placement placement) throws IOException {
+        if (dirs.isEmpty() || dirs.size() != stores.size() || threadsPerVolume <= 0)
+            throw new IllegalArgumentException();
+        this.placement = placement;
+        for (int i = 0; i < dirs.size(); i++) {
+            Volume volume = new Volume(i, dirs.get(i), stores.get(i), threadsPerVolume);
+            volumes.add(volume);
+            //a block found on two volumes is served from the first one
+            for (int blockNumber : volume.store.getBlockNumbers())
+                blockVolumes.putIfAbsent(blockNumber, volume);
+        }
+    }
+
+    @Override
+    public int read(int blockNumber, int offset, ByteBuffer dst) throws IOException {
+        return getVolume(blockNumber).store.read(blockNumber, offset, dst);
+    }
+
+    @Override
+    public FileRegion readRegion(int blockNumber, int offset, int size) throws IOException {
+        return getVolume(blockNumber).store.readRegion(blockNumber, offset, size);
+    }
+
+    @Override
+    public void write(int blockNumber, int offset, ByteBuffer src) throws IOException {
+        place(blockNumber).store.write(blockNumber, offset, src);
+    }
+
+    @Override
+    public void reserve(int blockNumber, int capacity) throws IOException {
+        place(blockNumber).store.reserve(blockNumber, capacity);
+    }
+
+    @Override
+    public void delete(int blockNumber) throws IOException {
+        Volume volume = blockVolumes.remove(blockNumber);
+        if (volume != null)
+            volume.store.delete(blockNumber);
+    }
+
+    @Override
+    public List<Integer> getBlockNumbers() throws IOException {
+        List<Integer> blockNumbers = new ArrayList<>();
+        for (Volume volume : volumes)
+            blockNumbers.addAll(volume.store.getBlockNumbers());
+        return blockNumbers;
+    }
+
+    @Override
+    public LocalBlock getLocalBlock(int blockNumber) throws IOException {
+        return getVolume(blockNumber).store.getLocalBlock(blockNumber);
+    }
+
+    @Override
+    public void sync() throws IOException {
+        for (Volume volume : volumes)
+            volume.store.sync();
+    }
+
+    /**
+     * @return the I/O threads of the volume holding the block. A block not held yet is not placed by this,
+     * since it may never be written, e.g. a read of a deleted block. Its I/O runs on the threads of any volume.
+     */
+    @Override
+    public Executor getExecutor(int blockNumber) {
+        Volume volume = blockVolumes.get(blockNumber);
+        if (volume == null)
+            volume = volumes.get(Math.floorMod(blockNumber, volumes.size()));
+        return volume.executor;
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException error = null;
+        for (Volume volume : volumes) {
+            volume.executor.shutdown();
+            try {
+                volume.store.close();
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        if (error != null)
+            throw error;
+    }
+
+    public int getVolumeCount() {
+        return volumes.size();
+    }
+
+    /**
+     * @return the number of blocks placed on every volume
+     */
+    public int[] getBlockCounts() {
+        int[] counts = new int[volumes.size()];
+        for (Volume volume : blockVolumes.values())
+            counts[volume.index]++;
+        return counts;
+    }
+
+    private Volume getVolume(int blockNumber) throws FileNotFoundException {
+        Volume volume = blockVolumes.get(blockNumber);
+        if (volume == null)
+            throw new FileNotFoundException("block " + blockNumber);
+        return volume;
+    }
+
+    private Volume place(int blockNumber) {
+        Volume volume = blockVolumes.get(blockNumber);
+        return volume != null ? volume : blockVolumes.computeIfAbsent(blockNumber, k -> chooseVolume());
+    }
+
+    private Volume chooseVolume() {
+        if (placement == Placement.AVAILABLE_SPACE) {
+            Volume chosen = null;
+            long chosenSpace = -1;
+            for (Volume volume : volumes) {
+                long space = volume.dir.getUsableSpace();
+                if (space > chosenSpace) {
+                    chosen = volume;
+                    chosenSpace = space;
+                }
+            }
+            return chosen;
+        }
+        //skip full volumes, unless every one is full
+        int start = Math.floorMod(nextVolume.getAndIncrement(), volumes.size());
+        for (int i = 0; i < volumes.size(); i++) {
+            Volume volume = volumes.get((start + i) % volumes.size());
+            if (volume.dir.getUsableSpace() >= DataNodeServer.BLOCK_SIZE)
+                return volume;
+        }
+        return volumes.get(start);
+    }
+
+    private static class Volume {
+        private final int index;
+        private final File dir;
+        private final BlockStore store;
+        private final ExecutorService executor;
+
+        Volume(int index, File dir, BlockStore store, int threads) {
+            this.index = index;
+            this.dir = dir;
+            this.store = store;
+            AtomicInteger threadCount = new AtomicInteger();
+            this.executor = Executors.newFixedThreadPool(threads, r -> {
+                Thread thread = new Thread(r, "sdfs-volume-" + index + "-io-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
@@ -5,13 +5,18 @@
 package sdfs.filetree;
 
 import sdfs.namenode.LocatedBlock;
+import sdfs.protocol.RpcWritable;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 
-public class BlockInfo implements Serializable, Iterable<LocatedBlock> {
+public class BlockInfo implements Serializable, Iterable<LocatedBlock>, RpcWritable {
     private static final long serialVersionUID = 8712105981933359634L;
     private final List<LocatedBlock> locatedBlocks = new ArrayList<>();
 
@@ -20,6 +25,14 @@ public class BlockInfo implements Serializable, Iterable<LocatedBlock> {
         return locatedBlocks.iterator();
     }
 
+    /**
+     * @return every replica of the block, the first one heads the write pipeline.
+     * For an erasure coded file, every unit of the block in unit order instead
+     */
+    public List<LocatedBlock> getLocatedBlocks() {
+        return Collections.unmodifiableList(locatedBlocks);
+    }
+
     public boolean addLocatedBlock(LocatedBlock locatedBlock) {
         return locatedBlocks.add(locatedBlock);
     }
@@ -28,6 +41,21 @@ public class BlockInfo implements Serializable, Iterable<LocatedBlock> {
         return locatedBlocks.remove(locatedBlock);
     }
 
+    @Override
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(locatedBlocks.size());
+        for (LocatedBlock locatedBlock : locatedBlocks)
+            locatedBlock.writeTo(out);
+    }
+
+    public static BlockInfo readFrom(DataInput in) throws IOException {
+        BlockInfo blockInfo = new BlockInfo();
+        int size = in.readInt();
+        for (int i = 0; i < size; i++)
+            blockInfo.addLocatedBlock(LocatedBlock.readFrom(in));
+        return blockInfo;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -4,14 +4,27 @@
 
 package sdfs.filetree;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class DirNode extends Node implements Serializable, Iterable<Entry> {
     private static final long serialVersionUID = 8178778592344231767L;
-    private final Set<Entry> entries = new HashSet<>();
+    //still serialized as the set of entries it used to be, so old images load
+    private static final ObjectStreamField[] serialPersistentFields = {new ObjectStreamField("entries", Set.class)};
+    //by name, a child is found without walking the others. Lookups take no lock, a child is added at once
+    private transient Map<String, Entry> entries = new ConcurrentHashMap<>();
 
 
     //public DirNode(int id){
@@ -21,15 +34,68 @@ public class DirNode extends Node implements Serializable, Iterable<Entry> {
 
     @Override
     public Iterator<Entry> iterator() {
-        return entries.iterator();
+        return entries.values().iterator();
     }
 
+    /**
+     * @return the child of the name, or null if there is none
+     */
+    public Entry getEntry(String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * @return false if there is a child of the same name already, it is kept
+     */
     public boolean addEntry(Entry entry) {
-        return entries.add(entry);
+        return entries.putIfAbsent(entry.getName(), entry) == null;
     }
 
     public boolean removeEntry(Entry entry) {
-        return entries.remove(entry);
+        return entries.remove(entry.getName()) != null;
+    }
+
+    public int getEntryCount() {
+        return entries.size();
+    }
+
+    /**
+     * Encode the names and types of the direct children only, it is what list needs.
+     */
+    public void writeEntriesTo(DataOutput out) throws IOException {
+        //children may be added meanwhile, the count has to match
+        List<Entry> snapshot = new ArrayList<>(entries.values());
+        out.writeInt(snapshot.size());
+        for (Entry entry : snapshot) {
+            out.writeBoolean(entry.getNode() instanceof DirNode);
+            out.writeUTF(entry.getName());
+        }
+    }
+
+    /**
+     * @return a directory whose children are empty nodes of the right type
+     */
+    public static DirNode readEntriesFrom(DataInput in) throws IOException {
+        DirNode dirNode = new DirNode();
+        int size = in.readInt();
+        for (int i = 0; i < size; i++) {
+            Node node = in.readBoolean() ? new DirNode() : new FileNode();
+            dirNode.addEntry(new Entry(in.readUTF(), node));
+        }
+        return dirNode;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.putFields().put("entries", new HashSet<>(entries.values()));
+        out.writeFields();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        Set<Entry> set = (Set<Entry>) in.readFields().get("entries", null);
+        entries = new ConcurrentHashMap<>();
+        for (Entry entry : set)
+            entries.put(entry.getName(), entry);
     }
 
     @Override
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) Jipzingking 2016.
+ */
+
+package sdfs.filetree;
+
+import sdfs.datanode.DataNodeServer;
+import sdfs.protocol.RpcWritable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * Reed-Solomon erasure coding of the blocks of a file, instead of full replicas.
+ * <p>
+ * A block is cut into dataUnits units of unit size, and parityUnits parity units of the same size are computed
+ * from them. Every unit is stored once, on its own data node, under its own block number, so a block is only
+ * written while at least dataUnits + parityUnits data nodes are alive.
+ * Any dataUnits of the units rebuild the block, so it survives the loss of parityUnits data nodes
+ * for (dataUnits + parityUnits) / dataUnits times its size, e.g. 1.5 for RS-6-3 instead of 3 for three replicas.
+ * <p>
+ * A lost unit is not rebuilt on another data node, readers decode it from the others every time. The block is
+ * lost once more than parityUnits of its data nodes are gone for good, however long ago each was lost.
+ */
+public class ErasureCodingPolicy implements Serializable, RpcWritable {
+    private static final long serialVersionUID = 2473150279616355381L;
+    public static final ErasureCodingPolicy RS_6_3 = new ErasureCodingPolicy(6, 3);
+    public static final ErasureCodingPolicy RS_3_2 = new ErasureCodingPolicy(3, 2);
+
+    private final int dataUnits;
+    private final int parityUnits;
+
+    /**
+     * @throws IllegalArgumentException if there is no data unit, or more than 255 units
+     */
+    public ErasureCodingPolicy(int dataUnits, int parityUnits) {
+        if (dataUnits <= 0 || parityUnits < 0 || dataUnits + parityUnits > 255)
+            throw new IllegalArgumentException();
+        this.dataUnits = dataUnits;
+        this.parityUnits = parityUnits;
+    }
+
+    /**
+     * @param name such as RS-6-3, 6 data units and 3 parity units
+     * @throws IllegalArgumentException if the name is not of that form
+     */
+    public static ErasureCodingPolicy forName(String name) {
+        String[] parts = name.split("-");
+        if (parts.length != 3 || !parts[0].equalsIgnoreCase("RS"))
+            throw new IllegalArgumentException("unknown erasure coding policy " + name);
+        try {
+            return new ErasureCodingPolicy(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("unknown erasure coding policy " + name);
+        }
+    }
+
+    public int getDataUnits() {
+        return dataUnits;
+    }
+
+    public int getParityUnits() {
+        return parityUnits;
+    }
+
+    /**
+     * @return data and parity units of a block
+     */
+    public int getUnitCount() {
+        return dataUnits + parityUnits;
+    }
+
+    /**
+     * @return bytes of the block in every data unit, the last data unit holds fewer if BLOCK_SIZE is not a multiple
+     */
+    public int getUnitSize() {
+        return (DataNodeServer.BLOCK_SIZE + dataUnits - 1) / dataUnits;
+    }
+
+    public String getName() {
+        return "RS-" + dataUnits + "-" + parityUnits;
+    }
+
+    @Override
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeByte(dataUnits);
+        out.writeByte(parityUnits);
+    }
+
+    public static ErasureCodingPolicy readFrom(DataInput in) throws IOException {
+        return new ErasureCodingPolicy(in.readUnsignedByte(), in.readUnsignedByte());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        ErasureCodingPolicy that = (ErasureCodingPolicy) o;
+
+        return dataUnits == that.dataUnits && parityUnits == that.parityUnits;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * dataUnits + parityUnits;
+    }
+
+    @Override
+    public String toString() {
+        return getName();
+    }
+}
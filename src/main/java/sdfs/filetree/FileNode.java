@@ -6,17 +6,23 @@ package sdfs.filetree;
 
 import sdfs.datanode.DataNodeServer;
 import sdfs.namenode.LocatedBlock;
+import sdfs.protocol.RpcWritable;
 
 import java.io.*;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.UUID;
 
-public class FileNode extends Node implements Serializable, Iterable<BlockInfo> {
+public class FileNode extends Node implements Serializable, Iterable<BlockInfo>, RpcWritable {
     private static final long serialVersionUID = -5007570814999866661L;
     private final List<BlockInfo> blockInfos = new ArrayList<>();
     private int fileSize;//file size should be checked when closing the file.
     public int blockAmount = blockInfos.size();
+    //null if every block is replicated
+    private ErasureCodingPolicy erasureCodingPolicy;
+    //the channel writing the file, not saved since every channel is closed by a restart
+    private transient volatile UUID writer;
 
     public void addBlockInfo(BlockInfo blockInfo) {
         blockInfos.add(blockInfo);
@@ -28,6 +34,57 @@ public class FileNode extends Node implements Serializable, Iterable<BlockInfo>
         blockAmount--;
     }
 
+    public BlockInfo getBlockInfo(int index) {
+        return blockInfos.get(index);
+    }
+
+    /**
+     * Replace the block at index, e.g. by its copy.
+     */
+    public void setBlockInfo(int index, BlockInfo blockInfo) {
+        blockInfos.set(index, blockInfo);
+    }
+
+    /**
+     * @return the policy the blocks are coded with, or null if they are replicated. Then each located block of
+     * a block is a unit in unit order, else a replica.
+     */
+    public ErasureCodingPolicy getErasureCodingPolicy() {
+        return erasureCodingPolicy;
+    }
+
+    public void setErasureCodingPolicy(ErasureCodingPolicy erasureCodingPolicy) {
+        this.erasureCodingPolicy = erasureCodingPolicy;
+    }
+
+    /**
+     * @return the uuid of the channel the file is open for write by, or null
+     */
+    public UUID getWriter() {
+        return writer;
+    }
+
+    public void setWriter(UUID writer) {
+        this.writer = writer;
+    }
+
+    /**
+     * @return a copy whose blocks may be changed apart from this file, the located blocks never change and are shared
+     */
+    public FileNode copy() {
+        FileNode fileNode = new FileNode();
+        for (BlockInfo blockInfo : blockInfos) {
+            BlockInfo copy = new BlockInfo();
+            for (LocatedBlock locatedBlock : blockInfo)
+                copy.addLocatedBlock(locatedBlock);
+            fileNode.blockInfos.add(copy);
+        }
+        fileNode.fileSize = fileSize;
+        fileNode.blockAmount = blockAmount;
+        fileNode.erasureCodingPolicy = erasureCodingPolicy;
+        return fileNode;
+    }
+
     public int getFileSize() {
         return fileSize;
     }
@@ -52,6 +109,31 @@ public class FileNode extends Node implements Serializable, Iterable<BlockInfo>
     }
 
 
+    @Override
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(fileSize);
+        out.writeInt(blockAmount);
+        out.writeInt(blockInfos.size());
+        for (BlockInfo blockInfo : blockInfos)
+            blockInfo.writeTo(out);
+        out.writeBoolean(erasureCodingPolicy != null);
+        if (erasureCodingPolicy != null)
+            erasureCodingPolicy.writeTo(out);
+    }
+
+    public static FileNode readFrom(DataInput in) throws IOException {
+        FileNode fileNode = new FileNode();
+        fileNode.fileSize = in.readInt();
+        int blockAmount = in.readInt();
+        int size = in.readInt();
+        for (int i = 0; i < size; i++)
+            fileNode.blockInfos.add(BlockInfo.readFrom(in));
+        fileNode.blockAmount = blockAmount;
+        if (in.readBoolean())
+            fileNode.erasureCodingPolicy = ErasureCodingPolicy.readFrom(in);
+        return fileNode;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) Jipzingking 2016.
+ */
+
+package sdfs.namenode;
+
+import sdfs.datanode.DataNodeServer;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * A block cached by {@link SDFSFileChannel}, populated chunk by chunk.
+ * Only the chunks a read touches are fetched from the data node, and only dirty chunks are written back.
+ * A dirty chunk is always valid.
+ */
+class CachedBlock {
+    private final byte[] data = new byte[DataNodeServer.BLOCK_SIZE];
+    private final int chunkSize;
+    private final BitSet valid = new BitSet();
+    private final BitSet dirty = new BitSet();
+
+    CachedBlock(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    byte[] getData() {
+        return data;
+    }
+
+    /**
+     * @return the byte ranges [start, end) of the chunks in [from, to) that are not valid, each range is whole chunks
+     */
+    List<int[]> getMissingRanges(int from, int to) {
+        List<int[]> ranges = new ArrayList<>();
+        if (from >= to)
+            return ranges;
+        int lastChunk = (to - 1) / chunkSize;
+        int chunk = valid.nextClearBit(from / chunkSize);
+        while (chunk <= lastChunk) {
+            int next = valid.nextSetBit(chunk);
+            int end = next < 0 || next > lastChunk ? lastChunk + 1 : next;
+            ranges.add(new int[]{chunk * chunkSize, Math.min(end * chunkSize, data.length)});
+            chunk = valid.nextClearBit(end);
+        }
+        return ranges;
+    }
+
+    /**
+     * @param storedLength bytes of the block on the data node, chunks after them hold nothing to keep
+     * @return the byte ranges of the at most two chunks only partly covered by [from, to) that must be fetched
+     * before [from, to) is overwritten
+     */
+    List<int[]> getPartialRanges(int from, int to, int storedLength) {
+        List<int[]> ranges = new ArrayList<>();
+        if (from >= to)
+            return ranges;
+        int firstChunk = from / chunkSize;
+        int lastChunk = (to - 1) / chunkSize;
+        for (int chunk = firstChunk; chunk <= lastChunk; chunk += Math.max(1, lastChunk - firstChunk)) {
+            int chunkStart = chunk * chunkSize;
+            int chunkEnd = Math.min(chunkStart + chunkSize, Math.min(storedLength, data.length));
+            boolean covered = from <= chunkStart && to >= chunkEnd;
+            if (!covered && chunkStart < storedLength && !valid.get(chunk))
+                ranges.add(new int[]{chunkStart, Math.min(chunkStart + chunkSize, data.length)});
+        }
+        return ranges;
+    }
+
+    /**
+     * Mark the chunks overlapping [from, to) as valid, the caller has filled or fetched all of them.
+     */
+    void setValid(int from, int to) {
+        if (from < to)
+            valid.set(from / chunkSize, (to - 1) / chunkSize + 1);
+    }
+
+    /**
+     * Mark the chunks overlapping [from, to) as modified.
+     */
+    void setDirty(int from, int to) {
+        if (from < to) {
+            valid.set(from / chunkSize, (to - 1) / chunkSize + 1);
+            dirty.set(from / chunkSize, (to - 1) / chunkSize + 1);
+        }
+    }
+
+    boolean isDirty() {
+        return !dirty.isEmpty();
+    }
+
+    /**
+     * @return the byte ranges [start, end) of runs of dirty chunks, cut at length
+     */
+    List<int[]> getDirtyRanges(int length) {
+        List<int[]> ranges = new ArrayList<>();
+        int chunk = dirty.nextSetBit(0);
+        while (chunk >= 0 && chunk * chunkSize < length) {
+            int end = dirty.nextClearBit(chunk);
+            ranges.add(new int[]{chunk * chunkSize, Math.min(end * chunkSize, length)});
+            chunk = dirty.nextSetBit(end);
+        }
+        return ranges;
+    }
+
+    void clearDirty() {
+        dirty.clear();
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) Jipzingking 2016.
+ */
+
+package sdfs.namenode;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Merges the edit log into a new image from a background thread, so that the log and the replay on startup
+ * stay short. A checkpoint is taken once so many changes were logged, or once a period passed with any.
+ * <p>
+ * The namespace being served is not touched: the edit log is rolled to a new segment, then the last image
+ * is loaded apart and the closed segments are replayed on top of it, as on startup. Only the roll holds up
+ * namespace changes, the price is a second copy of the namespace in memory while the checkpoint is taken.
+ */
+class Checkpointer implements Closeable {
+    //how often the log is looked at
+    private static final long CHECK_INTERVAL = 10 * 1000;
+
+    private final File dir;
+    private final EditLog editLog;
+    private final long period;
+    private final long txns;
+    private final Thread thread;
+    private long checkpointTxid;
+    private long checkpointTime = System.currentTimeMillis();
+    //guarded by this
+    private boolean closed = false;
+
+    /**
+     * @param imageTxid the transaction id of the image in dir
+     * @param period    milliseconds between checkpoints at most
+     * @param txns      logged changes that take a checkpoint at once
+     */
+    Checkpointer(File dir, EditLog editLog, long imageTxid, long period, long txns) {
+        if (period <= 0 || txns <= 0)
+            throw new IllegalArgumentException();
+        this.dir = dir;
+        this.editLog = editLog;
+        this.checkpointTxid = imageTxid;
+        this.period = period;
+        this.txns = txns;
+        this.thread = new Thread(this::checkpointLoop, "sdfs-checkpointer");
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Save the namespace as of the last logged change to a new image, and delete the segments it holds.
+     *
+     * @return the transaction id of the new image
+     */
+    long checkpoint() throws IOException {
+        long txid = editLog.roll();
+        FSImage image = FSImage.load(dir);
+        image.replayEdits(dir, txid);
+        if (image.getTxid() != txid)
+            throw new IOException("edit log ends at " + image.getTxid() + " instead of " + txid);
+        image.save(dir);
+        EditLog.purge(dir, txid);
+        checkpointTxid = txid;
+        checkpointTime = System.currentTimeMillis();
+        return txid;
+    }
+
+    private boolean isDue() {
+        long logged = editLog.getLastTxid() - checkpointTxid;
+        return logged >= txns || (logged > 0 && System.currentTimeMillis() - checkpointTime >= period);
+    }
+
+    private void checkpointLoop() {
+        while (true) {
+            synchronized (this) {
+                long wakeUpTime = System.currentTimeMillis() + Math.min(CHECK_INTERVAL, period);
+                try {
+                    long delay;
+                    while (!closed && (delay = wakeUpTime - System.currentTimeMillis()) > 0)
+                        wait(delay);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (closed)
+                    return;
+            }
+            if (!isDue())
+                continue;
+            try {
+                checkpoint();
+            } catch (IOException | RuntimeException e) {
+                //the log keeps every change, the next round tries again
+                e.printStackTrace();
+                checkpointTime = System.currentTimeMillis();
+            }
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) Jipzingking 2016.
+ */
+
+package sdfs.namenode;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * What name node knows about a registered data node, guarded by its {@link DataNodeManager}.
+ */
+class DataNodeDescriptor {
+    private final UUID id;
+    private final InetSocketAddress address;
+    private final Set<Integer> blockNumbers = new HashSet<>();
+    //replicas to delete, sent with the next heartbeat reply
+    private final Set<Integer> invalidated = new LinkedHashSet<>();
+    private long lastHeartbeatTime;
+    private long capacity;
+    private long remaining;
+    private int activeStreams;
+    //block copies scheduled from or to this data node and not finished yet
+    private int replicationLoad = 0;
+
+    DataNodeDescriptor(UUID id, InetSocketAddress address, long now) {
+        this.id = id;
+        this.address = address;
+        this.lastHeartbeatTime = now;
+    }
+
+    UUID getId() {
+        return id;
+    }
+
+    InetSocketAddress getAddress() {
+        return address;
+    }
+
+    Set<Integer> getBlockNumbers() {
+        return blockNumbers;
+    }
+
+    long getLastHeartbeatTime() {
+        return lastHeartbeatTime;
+    }
+
+    long getCapacity() {
+        return capacity;
+    }
+
+    long getRemaining() {
+        return remaining;
+    }
+
+    int getActiveStreams() {
+        return activeStreams;
+    }
+
+    void updateHeartbeat(long now, long capacity, long remaining, int activeStreams) {
+        this.lastHeartbeatTime = now;
+        this.capacity = capacity;
+        this.remaining = remaining;
+        this.activeStreams = activeStreams;
+    }
+
+    /**
+     * A new block stream is about to be sent to this data node, counted until the next heartbeat.
+     */
+    void addActiveStream() {
+        activeStreams++;
+    }
+
+    void invalidate(int blockNumber) {
+        invalidated.add(blockNumber);
+    }
+
+    /**
+     * Take the first replicas to delete.
+     */
+    List<Integer> pollInvalidated(int max) {
+        List<Integer> blockNumbers = new ArrayList<>(Math.min(max, invalidated.size()));
+        for (Iterator<Integer> iter = invalidated.iterator(); iter.hasNext() && blockNumbers.size() < max; ) {
+            blockNumbers.add(iter.next());
+            iter.remove();
+        }
+        return blockNumbers;
+    }
+
+    int getReplicationLoad() {
+        return replicationLoad;
+    }
+
+    void addReplicationLoad(int delta) {
+        replicationLoad += delta;
+    }
+
+    @Override
+    public String toString() {
+        return address + " " + id;
+    }
+}
@@ -0,0 +1,556 @@
+/*
+ * Copyright (c) Jipzingking 2016.
+ */
+
+package sdfs.namenode;
+
+import sdfs.protocol.INameNodeDataNodeProtocol;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Live data nodes and the block to data node map, kept up to date by heartbeats and block reports.
+ * Nothing is persisted, every data node registers and reports again after name node restarts.
+ * <p>
+ * Blocks of the file tree with too few live replicas are copied from a live holder to other data nodes.
+ * A copy is queued for its target, which pulls it with the next replication work. Only the blocks whose
+ * replicas or copies changed since they last had enough are looked at, they are queued as that happens.
+ * <p>
+ * Replicas of blocks in no file, freed ones or those reported but never allocated, are not located. They are
+ * queued for deletion on their data node, which is told with the reply to its next heartbeat.
+ */
+class DataNodeManager {
+    /**
+     * At most this many copies are scheduled from or to a data node, so that replication leaves it to clients.
+     */
+    static final int MAX_REPLICATIONS_PER_DATA_NODE = 64;
+    /**
+     * A copy not committed in this milliseconds is given up and scheduled again.
+     */
+    static final long REPLICATION_TIMEOUT = INameNodeDataNodeProtocol.HEARTBEAT_EXPIRE_INTERVAL;
+    /**
+     * At most this many replicas are deleted by a heartbeat, the rest go with the next ones.
+     */
+    static final int MAX_INVALIDATES_PER_HEARTBEAT = 1000;
+
+    //looking up locations shares it, everything else holds it alone
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<UUID, DataNodeDescriptor> dataNodes = new HashMap<>();
+    private final Map<InetSocketAddress, DataNodeDescriptor> dataNodesByAddress = new HashMap<>();
+    private final Map<Integer, Set<DataNodeDescriptor>> blockMap = new HashMap<>();
+    //blocks of the file tree
+    private final Set<Integer> blocks = new HashSet<>();
+    //blocks of files open for write, their replicas may be half written so they are not copied
+    private final Set<Integer> underConstruction = new HashSet<>();
+    //units of erasure coded blocks, stored once, a lost one is decoded by readers from the other units
+    private final Set<Integer> erasureCoded = new HashSet<>();
+    //blocks that may have too few replicas, checked by the next computeReplicationWork
+    private final Set<Integer> neededReplications = new LinkedHashSet<>();
+    //the replicas a block needed when last checked, every block is checked again once it grows
+    private int lastExpected = 0;
+    //copies not finished yet, by block number
+    private final Map<Integer, List<Replication>> replications = new HashMap<>();
+    //copies not handed out yet, by target id
+    private final Map<UUID, List<Replication>> queuedReplications = new HashMap<>();
+    //copies handed out, by replication work id
+    private final Map<UUID, List<Replication>> runningReplications = new HashMap<>();
+
+    UUID register(InetSocketAddress address) {
+        lock.writeLock().lock();
+        try {
+            long now = System.currentTimeMillis();
+            removeDeadDataNodes(now);
+            //the data node restarted, its old blocks come with the next full report
+            DataNodeDescriptor old = dataNodesByAddress.get(address);
+            if (old != null)
+                remove(old);
+            DataNodeDescriptor dataNode = new DataNodeDescriptor(UUID.randomUUID(), address, now);
+            dataNodes.put(dataNode.getId(), dataNode);
+            dataNodesByAddress.put(address, dataNode);
+            return dataNode.getId();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the blocks the data node should delete
+     */
+    List<Integer> heartbeat(UUID dataNodeId, long capacity, long remaining, int activeStreams) {
+        lock.writeLock().lock();
+        try {
+            long now = System.currentTimeMillis();
+            DataNodeDescriptor dataNode = getDataNode(dataNodeId);
+            dataNode.updateHeartbeat(now, capacity, remaining, activeStreams);
+            removeDeadDataNodes(now);
+            return dataNode.pollInvalidated(MAX_INVALIDATES_PER_HEARTBEAT);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void blockReport(UUID dataNodeId, List<Integer> blockNumbers) {
+        lock.writeLock().lock();
+        try {
+            DataNodeDescriptor dataNode = getDataNode(dataNodeId);
+            Set<Integer> reported = new HashSet<>(blockNumbers);
+            for (Iterator<Integer> iter = dataNode.getBlockNumbers().iterator(); iter.hasNext(); ) {
+                int blockNumber = iter.next();
+                if (!reported.contains(blockNumber)) {
+                    iter.remove();
+                    removeLocation(blockNumber, dataNode);
+                }
+            }
+            for (int blockNumber : reported)
+                addLocation(blockNumber, dataNode);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void blockReceivedAndDeleted(UUID dataNodeId, List<Integer> received, List<Integer> deleted) {
+        lock.writeLock().lock();
+        try {
+            DataNodeDescriptor dataNode = getDataNode(dataNodeId);
+            for (int blockNumber : received)
+                addLocation(blockNumber, dataNode);
+            for (int blockNumber : deleted) {
+                if (dataNode.getBlockNumbers().remove(blockNumber))
+                    removeLocation(blockNumber, dataNode);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Pick the live data nodes to hold a new block, fewer than replication if not so many are alive.
+     * Those with the fewest block streams being written come first, and among them those with the most free space.
+     * The first one heads the write pipeline.
+     *
+     * @throws IllegalStateException if no data node is alive
+     */
+    List<InetSocketAddress> chooseTargets(int replication) {
+        return chooseTargets(replication, 1);
+    }
+
+    /**
+     * Pick the live data nodes to hold a new block as chooseTargets(replication) does, but at least minimum of them.
+     *
+     * @throws IllegalStateException if fewer than minimum data nodes are alive
+     */
+    List<InetSocketAddress> chooseTargets(int replication, int minimum) {
+        lock.writeLock().lock();
+        try {
+            removeDeadDataNodes(System.currentTimeMillis());
+            if (dataNodes.isEmpty())
+                throw new IllegalStateException("no data node is alive");
+            if (dataNodes.size() < minimum)
+                throw new IllegalStateException(minimum + " data nodes are needed, " + dataNodes.size() + " are alive");
+            List<DataNodeDescriptor> candidates = new ArrayList<>(dataNodes.values());
+            candidates.sort((a, b) -> a.getActiveStreams() != b.getActiveStreams()
+                    ? Integer.compare(a.getActiveStreams(), b.getActiveStreams())
+                    : Long.compare(b.getRemaining(), a.getRemaining()));
+            List<InetSocketAddress> targets = new ArrayList<>(replication);
+            for (DataNodeDescriptor dataNode : candidates.subList(0, Math.min(replication, candidates.size()))) {
+                dataNode.addActiveStream();
+                targets.add(dataNode.getAddress());
+            }
+            return targets;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return addresses of the live data nodes holding the block
+     */
+    List<InetSocketAddress> getLocations(int blockNumber) {
+        lock.readLock().lock();
+        try {
+            Set<DataNodeDescriptor> holders = blockMap.get(blockNumber);
+            if (holders == null)
+                return Collections.emptyList();
+            List<InetSocketAddress> locations = new ArrayList<>(holders.size());
+            for (DataNodeDescriptor dataNode : holders)
+                locations.add(dataNode.getAddress());
+            return locations;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    int getLiveDataNodeCount() {
+        lock.writeLock().lock();
+        try {
+            removeDeadDataNodes(System.currentTimeMillis());
+            return dataNodes.size();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Add blocks of the file tree that are complete, e.g. when the tree is loaded.
+     */
+    void addBlocks(Collection<Integer> blockNumbers) {
+        lock.writeLock().lock();
+        try {
+            blocks.addAll(blockNumbers);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Add a new block of the file tree, it is under construction until its file is closed.
+     */
+    void addBlock(int blockNumber) {
+        lock.writeLock().lock();
+        try {
+            blocks.add(blockNumber);
+            underConstruction.add(blockNumber);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * The blocks are units of erasure coded blocks, they are never copied.
+     */
+    void setErasureCoded(Collection<Integer> blockNumbers) {
+        lock.writeLock().lock();
+        try {
+            erasureCoded.addAll(blockNumbers);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void removeBlock(int blockNumber) {
+        lock.writeLock().lock();
+        try {
+            blocks.remove(blockNumber);
+            underConstruction.remove(blockNumber);
+            erasureCoded.remove(blockNumber);
+            neededReplications.remove(blockNumber);
+            List<Replication> scheduled = replications.get(blockNumber);
+            if (scheduled != null) {
+                for (Replication replication : new ArrayList<>(scheduled))
+                    finish(replication);
+            }
+            Set<DataNodeDescriptor> holders = blockMap.remove(blockNumber);
+            if (holders != null) {
+                for (DataNodeDescriptor dataNode : holders) {
+                    dataNode.getBlockNumbers().remove(blockNumber);
+                    dataNode.invalidate(blockNumber);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * The file of these blocks is opened for write.
+     */
+    void startConstruction(Collection<Integer> blockNumbers) {
+        lock.writeLock().lock();
+        try {
+            underConstruction.addAll(blockNumbers);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * The file of these blocks is closed, they may be copied from now on.
+     */
+    void completeConstruction(Collection<Integer> blockNumbers) {
+        lock.writeLock().lock();
+        try {
+            underConstruction.removeAll(blockNumbers);
+            neededReplications.addAll(blockNumbers);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Schedule copies for the blocks with fewer live replicas than replication, or than live data nodes if fewer.
+     * The blocks with the fewest replicas are scheduled first. A block without any live replica is lost and skipped.
+     *
+     * @return the number of copies scheduled
+     */
+    int computeReplicationWork(int replication) {
+        lock.writeLock().lock();
+        try {
+            long now = System.currentTimeMillis();
+            removeDeadDataNodes(now);
+            expireReplications(now);
+            int expected = Math.min(replication, dataNodes.size());
+            if (expected > lastExpected)
+                neededReplications.addAll(blocks);
+            lastExpected = expected;
+            //blocks to copy, indexed by their live replicas
+            List<List<Integer>> needed = new ArrayList<>();
+            for (int i = 0; i < expected; i++)
+                needed.add(new ArrayList<>());
+            for (Iterator<Integer> iter = neededReplications.iterator(); iter.hasNext(); ) {
+                int blockNumber = iter.next();
+                //a lost block is queued again when a replica is reported
+                int live = getLiveReplicaCount(blockNumber);
+                if (underConstruction.contains(blockNumber) || erasureCoded.contains(blockNumber) || live == 0
+                        || live + getReplications(blockNumber).size() >= expected)
+                    iter.remove();
+                else
+                    needed.get(live).add(blockNumber);
+            }
+            int scheduled = 0;
+            for (List<Integer> blockNumbers : needed) {
+                for (int blockNumber : blockNumbers) {
+                    scheduled += scheduleReplications(blockNumber, expected, now);
+                    //those short of targets or sources stay queued
+                    if (getLiveReplicaCount(blockNumber) + getReplications(blockNumber).size() >= expected)
+                        neededReplications.remove(blockNumber);
+                }
+            }
+            return scheduled;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the copies queued for the data node, they must be committed before REPLICATION_TIMEOUT
+     * @throws IllegalStateException if the data node is not registered
+     */
+    ReplicationWork getReplicationWork(UUID dataNodeId) {
+        lock.writeLock().lock();
+        try {
+            getDataNode(dataNodeId);
+            UUID workId = UUID.randomUUID();
+            Map<Integer, LocatedBlock> work = new LinkedHashMap<>();
+            List<Replication> queue = queuedReplications.remove(dataNodeId);
+            if (queue != null) {
+                List<Replication> running = new ArrayList<>();
+                long deadline = System.currentTimeMillis() + REPLICATION_TIMEOUT;
+                for (Replication replication : queue) {
+                    if (replication.done)
+                        continue;
+                    InetSocketAddress source = replication.source.getAddress();
+                    work.put(replication.blockNumber, new LocatedBlock(source.getAddress(), source.getPort(), replication.blockNumber));
+                    replication.deadline = deadline;
+                    running.add(replication);
+                }
+                if (!running.isEmpty())
+                    runningReplications.put(workId, running);
+            }
+            return new ReplicationWork(workId, work);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Finish the copies of a replication work, the copied blocks have been reported by then.
+     * Nothing happens if the work is unknown, e.g. it timed out.
+     *
+     * @throws IllegalStateException if the data node is not registered
+     */
+    void commitReplicationWork(UUID dataNodeId, UUID replicationWorkUuid) {
+        lock.writeLock().lock();
+        try {
+            getDataNode(dataNodeId);
+            List<Replication> running = runningReplications.remove(replicationWorkUuid);
+            if (running != null) {
+                for (Replication replication : running)
+                    finish(replication);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of copies scheduled and not finished yet
+     */
+    int getPendingReplicationCount() {
+        lock.writeLock().lock();
+        try {
+            int count = 0;
+            for (List<Replication> scheduled : replications.values())
+                count += scheduled.size();
+            return count;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private int scheduleReplications(int blockNumber, int expected, long now) {
+        Set<DataNodeDescriptor> holders = blockMap.get(blockNumber);
+        List<Replication> scheduled = getReplications(blockNumber);
+        DataNodeDescriptor source = Collections.min(holders, Comparator.comparingInt(DataNodeDescriptor::getReplicationLoad));
+        Set<DataNodeDescriptor> excluded = new HashSet<>(holders);
+        for (Replication replication : scheduled)
+            excluded.add(replication.target);
+        List<DataNodeDescriptor> targets = new ArrayList<>();
+        for (DataNodeDescriptor dataNode : dataNodes.values()) {
+            if (!excluded.contains(dataNode) && dataNode.getReplicationLoad() < MAX_REPLICATIONS_PER_DATA_NODE)
+                targets.add(dataNode);
+        }
+        targets.sort((a, b) -> a.getReplicationLoad() != b.getReplicationLoad()
+                ? Integer.compare(a.getReplicationLoad(), b.getReplicationLoad())
+                : Long.compare(b.getRemaining(), a.getRemaining()));
+        int count = 0;
+        for (DataNodeDescriptor target : targets) {
+            if (holders.size() + scheduled.size() + count >= expected || source.getReplicationLoad() >= MAX_REPLICATIONS_PER_DATA_NODE)
+                break;
+            Replication replication = new Replication(blockNumber, source, target, now + REPLICATION_TIMEOUT);
+            source.addReplicationLoad(1);
+            target.addReplicationLoad(1);
+            replications.computeIfAbsent(blockNumber, k -> new ArrayList<>()).add(replication);
+            queuedReplications.computeIfAbsent(target.getId(), k -> new ArrayList<>()).add(replication);
+            count++;
+        }
+        return count;
+    }
+
+    private int getLiveReplicaCount(int blockNumber) {
+        Set<DataNodeDescriptor> holders = blockMap.get(blockNumber);
+        return holders == null ? 0 : holders.size();
+    }
+
+    private List<Replication> getReplications(int blockNumber) {
+        List<Replication> scheduled = replications.get(blockNumber);
+        return scheduled == null ? Collections.emptyList() : scheduled;
+    }
+
+    private void finish(Replication replication) {
+        if (replication.done)
+            return;
+        replication.done = true;
+        replication.source.addReplicationLoad(-1);
+        replication.target.addReplicationLoad(-1);
+        List<Replication> scheduled = replications.get(replication.blockNumber);
+        if (scheduled != null && scheduled.remove(replication) && scheduled.isEmpty())
+            replications.remove(replication.blockNumber);
+        //the copy may have failed
+        if (blocks.contains(replication.blockNumber))
+            neededReplications.add(replication.blockNumber);
+    }
+
+    private void expireReplications(long now) {
+        List<Replication> expired = new ArrayList<>();
+        for (List<Replication> scheduled : replications.values()) {
+            for (Replication replication : scheduled) {
+                if (replication.deadline < now)
+                    expired.add(replication);
+            }
+        }
+        for (Replication replication : expired)
+            finish(replication);
+        removeFinished(queuedReplications);
+        removeFinished(runningReplications);
+    }
+
+    private static void removeFinished(Map<UUID, List<Replication>> replicationLists) {
+        for (Iterator<List<Replication>> iter = replicationLists.values().iterator(); iter.hasNext(); ) {
+            List<Replication> replicationList = iter.next();
+            replicationList.removeIf(replication -> replication.done);
+            if (replicationList.isEmpty())
+                iter.remove();
+        }
+    }
+
+    private DataNodeDescriptor getDataNode(UUID dataNodeId) {
+        DataNodeDescriptor dataNode = dataNodes.get(dataNodeId);
+        if (dataNode == null)
+            throw new IllegalStateException("data node " + dataNodeId + " is not registered");
+        return dataNode;
+    }
+
+    private void addLocation(int blockNumber, DataNodeDescriptor dataNode) {
+        //a replica left from a freed block, or of one the name node lost with its last edits
+        if (!blocks.contains(blockNumber)) {
+            dataNode.invalidate(blockNumber);
+            return;
+        }
+        if (dataNode.getBlockNumbers().add(blockNumber)) {
+            blockMap.computeIfAbsent(blockNumber, k -> new HashSet<>()).add(dataNode);
+            //a lost block is found again
+            if (getLiveReplicaCount(blockNumber) == 1)
+                neededReplications.add(blockNumber);
+        }
+    }
+
+    private void removeLocation(int blockNumber, DataNodeDescriptor dataNode) {
+        Set<DataNodeDescriptor> holders = blockMap.get(blockNumber);
+        if (holders != null && holders.remove(dataNode)) {
+            if (holders.isEmpty())
+                blockMap.remove(blockNumber);
+            neededReplications.add(blockNumber);
+        }
+    }
+
+    private void removeDeadDataNodes(long now) {
+        List<DataNodeDescriptor> dead = new ArrayList<>();
+        for (DataNodeDescriptor dataNode : dataNodes.values()) {
+            if (now - dataNode.getLastHeartbeatTime() > INameNodeDataNodeProtocol.HEARTBEAT_EXPIRE_INTERVAL)
+                dead.add(dataNode);
+        }
+        for (DataNodeDescriptor dataNode : dead)
+            remove(dataNode);
+    }
+
+    private void remove(DataNodeDescriptor dataNode) {
+        dataNodes.remove(dataNode.getId());
+        dataNodesByAddress.remove(dataNode.getAddress());
+        for (int blockNumber : dataNode.getBlockNumbers())
+            removeLocation(blockNumber, dataNode);
+        dataNode.getBlockNumbers().clear();
+        //its copies are scheduled again elsewhere
+        List<Replication> involved = new ArrayList<>();
+        for (List<Replication> scheduled : replications.values()) {
+            for (Replication replication : scheduled) {
+                if (replication.source == dataNode || replication.target == dataNode)
+                    involved.add(replication);
+            }
+        }
+        for (Replication replication : involved)
+            finish(replication);
+        queuedReplications.remove(dataNode.getId());
+    }
+
+    /**
+     * A block copy from source to target.
+     */
+    private static class Replication {
+        private final int blockNumber;
+        private final DataNodeDescriptor source;
+        private final DataNodeDescriptor target;
+        private long deadline;
+        private boolean done = false;
+
+        Replication(int blockNumber, DataNodeDescriptor source, DataNodeDescriptor target, long deadline) {
+            this.blockNumber = blockNumber;
+            this.source = source;
+            this.target = target;
+            this.deadline = deadline;
+        }
+    }
+}
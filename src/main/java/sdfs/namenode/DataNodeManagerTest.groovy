@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) Jipzingking 2016.
+ */
+
+package sdfs.namenode
+
+import spock.lang.Specification
+
+class DataNodeManagerTest extends Specification {
+    def dataNodeManager = new DataNodeManager()
+
+    def registerDataNodes(int count) {
+        for (int i = 0; i < count; i++)
+            dataNodeManager.register(new InetSocketAddress("localhost", 5000 + i))
+    }
+
+    def "Test units of a block on their own data nodes"() {
+        registerDataNodes(3)
+
+        when:
+        dataNodeManager.chooseTargets(5, 5)
+
+        then:
+        thrown IllegalStateException
+
+        when:
+        def targets = dataNodeManager.chooseTargets(3, 3)
+
+        then:
+        targets.size() == 3
+        targets.toSet().size() == 3
+    }
+
+    def "Test replicas on fewer data nodes than replication"() {
+        registerDataNodes(2)
+
+        expect:
+        dataNodeManager.chooseTargets(3).toSet().size() == 2
+    }
+}
@@ -0,0 +1,381 @@
+/*
+ * Copyright (c) Jipzingking 2016.
+ */
+
+package sdfs.namenode;
+
+import sdfs.protocol.RpcWritable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the namespace changes made since the last image, replayed on top of it on startup.
+ * <p>
+ * A change is logged with {@link #log(byte, RpcWritable)} while the namespace is still locked, so the log
+ * has the order of the changes, and made durable with {@link #logSync()} after the lock is released.
+ * Changes logged meanwhile by other threads are synced together: while one thread forces the file,
+ * the others fill the next batch, and one force makes the whole batch durable.
+ * <p>
+ * A segment starts with a magic number and its version, then its records. Segments of version 1 have no
+ * header and wrote paths with writeUTF, which holds 64KB at most, they are still replayed.
+ * A record is its length, the operation, the transaction id and the payload, then a CRC32 of them.
+ * Replay stops at the first record cut by a crash, which is dropped. A transaction id is taken only once
+ * the payload is written out, so the ids have no gaps, and replay fails on one.
+ * <p>
+ * The log is a series of segment files, each named after the transaction id of its first change.
+ * {@link #roll()} closes the current one and starts the next, so that the changes before it can be merged
+ * into a new image while new ones go on, see {@link Checkpointer}.
+ */
+class EditLog implements Closeable {
+    static final byte OP_MKDIR = 1;
+    static final byte OP_CREATE = 2;
+    static final byte OP_ADD_BLOCK = 3;
+    static final byte OP_SET_BLOCK = 4;
+    static final byte OP_REMOVE_LAST_BLOCK = 5;
+    static final byte OP_CLOSE = 6;
+    static final byte OP_FREE_BLOCKS = 7;
+
+    static final int VERSION = 2;
+    //larger than any record length, so a segment of version 1 is not taken for a newer one
+    private static final int MAGIC = 0x53444645;
+    //magic, version
+    private static final int HEADER_LENGTH = 8;
+    //length, crc
+    private static final int FRAME_LENGTH = 8;
+    private static final int MAX_RECORD_LENGTH = 64 * 1024 * 1024;
+    private static final String SEGMENT_PREFIX = "edits_";
+    private static final Pattern SEGMENT_NAME = Pattern.compile(SEGMENT_PREFIX + "(\\d+)");
+    //the single file of logs written before segments, it goes before every segment
+    private static final String LEGACY_NAME = "edits";
+
+    @FunctionalInterface
+    interface EditHandler {
+        /**
+         * @param version the version of the segment the change is in
+         */
+        void apply(byte op, int version, DataInput in) throws IOException;
+    }
+
+    private final File dir;
+    private final boolean sync;
+    //the last transaction logged by each thread, what logSync waits for
+    private final ThreadLocal<Long> myTxid = ThreadLocal.withInitial(() -> 0L);
+    //everything below is guarded by this
+    private FileChannel channel;
+    private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private long lastTxid;
+    private long syncedTxid;
+    private boolean syncing = false;
+    private IOException failure;
+
+    /**
+     * @param dir      where the segments are, a new one is started in it
+     * @param lastTxid the transaction id of the last change in the log or the image, new changes follow it
+     * @param sync     whether to force the file to disk, not only write it, before a change is acknowledged
+     */
+    EditLog(File dir, long lastTxid, boolean sync) throws IOException {
+        this.dir = dir;
+        this.sync = sync;
+        this.lastTxid = lastTxid;
+        this.syncedTxid = lastTxid;
+        this.channel = openSegment(dir, lastTxid + 1);
+    }
+
+    private static FileChannel openSegment(File dir, long firstTxid) throws IOException {
+        File file = new File(dir, SEGMENT_PREFIX + firstTxid);
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        try {
+            //replay may have left the header of a segment with every record cut, it is written to again
+            if (channel.size() == 0) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+                header.putInt(MAGIC).putInt(VERSION).flip();
+                while (header.hasRemaining())
+                    channel.write(header);
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    /**
+     * Apply the changes after an image up to a transaction, segment by segment, and cut a record torn
+     * by a crash from the end of the last one.
+     *
+     * @param imageTxid changes up to this transaction id are in the image already and are skipped
+     * @param toTxid    changes after it are not applied, Long.MAX_VALUE for every change
+     * @return the transaction id of the last change applied, or imageTxid
+     * @throws IOException if a segment is missing, the image could not be brought up to date
+     */
+    static long replay(File dir, long imageTxid, long toTxid, EditHandler handler) throws IOException {
+        long lastTxid = imageTxid;
+        for (Segment segment : listSegments(dir)) {
+            if (segment.firstTxid > toTxid)
+                break;
+            if (segment.firstTxid > lastTxid + 1)
+                throw new IOException("edit log has no changes from " + (lastTxid + 1) + " to " + (segment.firstTxid - 1));
+            lastTxid = replaySegment(segment.file, lastTxid, toTxid, handler);
+        }
+        return lastTxid;
+    }
+
+    private static long replaySegment(File file, long imageTxid, long toTxid, EditHandler handler) throws IOException {
+        long lastTxid = imageTxid;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long fileSize = channel.size();
+            long position = 0;
+            int version = 1;
+            if (fileSize >= HEADER_LENGTH) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+                readFully(channel, header, 0);
+                if (header.getInt(0) == MAGIC) {
+                    version = header.getInt(4);
+                    if (version != VERSION)
+                        throw new IOException("unsupported edit log version " + version + " in " + file.getName());
+                    position = HEADER_LENGTH;
+                }
+            }
+            ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+            CRC32 crc = new CRC32();
+            while (position + FRAME_LENGTH <= fileSize) {
+                lengthBuffer.clear();
+                readFully(channel, lengthBuffer, position);
+                int length = lengthBuffer.getInt(0);
+                if (length < 9 || length > MAX_RECORD_LENGTH || position + FRAME_LENGTH + length > fileSize)
+                    break;
+                ByteBuffer record = ByteBuffer.allocate(length + 4);
+                readFully(channel, record, position + 4);
+                crc.reset();
+                crc.update(record.array(), 0, length);
+                if ((int) crc.getValue() != record.getInt(length))
+                    break;
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(record.array(), 0, length));
+                byte op = in.readByte();
+                long txid = in.readLong();
+                if (txid > toTxid)
+                    return lastTxid;
+                if (txid > imageTxid) {
+                    //a change missing in the middle of a segment cannot be replayed around
+                    if (txid != lastTxid + 1)
+                        throw new IOException("edit log has no changes from " + (lastTxid + 1) + " to " + (txid - 1) + " in " + file.getName());
+                    handler.apply(op, version, in);
+                    lastTxid = txid;
+                }
+                position += FRAME_LENGTH + length;
+            }
+            if (position < fileSize) {
+                System.err.println("edit log is cut at " + position + " of " + fileSize + " bytes");
+                channel.truncate(position);
+            }
+        }
+        return lastTxid;
+    }
+
+    /**
+     * Delete the segments whose changes are all in an image.
+     *
+     * @param txid the transaction id of the image, it must end a segment
+     */
+    static void purge(File dir, long txid) throws IOException {
+        for (Segment segment : listSegments(dir)) {
+            if (segment.firstTxid <= txid)
+                Files.deleteIfExists(segment.file.toPath());
+        }
+    }
+
+    /**
+     * @return the segments in the order of their changes
+     */
+    private static List<Segment> listSegments(File dir) {
+        List<Segment> segments = new ArrayList<>();
+        File[] files = dir.listFiles();
+        if (files == null)
+            return segments;
+        for (File file : files) {
+            Matcher matcher = SEGMENT_NAME.matcher(file.getName());
+            if (matcher.matches())
+                segments.add(new Segment(file, Long.parseLong(matcher.group(1))));
+            else if (file.getName().equals(LEGACY_NAME))
+                segments.add(new Segment(file, 0));
+        }
+        segments.sort((a, b) -> Long.compare(a.firstTxid, b.firstTxid));
+        return segments;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining() && channel.read(dst, position + dst.position()) >= 0) ;
+    }
+
+    /**
+     * Append a change to the current batch, without waiting for it to be written.
+     *
+     * @return the transaction id of the change
+     */
+    long log(byte op, RpcWritable payload) {
+        //written out first, a payload that fails takes no transaction id
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try {
+            DataOutputStream out = new DataOutputStream(body);
+            payload.writeTo(out);
+            out.flush();
+        } catch (IOException e) {
+            //in memory, only a payload could fail
+            throw new IllegalArgumentException(e);
+        }
+        synchronized (this) {
+            long txid = ++lastTxid;
+            try {
+                ByteArrayOutputStream record = new ByteArrayOutputStream(9 + body.size());
+                DataOutputStream out = new DataOutputStream(record);
+                out.writeByte(op);
+                out.writeLong(txid);
+                body.writeTo(out);
+                out.flush();
+                CRC32 crc = new CRC32();
+                crc.update(record.toByteArray());
+                DataOutputStream frame = new DataOutputStream(buffer);
+                frame.writeInt(record.size());
+                record.writeTo(frame);
+                frame.writeInt((int) crc.getValue());
+            } catch (IOException e) {
+                //ByteArrayOutputStream never throws it
+                throw new IllegalStateException(e);
+            }
+            myTxid.set(txid);
+            return txid;
+        }
+    }
+
+    /**
+     * Wait until the last change logged by this thread is durable, writing the current batch if no one else is.
+     *
+     * @throws IOException if the batch could not be written, every later sync fails too
+     */
+    void logSync() throws IOException {
+        long txid = myTxid.get();
+        FileChannel channel;
+        ByteArrayOutputStream batch;
+        long batchTxid;
+        synchronized (this) {
+            try {
+                //the batch being written may not hold it, then the next one does
+                while (syncing && txid > syncedTxid)
+                    wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while syncing edit log");
+            }
+            if (failure != null)
+                throw failure;
+            if (txid <= syncedTxid)
+                return;
+            syncing = true;
+            channel = this.channel;
+            batch = buffer;
+            batchTxid = lastTxid;
+            buffer = new ByteArrayOutputStream();
+        }
+        IOException error = null;
+        try {
+            ByteBuffer src = ByteBuffer.wrap(batch.toByteArray());
+            while (src.hasRemaining())
+                channel.write(src);
+            if (sync)
+                channel.force(false);
+        } catch (IOException e) {
+            error = e;
+        }
+        synchronized (this) {
+            syncing = false;
+            if (error != null)
+                failure = error;
+            else
+                syncedTxid = batchTxid;
+            notifyAll();
+        }
+        if (error != null)
+            throw error;
+    }
+
+    synchronized long getLastTxid() {
+        return lastTxid;
+    }
+
+    /**
+     * Write the changes logged so far to the current segment and start a new one after them.
+     * Changes are not logged meanwhile, it lasts one write of the pending batch.
+     *
+     * @return the transaction id of the last change in the closed segment
+     */
+    synchronized long roll() throws IOException {
+        try {
+            while (syncing)
+                wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while rolling edit log");
+        }
+        if (failure != null)
+            throw failure;
+        try {
+            ByteBuffer src = ByteBuffer.wrap(buffer.toByteArray());
+            while (src.hasRemaining())
+                channel.write(src);
+            channel.force(false);
+            channel.close();
+            channel = openSegment(dir, lastTxid + 1);
+        } catch (IOException e) {
+            failure = e;
+            throw e;
+        }
+        buffer = new ByteArrayOutputStream();
+        syncedTxid = lastTxid;
+        notifyAll();
+        return lastTxid;
+    }
+
+    /**
+     * Write the changes logged so far and close the file.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            myTxid.set(lastTxid);
+        }
+        try {
+            logSync();
+        } finally {
+            synchronized (this) {
+                channel.close();
+            }
+        }
+    }
+
+    private static class Segment {
+        private final File file;
+        private final long firstTxid;
+
+        Segment(File file, long firstTxid) {
+            this.file = file;
+            this.firstTxid = firstTxid;
+        }
+    }
+}
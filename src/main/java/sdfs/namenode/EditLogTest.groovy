@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) Jipzingking 2016.
+ */
+
+package sdfs.namenode
+
+import spock.lang.Specification
+
+class EditLogTest extends Specification {
+    //length, op, txid, an int payload and the checksum
+    static final int RECORD_LENGTH = 4 + 1 + 8 + 4 + 4
+    //magic, version
+    static final int HEADER_LENGTH = 8
+
+    def dir = File.createTempDir()
+
+    def cleanup() {
+        dir.deleteDir()
+    }
+
+    def "Test replay applies every change logged"() {
+        given:
+        writeLog(0, 1..5)
+
+        when:
+        def applied = []
+        def lastTxid = EditLog.replay(dir, 0, Long.MAX_VALUE, handler(applied))
+
+        then:
+        lastTxid == 5
+        applied == [[EditLog.OP_MKDIR, 1], [EditLog.OP_MKDIR, 2], [EditLog.OP_MKDIR, 3], [EditLog.OP_MKDIR, 4], [EditLog.OP_MKDIR, 5]]
+    }
+
+    def "Test replay skips changes in the image and stops at a transaction"() {
+        given:
+        writeLog(0, 1..5)
+
+        when:
+        def applied = []
+        def lastTxid = EditLog.replay(dir, 2, 4, handler(applied))
+
+        then:
+        lastTxid == 4
+        applied*.get(1) == [3, 4]
+    }
+
+    def "Test torn tail is dropped"() {
+        given:
+        def file = writeLog(0, 1..5)
+        def raf = new RandomAccessFile(file, "rw")
+        raf.setLength(file.length() - cut)
+        raf.close()
+
+        when:
+        def applied = []
+        def lastTxid = EditLog.replay(dir, 0, Long.MAX_VALUE, handler(applied))
+
+        then:
+        lastTxid == 4
+        applied*.get(1) == [1, 2, 3, 4]
+        file.length() == HEADER_LENGTH + 4 * RECORD_LENGTH
+
+        where:
+        cut << [1, 4, RECORD_LENGTH - 4, RECORD_LENGTH - 1]
+    }
+
+    def "Test corrupt last record is dropped"() {
+        given:
+        def file = writeLog(0, 1..5)
+        def bytes = file.bytes
+        bytes[bytes.length - 6] ^= 1
+        file.bytes = bytes
+
+        when:
+        def applied = []
+        def lastTxid = EditLog.replay(dir, 0, Long.MAX_VALUE, handler(applied))
+
+        then:
+        lastTxid == 4
+        file.length() == HEADER_LENGTH + 4 * RECORD_LENGTH
+    }
+
+    def "Test change missing in a segment fails replay"() {
+        given:
+        def file = writeLog(0, 1..5)
+        def bytes = file.bytes as List
+        //cut the third change out
+        file.bytes = (bytes[0..<HEADER_LENGTH + 2 * RECORD_LENGTH] + bytes[HEADER_LENGTH + 3 * RECORD_LENGTH..<bytes.size()]) as byte[]
+
+        when:
+        EditLog.replay(dir, 0, Long.MAX_VALUE, handler([]))
+
+        then:
+        def e = thrown(IOException)
+        e.message.contains("from 3 to 3")
+    }
+
+    def "Test replay continues across rolled segments and purge removes old ones"() {
+        given:
+        def log = new EditLog(dir, 0, false)
+        (1..3).each { log.log(EditLog.OP_MKDIR, { out -> out.writeInt(it) }) }
+        log.logSync()
+        def rolledTxid = log.roll()
+        (4..5).each { log.log(EditLog.OP_MKDIR, { out -> out.writeInt(it) }) }
+        log.close()
+
+        when:
+        def applied = []
+        def lastTxid = EditLog.replay(dir, 0, Long.MAX_VALUE, handler(applied))
+
+        then:
+        rolledTxid == 3
+        lastTxid == 5
+        applied*.get(1) == [1, 2, 3, 4, 5]
+
+        when:
+        EditLog.purge(dir, rolledTxid)
+        applied = []
+        lastTxid = EditLog.replay(dir, rolledTxid, Long.MAX_VALUE, handler(applied))
+
+        then:
+        dir.list().length == 1
+        lastTxid == 5
+        applied*.get(1) == [4, 5]
+
+        when:
+        EditLog.replay(dir, 0, Long.MAX_VALUE, handler([]))
+
+        then:
+        thrown(IOException)
+    }
+
+    def "Test segment without a header is replayed as version 1"() {
+        given:
+        def file = writeLog(0, 1..3)
+        //as a segment was written before it had a header
+        file.bytes = file.bytes[HEADER_LENGTH..<file.bytes.length] as byte[]
+
+        when:
+        def versions = []
+        def lastTxid = EditLog.replay(dir, 0, Long.MAX_VALUE, { byte op, int version, DataInput in ->
+            versions << version
+            in.readInt()
+        } as EditLog.EditHandler)
+
+        then:
+        lastTxid == 3
+        versions == [1, 1, 1]
+    }
+
+    def "Test segment with every record cut is written to again"() {
+        given:
+        def file = writeLog(0, 1..1)
+        def raf = new RandomAccessFile(file, "rw")
+        raf.setLength(HEADER_LENGTH + 3)
+        raf.close()
+        EditLog.replay(dir, 0, Long.MAX_VALUE, handler([]))
+
+        when:
+        writeLog(0, 1..2)
+        def applied = []
+        def lastTxid = EditLog.replay(dir, 0, Long.MAX_VALUE, handler(applied))
+
+        then:
+        lastTxid == 2
+        applied*.get(1) == [1, 2]
+    }
+
+    private File writeLog(long lastTxid, Collection<Integer> values) {
+        def log = new EditLog(dir, lastTxid, true)
+        values.each { value -> log.log(EditLog.OP_MKDIR, { out -> out.writeInt(value) }) }
+        log.close()
+        new File(dir, "edits_" + (lastTxid + 1))
+    }
+
+    private static EditLog.EditHandler handler(List applied) {
+        { byte op, int version, DataInput in -> applied << [op, in.readInt()] } as EditLog.EditHandler
+    }
+}
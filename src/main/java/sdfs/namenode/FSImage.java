@@ -0,0 +1,290 @@
+/*
+ * Copyright (c) Jipzingking 2016.
+ */
+
+package sdfs.namenode;
+
+import sdfs.exception.SDFSFileAlreadyExistException;
+import sdfs.filetree.BlockInfo;
+import sdfs.filetree.DirNode;
+import sdfs.filetree.Entry;
+import sdfs.filetree.ErasureCodingPolicy;
+import sdfs.filetree.FileNode;
+import sdfs.filetree.Node;
+import sdfs.protocol.RpcCodec;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.PriorityQueue;
+
+/**
+ * The namespace and the next block number as of a transaction, as saved in the image file of a name node.
+ * <p>
+ * It is loaded, brought up to date from the edit log and saved again apart from the namespace being served,
+ * by the name node on startup and by the {@link Checkpointer} after that. Images are written in the format of
+ * {@link FSImageFormat}, images of older name nodes, Java serialized, are still read.
+ */
+class FSImage {
+    static final String IMAGE_NAME = "fsimage";
+    private static final String CHECKPOINT_NAME = "fsimage.ckpt";
+    //the block numbers of images from before the edit log
+    private static final String METADATA_NAME = "metadata";
+    //only reserved, the pages are used as deep as the tree goes
+    private static final long SERIALIZED_LOAD_STACK_SIZE = 1024L * 1024 * 1024;
+
+    private final DirNode root;
+    private int nextBlockNumber;
+    private long txid;
+
+    FSImage(DirNode root, int nextBlockNumber, long txid) {
+        this.root = root;
+        this.nextBlockNumber = nextBlockNumber;
+        this.txid = txid;
+    }
+
+    DirNode getRoot() {
+        return root;
+    }
+
+    /**
+     * @return the smallest block number never used
+     */
+    int getNextBlockNumber() {
+        return nextBlockNumber;
+    }
+
+    /**
+     * Older name nodes kept the freed block numbers besides the next one, to use them again.
+     * The next one is the largest of them.
+     */
+    static int getNextBlockNumber(Collection<Integer> freeBlocks) {
+        return freeBlocks.isEmpty() ? 0 : Collections.max(freeBlocks);
+    }
+
+    /**
+     * @return the transaction id of the last change in the namespace
+     */
+    long getTxid() {
+        return txid;
+    }
+
+    static boolean exists(File dir) {
+        return new File(dir, IMAGE_NAME).exists();
+    }
+
+    /**
+     * @return the last image saved in dir, or an empty namespace if there is none
+     */
+    static FSImage load(File dir) throws IOException {
+        File file = new File(dir, IMAGE_NAME);
+        if (!file.exists() || file.length() == 0)
+            return new FSImage(new DirNode(), getNextBlockNumber(loadMetadata(dir)), 0);
+        if (FSImageFormat.isImage(file))
+            return FSImageFormat.read(file);
+        //Java serialization recurses once per level of the tree
+        FSImage[] image = new FSImage[1];
+        Exception[] error = new Exception[1];
+        Thread thread = new Thread(null, () -> {
+            try {
+                image[0] = loadSerialized(file, dir);
+            } catch (Exception | StackOverflowError e) {
+                error[0] = e instanceof Exception ? (Exception) e : new IOException("image is too deep to load", e);
+            }
+        }, "sdfs-image-loader", SERIALIZED_LOAD_STACK_SIZE);
+        thread.start();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while loading image");
+        }
+        if (error[0] instanceof IOException)
+            throw (IOException) error[0];
+        if (error[0] != null)
+            throw new IOException(error[0]);
+        return image[0];
+    }
+
+    @SuppressWarnings("unchecked")
+    private static FSImage loadSerialized(File file, File dir) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            DirNode root = (DirNode) in.readObject();
+            try {
+                PriorityQueue<Integer> freeBlocks = (PriorityQueue<Integer>) in.readObject();
+                return new FSImage(root, getNextBlockNumber(freeBlocks), in.readLong());
+            } catch (EOFException e) {
+                //an image from before the edit log, its block numbers are in their own file
+                return new FSImage(root, getNextBlockNumber(loadMetadata(dir)), 0);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static PriorityQueue<Integer> loadMetadata(File dir) throws IOException {
+        File file = new File(dir, METADATA_NAME);
+        PriorityQueue<Integer> freeBlocks = new PriorityQueue<>();
+        if (!file.exists() || file.length() == 0) {
+            freeBlocks.add(0);
+            return freeBlocks;
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(file))) {
+            return (PriorityQueue<Integer>) in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Write a new image to dir, which replaces the old one at once, so a crash leaves one or the other.
+     * The new one is durable on return, so the edits it holds may be deleted.
+     */
+    void save(File dir) throws IOException {
+        File file = new File(dir, IMAGE_NAME);
+        File tmpFile = new File(dir, CHECKPOINT_NAME);
+        try (FileOutputStream fileOut = new FileOutputStream(tmpFile)) {
+            OutputStream out = new BufferedOutputStream(fileOut, 64 * 1024);
+            FSImageFormat.write(this, out);
+            out.flush();
+            fileOut.getFD().sync();
+        }
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        //the rename is lost in a crash until the directory is synced
+        syncDirectory(dir);
+        //they are in the image now
+        Files.deleteIfExists(new File(dir, METADATA_NAME).toPath());
+    }
+
+    /**
+     * Not every platform can open a directory, there the file system is trusted to keep the rename.
+     */
+    private static void syncDirectory(File dir) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+        } catch (IOException e) {
+            return;
+        }
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Apply the logged changes after the image, up to a transaction.
+     *
+     * @param toTxid Long.MAX_VALUE for every logged change
+     */
+    void replayEdits(File dir, long toTxid) throws IOException {
+        txid = EditLog.replay(dir, txid, toTxid, this::applyEdit);
+    }
+
+    /**
+     * Redo a logged change, as the name node method that logged it made it.
+     */
+    private void applyEdit(byte op, int version, DataInput in) throws IOException {
+        switch (op) {
+            case EditLog.OP_MKDIR:
+                addNode(readPath(in, version), new DirNode());
+                break;
+            case EditLog.OP_CREATE: {
+                FileNode fileNode = new FileNode();
+                addNode(readPath(in, version), fileNode);
+                if (in.readBoolean())
+                    fileNode.setErasureCodingPolicy(ErasureCodingPolicy.readFrom(in));
+                break;
+            }
+            case EditLog.OP_ADD_BLOCK: {
+                FileNode fileNode = getFileNode(readPath(in, version));
+                BlockInfo blockInfo = BlockInfo.readFrom(in);
+                for (int blockNumber : NameNodeServer.getBlockNumbers(fileNode, blockInfo))
+                    takeBlockNumber(blockNumber);
+                fileNode.addBlockInfo(blockInfo);
+                break;
+            }
+            case EditLog.OP_SET_BLOCK: {
+                FileNode fileNode = getFileNode(readPath(in, version));
+                int blockIndex = in.readInt();
+                BlockInfo blockInfo = BlockInfo.readFrom(in);
+                for (int blockNumber : NameNodeServer.getBlockNumbers(fileNode, blockInfo))
+                    takeBlockNumber(blockNumber);
+                fileNode.setBlockInfo(blockIndex, blockInfo);
+                break;
+            }
+            case EditLog.OP_REMOVE_LAST_BLOCK: {
+                FileNode fileNode = getFileNode(readPath(in, version));
+                fileNode.removeLastBlockInfo();
+                //the freed block numbers follow, they are not used again
+                break;
+            }
+            case EditLog.OP_CLOSE: {
+                FileNode fileNode = getFileNode(readPath(in, version));
+                fileNode.setFileSize(in.readInt());
+                break;
+            }
+            case EditLog.OP_FREE_BLOCKS:
+                //block numbers are not used again
+                break;
+            default:
+                throw new IOException("unknown edit log operation " + op);
+        }
+    }
+
+    private static String readPath(DataInput in, int version) throws IOException {
+        return version == 1 ? in.readUTF() : RpcCodec.readString(in);
+    }
+
+    private Node resolve(String[] names, int length) throws IOException {
+        Node node = root;
+        for (int i = 0; i < length; i++) {
+            if (!(node instanceof DirNode))
+                throw new IOException("it's not a directory");
+            Entry entry = ((DirNode) node).getEntry(names[i]);
+            if (entry == null)
+                throw new FileNotFoundException();
+            node = entry.getNode();
+        }
+        return node;
+    }
+
+    private FileNode getFileNode(String fileUri) throws IOException {
+        String[] names = NameNodeServer.splitUri(fileUri);
+        Node node = resolve(names, names.length);
+        if (!(node instanceof FileNode))
+            throw new IOException("it's not a file");
+        return (FileNode) node;
+    }
+
+    private void addNode(String fileUri, Node node) throws IOException {
+        String[] names = NameNodeServer.splitUri(fileUri);
+        Node parent = resolve(names, names.length - 1);
+        if (!(parent instanceof DirNode))
+            throw new IOException("it's not a directory");
+        if (!((DirNode) parent).addEntry(new Entry(names[names.length - 1], node)))
+            throw new SDFSFileAlreadyExistException();
+    }
+
+    /**
+     * Take a given block number as the name node took it. Older logs may take a freed one again.
+     */
+    private void takeBlockNumber(int blockNumber) {
+        nextBlockNumber = Math.max(nextBlockNumber, blockNumber + 1);
+    }
+}
@@ -0,0 +1,658 @@
+/*
+ * Copyright (c) Jipzingking 2016.
+ */
+
+package sdfs.namenode;
+
+import sdfs.filetree.BlockInfo;
+import sdfs.filetree.DirNode;
+import sdfs.filetree.Entry;
+import sdfs.filetree.ErasureCodingPolicy;
+import sdfs.filetree.FileNode;
+import sdfs.filetree.Node;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * The binary image format, compact and written in one pass.
+ * <p>
+ * An image is the magic and the version, then sections, then a summary of the transaction id and of the
+ * offset, length and CRC32 of every section, then the offset of the summary and the magic again.
+ * Numbers are varints, names and data node addresses are written once in tables and referred to by index.
+ * Nodes are numbered breadth first from the root at 0, so the children of a directory have consecutive
+ * numbers and a directory only lists the names of its children.
+ * <pre>
+ * NAMES       count, (length, UTF-8 bytes)*
+ * DATA_NODES  count, (address length, address, port)*
+ * INODES      first node, count, (FILE, size, block amount, data units, [parity units], block count,
+ *                                 (located count, (data node, block number)*)* | DIRECTORY)*
+ * DIRECTORIES first node, first child, directory count, (child count, name*)*
+ * FREE_BLOCKS count, first, difference to the previous*
+ * </pre>
+ * FREE_BLOCKS has the next block number alone, the largest of the list is taken as it when read, as older
+ * name nodes listed the freed numbers before it.
+ * Nodes and directories are split over many sections that do not depend on each other, so that they are
+ * read in parallel, see {@link #read(File)}. Images of version 1 have one section of each, without the
+ * first node and counts.
+ */
+class FSImageFormat {
+    /**
+     * Threads an image is read with, -Dsdfs.namenode.imageLoadThreads overrides the number of processors.
+     */
+    static final int LOAD_THREADS = Integer.getInteger("sdfs.namenode.imageLoadThreads", Runtime.getRuntime().availableProcessors());
+    private static final int MAGIC = 0x53444649;
+    private static final int VERSION = 2;
+    private static final byte SECTION_NAMES = 1;
+    private static final byte SECTION_DATA_NODES = 2;
+    private static final byte SECTION_INODES = 3;
+    private static final byte SECTION_DIRECTORIES = 4;
+    private static final byte SECTION_FREE_BLOCKS = 5;
+    private static final byte INODE_FILE = 0;
+    private static final byte INODE_DIRECTORY = 1;
+    private static final int INODES_PER_SECTION = 64 * 1024;
+    //a directory section ends with the first directory after so many children
+    private static final int CHILDREN_PER_SECTION = 64 * 1024;
+    //offset of the summary, magic
+    private static final int TRAILER_LENGTH = 12;
+
+    private FSImageFormat() {
+    }
+
+    /**
+     * @return whether the file starts like an image of this format, older images are Java serialized
+     */
+    static boolean isImage(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return in.readInt() == MAGIC;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    static void write(FSImage image, OutputStream stream) throws IOException {
+        List<Node> nodes = new ArrayList<>();
+        Map<String, Integer> names = new LinkedHashMap<>();
+        Map<InetSocketAddress, Integer> dataNodes = new LinkedHashMap<>();
+        Deque<Node> queue = new ArrayDeque<>();
+        queue.add(image.getRoot());
+        while (!queue.isEmpty()) {
+            Node node = queue.poll();
+            nodes.add(node);
+            if (node instanceof DirNode) {
+                for (Entry entry : (DirNode) node) {
+                    names.putIfAbsent(entry.getName(), names.size());
+                    queue.add(entry.getNode());
+                }
+            } else {
+                for (BlockInfo blockInfo : (FileNode) node) {
+                    for (LocatedBlock locatedBlock : blockInfo)
+                        dataNodes.putIfAbsent(locatedBlock.getDataNodeAddress(), dataNodes.size());
+                }
+            }
+        }
+
+        SectionOutputStream sectionOut = new SectionOutputStream(stream);
+        DataOutputStream out = new DataOutputStream(sectionOut);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        List<Section> sections = new ArrayList<>();
+
+        sectionOut.startSection();
+        writeVarint(out, names.size());
+        for (String name : names.keySet()) {
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            writeVarint(out, bytes.length);
+            out.write(bytes);
+        }
+        sections.add(sectionOut.endSection(SECTION_NAMES));
+
+        sectionOut.startSection();
+        writeVarint(out, dataNodes.size());
+        for (InetSocketAddress address : dataNodes.keySet()) {
+            byte[] ip = address.getAddress().getAddress();
+            out.writeByte(ip.length);
+            out.write(ip);
+            writeVarint(out, address.getPort());
+        }
+        sections.add(sectionOut.endSection(SECTION_DATA_NODES));
+
+        for (int first = 0; first < nodes.size(); first += INODES_PER_SECTION) {
+            int end = Math.min(nodes.size(), first + INODES_PER_SECTION);
+            sectionOut.startSection();
+            writeVarint(out, first);
+            writeVarint(out, end - first);
+            for (Node node : nodes.subList(first, end))
+                writeInode(out, node, dataNodes);
+            sections.add(sectionOut.endSection(SECTION_INODES));
+        }
+
+        int nextChild = 1;
+        for (int first = 0; first < nodes.size(); ) {
+            int end = first;
+            int dirCount = 0;
+            int childCount = 0;
+            for (; end < nodes.size() && childCount < CHILDREN_PER_SECTION; end++) {
+                if (nodes.get(end) instanceof DirNode) {
+                    dirCount++;
+                    childCount += ((DirNode) nodes.get(end)).getEntryCount();
+                }
+            }
+            //only files are left
+            if (dirCount == 0)
+                break;
+            sectionOut.startSection();
+            writeVarint(out, first);
+            writeVarint(out, nextChild);
+            writeVarint(out, dirCount);
+            for (Node node : nodes.subList(first, end)) {
+                if (!(node instanceof DirNode))
+                    continue;
+                //in the order they were queued, so they get consecutive numbers on load too
+                DirNode dirNode = (DirNode) node;
+                writeVarint(out, dirNode.getEntryCount());
+                for (Entry entry : dirNode)
+                    writeVarint(out, names.get(entry.getName()));
+            }
+            sections.add(sectionOut.endSection(SECTION_DIRECTORIES));
+            nextChild += childCount;
+            first = end;
+        }
+
+        sectionOut.startSection();
+        writeVarint(out, 1);
+        writeVarint(out, image.getNextBlockNumber());
+        sections.add(sectionOut.endSection(SECTION_FREE_BLOCKS));
+
+        out.flush();
+        long summaryOffset = sectionOut.position;
+        out.writeLong(image.getTxid());
+        writeVarint(out, sections.size());
+        for (Section section : sections) {
+            out.writeByte(section.id);
+            writeVarint(out, section.offset);
+            writeVarint(out, section.length);
+            out.writeInt(section.crc);
+        }
+        out.writeLong(summaryOffset);
+        out.writeInt(MAGIC);
+        out.flush();
+    }
+
+    private static void writeInode(DataOutput out, Node node, Map<InetSocketAddress, Integer> dataNodes) throws IOException {
+        if (node instanceof DirNode) {
+            out.writeByte(INODE_DIRECTORY);
+            return;
+        }
+        FileNode fileNode = (FileNode) node;
+        out.writeByte(INODE_FILE);
+        writeVarint(out, fileNode.getFileSize());
+        writeVarint(out, fileNode.blockAmount);
+        ErasureCodingPolicy erasureCodingPolicy = fileNode.getErasureCodingPolicy();
+        if (erasureCodingPolicy == null) {
+            out.writeByte(0);
+        } else {
+            out.writeByte(erasureCodingPolicy.getDataUnits());
+            out.writeByte(erasureCodingPolicy.getParityUnits());
+        }
+        writeVarint(out, fileNode.getBlockAmount());
+        for (BlockInfo blockInfo : fileNode) {
+            writeVarint(out, blockInfo.getLocatedBlocks().size());
+            for (LocatedBlock locatedBlock : blockInfo) {
+                writeVarint(out, dataNodes.get(locatedBlock.getDataNodeAddress()));
+                writeVarint(out, locatedBlock.getBlockNumber());
+            }
+        }
+    }
+
+    /**
+     * Read the tables and the free block numbers, then the node sections, then the directory sections,
+     * every section of a step in parallel on LOAD_THREADS threads. Progress is reported every tenth
+     * of the sections read once loading takes more than a second.
+     */
+    static FSImage read(File file) throws IOException {
+        long startTime = System.currentTimeMillis();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            if (fileSize < 8 + TRAILER_LENGTH)
+                throw new IOException("image is cut at " + fileSize + " bytes");
+            ByteBuffer trailer = ByteBuffer.allocate(TRAILER_LENGTH);
+            readFully(channel, trailer, fileSize - TRAILER_LENGTH);
+            long summaryOffset = trailer.getLong(0);
+            if (trailer.getInt(8) != MAGIC || summaryOffset < 8 || summaryOffset > fileSize - TRAILER_LENGTH)
+                throw new IOException("image is cut or corrupt");
+            ByteBuffer header = ByteBuffer.allocate(8);
+            readFully(channel, header, 0);
+            int version = header.getInt(4);
+            if (version != 1 && version != VERSION)
+                throw new IOException("unsupported image version " + version);
+            ByteBuffer summary = ByteBuffer.allocate((int) (fileSize - TRAILER_LENGTH - summaryOffset));
+            readFully(channel, summary, summaryOffset);
+            DataInputStream summaryIn = new DataInputStream(new ByteArrayInputStream(summary.array()));
+            long txid = summaryIn.readLong();
+            Map<Byte, List<Section>> sections = new HashMap<>();
+            int sectionCount = readVarint(summaryIn);
+            long totalLength = 0;
+            for (int i = 0; i < sectionCount; i++) {
+                Section section = new Section(summaryIn.readByte(), readVarLong(summaryIn), readVarLong(summaryIn), summaryIn.readInt());
+                if (section.offset < 8 || section.offset + section.length > summaryOffset)
+                    throw new IOException("image section " + section.id + " is out of the file");
+                sections.computeIfAbsent(section.id, k -> new ArrayList<>()).add(section);
+                totalLength += section.length;
+            }
+
+            LoadProgress progress = new LoadProgress(file, totalLength, startTime);
+            ForkJoinPool pool = new ForkJoinPool(LOAD_THREADS);
+            try {
+                ForkJoinTask<String[]> names = pool.submit(() -> readNames(channel, getSection(sections, SECTION_NAMES), progress));
+                ForkJoinTask<DataNodeTable> dataNodes = pool.submit(() -> readDataNodes(channel, getSection(sections, SECTION_DATA_NODES), progress));
+                ForkJoinTask<Integer> nextBlockNumber = pool.submit(() -> readNextBlockNumber(channel, getSection(sections, SECTION_FREE_BLOCKS), progress));
+
+                DataNodeTable dataNodeTable = join(dataNodes);
+                List<ForkJoinTask<InodeChunk>> inodeTasks = new ArrayList<>();
+                for (Section section : getSections(sections, SECTION_INODES))
+                    inodeTasks.add(pool.submit(() -> readInodes(channel, section, version, dataNodeTable, progress)));
+                List<InodeChunk> chunks = new ArrayList<>();
+                for (ForkJoinTask<InodeChunk> task : inodeTasks)
+                    chunks.add(join(task));
+                Node[] nodes = assemble(chunks);
+
+                String[] nameTable = join(names);
+                List<ForkJoinTask<Void>> directoryTasks = new ArrayList<>();
+                for (Section section : getSections(sections, SECTION_DIRECTORIES)) {
+                    directoryTasks.add(pool.submit(() -> {
+                        readDirectories(channel, section, version, nodes, nameTable, progress);
+                        return null;
+                    }));
+                }
+                for (ForkJoinTask<Void> task : directoryTasks)
+                    join(task);
+
+                FSImage image = new FSImage((DirNode) nodes[0], join(nextBlockNumber), txid);
+                progress.done(nodes.length);
+                return image;
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+    }
+
+    private static <T> T join(ForkJoinTask<T> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while loading image");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static List<Section> getSections(Map<Byte, List<Section>> sections, byte id) throws IOException {
+        List<Section> list = sections.get(id);
+        if (list == null)
+            throw new IOException("image has no section " + id);
+        return list;
+    }
+
+    private static Section getSection(Map<Byte, List<Section>> sections, byte id) throws IOException {
+        List<Section> list = getSections(sections, id);
+        if (list.size() != 1)
+            throw new IOException("image has " + list.size() + " sections " + id);
+        return list.get(0);
+    }
+
+    private static String[] readNames(FileChannel channel, Section section, LoadProgress progress) throws IOException {
+        String[] names;
+        try (DataInputStream in = openSection(channel, section)) {
+            names = new String[readVarint(in)];
+            for (int i = 0; i < names.length; i++) {
+                byte[] bytes = new byte[readVarint(in)];
+                in.readFully(bytes);
+                names[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+        }
+        progress.sectionRead(section);
+        return names;
+    }
+
+    private static DataNodeTable readDataNodes(FileChannel channel, Section section, LoadProgress progress) throws IOException {
+        DataNodeTable table;
+        try (DataInputStream in = openSection(channel, section)) {
+            table = new DataNodeTable(readVarint(in));
+            for (int i = 0; i < table.addresses.length; i++) {
+                byte[] ip = new byte[in.readUnsignedByte()];
+                in.readFully(ip);
+                table.addresses[i] = InetAddress.getByAddress(ip);
+                table.ports[i] = readVarint(in);
+            }
+        }
+        progress.sectionRead(section);
+        return table;
+    }
+
+    private static int readNextBlockNumber(FileChannel channel, Section section, LoadProgress progress) throws IOException {
+        //ascending, so the last is the largest
+        int blockNumber = 0;
+        try (DataInputStream in = openSection(channel, section)) {
+            int count = readVarint(in);
+            for (int i = 0; i < count; i++)
+                blockNumber += readVarint(in);
+        }
+        progress.sectionRead(section);
+        return blockNumber;
+    }
+
+    private static InodeChunk readInodes(FileChannel channel, Section section, int version, DataNodeTable dataNodes, LoadProgress progress) throws IOException {
+        InodeChunk chunk;
+        try (DataInputStream in = openSection(channel, section)) {
+            int first = version == 1 ? 0 : readVarint(in);
+            chunk = new InodeChunk(first, new Node[readVarint(in)]);
+            for (int i = 0; i < chunk.nodes.length; i++) {
+                if (in.readByte() == INODE_DIRECTORY) {
+                    chunk.nodes[i] = new DirNode();
+                    continue;
+                }
+                FileNode fileNode = new FileNode();
+                fileNode.setFileSize(readVarint(in));
+                int blockAmount = readVarint(in);
+                int dataUnits = in.readUnsignedByte();
+                if (dataUnits != 0)
+                    fileNode.setErasureCodingPolicy(new ErasureCodingPolicy(dataUnits, in.readUnsignedByte()));
+                int blockCount = readVarint(in);
+                for (int j = 0; j < blockCount; j++) {
+                    BlockInfo blockInfo = new BlockInfo();
+                    int locatedCount = readVarint(in);
+                    for (int k = 0; k < locatedCount; k++) {
+                        int dataNode = readVarint(in);
+                        if (dataNode < 0 || dataNode >= dataNodes.addresses.length)
+                            throw new IOException("image refers to data node " + dataNode + " of " + dataNodes.addresses.length);
+                        blockInfo.addLocatedBlock(new LocatedBlock(dataNodes.addresses[dataNode], dataNodes.ports[dataNode], readVarint(in)));
+                    }
+                    fileNode.addBlockInfo(blockInfo);
+                }
+                fileNode.blockAmount = blockAmount;
+                chunk.nodes[i] = fileNode;
+            }
+        }
+        progress.sectionRead(section);
+        return chunk;
+    }
+
+    /**
+     * @return the nodes of every chunk in node order, they must follow each other from the root
+     */
+    private static Node[] assemble(List<InodeChunk> chunks) throws IOException {
+        chunks.sort((a, b) -> Integer.compare(a.first, b.first));
+        Node[] nodes = chunks.size() == 1 && chunks.get(0).first == 0 ? chunks.get(0).nodes : concat(chunks);
+        if (nodes.length == 0 || !(nodes[0] instanceof DirNode))
+            throw new IOException("image has no root directory");
+        return nodes;
+    }
+
+    private static Node[] concat(List<InodeChunk> chunks) throws IOException {
+        long count = 0;
+        for (InodeChunk chunk : chunks) {
+            if (chunk.first != count)
+                throw new IOException("image has no nodes from " + count + " to " + chunk.first);
+            count += chunk.nodes.length;
+        }
+        if (count > Integer.MAX_VALUE)
+            throw new IOException("image has " + count + " nodes");
+        Node[] nodes = new Node[(int) count];
+        for (InodeChunk chunk : chunks)
+            System.arraycopy(chunk.nodes, 0, nodes, chunk.first, chunk.nodes.length);
+        return nodes;
+    }
+
+    /**
+     * Link the children of the directories of a section to them, sections link disjoint directories and children.
+     */
+    private static void readDirectories(FileChannel channel, Section section, int version, Node[] nodes, String[] names, LoadProgress progress) throws IOException {
+        try (DataInputStream in = openSection(channel, section)) {
+            int node = version == 1 ? 0 : readVarint(in);
+            int next = version == 1 ? 1 : readVarint(in);
+            int dirCount = version == 1 ? Integer.MAX_VALUE : readVarint(in);
+            for (; node < nodes.length && dirCount > 0; node++) {
+                if (!(nodes[node] instanceof DirNode))
+                    continue;
+                dirCount--;
+                int childCount = readVarint(in);
+                if (childCount < 0 || childCount > nodes.length - next)
+                    throw new IOException("image has more children than nodes");
+                for (int i = 0; i < childCount; i++) {
+                    int name = readVarint(in);
+                    if (name < 0 || name >= names.length)
+                        throw new IOException("image refers to name " + name + " of " + names.length);
+                    ((DirNode) nodes[node]).addEntry(new Entry(names[name], nodes[next++]));
+                }
+            }
+            if (version != 1 && dirCount > 0)
+                throw new IOException("image section " + section.id + " has " + dirCount + " directories too many");
+        }
+        progress.sectionRead(section);
+    }
+
+    /**
+     * @return the section, which fails to be read past its end or with another CRC32 than in the summary
+     */
+    private static DataInputStream openSection(FileChannel channel, Section section) throws IOException {
+        InputStream in = new InputStream() {
+            private final ByteBuffer one = ByteBuffer.allocate(1);
+            private long position = section.offset;
+            private final long end = section.offset + section.length;
+
+            @Override
+            public int read() throws IOException {
+                one.clear();
+                return read(one) <= 0 ? -1 : one.get(0) & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return read(ByteBuffer.wrap(b, off, len));
+            }
+
+            private int read(ByteBuffer dst) throws IOException {
+                if (position >= end)
+                    return -1;
+                if (dst.remaining() > end - position)
+                    dst.limit(dst.position() + (int) (end - position));
+                int count = channel.read(dst, position);
+                if (count > 0)
+                    position += count;
+                return count;
+            }
+        };
+        //summed a buffer at a time, not a byte
+        CheckedInputStream checked = new CheckedInputStream(in, new CRC32());
+        BufferedInputStream buffered = new BufferedInputStream(checked, 64 * 1024);
+        return new DataInputStream(buffered) {
+            @Override
+            public void close() throws IOException {
+                //the rest of the section counts too
+                while (buffered.skip(Long.MAX_VALUE) > 0) ;
+                if ((int) checked.getChecksum().getValue() != section.crc)
+                    throw new IOException("image section " + section.id + " at " + section.offset + " is corrupt");
+            }
+        };
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            if (channel.read(dst, position + dst.position()) < 0)
+                throw new EOFException();
+        }
+    }
+
+    static void writeVarint(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static int readVarint(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.readByte();
+            value |= (b & 0x7f) << shift;
+            if (b >= 0)
+                return value;
+        }
+        throw new IOException("varint is too long");
+    }
+
+    static void writeVarint(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            byte b = in.readByte();
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0)
+                return value;
+        }
+        throw new IOException("varint is too long");
+    }
+
+    private static class Section {
+        private final byte id;
+        private final long offset;
+        private final long length;
+        private final int crc;
+
+        Section(byte id, long offset, long length, int crc) {
+            this.id = id;
+            this.offset = offset;
+            this.length = length;
+            this.crc = crc;
+        }
+    }
+
+    private static class DataNodeTable {
+        private final InetAddress[] addresses;
+        private final int[] ports;
+
+        DataNodeTable(int size) {
+            this.addresses = new InetAddress[size];
+            this.ports = new int[size];
+        }
+    }
+
+    private static class InodeChunk {
+        private final int first;
+        private final Node[] nodes;
+
+        InodeChunk(int first, Node[] nodes) {
+            this.first = first;
+            this.nodes = nodes;
+        }
+    }
+
+    private static class LoadProgress {
+        private static final long QUIET_TIME = 1000;
+
+        private final File file;
+        private final long totalLength;
+        private final long startTime;
+        //guarded by this
+        private long loadedLength = 0;
+        private int reportedTenths = 0;
+
+        LoadProgress(File file, long totalLength, long startTime) {
+            this.file = file;
+            this.totalLength = totalLength;
+            this.startTime = startTime;
+        }
+
+        synchronized void sectionRead(Section section) {
+            loadedLength += section.length;
+            int tenths = totalLength == 0 ? 10 : (int) (loadedLength * 10 / totalLength);
+            if (tenths > reportedTenths && System.currentTimeMillis() - startTime >= QUIET_TIME) {
+                reportedTenths = tenths;
+                System.err.println("loading image " + file + ": " + tenths * 10 + "% of " + totalLength + " bytes");
+            }
+        }
+
+        void done(int nodeCount) {
+            System.err.println("loaded image " + file + " of " + nodeCount + " nodes in " + (System.currentTimeMillis() - startTime) + " ms");
+        }
+    }
+
+    /**
+     * Counts the bytes written and the CRC32 of the current section.
+     */
+    private static class SectionOutputStream extends FilterOutputStream {
+        private final CRC32 crc = new CRC32();
+        private long position = 0;
+        private long sectionOffset;
+
+        SectionOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        void startSection() {
+            sectionOffset = position;
+            crc.reset();
+        }
+
+        Section endSection(byte id) {
+            return new Section(id, sectionOffset, position - sectionOffset, (int) crc.getValue());
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            crc.update(b);
+            position++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            crc.update(b, off, len);
+            position += len;
+        }
+    }
+}
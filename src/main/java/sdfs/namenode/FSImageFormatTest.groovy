@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) Jipzingking 2016.
+ */
+
+package sdfs.namenode
+
+import sdfs.filetree.BlockInfo
+import sdfs.filetree.DirNode
+import sdfs.filetree.Entry
+import sdfs.filetree.ErasureCodingPolicy
+import sdfs.filetree.FileNode
+import spock.lang.Specification
+
+class FSImageFormatTest extends Specification {
+    static final List<InetAddress> DATA_NODES = (1..5).collect { InetAddress.getByAddress([10, 0, 0, it] as byte[]) }
+
+    def dir = File.createTempDir()
+
+    def cleanup() {
+        dir.deleteDir()
+    }
+
+    def "Test empty image round trip"() {
+        given:
+        new FSImage(new DirNode(), 7, 3).save(dir)
+
+        when:
+        def image = FSImage.load(dir)
+
+        then:
+        image.root.entryCount == 0
+        image.nextBlockNumber == 7
+        image.txid == 3
+    }
+
+    def "Test large image is loaded from many sections to the same tree"() {
+        given:
+        //a scaled down tree, still with more nodes and children than one section holds
+        def blockNumber = 0
+        def root = new DirNode()
+        def big = new DirNode()
+        root.addEntry(new Entry("big", big))
+        70000.times { big.addEntry(new Entry("f" + it, newFile(blockNumber++, 2))) }
+        300.times { i ->
+            def sub = new DirNode()
+            root.addEntry(new Entry("d" + i, sub))
+            100.times { sub.addEntry(new Entry("f" + it, newFile(blockNumber++, 3))) }
+        }
+        def ec = newFile(blockNumber, 5)
+        ec.erasureCodingPolicy = ErasureCodingPolicy.RS_3_2
+        root.addEntry(new Entry("ec", ec))
+        blockNumber++
+        //deeper than a recursive walk could go
+        def deep = root
+        5000.times {
+            def child = new DirNode()
+            deep.addEntry(new Entry("deep", child))
+            deep = child
+        }
+        new FSImage(root, blockNumber + 10, 42).save(dir)
+
+        when:
+        def image = FSImage.load(dir)
+
+        then:
+        image.nextBlockNumber == blockNumber + 10
+        image.txid == 42
+        countNodes(image.root) == 1 + 1 + 70000 + 300 * 101 + 1 + 5000
+        sameTree(root, image.root)
+        (image.root.getEntry("ec").node as FileNode).erasureCodingPolicy.name == ErasureCodingPolicy.RS_3_2.name
+    }
+
+    def "Test corrupt image is not loaded"() {
+        given:
+        def root = new DirNode()
+        1000.times { root.addEntry(new Entry("f" + it, newFile(it, 1))) }
+        new FSImage(root, 1000, 1).save(dir)
+        def file = dir.listFiles().find { FSImageFormat.isImage(it) }
+        def bytes = file.bytes
+        bytes[bytes.length.intdiv(2)] ^= 1
+        file.bytes = bytes
+
+        when:
+        FSImage.load(dir)
+
+        then:
+        thrown(IOException)
+    }
+
+    private static FileNode newFile(int blockNumber, int replication) {
+        def fileNode = new FileNode()
+        def blockInfo = new BlockInfo()
+        replication.times { blockInfo.addLocatedBlock(new LocatedBlock(DATA_NODES[it], 4344 + it, blockNumber)) }
+        fileNode.addBlockInfo(blockInfo)
+        fileNode.fileSize = blockNumber % 4096
+        fileNode
+    }
+
+    private static int countNodes(DirNode root) {
+        def count = 0
+        def stack = new ArrayDeque([root])
+        while (!stack.isEmpty()) {
+            def node = stack.pop()
+            count++
+            if (node instanceof DirNode)
+                node.each { stack.push(it.node) }
+        }
+        count
+    }
+
+    //entries compare by name only, so the children are compared here
+    private static boolean sameTree(DirNode expected, DirNode actual) {
+        def stack = new ArrayDeque([[expected, actual]])
+        while (!stack.isEmpty()) {
+            def (a, b) = stack.pop()
+            if (a.class != b.class)
+                return false
+            if (a instanceof FileNode) {
+                if (a != b || a.fileSize != b.fileSize || a.blockAmount != b.blockAmount)
+                    return false
+                continue
+            }
+            if (a.entryCount != b.entryCount)
+                return false
+            for (Entry entry : a) {
+                def other = b.getEntry(entry.name)
+                if (other == null)
+                    return false
+                stack.push([entry.node, other.node])
+            }
+        }
+        true
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) Jipzingking 2016.
+ */
+
+package sdfs.namenode;
+
+import sdfs.filetree.FileNode;
+import sdfs.protocol.INameNodeProtocol;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Leases of the open files. Every channel holds a lease on its file, which its client renews every
+ * LEASE_RENEW_INTERVAL. A lease not renewed within the expiry is taken back from a background thread,
+ * which closes the file for the client, so that the files of a dead client do not stay open forever.
+ * <p>
+ * Leases are kept in the order they were last renewed, so the expired ones are at the head and are found
+ * without looking at the others. The readers of every file node are indexed as well.
+ */
+class LeaseManager implements Closeable {
+    @FunctionalInterface
+    interface LeaseRecovery {
+        /**
+         * Close a file for the holder of an expired lease.
+         */
+        void recover(UUID holder, boolean readonly) throws IOException;
+    }
+
+    private final long expiry;
+    private final LeaseRecovery recovery;
+    private final Thread thread;
+    //oldest renewal first, everything below is guarded by this
+    private final LinkedHashMap<UUID, Lease> leases = new LinkedHashMap<>(16, 0.75f, true);
+    //file node to the holders reading it, by identity since equal files are different files
+    private final Map<FileNode, Set<UUID>> readers = new IdentityHashMap<>();
+    private boolean closed = false;
+
+    /**
+     * @param expiry milliseconds a lease lasts without renewal
+     */
+    LeaseManager(long expiry, LeaseRecovery recovery) {
+        if (expiry <= 0)
+            throw new IllegalArgumentException();
+        this.expiry = expiry;
+        this.recovery = recovery;
+        this.thread = new Thread(this::monitorLoop, "sdfs-lease-monitor");
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @param fileNode the file node read, which is the copy taken on open if the file is open for write
+     */
+    synchronized void addReader(UUID holder, FileNode fileNode) {
+        leases.put(holder, new Lease(fileNode, true));
+        readers.computeIfAbsent(fileNode, k -> new HashSet<>()).add(holder);
+    }
+
+    synchronized void addWriter(UUID holder, FileNode fileNode) {
+        leases.put(holder, new Lease(fileNode, false));
+    }
+
+    synchronized void remove(UUID holder) {
+        Lease lease = leases.remove(holder);
+        if (lease == null || !lease.readonly)
+            return;
+        Set<UUID> fileReaders = readers.get(lease.fileNode);
+        fileReaders.remove(holder);
+        if (fileReaders.isEmpty())
+            readers.remove(lease.fileNode);
+    }
+
+    /**
+     * @return false if the holder has no lease, it has been closed or taken back
+     */
+    synchronized boolean renew(UUID holder) {
+        //moves it to the tail
+        Lease lease = leases.get(holder);
+        if (lease == null)
+            return false;
+        lease.lastRenewal = System.currentTimeMillis();
+        return true;
+    }
+
+    /**
+     * @return a copy of the holders reading the file node, which the caller may change
+     */
+    synchronized Set<UUID> getReaders(FileNode fileNode) {
+        Set<UUID> fileReaders = readers.get(fileNode);
+        return fileReaders == null ? new HashSet<>() : new HashSet<>(fileReaders);
+    }
+
+    private synchronized Map<UUID, Boolean> getExpired() {
+        Map<UUID, Boolean> expired = new LinkedHashMap<>();
+        long expireTime = System.currentTimeMillis() - expiry;
+        Iterator<Map.Entry<UUID, Lease>> iter = leases.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<UUID, Lease> e = iter.next();
+            if (e.getValue().lastRenewal > expireTime)
+                break;
+            expired.put(e.getKey(), e.getValue().readonly);
+        }
+        return expired;
+    }
+
+    private void recoverExpired() {
+        for (Map.Entry<UUID, Boolean> e : getExpired().entrySet()) {
+            System.err.println("lease of " + e.getKey() + " expired, the file is closed");
+            try {
+                //the lease is removed as the file is closed
+                recovery.recover(e.getKey(), e.getValue());
+            } catch (IOException | RuntimeException ex) {
+                ex.printStackTrace();
+                //tried again once it expires again
+                renew(e.getKey());
+            }
+        }
+    }
+
+    private void monitorLoop() {
+        while (true) {
+            synchronized (this) {
+                long wakeUpTime = System.currentTimeMillis() + Math.max(1, Math.min(expiry / 2, INameNodeProtocol.LEASE_RENEW_INTERVAL));
+                try {
+                    long delay;
+                    while (!closed && (delay = wakeUpTime - System.currentTimeMillis()) > 0)
+                        wait(delay);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (closed)
+                    return;
+            }
+            recoverExpired();
+        }
+    }
+
+    private static class Lease {
+        private final FileNode fileNode;
+        private final boolean readonly;
+        private long lastRenewal = System.currentTimeMillis();
+
+        Lease(FileNode fileNode, boolean readonly) {
+            this.fileNode = fileNode;
+            this.readonly = readonly;
+        }
+    }
+}
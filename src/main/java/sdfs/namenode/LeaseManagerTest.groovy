@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) Jipzingking 2016.
+ */
+
+package sdfs.namenode
+
+import sdfs.filetree.FileNode
+import spock.lang.Specification
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+class LeaseManagerTest extends Specification {
+    static final long EXPIRY = 100
+
+    //holder to the file it has open, closed by the client or by lease recovery, whichever comes first
+    def open = new ConcurrentHashMap<UUID, FileNode>()
+    def closedBy = new ConcurrentHashMap<UUID, List<String>>()
+    def recovered = Collections.synchronizedList([])
+    LeaseManager leaseManager
+
+    def cleanup() {
+        leaseManager?.close()
+    }
+
+    //what name node does on close, a file already closed is left alone
+    def close(UUID holder, String by) {
+        if (open.remove(holder) != null)
+            closedBy.computeIfAbsent(holder, { Collections.synchronizedList([]) }) << by
+        leaseManager.remove(holder)
+    }
+
+    def "Test lease not renewed is taken back"() {
+        given:
+        leaseManager = new LeaseManager(EXPIRY, { holder, readonly ->
+            recovered << [holder, readonly]
+            close(holder, "recovery")
+        })
+        def fileNode = new FileNode()
+        def writer = UUID.randomUUID()
+        def reader = UUID.randomUUID()
+        open[writer] = fileNode
+        open[reader] = fileNode
+        leaseManager.addWriter(writer, fileNode)
+        leaseManager.addReader(reader, fileNode)
+        leaseManager.start()
+
+        when:
+        sleep(EXPIRY * 4)
+
+        then:
+        recovered as Set == [[writer, false], [reader, true]] as Set
+        open.isEmpty()
+        !leaseManager.renew(writer)
+        !leaseManager.renew(reader)
+        leaseManager.getReaders(fileNode).isEmpty()
+    }
+
+    def "Test lease renewed is kept"() {
+        given:
+        //long enough for a slow first renewal
+        leaseManager = new LeaseManager(EXPIRY * 10, { holder, readonly -> recovered << holder })
+        def holder = UUID.randomUUID()
+        leaseManager.addWriter(holder, new FileNode())
+        leaseManager.start()
+
+        when:
+        30.times {
+            sleep(EXPIRY)
+            assert leaseManager.renew(holder)
+        }
+
+        then:
+        recovered.isEmpty()
+    }
+
+    def "Test recovery racing client close closes every file once"() {
+        given:
+        leaseManager = new LeaseManager(EXPIRY, { holder, readonly -> close(holder, "recovery") })
+        def shared = new FileNode()
+        def holders = (0..<400).collect { UUID.randomUUID() }
+        holders.eachWithIndex { holder, i ->
+            def fileNode = i % 2 == 0 ? shared : new FileNode()
+            open[holder] = fileNode
+            if (i % 2 == 0)
+                leaseManager.addReader(holder, fileNode)
+            else
+                leaseManager.addWriter(holder, fileNode)
+        }
+        leaseManager.start()
+        def clients = Executors.newFixedThreadPool(8)
+        def random = new Random(7)
+
+        when:
+        //clients close around the time their leases expire
+        def closes = holders.collect { holder ->
+            long delay = EXPIRY - 20 + random.nextInt(80)
+            clients.submit { sleep(delay); close(holder, "client") }
+        }
+        closes*.get(5, TimeUnit.SECONDS)
+        sleep(EXPIRY * 3)
+
+        then:
+        open.isEmpty()
+        closedBy.keySet() == holders as Set
+        closedBy.values().every { it.size() == 1 }
+        holders.every { !leaseManager.renew(it) }
+        leaseManager.getReaders(shared).isEmpty()
+
+        cleanup:
+        clients.shutdown()
+    }
+
+    def "Test failed recovery does not bring back a lease closed meanwhile"() {
+        given:
+        def holder = UUID.randomUUID()
+        leaseManager = new LeaseManager(EXPIRY, { h, readonly ->
+            recovered << h
+            //the client closes the file while recovery fails
+            close(h, "client")
+            throw new IOException("recovery failed")
+        })
+        open[holder] = new FileNode()
+        leaseManager.addWriter(holder, open[holder])
+        leaseManager.start()
+
+        when:
+        sleep(EXPIRY * 5)
+
+        then:
+        recovered == [holder]
+        !leaseManager.renew(holder)
+    }
+
+    def "Test failed recovery is tried again"() {
+        given:
+        def holder = UUID.randomUUID()
+        def attempts = 0
+        leaseManager = new LeaseManager(EXPIRY, { h, readonly ->
+            if (++attempts == 1)
+                throw new IOException("recovery failed")
+            close(h, "recovery")
+        })
+        open[holder] = new FileNode()
+        leaseManager.addWriter(holder, open[holder])
+        leaseManager.start()
+
+        when:
+        sleep(EXPIRY * 6)
+
+        then:
+        attempts == 2
+        closedBy[holder] == ["recovery"]
+    }
+}
@@ -4,19 +4,29 @@
 
 package sdfs.namenode;
 
+import sdfs.datanode.DataNodeServer;
+import sdfs.protocol.RpcWritable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 
-public class LocatedBlock implements Serializable {
+public class LocatedBlock implements Serializable, RpcWritable {
     private static final long serialVersionUID = -6509598325324530684L;
     private final InetAddress inetAddress;
+    //0 in images saved before data nodes could listen on other ports
+    private final int port;
     private final int blockNumber;
 
-    LocatedBlock(InetAddress inetAddress, int blockNumber) {
+    LocatedBlock(InetAddress inetAddress, int port, int blockNumber) {
         if (inetAddress == null) {
             throw new NullPointerException();
         }
         this.inetAddress = inetAddress;
+        this.port = port;
         this.blockNumber = blockNumber;
     }
 
@@ -24,10 +34,37 @@ public class LocatedBlock implements Serializable {
         return inetAddress;
     }
 
+    public int getPort() {
+        return port == 0 ? DataNodeServer.DATA_NODE_PORT : port;
+    }
+
+    /**
+     * @return address of the data node holding the block
+     */
+    public InetSocketAddress getDataNodeAddress() {
+        return new InetSocketAddress(inetAddress, getPort());
+    }
+
     public int getBlockNumber() {
         return blockNumber;
     }
 
+    @Override
+    public void writeTo(DataOutput out) throws IOException {
+        byte[] address = inetAddress.getAddress();
+        out.writeByte(address.length);
+        out.write(address);
+        out.writeInt(getPort());
+        out.writeInt(blockNumber);
+    }
+
+    public static LocatedBlock readFrom(DataInput in) throws IOException {
+        byte[] address = new byte[in.readUnsignedByte()];
+        in.readFully(address);
+        int port = in.readInt();
+        return new LocatedBlock(InetAddress.getByAddress(address), port, in.readInt());
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -35,12 +72,13 @@ public class LocatedBlock implements Serializable {
 
         LocatedBlock that = (LocatedBlock) o;
 
-        return blockNumber == that.blockNumber && inetAddress.equals(that.inetAddress);
+        return blockNumber == that.blockNumber && getPort() == that.getPort() && inetAddress.equals(that.inetAddress);
     }
 
     @Override
     public int hashCode() {
         int result = inetAddress.hashCode();
+        result = 31 * result + getPort();
         result = 31 * result + blockNumber;
         return result;
     }
@@ -8,24 +8,99 @@ import sdfs.exception.SDFSFileAlreadyExistException;
 import sdfs.filetree.*;
 import sdfs.protocol.INameNodeDataNodeProtocol;
 import sdfs.protocol.INameNodeProtocol;
+import sdfs.protocol.RpcCodec;
+import sdfs.protocol.RpcDispatcher;
+import sdfs.protocol.RpcOpcode;
+import sdfs.protocol.RpcWritable;
+import sdfs.server.RpcServer;
+import sdfs.server.RpcServerConfig;
 import java.io.*;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.net.*;
 import java.nio.channels.OverlappingFileLockException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 
 public class NameNodeServer implements INameNodeProtocol, INameNodeDataNodeProtocol {
     public static final int NAME_NODE_PORT = 4343;
-    private final Map<UUID, FileNode> readonlyFile = new HashMap<>();
-    private final Map<UUID, FileNode> readwritePFile = new HashMap<>();
-    private final Map<UUID, FileNode> readwriteFileCopy = new HashMap<>();
-
-    String workingPath = "NameNodeFile/";
-    PriorityQueue<Integer> freeBlocks = new PriorityQueue<Integer>();
+    /**
+     * Every block is stored on this many data nodes if so many are alive, -Dsdfs.namenode.replication overrides it.
+     */
+    public static final int DEFAULT_REPLICATION = 3;
+    private final int replication = Integer.getInteger("sdfs.namenode.replication", DEFAULT_REPLICATION);
+    private final Map<UUID, FileNode> readonlyFile = new ConcurrentHashMap<>();
+    private final Map<UUID, FileNode> readwritePFile = new ConcurrentHashMap<>();
+    private final Map<UUID, FileNode> readwriteFileCopy = new ConcurrentHashMap<>();
+    //blocks a writer has copied on write, readers of the old file node may still read them
+    private final Map<UUID, List<Integer>> retiredBlocks = new ConcurrentHashMap<>();
+    //retired blocks of closed writers by every reader they wait for, freed once their readers are closed too.
+    //Guarded by itself
+    private final Map<UUID, List<PendingFree>> pendingFrees = new HashMap<>();
+
+    //the path of every file open for write, its changes are logged by path
+    private final Map<UUID, String> readwritePaths = new ConcurrentHashMap<>();
+
+    /*
+     * There is no lock over the whole namespace. Directories are looked up without locking, a create holds
+     * the monitor of its parent directory only, and a file is changed under the write lock of its stripe and
+     * read under the read lock, so that operations on different files do not wait for each other.
+     * Locks are taken in this order: file, pendingFrees, blockLock, the edit log.
+     */
+    private static final int FILE_LOCK_STRIPES = 1024;
+    private final ReentrantReadWriteLock[] fileLocks = new ReentrantReadWriteLock[FILE_LOCK_STRIPES];
+    private final Object blockLock = new Object();
+
+    final String workingPath;
+    //block numbers are never used again, so a replica of a freed block left on a data node cannot pass for
+    //a block of another file. Guarded by blockLock
+    int nextBlockNumber = 0;
     private DirNode root;
+    //namespace changes since the image, they are logged and synced instead of saving the whole image
+    private EditLog editLog;
+    //the transaction id of the image saved on startup
+    private long imageTxid;
+    /**
+     * A checkpoint is taken at least this often if anything changed, -Dsdfs.namenode.checkpointPeriod overrides it
+     * in seconds.
+     */
+    public static final long DEFAULT_CHECKPOINT_PERIOD = 60 * 60;
+    /**
+     * A checkpoint is taken once this many changes were logged, -Dsdfs.namenode.checkpointTxns overrides it.
+     */
+    public static final long DEFAULT_CHECKPOINT_TXNS = 100000;
+    private Checkpointer checkpointer;
+    /**
+     * Paths resolved to their nodes are cached up to this many, -Dsdfs.namenode.pathCacheSize overrides it.
+     */
+    public static final int DEFAULT_PATH_CACHE_SIZE = 4096;
+    //split by the hash of the path, each part with its own lock and a share of the size
+    private static final int PATH_CACHE_STRIPES = 16;
+    private final List<LRULinkedHashMap<String, Node>> pathCaches = new ArrayList<>(PATH_CACHE_STRIPES);
+    private final DataNodeManager dataNodeManager = new DataNodeManager();
+    private ReplicationMonitor replicationMonitor;
+    /**
+     * A file is closed if its lease is not renewed for this many seconds, -Dsdfs.namenode.leaseExpiry overrides it.
+     */
+    public static final long DEFAULT_LEASE_EXPIRY = 60;
+    private final LeaseManager leaseManager = new LeaseManager(Long.getLong("sdfs.namenode.leaseExpiry", DEFAULT_LEASE_EXPIRY) * 1000, this::recoverLease);
     public NameNodeServer() {
+        this("NameNodeFile/");
+    }
+
+    /**
+     * @param workingPath the directory of the image and the edit log
+     */
+    NameNodeServer(String workingPath) {
+        this.workingPath = workingPath;
+        int pathCacheSize = Integer.getInteger("sdfs.namenode.pathCacheSize", DEFAULT_PATH_CACHE_SIZE);
+        for (int i = 0; i < PATH_CACHE_STRIPES; i++) {
+            LRULinkedHashMap<String, Node> pathCache = new LRULinkedHashMap<>();
+            pathCache.setCapacity(Math.max(1, pathCacheSize / PATH_CACHE_STRIPES));
+            pathCaches.add(pathCache);
+        }
+        for (int i = 0; i < FILE_LOCK_STRIPES; i++)
+            fileLocks[i] = new ReentrantReadWriteLock();
         initial();
     }
 
@@ -36,21 +111,22 @@ public class NameNodeServer implements INameNodeProtocol, INameNodeDataNodeProto
 
         try {
             FileNode fileNode = (FileNode) traverse(fileUri);
-            if(readwritePFile.containsValue(fileNode)){
-                UUID ruuid = UUID.randomUUID();
-                Set<Map.Entry<UUID, FileNode>>  rwSet= readwritePFile.entrySet();
-                for (Map.Entry<UUID, FileNode> e:
-                     rwSet) {
-                    if(e.getValue().equals(fileNode)){
-                        ruuid = e.getKey();
-                        break;
-                    }
-                }
-                fileNode = readwriteFileCopy.get(ruuid);
-            }
             UUID uuid = UUID.randomUUID();
-            readonlyFile.put(uuid, fileNode);
-            return new SDFSFileChannel(uuid, fileNode.getFileSize(), fileNode.getBlockAmount(), fileNode, true);
+            FileNode snapshot;
+            ReentrantReadWriteLock.ReadLock lock = getFileLock(fileNode).readLock();
+            lock.lock();
+            try {
+                //a file open for write is read as it was when it was opened
+                UUID writer = fileNode.getWriter();
+                FileNode source = writer == null ? fileNode : readwriteFileCopy.get(writer);
+                snapshot = source.copy();
+                readonlyFile.put(uuid, source);
+                leaseManager.addReader(uuid, source);
+            } finally {
+                lock.unlock();
+            }
+            refreshLocations(snapshot);
+            return new SDFSFileChannel(uuid, snapshot.getFileSize(), snapshot.getBlockAmount(), snapshot, true);
 
         } catch (URISyntaxException e) {
             e.printStackTrace();
@@ -65,69 +141,136 @@ public class NameNodeServer implements INameNodeProtocol, INameNodeDataNodeProto
         try {
             FileNode fileNode = (FileNode) traverse(fileUri);
             UUID uuid = UUID.randomUUID();
-            if(readwritePFile.containsValue(fileNode))
-                throw new OverlappingFileLockException();
-            if (readwritePFile.containsKey(uuid))
-                throw new IllegalStateException();
-            readwritePFile.put(uuid, fileNode);
-            FileNode fileNodeCopy = (FileNode)fileNode.deepClone();
-            readwriteFileCopy.put(uuid,fileNodeCopy);
+            ReentrantReadWriteLock.WriteLock lock = getFileLock(fileNode).writeLock();
+            lock.lock();
+            try {
+                if (fileNode.getWriter() != null)
+                    throw new OverlappingFileLockException();
+                if (readwritePFile.containsKey(uuid))
+                    throw new IllegalStateException();
+                refreshLocations(fileNode);
+                openForWrite(uuid, fileUri, fileNode);
+                dataNodeManager.startConstruction(getBlockNumbers(fileNode));
+            } finally {
+                lock.unlock();
+            }
             return new SDFSFileChannel(uuid, fileNode.getFileSize(), fileNode.getBlockAmount(), fileNode, false);
         } catch (URISyntaxException e) {
             e.printStackTrace();
-        } catch (ClassNotFoundException e) {
-            e.printStackTrace();
         }
         return null;
     }
 
+    /**
+     * The caller holds the write lock of the file.
+     */
+    private void openForWrite(UUID uuid, String fileUri, FileNode fileNode) {
+        readwritePFile.put(uuid, fileNode);
+        readwritePaths.put(uuid, fileUri);
+        readwriteFileCopy.put(uuid, fileNode.copy());
+        fileNode.setWriter(uuid);
+        leaseManager.addWriter(uuid, fileNode);
+    }
+
+    /**
+     * Check that the file is still open for write by the channel, it may have been closed since it was looked up.
+     * The caller holds the write lock of the file.
+     *
+     * @return the path its changes are logged by
+     */
+    private String getOpenPath(UUID fileUuid, FileNode fileNode) throws IllegalStateException {
+        String fileUri = readwritePaths.get(fileUuid);
+        if (readwritePFile.get(fileUuid) != fileNode || fileUri == null)
+            throw new IllegalStateException();
+        return fileUri;
+    }
+
+    private ReentrantReadWriteLock getFileLock(FileNode fileNode) {
+        return fileLocks[(System.identityHashCode(fileNode) & Integer.MAX_VALUE) % FILE_LOCK_STRIPES];
+    }
+
 
     public Node traverse(String fileUri) throws IOException, URISyntaxException {
+        //a path seen before is neither parsed nor walked again
+        LRULinkedHashMap<String, Node> pathCache = getPathCache(fileUri);
+        synchronized (pathCache) {
+            Node cached = pathCache.get(fileUri);
+            if (cached != null)
+                return cached;
+        }
         String[] parseResult = parseUri(fileUri);
         Node tmpNode = root;
-        String name;
-        Iterator<Entry> iter;
-        boolean founded;
-        int len = parseResult.length;
 
-        for (int i = 0; i < len; i++) {
-            founded = false;
-            name = parseResult[i];
+        for (String name : parseResult) {
             if (tmpNode instanceof FileNode)
                 throw new IOException("it's not a directory");
+            Entry entry = ((DirNode) tmpNode).getEntry(name);
+            if (entry == null)
+                throw new FileNotFoundException();
+            tmpNode = entry.getNode();
+        }
+        cachePath(fileUri, tmpNode);
+        return tmpNode;
 
-            iter = ((DirNode) tmpNode).iterator();
-            while (iter.hasNext()) {
-                Entry entry = iter.next();
-                if (entry.getName().equals(name)) {
-                    founded = true;
-                    tmpNode = entry.getNode();
-                    break;
-                }
+    }
 
-            }
-            if (!founded) {
-                throw new FileNotFoundException();
+    /**
+     * Nodes are never removed or renamed, so a resolved path stays valid until the tree is loaded again.
+     * Missing paths are not cached, a later create adds them.
+     */
+    private void cachePath(String fileUri, Node node) {
+        LRULinkedHashMap<String, Node> pathCache = getPathCache(fileUri);
+        synchronized (pathCache) {
+            pathCache.put(fileUri, node);
+        }
+    }
+
+    private void invalidatePathCache() {
+        for (LRULinkedHashMap<String, Node> pathCache : pathCaches) {
+            synchronized (pathCache) {
+                pathCache.clear();
             }
         }
-        return tmpNode;
+    }
 
+    private LRULinkedHashMap<String, Node> getPathCache(String fileUri) {
+        return pathCaches.get((fileUri.hashCode() & Integer.MAX_VALUE) % PATH_CACHE_STRIPES);
     }
 
 
     @Override
     public SDFSFileChannel create(String fileUri) throws IOException {
+        return create(fileUri, null);
+    }
+
+    @Override
+    public SDFSFileChannel create(String fileUri, ErasureCodingPolicy erasureCodingPolicy) throws IOException {
         try {
-            FileNode fileNode = (FileNode) createNode(fileUri, 0);
+            FileNode fileNode = new FileNode();
+            fileNode.setErasureCodingPolicy(erasureCodingPolicy);
             UUID uuid = UUID.randomUUID();
-            readwritePFile.put(uuid, fileNode);
-            FileNode fileNodeCopy = (FileNode)fileNode.deepClone();
-            readwriteFileCopy.put(uuid,fileNodeCopy);
+            ReentrantReadWriteLock.WriteLock lock = getFileLock(fileNode).writeLock();
+            lock.lock();
+            try {
+                //open before anyone can see it, so no one else opens it for write first
+                openForWrite(uuid, fileUri, fileNode);
+                createNode(fileUri, fileNode, EditLog.OP_CREATE, out -> {
+                    RpcCodec.writeString(out, fileUri);
+                    RpcCodec.writeNullable(out, erasureCodingPolicy);
+                });
+            } catch (IOException | URISyntaxException | RuntimeException e) {
+                readwritePFile.remove(uuid);
+                readwritePaths.remove(uuid);
+                readwriteFileCopy.remove(uuid);
+                leaseManager.remove(uuid);
+                throw e;
+            } finally {
+                lock.unlock();
+            }
+            editLog.logSync();
             return new SDFSFileChannel(uuid, fileNode.getFileSize(), fileNode.getBlockAmount(), fileNode, false);
         } catch (URISyntaxException e) {
             e.printStackTrace();
-        } catch (ClassNotFoundException e) {
-            e.printStackTrace();
         }
         return null;
     }
@@ -135,27 +278,78 @@ public class NameNodeServer implements INameNodeProtocol, INameNodeDataNodeProto
 
     @Override
     public void closeReadonlyFile(UUID fileUuid) throws IllegalStateException, IOException {
-        readonlyFile.remove(fileUuid);
+        //a writer being closed looks for the readers under the same lock
+        synchronized (pendingFrees) {
+            readonlyFile.remove(fileUuid);
+            leaseManager.remove(fileUuid);
+            List<PendingFree> waiting = pendingFrees.remove(fileUuid);
+            if (waiting != null) {
+                for (PendingFree pendingFree : waiting) {
+                    pendingFree.readers.remove(fileUuid);
+                    if (pendingFree.readers.isEmpty())
+                        freeRetiredBlocks(pendingFree.blockNumbers);
+                }
+            }
+        }
+        editLog.logSync();
     }
 
 
     @Override
     public void closeReadwriteFile(UUID fileUuid, int newFileSize) throws IllegalStateException, IllegalArgumentException, IOException {
-        FileNode fileNode = readwritePFile.remove(fileUuid);
-        readwriteFileCopy.remove(fileUuid);
-        //if new file size not in (blockAmount * BLOCK_SIZE, (blockAmount + 1) * BLOCK_SIZE]
-        int blockAmount = fileNode.getBlockAmount();
-        if (!(newFileSize > ((blockAmount - 1) * DataNodeServer.BLOCK_SIZE) && newFileSize <= (blockAmount * DataNodeServer.BLOCK_SIZE)))
+        FileNode fileNode = readwritePFile.get(fileUuid);
+        if (fileNode == null)
+            throw new IllegalStateException();
+        boolean sizeValid;
+        ReentrantReadWriteLock.WriteLock lock = getFileLock(fileNode).writeLock();
+        lock.lock();
+        try {
+            //closed by lease recovery or another call meanwhile
+            if (!readwritePFile.remove(fileUuid, fileNode))
+                throw new IllegalStateException();
+            FileNode fileNodeCopy = readwriteFileCopy.remove(fileUuid);
+            String fileUri = readwritePaths.remove(fileUuid);
+            fileNode.setWriter(null);
+            leaseManager.remove(fileUuid);
+            dataNodeManager.completeConstruction(getBlockNumbers(fileNode));
+            List<Integer> retired = retiredBlocks.remove(fileUuid);
+            if (retired != null) {
+                synchronized (pendingFrees) {
+                    Set<UUID> readers = leaseManager.getReaders(fileNode);
+                    readers.addAll(leaseManager.getReaders(fileNodeCopy));
+                    if (readers.isEmpty()) {
+                        freeRetiredBlocks(retired);
+                    } else {
+                        PendingFree pendingFree = new PendingFree(retired, readers);
+                        for (UUID reader : readers)
+                            pendingFrees.computeIfAbsent(reader, k -> new ArrayList<>()).add(pendingFree);
+                    }
+                }
+            }
+            //if new file size not in (blockAmount * BLOCK_SIZE, (blockAmount + 1) * BLOCK_SIZE]
+            int blockAmount = fileNode.getBlockAmount();
+            sizeValid = newFileSize > ((blockAmount - 1) * DataNodeServer.BLOCK_SIZE) && newFileSize <= (blockAmount * DataNodeServer.BLOCK_SIZE);
+            if (sizeValid) {
+                fileNode.setFileSize(newFileSize);
+                editLog.log(EditLog.OP_CLOSE, out -> {
+                    RpcCodec.writeString(out, fileUri);
+                    out.writeInt(newFileSize);
+                });
+            }
+        } finally {
+            lock.unlock();
+        }
+        editLog.logSync();
+        if (!sizeValid)
             throw new IllegalArgumentException();
-        fileNode.setFileSize(newFileSize);
-        saveFileTree();
     }
 
 
     @Override
     public void mkdir(String fileUri) throws IOException {
         try {
-            createNode(fileUri, 1);
+            createNode(fileUri, new DirNode(), EditLog.OP_MKDIR, out -> RpcCodec.writeString(out, fileUri));
+            editLog.logSync();
         } catch (URISyntaxException e) {
             e.printStackTrace();
         }
@@ -163,20 +357,59 @@ public class NameNodeServer implements INameNodeProtocol, INameNodeDataNodeProto
 
 
     @Override
-    public LocatedBlock addBlock(UUID fileUuid) throws IllegalStateException {
+    public BlockInfo addBlock(UUID fileUuid) throws IllegalStateException {
+        BlockInfo blockInfo = allocateBlock(fileUuid);
+        syncEditLog();
+        return blockInfo;
+    }
+
+    /**
+     * Add a block to a file open for write and log it, the caller syncs the log.
+     */
+    private BlockInfo allocateBlock(UUID fileUuid) throws IllegalStateException {
         if (readonlyFile.containsKey(fileUuid))
             throw new IllegalStateException();
         FileNode fileNode = readwritePFile.get(fileUuid);
+        if (fileNode == null)
+            throw new IllegalStateException();
+        ErasureCodingPolicy erasureCodingPolicy = fileNode.getErasureCodingPolicy();
+        ReentrantReadWriteLock.WriteLock lock = getFileLock(fileNode).writeLock();
         try {
-            int blockNumber = getBlockNumber();
-            saveMetadata();
-            InetAddress inetAddress = InetAddress.getByName("localhost");
-            LocatedBlock locatedBlock = new LocatedBlock(inetAddress, blockNumber);
+            //chosen first, so that no block number is taken if there is no data node
+            //units of a block on one data node would be lost together, so each needs its own
+            List<InetSocketAddress> targets = erasureCodingPolicy == null ? dataNodeManager.chooseTargets(replication)
+                    : dataNodeManager.chooseTargets(erasureCodingPolicy.getUnitCount(), erasureCodingPolicy.getUnitCount());
             BlockInfo blockInfo = new BlockInfo();
-            blockInfo.addLocatedBlock(locatedBlock);
-            fileNode.addBlockInfo(blockInfo);
-            saveFileTree();
-            return locatedBlock;
+            lock.lock();
+            try {
+                String fileUri = getOpenPath(fileUuid, fileNode);
+                if (erasureCodingPolicy == null) {
+                    int blockNumber = getBlockNumber();
+                    dataNodeManager.addBlock(blockNumber);
+                    //every replica has the same block number on its own data node
+                    for (InetSocketAddress target : targets)
+                        blockInfo.addLocatedBlock(new LocatedBlock(target.getAddress(), target.getPort(), blockNumber));
+                } else {
+                    //every unit is a block of its own, on a data node of its own
+                    List<Integer> blockNumbers = new ArrayList<>();
+                    for (int i = 0; i < erasureCodingPolicy.getUnitCount(); i++) {
+                        InetSocketAddress target = targets.get(i);
+                        int blockNumber = getBlockNumber();
+                        dataNodeManager.addBlock(blockNumber);
+                        blockNumbers.add(blockNumber);
+                        blockInfo.addLocatedBlock(new LocatedBlock(target.getAddress(), target.getPort(), blockNumber));
+                    }
+                    dataNodeManager.setErasureCoded(blockNumbers);
+                }
+                fileNode.addBlockInfo(blockInfo);
+                editLog.log(EditLog.OP_ADD_BLOCK, out -> {
+                    RpcCodec.writeString(out, fileUri);
+                    blockInfo.writeTo(out);
+                });
+            } finally {
+                lock.unlock();
+            }
+            return blockInfo;
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -184,81 +417,361 @@ public class NameNodeServer implements INameNodeProtocol, INameNodeDataNodeProto
     }
 
     @Override
-    public List<LocatedBlock> addBlocks(UUID fileUuid, int blockAmount) throws IllegalStateException {
+    public List<BlockInfo> addBlocks(UUID fileUuid, int blockAmount) throws IllegalStateException {
 
-        List<LocatedBlock> blocks = new ArrayList<LocatedBlock>(blockAmount);
+        List<BlockInfo> blocks = new ArrayList<BlockInfo>(blockAmount);
         for (int i = 0; i < blockAmount; i++) {
-            blocks.add(addBlock(fileUuid));
+            blocks.add(allocateBlock(fileUuid));
         }
+        //one sync for all of them
+        syncEditLog();
         return blocks;
     }
 
 
     @Override
     public void removeLastBlock(UUID fileUuid) throws IllegalStateException {
+        releaseLastBlock(fileUuid);
+        syncEditLog();
+    }
+
+    /**
+     * Remove the last block of a file open for write and log it, the caller syncs the log.
+     */
+    private void releaseLastBlock(UUID fileUuid) throws IllegalStateException {
         if (readonlyFile.containsKey(fileUuid))
             throw new IllegalStateException();
         FileNode fileNode = readwritePFile.get(fileUuid);
-        fileNode.removeLastBlockInfo();
-        int blockNumber = fileNode.getLastBlockInfo().iterator().next().getBlockNumber();
-        freeBlocks.add(blockNumber);
+        if (fileNode == null)
+            throw new IllegalStateException();
+        ReentrantReadWriteLock.WriteLock lock = getFileLock(fileNode).writeLock();
+        lock.lock();
         try {
-            saveMetadata();
-        } catch (IOException e) {
-            e.printStackTrace();
+            String fileUri = getOpenPath(fileUuid, fileNode);
+            //free the removed block, not the new last one
+            List<Integer> blockNumbers = getBlockNumbers(fileNode, fileNode.getLastBlockInfo());
+            List<Integer> snapshotBlockNumbers = getBlockNumbers(readwriteFileCopy.get(fileUuid));
+            fileNode.removeLastBlockInfo();
+            List<Integer> freed = new ArrayList<>();
+            for (int blockNumber : blockNumbers) {
+                if (snapshotBlockNumbers.contains(blockNumber)) {
+                    //readers opened before the truncate still read it
+                    retireBlock(fileUuid, blockNumber);
+                } else {
+                    dataNodeManager.removeBlock(blockNumber);
+                    freed.add(blockNumber);
+                }
+            }
+            editLog.log(EditLog.OP_REMOVE_LAST_BLOCK, out -> {
+                RpcCodec.writeString(out, fileUri);
+                RpcCodec.writeIntList(out, freed);
+            });
+        } finally {
+            lock.unlock();
         }
-        saveFileTree();
     }
 
     @Override
     public void removeLastBlocks(UUID fileUuid, int blockAmount) throws IllegalStateException {
         for (int i = 0; i < blockAmount; i++) {
-            removeLastBlock(fileUuid);
+            releaseLastBlock(fileUuid);
         }
+        syncEditLog();
     }
 
-    public Node createNode(String fileUri, int type) throws URISyntaxException, IOException {
+    /**
+     * For the methods that cannot throw IOException by their interface.
+     */
+    private void syncEditLog() {
+        try {
+            editLog.logSync();
+        } catch (IOException e) {
+            throw new IllegalStateException("cannot write edit log", e);
+        }
+    }
+
+    @Override
+    public BlockInfo copyOnWriteBlock(UUID fileUuid, int blockIndex) throws IllegalStateException, IndexOutOfBoundsException, IOException {
+        BlockInfo blockInfo = copyBlockInfo(fileUuid, blockIndex);
+        editLog.logSync();
+        return blockInfo;
+    }
+
+    private BlockInfo copyBlockInfo(UUID fileUuid, int blockIndex) throws IllegalStateException, IndexOutOfBoundsException, IOException {
+        FileNode fileNode = readwritePFile.get(fileUuid);
+        if (fileNode == null)
+            throw new IllegalStateException();
+        ReentrantReadWriteLock.WriteLock lock = getFileLock(fileNode).writeLock();
+        lock.lock();
+        try {
+            String fileUri = getOpenPath(fileUuid, fileNode);
+            BlockInfo origin = fileNode.getBlockInfo(blockIndex);
+            List<Integer> originBlockNumbers = getBlockNumbers(fileNode, origin);
+            BlockInfo blockInfo = new BlockInfo();
+            //a replicated block has one number, a coded one a number for every unit
+            Map<Integer, Integer> copies = new HashMap<>();
+            for (int originBlockNumber : originBlockNumbers) {
+                int blockNumber = getBlockNumber();
+                dataNodeManager.addBlock(blockNumber);
+                copies.put(originBlockNumber, blockNumber);
+            }
+            if (fileNode.getErasureCodingPolicy() != null)
+                dataNodeManager.setErasureCoded(copies.values());
+            //the copy is made by the data nodes already holding the origin, so it stays on them
+            for (LocatedBlock locatedBlock : origin.getLocatedBlocks())
+                blockInfo.addLocatedBlock(new LocatedBlock(locatedBlock.getInetAddress(), locatedBlock.getPort(), copies.get(locatedBlock.getBlockNumber())));
+            fileNode.setBlockInfo(blockIndex, blockInfo);
+            editLog.log(EditLog.OP_SET_BLOCK, out -> {
+                RpcCodec.writeString(out, fileUri);
+                out.writeInt(blockIndex);
+                blockInfo.writeTo(out);
+            });
+            for (int originBlockNumber : originBlockNumbers)
+                retireBlock(fileUuid, originBlockNumber);
+            return blockInfo;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void retireBlock(UUID fileUuid, int blockNumber) {
+        //no longer written, so it may be replicated again
+        dataNodeManager.completeConstruction(Collections.singletonList(blockNumber));
+        retiredBlocks.computeIfAbsent(fileUuid, k -> new ArrayList<>()).add(blockNumber);
+    }
+
+    /**
+     * The caller syncs the log.
+     */
+    private void freeRetiredBlocks(List<Integer> blockNumbers) {
+        for (int blockNumber : blockNumbers)
+            dataNodeManager.removeBlock(blockNumber);
+        editLog.log(EditLog.OP_FREE_BLOCKS, out -> RpcCodec.writeIntList(out, blockNumbers));
+    }
+
+    @Override
+    public void renewLeases(List<UUID> fileUuids) {
+        for (UUID fileUuid : fileUuids)
+            leaseManager.renew(fileUuid);
+    }
+
+    /**
+     * Close a file for a client whose lease expired, as the client would.
+     * Name node does not know how far the last block was written, so the file keeps the size it had
+     * when it was opened if that still fits its blocks, otherwise it is taken to end with its last block.
+     */
+    private void recoverLease(UUID fileUuid, boolean readonly) throws IOException {
+        if (readonly) {
+            closeReadonlyFile(fileUuid);
+            return;
+        }
+        FileNode fileNode = readwritePFile.get(fileUuid);
+        if (fileNode == null) {
+            //closed meanwhile
+            leaseManager.remove(fileUuid);
+            return;
+        }
+        int newFileSize;
+        ReentrantReadWriteLock.ReadLock lock = getFileLock(fileNode).readLock();
+        lock.lock();
+        try {
+            int blockAmount = fileNode.getBlockAmount();
+            newFileSize = Math.min(Math.max(fileNode.getFileSize(), (blockAmount - 1) * DataNodeServer.BLOCK_SIZE + 1), blockAmount * DataNodeServer.BLOCK_SIZE);
+        } finally {
+            lock.unlock();
+        }
+        try {
+            closeReadwriteFile(fileUuid, newFileSize);
+        } catch (IllegalStateException e) {
+            //closed by the client meanwhile, its close has removed the lease
+        }
+    }
+
+    @Override
+    public UUID registerDataNode(String host, int port) throws IOException {
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        if (address.isUnresolved())
+            throw new UnknownHostException(host);
+        return dataNodeManager.register(address);
+    }
+
+    @Override
+    public List<Integer> sendHeartbeat(UUID dataNodeId, long capacity, long remaining, int blockCount, int activeStreams) throws IllegalStateException {
+        return dataNodeManager.heartbeat(dataNodeId, capacity, remaining, activeStreams);
+    }
+
+    @Override
+    public void blockReport(UUID dataNodeId, List<Integer> blockNumbers) throws IllegalStateException {
+        dataNodeManager.blockReport(dataNodeId, blockNumbers);
+    }
+
+    @Override
+    public void blockReceivedAndDeleted(UUID dataNodeId, List<Integer> receivedBlockNumbers, List<Integer> deletedBlockNumbers) throws IllegalStateException {
+        dataNodeManager.blockReceivedAndDeleted(dataNodeId, receivedBlockNumbers, deletedBlockNumbers);
+    }
+
+    @Override
+    public ReplicationWork getReplicationWork(UUID dataNodeId) throws IllegalStateException {
+        return dataNodeManager.getReplicationWork(dataNodeId);
+    }
+
+    @Override
+    public void commitReplicationWork(UUID dataNodeId, UUID replicationWorkUuid) throws IllegalStateException {
+        dataNodeManager.commitReplicationWork(dataNodeId, replicationWorkUuid);
+    }
+
+    /**
+     * @return addresses of the live data nodes holding the block, as they last reported
+     */
+    public List<InetSocketAddress> getBlockLocations(int blockNumber) {
+        return dataNodeManager.getLocations(blockNumber);
+    }
+
+    /**
+     * Schedule copies of the blocks left with too few replicas from now on.
+     */
+    public synchronized void startReplicationMonitor() {
+        if (replicationMonitor != null)
+            throw new IllegalStateException("already monitoring");
+        replicationMonitor = new ReplicationMonitor(dataNodeManager, replication);
+        replicationMonitor.start();
+    }
+
+    public synchronized void stopReplicationMonitor() {
+        if (replicationMonitor != null) {
+            replicationMonitor.close();
+            replicationMonitor = null;
+        }
+    }
+
+    /**
+     * Take back the leases of clients that stopped renewing them from now on.
+     */
+    public void startLeaseMonitor() {
+        leaseManager.start();
+    }
+
+    public void stopLeaseMonitor() {
+        leaseManager.close();
+    }
+
+    /**
+     * Merge the edit log into a new image from time to time from now on.
+     */
+    public synchronized void startCheckpointer() {
+        if (checkpointer != null)
+            throw new IllegalStateException("already checkpointing");
+        long period = Long.getLong("sdfs.namenode.checkpointPeriod", DEFAULT_CHECKPOINT_PERIOD) * 1000;
+        long txns = Long.getLong("sdfs.namenode.checkpointTxns", DEFAULT_CHECKPOINT_TXNS);
+        checkpointer = new Checkpointer(new File(workingPath), editLog, imageTxid, period, txns);
+        checkpointer.start();
+    }
+
+    public synchronized void stopCheckpointer() {
+        if (checkpointer != null) {
+            checkpointer.close();
+            checkpointer = null;
+        }
+    }
+
+    /**
+     * Point the blocks of a file at the data nodes that reported them, the replicas may have been copied
+     * since the file was written. A block nobody reported yet keeps its old locations.
+     */
+    private void refreshLocations(FileNode fileNode) {
+        //a unit is never copied, it stays where it was written
+        if (fileNode.getErasureCodingPolicy() != null)
+            return;
+        for (BlockInfo blockInfo : fileNode) {
+            if (blockInfo.getLocatedBlocks().isEmpty())
+                continue;
+            int blockNumber = blockInfo.getLocatedBlocks().get(0).getBlockNumber();
+            List<InetSocketAddress> locations = dataNodeManager.getLocations(blockNumber);
+            if (locations.isEmpty())
+                continue;
+            for (LocatedBlock locatedBlock : new ArrayList<>(blockInfo.getLocatedBlocks())) {
+                if (!locations.contains(locatedBlock.getDataNodeAddress()))
+                    blockInfo.removeLocatedBlock(locatedBlock);
+            }
+            for (InetSocketAddress location : locations) {
+                LocatedBlock locatedBlock = new LocatedBlock(location.getAddress(), location.getPort(), blockNumber);
+                if (!blockInfo.getLocatedBlocks().contains(locatedBlock))
+                    blockInfo.addLocatedBlock(locatedBlock);
+            }
+        }
+    }
+
+    private static List<Integer> getBlockNumbers(FileNode fileNode) {
+        List<Integer> blockNumbers = new ArrayList<>();
+        for (BlockInfo blockInfo : fileNode)
+            blockNumbers.addAll(getBlockNumbers(fileNode, blockInfo));
+        return blockNumbers;
+    }
+
+    /**
+     * @return the block number shared by the replicas of the block, or the block number of every unit
+     */
+    static List<Integer> getBlockNumbers(FileNode fileNode, BlockInfo blockInfo) {
+        if (blockInfo.getLocatedBlocks().isEmpty())
+            return Collections.emptyList();
+        if (fileNode.getErasureCodingPolicy() == null)
+            return Collections.singletonList(blockInfo.getLocatedBlocks().get(0).getBlockNumber());
+        List<Integer> blockNumbers = new ArrayList<>();
+        for (LocatedBlock locatedBlock : blockInfo)
+            blockNumbers.add(locatedBlock.getBlockNumber());
+        return blockNumbers;
+    }
+
+    /**
+     * Walk the tree without recursion, it may be deeper than the stack.
+     */
+    private static void collectBlockNumbers(Node root, List<Integer> blockNumbers, List<Integer> erasureCodedBlockNumbers) {
+        Deque<Node> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            Node node = stack.pop();
+            if (node instanceof FileNode) {
+                FileNode fileNode = (FileNode) node;
+                List<Integer> fileBlockNumbers = getBlockNumbers(fileNode);
+                blockNumbers.addAll(fileBlockNumbers);
+                if (fileNode.getErasureCodingPolicy() != null)
+                    erasureCodedBlockNumbers.addAll(fileBlockNumbers);
+            } else {
+                for (Entry entry : (DirNode) node)
+                    stack.push(entry.getNode());
+            }
+        }
+    }
+
+    /**
+     * Add a node to its parent directory and log it, the caller syncs the log.
+     * Creates in one directory are made one at a time, a node is logged before anyone can see it,
+     * so a change to it or under it is always logged after it.
+     */
+    private void createNode(String fileUri, Node node, byte op, RpcWritable edit) throws URISyntaxException, IOException {
         String[] parseResult = parseUri(fileUri);
         Node tmpNode = root;
-        String name;
-        Iterator<Entry> iter;
-        boolean isExist;
         int len = parseResult.length;
-        int i;
-        //find first directory
-        for (i = 0; i < len; i++) {
-            isExist = false;
-            name = parseResult[i];
+        //find the parent directory
+        for (int i = 0; i < len - 1; i++) {
             if (tmpNode instanceof FileNode)
                 throw new IOException("it's not a directory");
-            iter = ((DirNode) tmpNode).iterator();
-            while (iter.hasNext()) {
-                Entry entry = iter.next();
-                if (entry.getName().equals(name)) {
-                    isExist = true;
-                    tmpNode = entry.getNode();
-                    break;
-                }
-            }
-            if (!isExist && i != len - 1)
+            Entry entry = ((DirNode) tmpNode).getEntry(parseResult[i]);
+            if (entry == null)
                 throw new FileNotFoundException();
-            if (isExist && i == len - 1)
-                throw new SDFSFileAlreadyExistException();
-
+            tmpNode = entry.getNode();
         }
+        if (tmpNode instanceof FileNode)
+            throw new IOException("it's not a directory");
         DirNode parentNode = (DirNode) tmpNode;
-        name = parseResult[len - 1];
-        if (type == 0) {
-            FileNode fileNode = new FileNode();
-            parentNode.addEntry(new Entry(name, fileNode));
-            saveFileTree();
-            return fileNode;
-        } else {
-            DirNode dirNode = new DirNode();
-            parentNode.addEntry(new Entry(name, dirNode));
-            saveFileTree();
+        String name = parseResult[len - 1];
+        synchronized (parentNode) {
+            if (parentNode.getEntry(name) != null)
+                throw new SDFSFileAlreadyExistException();
+            editLog.log(op, edit);
+            parentNode.addEntry(new Entry(name, node));
         }
-        return null;
+        cachePath(fileUri, node);
     }
 
 
@@ -273,73 +786,53 @@ public class NameNodeServer implements INameNodeProtocol, INameNodeDataNodeProto
 
 
 
-    public void saveFileTree() {
-        try {
-            File file = new File("NameNodeFile/fsimage");
-            if (!file.exists())
-                file.createNewFile();
-            ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(file));
-            out.writeObject(root);
-            out.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
-
-
+    /**
+     * Load the last image and replay the edit log on top of it. The result is saved as a new image,
+     * and the log starts over in a new segment, the {@link Checkpointer} merges it into the image from then on.
+     * -Dsdfs.namenode.editLogSync=false acknowledges changes once written, before they are forced to disk.
+     */
     public void initial() {
         try {
-            File file0 = new File("NameNodeFile/");
+            File file0 = new File(workingPath);
             if (!file0.exists())
                 file0.mkdir();
-            File file = new File("NameNodeFile/fsimage");
-            if (!file.exists()) {
-                file.createNewFile();
-                root = new DirNode();
-                saveFileTree();
-            } else {
-                ObjectInputStream in = new ObjectInputStream(new FileInputStream(file));
-                root = (DirNode) in.readObject();
-                in.close();
-            }
-
-            File file1 = new File("NameNodeFile/metadata");
-            if (!file1.exists()) {
-                file1.createNewFile();
-                freeBlocks.add(0);
-                saveMetadata();
-            } else {
-                ObjectInputStream in1 = new ObjectInputStream(new FileInputStream(file1));
-                freeBlocks = (PriorityQueue<Integer>) in1.readObject();
-                in1.close();
-            }
+            FSImage image = FSImage.load(file0);
+            long loadedTxid = image.getTxid();
+            image.replayEdits(file0, Long.MAX_VALUE);
+            if (image.getTxid() > loadedTxid || !FSImage.exists(file0))
+                image.save(file0);
+            //every change in them is in the image now
+            EditLog.purge(file0, image.getTxid());
+            root = image.getRoot();
+            nextBlockNumber = image.getNextBlockNumber();
+            imageTxid = image.getTxid();
+            editLog = new EditLog(file0, imageTxid, Boolean.parseBoolean(System.getProperty("sdfs.namenode.editLogSync", "true")));
+            invalidatePathCache();
+            List<Integer> blockNumbers = new ArrayList<>();
+            List<Integer> erasureCodedBlockNumbers = new ArrayList<>();
+            collectBlockNumbers(root, blockNumbers, erasureCodedBlockNumbers);
+            dataNodeManager.addBlocks(blockNumbers);
+            dataNodeManager.setErasureCoded(erasureCodedBlockNumbers);
 
         } catch (IOException e) {
             e.printStackTrace();
-        } catch (ClassNotFoundException e) {
-            e.printStackTrace();
         }
     }
 
 
     public int getBlockNumber() throws IOException {
-        int blockNumber = freeBlocks.poll();
-        if (freeBlocks.size() == 0) {
-            freeBlocks.add((blockNumber + 1));
+        synchronized (blockLock) {
+            if (nextBlockNumber == Integer.MAX_VALUE)
+                throw new IOException("block numbers are used up");
+            return nextBlockNumber++;
         }
-        saveMetadata();
-        return blockNumber;
     }
 
-    public void saveMetadata() throws IOException {
-        File file = new File(workingPath + "metadata");
-        FileOutputStream outputStream = new FileOutputStream(file);
-        ObjectOutputStream obj_out = new ObjectOutputStream(outputStream);
-        obj_out.writeObject(freeBlocks);
+    public String[] parseUri(String fileUri) throws URISyntaxException {
+        return splitUri(fileUri);
     }
 
-
-    public String[] parseUri(String fileUri) throws URISyntaxException {
+    static String[] splitUri(String fileUri) {
         fileUri.trim();
         int len = fileUri.length();
 
@@ -354,66 +847,84 @@ public class NameNodeServer implements INameNodeProtocol, INameNodeDataNodeProto
         return finalResult;
     }
 
-    public static void main(String args[]) throws IOException {
-        NameNodeServer nameNodeServer = new NameNodeServer();
-        ServerSocket serverSocket = new ServerSocket(NAME_NODE_PORT);
-        while (true) {
-            Socket socket = null;
-            try {
-                socket = serverSocket.accept();
-                ServerThread thread = new ServerThread(socket, nameNodeServer);
-                thread.start();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
-    }
-}
-
-class ServerThread extends Thread {
-
-    Socket socket;
-    NameNodeServer nameNodeServer;
-
-    public ServerThread(Socket socket, NameNodeServer nameNodeServer) {
-        this.socket = socket;
-        this.nameNodeServer = nameNodeServer;
+    /**
+     * @return the opcode to handler table of this name node
+     */
+    public RpcDispatcher createDispatcher() {
+        RpcDispatcher dispatcher = new RpcDispatcher();
+        dispatcher.register(RpcOpcode.OPEN_READONLY, (in, out) -> RpcCodec.writeNullable(out, openReadonly(RpcCodec.readString(in))));
+        dispatcher.register(RpcOpcode.OPEN_READWRITE, (in, out) -> RpcCodec.writeNullable(out, openReadwrite(RpcCodec.readString(in))));
+        dispatcher.register(RpcOpcode.CREATE, (in, out) -> {
+            String fileUri = RpcCodec.readString(in);
+            ErasureCodingPolicy erasureCodingPolicy = in.readBoolean() ? ErasureCodingPolicy.readFrom(in) : null;
+            RpcCodec.writeNullable(out, create(fileUri, erasureCodingPolicy));
+        });
+        dispatcher.register(RpcOpcode.CLOSE_READONLY_FILE, (in, out) -> closeReadonlyFile(RpcCodec.readUuid(in)));
+        dispatcher.register(RpcOpcode.CLOSE_READWRITE_FILE, (in, out) -> {
+            UUID fileUuid = RpcCodec.readUuid(in);
+            closeReadwriteFile(fileUuid, in.readInt());
+        });
+        dispatcher.register(RpcOpcode.COPY_ON_WRITE_BLOCK, (in, out) -> {
+            UUID fileUuid = RpcCodec.readUuid(in);
+            copyOnWriteBlock(fileUuid, in.readInt()).writeTo(out);
+        });
+        dispatcher.register(RpcOpcode.MKDIR, (in, out) -> mkdir(RpcCodec.readString(in)));
+        dispatcher.register(RpcOpcode.ADD_BLOCK, (in, out) -> RpcCodec.writeNullable(out, addBlock(RpcCodec.readUuid(in))));
+        dispatcher.register(RpcOpcode.ADD_BLOCKS, (in, out) -> {
+            UUID fileUuid = RpcCodec.readUuid(in);
+            RpcCodec.writeList(out, addBlocks(fileUuid, in.readInt()));
+        });
+        dispatcher.register(RpcOpcode.REMOVE_LAST_BLOCK, (in, out) -> removeLastBlock(RpcCodec.readUuid(in)));
+        dispatcher.register(RpcOpcode.REMOVE_LAST_BLOCKS, (in, out) -> {
+            UUID fileUuid = RpcCodec.readUuid(in);
+            removeLastBlocks(fileUuid, in.readInt());
+        });
+        dispatcher.register(RpcOpcode.RENEW_LEASES, (in, out) -> renewLeases(RpcCodec.readUuidList(in)));
+        dispatcher.register(RpcOpcode.LIST, (in, out) -> list(RpcCodec.readString(in)).writeEntriesTo(out));
+        dispatcher.register(RpcOpcode.REGISTER_DATA_NODE, (in, out) -> {
+            String host = in.readUTF();
+            RpcCodec.writeUuid(out, registerDataNode(host, in.readInt()));
+        });
+        dispatcher.register(RpcOpcode.HEARTBEAT, (in, out) -> {
+            UUID dataNodeId = RpcCodec.readUuid(in);
+            long capacity = in.readLong();
+            long remaining = in.readLong();
+            int blockCount = in.readInt();
+            RpcCodec.writeIntList(out, sendHeartbeat(dataNodeId, capacity, remaining, blockCount, in.readInt()));
+        });
+        dispatcher.register(RpcOpcode.BLOCK_REPORT, (in, out) -> {
+            UUID dataNodeId = RpcCodec.readUuid(in);
+            blockReport(dataNodeId, RpcCodec.readIntList(in));
+        });
+        dispatcher.register(RpcOpcode.BLOCK_RECEIVED_AND_DELETED, (in, out) -> {
+            UUID dataNodeId = RpcCodec.readUuid(in);
+            List<Integer> received = RpcCodec.readIntList(in);
+            blockReceivedAndDeleted(dataNodeId, received, RpcCodec.readIntList(in));
+        });
+        dispatcher.register(RpcOpcode.GET_REPLICATION_WORK, (in, out) -> getReplicationWork(RpcCodec.readUuid(in)).writeTo(out));
+        dispatcher.register(RpcOpcode.COMMIT_REPLICATION_WORK, (in, out) -> {
+            UUID dataNodeId = RpcCodec.readUuid(in);
+            commitReplicationWork(dataNodeId, RpcCodec.readUuid(in));
+        });
+        return dispatcher;
     }
 
-    public Socket getSocket() {
-        return socket;
+    public static void main(String args[]) throws IOException {
+        NameNodeServer nameNodeServer = new NameNodeServer();
+        RpcServer server = new RpcServer(new RpcServerConfig(NAME_NODE_PORT), nameNodeServer.createDispatcher());
+        server.start();
+        nameNodeServer.startReplicationMonitor();
+        nameNodeServer.startCheckpointer();
+        nameNodeServer.startLeaseMonitor();
     }
 
-    public void run() {
-        try {
-            ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
-//            System.out.println(1);
-            String method = (String) in.readObject();
-            Class<?>[] paraType = (Class<?>[]) in.readObject();
-            Object[] paras = (Object[]) in.readObject();
-
-            Class<?> cla = Class.forName("sdfs.namenode.NameNodeServer");
-            Method m = cla.getMethod(method, paraType);
-
-            try {
-                Object result = m.invoke(nameNodeServer, paras);
-                ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-                out.writeObject(result);
-            } catch (InvocationTargetException e) {
-                ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-                out.writeObject(e.getCause());
-            }
+    private static class PendingFree {
+        private final List<Integer> blockNumbers;
+        private final Set<UUID> readers;
 
-        } catch (IOException | ClassNotFoundException | IllegalAccessException | NoSuchMethodException e) {
-            e.printStackTrace();
-        } finally {
-            try {
-                if (socket != null)
-                    socket.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        PendingFree(List<Integer> blockNumbers, Set<UUID> readers) {
+            this.blockNumbers = blockNumbers;
+            this.readers = readers;
         }
-
     }
 }
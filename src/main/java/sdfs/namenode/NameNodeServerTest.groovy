@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) Jipzingking 2016.
+ */
+
+package sdfs.namenode
+
+import sdfs.datanode.DataNodeServer
+import spock.lang.Specification
+
+class NameNodeServerTest extends Specification {
+    def dir = File.createTempDir()
+    def nameNodeServer = new NameNodeServer(dir.path)
+
+    def cleanup() {
+        dir.deleteDir()
+    }
+
+    //a file of two blocks, opened again for write
+    def openTwoBlockFile() {
+        nameNodeServer.registerDataNode("localhost", 5000)
+        def channel = nameNodeServer.create("a")
+        nameNodeServer.addBlocks(channel.uuid, 2)
+        nameNodeServer.closeReadwriteFile(channel.uuid, DataNodeServer.BLOCK_SIZE + 1)
+        nameNodeServer.openReadwrite("a")
+    }
+
+    def "Test close truncated file without readers"() {
+        given:
+        def channel = openTwoBlockFile()
+        //the removed block is in the file as it was opened, so it is freed on close
+        nameNodeServer.removeLastBlock(channel.uuid)
+
+        when:
+        nameNodeServer.closeReadwriteFile(channel.uuid, 100)
+
+        then:
+        nameNodeServer.openReadonly("a").size() == 100
+        //the close is logged
+        new NameNodeServer(dir.path).openReadonly("a").size() == 100
+    }
+
+    def "Test close truncated file with a reader"() {
+        given:
+        def channel = openTwoBlockFile()
+        def reader = nameNodeServer.openReadonly("a")
+        nameNodeServer.removeLastBlock(channel.uuid)
+
+        when:
+        nameNodeServer.closeReadwriteFile(channel.uuid, 100)
+
+        then:
+        //read as it was when it was opened
+        reader.size() == DataNodeServer.BLOCK_SIZE + 1
+        nameNodeServer.openReadonly("a").size() == 100
+
+        when:
+        nameNodeServer.closeReadonlyFile(reader.uuid)
+
+        then:
+        notThrown(Exception)
+    }
+
+    def "Test path longer than 64KB"() {
+        given:
+        def path = (0..<300).collect { it + "x" * 250 }.join("/")
+
+        when:
+        def parent = ""
+        for (String name : path.split("/"))
+            nameNodeServer.mkdir(parent += (parent ? "/" : "") + name)
+        nameNodeServer.registerDataNode("localhost", 5000)
+        def channel = nameNodeServer.create(path + "/a")
+        nameNodeServer.addBlocks(channel.uuid, 1)
+        nameNodeServer.closeReadwriteFile(channel.uuid, 100)
+
+        then:
+        path.length() > 64 * 1024
+        //replayed from the edit log
+        new NameNodeServer(dir.path).openReadonly(path + "/a").size() == 100
+    }
+}
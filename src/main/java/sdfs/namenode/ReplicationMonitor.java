@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) Jipzingking 2016.
+ */
+
+package sdfs.namenode;
+
+import sdfs.protocol.INameNodeDataNodeProtocol;
+
+import java.io.Closeable;
+
+/**
+ * Finds blocks with too few replicas every HEARTBEAT_INTERVAL from a background thread, and schedules their copies.
+ */
+class ReplicationMonitor implements Closeable {
+    private final DataNodeManager dataNodeManager;
+    private final int replication;
+    private final Thread thread;
+    //guarded by this
+    private boolean closed = false;
+
+    ReplicationMonitor(DataNodeManager dataNodeManager, int replication) {
+        this.dataNodeManager = dataNodeManager;
+        this.replication = replication;
+        this.thread = new Thread(this::monitorLoop, "sdfs-replication-monitor");
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void monitorLoop() {
+        while (true) {
+            try {
+                dataNodeManager.computeReplicationWork(replication);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+            synchronized (this) {
+                long wakeUpTime = System.currentTimeMillis() + INameNodeDataNodeProtocol.HEARTBEAT_INTERVAL;
+                try {
+                    long delay;
+                    while (!closed && (delay = wakeUpTime - System.currentTimeMillis()) > 0)
+                        wait(delay);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (closed)
+                    return;
+            }
+        }
+    }
+}
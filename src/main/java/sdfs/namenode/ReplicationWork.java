@@ -4,29 +4,67 @@
 
 package sdfs.namenode;
 
+import sdfs.protocol.RpcCodec;
+import sdfs.protocol.RpcWritable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
 
-//put off to future lab
-public class ReplicationWork implements Serializable {
+/**
+ * Blocks a data node should copy from other data nodes, handed out by name node and committed when done.
+ */
+public class ReplicationWork implements Serializable, RpcWritable {
     private static final long serialVersionUID = -8187881453972911421L;
-//    private final UUID replicationWorkUuid;
-//    /**
-//     * The first Integer is the target block number of this datanode,
-//     * and the LocatedBlock is the block it should replicate from.
-//     * If the LocatedBlock is null, it means that datanode should remove this block.
-//     */
-//    private final Map<Integer, LocatedBlock> replicationWork;
-//
-//    ReplicationWork(UUID replicationWorkUuid, Map<Integer, LocatedBlock> replicationWork) {
-//        this.replicationWorkUuid = replicationWorkUuid;
-//        this.replicationWork = replicationWork;
-//    }
-//
-//    public UUID getReplicationWorkUuid() {
-//        return replicationWorkUuid;
-//    }
-//
-//    public Map<Integer, LocatedBlock> getReplicationWork() {
-//        return replicationWork;
-//    }
+    private final UUID replicationWorkUuid;
+    /**
+     * The first Integer is the target block number of this datanode,
+     * and the LocatedBlock is the block it should replicate from.
+     * If the LocatedBlock is null, it means that datanode should remove this block.
+     * The blocks with the fewest replicas come first.
+     */
+    private final Map<Integer, LocatedBlock> replicationWork;
+
+    ReplicationWork(UUID replicationWorkUuid, Map<Integer, LocatedBlock> replicationWork) {
+        this.replicationWorkUuid = replicationWorkUuid;
+        this.replicationWork = replicationWork;
+    }
+
+    public UUID getReplicationWorkUuid() {
+        return replicationWorkUuid;
+    }
+
+    public Map<Integer, LocatedBlock> getReplicationWork() {
+        return Collections.unmodifiableMap(replicationWork);
+    }
+
+    public boolean isEmpty() {
+        return replicationWork.isEmpty();
+    }
+
+    @Override
+    public void writeTo(DataOutput out) throws IOException {
+        RpcCodec.writeUuid(out, replicationWorkUuid);
+        out.writeInt(replicationWork.size());
+        for (Map.Entry<Integer, LocatedBlock> e : replicationWork.entrySet()) {
+            out.writeInt(e.getKey());
+            RpcCodec.writeNullable(out, e.getValue());
+        }
+    }
+
+    public static ReplicationWork readFrom(DataInput in) throws IOException {
+        UUID replicationWorkUuid = RpcCodec.readUuid(in);
+        int size = in.readInt();
+        Map<Integer, LocatedBlock> replicationWork = new LinkedHashMap<>();
+        for (int i = 0; i < size; i++) {
+            int blockNumber = in.readInt();
+            replicationWork.put(blockNumber, in.readBoolean() ? LocatedBlock.readFrom(in) : null);
+        }
+        return new ReplicationWork(replicationWorkUuid, replicationWork);
+    }
 }
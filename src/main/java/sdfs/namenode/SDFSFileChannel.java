@@ -4,34 +4,57 @@
 
 package sdfs.namenode;
 
+import sdfs.client.BlockWriter;
 import sdfs.client.DataNodeStub;
 import sdfs.client.NameNodeStub;
+import sdfs.client.ReedSolomon;
+import sdfs.client.SdfsRmi;
+import sdfs.client.ShortCircuitReader;
 import sdfs.datanode.DataNodeServer;
 import sdfs.filetree.BlockInfo;
+import sdfs.filetree.ErasureCodingPolicy;
 import sdfs.filetree.FileNode;
+import sdfs.protocol.RpcCodec;
+import sdfs.protocol.RpcWritable;
 
 import java.io.*;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.NonWritableChannelException;
 import java.nio.channels.SeekableByteChannel;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import static java.lang.Math.max;
 import static java.lang.Math.min;
 
-public class SDFSFileChannel implements SeekableByteChannel, Flushable, Serializable {
+public class SDFSFileChannel implements SeekableByteChannel, Flushable, Serializable, RpcWritable {
     private static final long serialVersionUID = 6892411224902751501L;
     private final UUID uuid; //File uuid
     private int fileSize; //Size of this file
     private int blockAmount; //Total block amount of this file
     private final FileNode fileNode;
     private final boolean isReadOnly;
-    private final HashMap<LocatedBlock, byte[]> dataBlocksCache = new LinkedHashMap<>(16, 0.75f, true); //BlockNumber to DataBlock cache. byte[] or ByteBuffer are both acceptable.
+    /**
+     * A block is fetched from the data node in chunks of this size, only the chunks a read touches are fetched.
+     */
+    public static final int DEFAULT_READ_CHUNK_SIZE = 16 * 1024;
+    private final HashMap<BlockInfo, CachedBlock> dataBlocksCache = new LinkedHashMap<>(16, 0.75f, true); //BlockNumber to DataBlock cache. byte[] or ByteBuffer are both acceptable.
+    private final Map<BlockInfo, CompletableFuture<Void>> pendingWrites = new HashMap<>(); //write backs not acked yet, joined by flush
+    private final Set<BlockInfo> sharedBlocks = new HashSet<>(); //blocks of the file at open, readers may hold them
+    private final Map<BlockInfo, BlockInfo> cloneOrigins = new HashMap<>(); //copied blocks to the block they are copied from, until written back
+    private transient ReedSolomon codec; //for erasure coded files, made on first use
+    private transient ShortCircuitReader shortCircuitReader; //reads the blocks of data nodes on this host from their files
     private NameNodeStub nameNodeStub;
     private boolean closed = false;
     private int position = 0;
     private int fileDataBlockCacheSize;
+    private int readChunkSize = DEFAULT_READ_CHUNK_SIZE;
 
     SDFSFileChannel(UUID uuid, int fileSize, int blockAmount, FileNode fileNode, boolean isReadOnly) {
         this.uuid = uuid;
@@ -39,7 +62,10 @@ public class SDFSFileChannel implements SeekableByteChannel, Flushable, Serializ
         this.blockAmount = blockAmount;
         this.fileNode = fileNode;
         this.isReadOnly = isReadOnly;
-
+        if(!isReadOnly){
+            for(BlockInfo blockInfo : fileNode)
+                sharedBlocks.add(blockInfo);
+        }
     }
 
     @Override
@@ -50,55 +76,347 @@ public class SDFSFileChannel implements SeekableByteChannel, Flushable, Serializ
         if(fileSize <= position)
             return 0;
         int pos0 = dst.position();
-        Iterator<BlockInfo> iter = fileNode.iterator();
         int blkSize = DataNodeServer.BLOCK_SIZE;
-        byte[] blockData;
-        for(int i = 0; i < (position / blkSize) && iter.hasNext(); i++)
+        int end = min(position + dst.remaining(), fileSize);
+        if(end <= position)
+            return 0;
+        int firstBlockIndex = position / blkSize;
+        //no more blocks than the cache could hold are read at once
+        int lastBlockIndex = min((end - 1) / blkSize, firstBlockIndex + fileDataBlockCacheSize - 1);
+        end = min(end, (lastBlockIndex + 1) * blkSize);
+
+        //fetch the missing chunks of every block at once, so that their round trips overlap
+        List<CachedBlock> blocks = new ArrayList<>();
+        List<ChunkFetch> fetches = new ArrayList<>();
+        Iterator<BlockInfo> iter = fileNode.iterator();
+        for(int i = 0; i < firstBlockIndex && iter.hasNext(); i++)
             iter.next();
-        while(iter.hasNext()){
+        for(int i = firstBlockIndex; i <= lastBlockIndex && iter.hasNext(); i++){
             BlockInfo blockInfo = iter.next();
-            LocatedBlock locatedBlock = blockInfo.iterator().next();
-            //compute the number of bytes to be readed
-            int readNum = min(min(dst.limit() - dst.position(), blkSize - position % blkSize), fileSize - position);
-            //load into cache if cache missed
-            if(!dataBlocksCache.containsKey(locatedBlock)){
-                InetAddress inetAddress = locatedBlock.getInetAddress();
-                int blockNumber = locatedBlock.getBlockNumber();
-                DataNodeStub dataNodeStub = new DataNodeStub(inetAddress);
-                blockData = dataNodeStub.read(uuid, blockNumber, 0, blkSize);
-                //LRU
-                if(dataBlocksCache.size() == fileDataBlockCacheSize){
-                    LocatedBlock rblock = dataBlocksCache.keySet().iterator().next();
-                    byte[] rdata = dataBlocksCache.remove(locatedBlock);
+            CachedBlock cachedBlock = getCachedBlock(blockInfo);
+            int from = max(position - i * blkSize, 0);
+            int to = min(end - i * blkSize, blkSize);
+            fetch(blockInfo, cachedBlock, cachedBlock.getMissingRanges(from, to), fetches);
+            blocks.add(cachedBlock);
+        }
+        completeFetches(fetches);
+        for(int i = 0; i < blocks.size(); i++){
+            int blockStart = (firstBlockIndex + i) * blkSize;
+            int from = max(position, blockStart) - blockStart;
+            int to = min(end - blockStart, blkSize);
+            dst.put(blocks.get(i).getData(), from, to - from);
+        }
+        position = end;
+        return dst.position() - pos0;
+    }
+
+    /**
+     * Start reading the given byte ranges of a block into its cached copy, from any of its replicas.
+     */
+    private void fetch(BlockInfo blockInfo, CachedBlock cachedBlock, List<int[]> ranges, List<ChunkFetch> fetches) throws IOException {
+        if(ranges.isEmpty())
+            return;
+        //the data node must have seen the streamed write backs
+        joinPendingWrites();
+        //spread the reads over the replicas
+        //a copy not written back yet only exists as its origin
+        BlockInfo source = cloneOrigins.getOrDefault(blockInfo, blockInfo);
+        ErasureCodingPolicy erasureCodingPolicy = fileNode.getErasureCodingPolicy();
+        if(erasureCodingPolicy != null){
+            //read the part of every range in each unit, from all units at once
+            int unitSize = erasureCodingPolicy.getUnitSize();
+            for(int[] range : ranges){
+                for(int from = range[0]; from < range[1]; ){
+                    int unit = from / unitSize;
+                    int to = min(range[1], (unit + 1) * unitSize);
+                    ChunkFetch fetch = new ChunkFetch(source, cachedBlock, new int[]{from, to}, unit, from - unit * unitSize);
+                    fetch.start(uuid, shortCircuitReader);
+                    fetches.add(fetch);
+                    from = to;
                 }
-                putIntoCache(locatedBlock, blockData);
             }
-            blockData = dataBlocksCache.get(locatedBlock);
-            dst.put(blockData, position % blkSize, readNum);
-            position += readNum;
-            //bytebuffer is full or reach the end of file stream
-            if(dst.limit() == dst.position() || position == fileSize)
-                return dst.position() - pos0;
+            return;
         }
-        return 0;
-    }
-
-    public void putIntoCache(LocatedBlock locatedBlock, byte[] blockData) throws IOException {
-        if(dataBlocksCache.size() == fileDataBlockCacheSize && !isReadOnly){
-            LocatedBlock rblock = dataBlocksCache.keySet().iterator().next();
-            byte[] rdata = dataBlocksCache.remove(rblock);
-            InetAddress inetAddress = locatedBlock.getInetAddress();
-            DataNodeStub dataNodeStub = new DataNodeStub(inetAddress);
-            if(fileNode.blockAmount > 0 && rblock.equals(fileNode.getLastBlockInfo().iterator().next())){
-                int lastBlkSize = fileSize - (getBlockAmount(fileSize) - 1)* DataNodeServer.BLOCK_SIZE;
-                byte[] wdata = new byte[lastBlkSize];
-                System.arraycopy(rdata, 0, wdata, 0, wdata.length);
-                dataNodeStub.write(uuid, rblock.getBlockNumber(), 0, wdata);
-            }else{
-                dataNodeStub.write(uuid, rblock.getBlockNumber(), 0, rdata);
+        int replica = chooseReplica(source);
+        for(int[] range : ranges){
+            ChunkFetch fetch = new ChunkFetch(source, cachedBlock, range, replica, range[0]);
+            fetch.start(uuid, shortCircuitReader);
+            fetches.add(fetch);
+        }
+    }
+
+    /**
+     * Wait for every fetch and mark the fetched chunks valid. Bytes after the end of block are left zero.
+     * A chunk that could not be read from one replica is read from the next one, or decoded from the other units.
+     */
+    private void completeFetches(List<ChunkFetch> fetches) throws IOException {
+        for(ChunkFetch fetch : fetches){
+            if(fileNode.getErasureCodingPolicy() != null){
+                try {
+                    SdfsRmi.join(fetch.future);
+                } catch (IOException e) {
+                    decode(fetch, e);
+                }
+                continue;
+            }
+            int replicas = fetch.blockInfo.getLocatedBlocks().size();
+            for(int tried = 1; ; tried++){
+                try {
+                    SdfsRmi.join(fetch.future);
+                    break;
+                } catch (IOException e) {
+                    if(tried >= replicas)
+                        throw e;
+                    fetch.replica = (fetch.replica + 1) % replicas;
+                    fetch.start(uuid, shortCircuitReader);
+                }
+            }
+        }
+        for(ChunkFetch fetch : fetches)
+            fetch.cachedBlock.setValid(fetch.range[0], fetch.range[1]);
+    }
+
+    /**
+     * Rebuild the range of a unit that could not be read from the same range of every other unit.
+     *
+     * @param cause thrown if fewer than dataUnits units can be read
+     */
+    private void decode(ChunkFetch fetch, IOException cause) throws IOException {
+        List<LocatedBlock> units = fetch.blockInfo.getLocatedBlocks();
+        int length = fetch.range[1] - fetch.range[0];
+        byte[][] data = new byte[units.size()][length];
+        List<CompletableFuture<Integer>> reads = new ArrayList<>();
+        for(int i = 0; i < units.size(); i++){
+            LocatedBlock unit = units.get(i);
+            reads.add(i == fetch.replica ? null : shortCircuitReader.readAsync(uuid, unit, fetch.offset, length, ByteBuffer.wrap(data[i])));
+        }
+        boolean[] present = new boolean[units.size()];
+        int presentUnits = 0;
+        for(int i = 0; i < units.size(); i++){
+            if(reads.get(i) == null)
+                continue;
+            try {
+                SdfsRmi.join(reads.get(i));
+                present[i] = true;
+                presentUnits++;
+            } catch (IOException e) {
+                //one more lost unit
+            }
+        }
+        if(presentUnits < fileNode.getErasureCodingPolicy().getDataUnits())
+            throw cause;
+        getCodec().decode(data, present, 0, length);
+        System.arraycopy(data[fetch.replica], 0, fetch.cachedBlock.getData(), fetch.range[0], length);
+    }
+
+    /**
+     * @return a replica on this host if there is one, so it is read from its file, otherwise any replica
+     */
+    private static int chooseReplica(BlockInfo blockInfo) {
+        List<LocatedBlock> replicas = blockInfo.getLocatedBlocks();
+        for(int i = 0; i < replicas.size(); i++){
+            if(ShortCircuitReader.isLocal(replicas.get(i).getInetAddress()))
+                return i;
+        }
+        return ThreadLocalRandom.current().nextInt(replicas.size());
+    }
+
+    private ReedSolomon getCodec() {
+        if(codec == null){
+            ErasureCodingPolicy erasureCodingPolicy = fileNode.getErasureCodingPolicy();
+            codec = new ReedSolomon(erasureCodingPolicy.getDataUnits(), erasureCodingPolicy.getParityUnits());
+        }
+        return codec;
+    }
+
+    private CachedBlock getCachedBlock(BlockInfo blockInfo) throws IOException {
+        CachedBlock cachedBlock = dataBlocksCache.get(blockInfo);
+        if(cachedBlock == null){
+            cachedBlock = new CachedBlock(readChunkSize);
+            putIntoCache(blockInfo, cachedBlock);
+        }
+        return cachedBlock;
+    }
+
+    /**
+     * Cache a block that does not exist on the data node yet, it reads as zeros.
+     */
+    private CachedBlock newCachedBlock(BlockInfo blockInfo) throws IOException {
+        CachedBlock cachedBlock = new CachedBlock(readChunkSize);
+        cachedBlock.setValid(0, DataNodeServer.BLOCK_SIZE);
+        dataBlocksCache.remove(blockInfo);
+        putIntoCache(blockInfo, cachedBlock);
+        return cachedBlock;
+    }
+
+    private void putIntoCache(BlockInfo blockInfo, CachedBlock cachedBlock) throws IOException {
+        if(dataBlocksCache.size() >= fileDataBlockCacheSize){
+            BlockInfo rblock = dataBlocksCache.keySet().iterator().next();
+            CachedBlock rdata = dataBlocksCache.remove(rblock);
+            //clean blocks are already on the data node
+            if(rdata.isDirty() || cloneOrigins.containsKey(rblock))
+                writeBack(rblock, rdata);
+        }
+        dataBlocksCache.put(blockInfo, cachedBlock);
+    }
+
+    /**
+     * Stream the dirty chunks of a cached block down the pipeline of its replicas, the last block of the file is cut at the file size.
+     * The data is encoded before this method returns, so the block can be modified afterwards.
+     * An earlier write back of the same block is waited for first, packets of the two could be applied in any order.
+     */
+    private void writeBack(BlockInfo blockInfo, CachedBlock cachedBlock) throws IOException {
+        CompletableFuture<Void> previous = pendingWrites.remove(blockInfo);
+        if(previous != null)
+            SdfsRmi.join(previous);
+        //the block may be moved or grown on the data node
+        shortCircuitReader.invalidate(blockInfo);
+        if(fileNode.getErasureCodingPolicy() != null){
+            //the parity units are computed from the whole block
+            List<ChunkFetch> fetches = new ArrayList<>();
+            fetch(blockInfo, cachedBlock, cachedBlock.getMissingRanges(0, DataNodeServer.BLOCK_SIZE), fetches);
+            completeFetches(fetches);
+            pendingWrites.put(blockInfo, streamUnits(blockInfo, cachedBlock));
+            return;
+        }
+        pendingWrites.put(blockInfo, streamDirtyChunks(blockInfo, cachedBlock));
+    }
+
+    /**
+     * Encode a whole cached block and write its units, each to its own data node. A new copy of a block is made
+     * from its origin on the data nodes: unchanged data units are copied there without being sent.
+     * Otherwise every unit is written whole, a unit may never have been written before.
+     * The write back fails only if more than parityUnits units fail, readers decode the missing ones.
+     */
+    private CompletableFuture<Void> streamUnits(BlockInfo blockInfo, CachedBlock cachedBlock) {
+        ErasureCodingPolicy erasureCodingPolicy = fileNode.getErasureCodingPolicy();
+        List<int[]> ranges = cachedBlock.getDirtyRanges(DataNodeServer.BLOCK_SIZE);
+        cachedBlock.clearDirty();
+        BlockInfo origin = cloneOrigins.remove(blockInfo);
+        if(ranges.isEmpty() && origin == null)
+            return CompletableFuture.completedFuture(null);
+        int dataUnits = erasureCodingPolicy.getDataUnits();
+        int unitSize = erasureCodingPolicy.getUnitSize();
+        byte[][] units = new byte[erasureCodingPolicy.getUnitCount()][unitSize];
+        for(int i = 0; i < dataUnits; i++)
+            System.arraycopy(cachedBlock.getData(), i * unitSize, units[i], 0, getUnitLength(i, dataUnits, unitSize));
+        getCodec().encode(units, 0, unitSize);
+        List<LocatedBlock> locatedBlocks = blockInfo.getLocatedBlocks();
+        List<CompletableFuture<Void>> writes = new ArrayList<>();
+        for(int i = 0; i < units.length; i++){
+            LocatedBlock unit = locatedBlocks.get(i);
+            DataNodeStub dataNodeStub = new DataNodeStub(unit.getDataNodeAddress());
+            int length = getUnitLength(i, dataUnits, unitSize);
+            if(origin == null){
+                writes.add(dataNodeStub.writeAsync(uuid, unit.getBlockNumber(), 0, Arrays.copyOf(units[i], length)));
+                continue;
+            }
+            //the dirty span of a data unit, all of a parity unit
+            int from = 0;
+            int to = length;
+            if(i < dataUnits){
+                from = length;
+                to = 0;
+                for(int[] range : ranges){
+                    from = min(from, max(range[0] - i * unitSize, 0));
+                    to = max(to, min(range[1] - i * unitSize, length));
+                }
+                if(from >= to)
+                    from = to = 0;
+            }
+            writes.add(dataNodeStub.copyOnWriteAsync(uuid, origin.getLocatedBlocks().get(i).getBlockNumber(), unit.getBlockNumber(),
+                    from, Arrays.copyOfRange(units[i], from, to), Collections.emptyList()));
+        }
+        return tolerateFailures(writes, erasureCodingPolicy.getParityUnits());
+    }
+
+    /**
+     * @return bytes of the block in a unit, the last data unit may hold fewer than the others
+     */
+    private static int getUnitLength(int unit, int dataUnits, int unitSize) {
+        return unit < dataUnits ? max(0, min(unitSize, DataNodeServer.BLOCK_SIZE - unit * unitSize)) : unitSize;
+    }
+
+    /**
+     * @return a future completed once all writes are, exceptionally if more than tolerated of them fail
+     */
+    private static CompletableFuture<Void> tolerateFailures(List<CompletableFuture<Void>> writes, int tolerated) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        AtomicInteger remaining = new AtomicInteger(writes.size());
+        AtomicInteger failed = new AtomicInteger();
+        for(CompletableFuture<Void> write : writes){
+            write.whenComplete((v, e) -> {
+                if(e != null && failed.incrementAndGet() > tolerated)
+                    result.completeExceptionally(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+                if(remaining.decrementAndGet() == 0)
+                    result.complete(null);
+            });
+        }
+        return result;
+    }
+
+    private CompletableFuture<Void> streamDirtyChunks(BlockInfo blockInfo, CachedBlock cachedBlock) {
+        int length = DataNodeServer.BLOCK_SIZE;
+        if(fileNode.blockAmount > 0 && blockInfo.equals(fileNode.getLastBlockInfo()))
+            length = fileSize - (getBlockAmount(fileSize) - 1) * DataNodeServer.BLOCK_SIZE;
+        List<int[]> ranges = cachedBlock.getDirtyRanges(length);
+        cachedBlock.clearDirty();
+        BlockInfo origin = cloneOrigins.remove(blockInfo);
+        if(ranges.isEmpty() && origin == null)
+            return CompletableFuture.completedFuture(null);
+        List<LocatedBlock> replicas = blockInfo.getLocatedBlocks();
+        LocatedBlock head = replicas.get(0);
+        List<InetSocketAddress> pipeline = new ArrayList<>();
+        for(LocatedBlock replica : replicas.subList(1, replicas.size()))
+            pipeline.add(replica.getDataNodeAddress());
+        DataNodeStub dataNodeStub = new DataNodeStub(head.getDataNodeAddress());
+        try {
+            if(origin != null){
+                //the data nodes copy the old block themselves, only the first dirty range is sent with it
+                int[] patch = ranges.isEmpty() ? new int[]{0, 0} : ranges.remove(0);
+                CompletableFuture<Void> copy = dataNodeStub.copyOnWriteAsync(uuid, origin.getLocatedBlocks().get(0).getBlockNumber(), head.getBlockNumber(), patch[0],
+                        Arrays.copyOfRange(cachedBlock.getData(), patch[0], patch[1]), pipeline);
+                if(ranges.isEmpty())
+                    return copy;
+                //the other ranges go over the finished copy
+                SdfsRmi.join(copy);
+            }
+            BlockWriter blockWriter = dataNodeStub.openBlockWriter(uuid, head.getBlockNumber(), ranges.get(0)[0], pipeline);
+            for(int[] range : ranges){
+                blockWriter.position(range[0]);
+                blockWriter.write(cachedBlock.getData(), range[0], range[1] - range[0]);
             }
+            return blockWriter.closeAsync();
+        } catch (IOException e) {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
         }
-        dataBlocksCache.put(locatedBlock, blockData);
+    }
+
+    /**
+     * Called after writing into a cached block. Once the block is full it is streamed right away,
+     * so the network and the data node disk work while the rest of the file is still being written.
+     */
+    private void blockWritten(BlockInfo blockInfo, CachedBlock cachedBlock) throws IOException {
+        if(position % DataNodeServer.BLOCK_SIZE == 0)
+            writeBack(blockInfo, cachedBlock);
+    }
+
+    /**
+     * A block the file had when it was opened is given a new block number before it is first modified,
+     * so that readers of the old file keep their data. Only the modified bytes are sent to make the copy, see streamDirtyChunks.
+     */
+    private BlockInfo cloneIfShared(int index, BlockInfo blockInfo) throws IOException {
+        if(!sharedBlocks.remove(blockInfo))
+            return blockInfo;
+        BlockInfo clone = nameNodeStub.copyOnWriteBlock(uuid, index);
+        fileNode.setBlockInfo(index, clone);
+        cloneOrigins.put(clone, blockInfo);
+        CachedBlock cachedBlock = dataBlocksCache.remove(blockInfo);
+        if(cachedBlock != null)
+            dataBlocksCache.put(clone, cachedBlock);
+        return clone;
     }
 
     @Override
@@ -110,89 +428,77 @@ public class SDFSFileChannel implements SeekableByteChannel, Flushable, Serializ
             throw new NonWritableChannelException();
 
         int pos0 = src.position();
-        Iterator<BlockInfo> iter = fileNode.iterator();
         int blkSize = DataNodeServer.BLOCK_SIZE;
-        byte[] blockData = new byte[blkSize];
 
         if(position > fileSize){
             int blockAmount = (getBlockAmount(position)) - (getBlockAmount(fileSize));
-            LocatedBlock lastBlock = fileNode.getLastBlockInfo().iterator().next();
-            List<LocatedBlock> locatedBlocks = nameNodeStub.addBlocks(uuid, blockAmount);
-            //update local fileNode
-            for(int i = 0; i < blockAmount; i++){
-                BlockInfo blockInfo = new BlockInfo();
-                blockInfo.addLocatedBlock(locatedBlocks.get(i));
-                fileNode.addBlockInfo(blockInfo);
-            }
-            byte[] zeroData = new byte[blkSize];
-
-           // LocatedBlock lastBlock = fileNode.getLastBlockInfo().iterator().next();
-            if(!dataBlocksCache.containsKey(lastBlock)){
-                InetAddress inetAddress = lastBlock.getInetAddress();
-                DataNodeStub dataNodeStub = new DataNodeStub(inetAddress);
-                byte[] zeroAdded = dataNodeStub.read(uuid, lastBlock.getBlockNumber(), 0, blkSize);
-                putIntoCache(lastBlock, zeroAdded);
+            //zero the rest of the old last block up to position
+            if(fileSize % blkSize != 0){
+                BlockInfo lastBlock = cloneIfShared(fileNode.getBlockAmount() - 1, fileNode.getLastBlockInfo());
+                CachedBlock cachedBlock = getCachedBlock(lastBlock);
+                int from = fileSize % blkSize;
+                int to = min(position - (fileSize - from), blkSize);
+                fetchForPartialWrite(lastBlock, cachedBlock, from, to, from);
+                Arrays.fill(cachedBlock.getData(), from, to, (byte) 0);
+                cachedBlock.setDirty(from, to);
             }
-            for(int i = 0; i < blockAmount; i++){
-                LocatedBlock locatedBlock = locatedBlocks.get(i);
-                if(dataBlocksCache.containsKey(locatedBlock))
-                    dataBlocksCache.replace(locatedBlock, zeroData);
-                else
-                    putIntoCache(locatedBlock, zeroData);
+            List<BlockInfo> blockInfos = nameNodeStub.addBlocks(uuid, blockAmount);
+            //update local fileNode
+            for(int i = 0; i < blockAmount; i++)
+                fileNode.addBlockInfo(blockInfos.get(i));
+            int blockStart = getBlockAmount(fileSize) * blkSize;
+            for(int i = 0; i < blockAmount; i++, blockStart += blkSize){
+                CachedBlock cachedBlock = newCachedBlock(blockInfos.get(i));
+                cachedBlock.setDirty(0, min(position - blockStart, blkSize));
             }
             fileSize = position;
         }
 
-
-
-        for(int i = 0; i < (position / blkSize) && iter.hasNext(); i++)
-            iter.next();
-        while(iter.hasNext()){
-            BlockInfo blockInfo = iter.next();
-            LocatedBlock locatedBlock = blockInfo.iterator().next();
+        //after the zero blocks are added, they are part of the file now
+        for(int i = position / blkSize; i < fileNode.getBlockAmount(); i++){
+            BlockInfo blockInfo = cloneIfShared(i, fileNode.getBlockInfo(i));
             //compute write num
-            int writeNum = min(blkSize - position % blkSize, src.limit() - src.position());
-            //cache hit
-            if(dataBlocksCache.containsKey(locatedBlock)){
-                blockData = dataBlocksCache.get(locatedBlock);
-                src.get(blockData, position % blkSize, writeNum);
-                dataBlocksCache.replace(locatedBlock, blockData);
-            }else{
-                //cache miss
-                InetAddress inetAddress = locatedBlock.getInetAddress();
-                DataNodeStub dataNodeStub = new DataNodeStub(inetAddress);
-                blockData = dataNodeStub.read(uuid, locatedBlock.getBlockNumber(), 0, blkSize);
-                src.get(blockData, position % blkSize, writeNum);
-                putIntoCache(locatedBlock, blockData);
-            }
+            int from = position % blkSize;
+            int writeNum = min(blkSize - from, src.limit() - src.position());
+            int storedLength = max(0, min(blkSize, fileSize - (position - from)));
+            CachedBlock cachedBlock = getCachedBlock(blockInfo);
+            fetchForPartialWrite(blockInfo, cachedBlock, from, from + writeNum, storedLength);
+            src.get(cachedBlock.getData(), from, writeNum);
+            cachedBlock.setDirty(from, from + writeNum);
             position += writeNum;
-            fileSize = position;
+            fileSize = max(fileSize, position);
+            blockWritten(blockInfo, cachedBlock);
             if(src.limit() == src.position())
                 return src.position() - pos0;
         }
 
 
         int blockAmount = (src.limit() - src.position() - 1) / blkSize + 1;
-        List<LocatedBlock> locatedBlocks = nameNodeStub.addBlocks(uuid, blockAmount);
-        for(int i = 0; i < blockAmount; i++){
-            BlockInfo blockInfo = new BlockInfo();
-            blockInfo.addLocatedBlock(locatedBlocks.get(i));
-            fileNode.addBlockInfo(blockInfo);
-        }
+        List<BlockInfo> blockInfos = nameNodeStub.addBlocks(uuid, blockAmount);
+        for(int i = 0; i < blockAmount; i++)
+            fileNode.addBlockInfo(blockInfos.get(i));
         for(int i = 0; i < blockAmount; i++){
-            LocatedBlock locatedBlock = locatedBlocks.get(i);
+            BlockInfo blockInfo = blockInfos.get(i);
             int writeNum = min(blkSize - position % blkSize, src.limit() - src.position());
-            src.get(blockData, position % blkSize, writeNum);
+            CachedBlock cachedBlock = newCachedBlock(blockInfo);
+            src.get(cachedBlock.getData(), position % blkSize, writeNum);
+            cachedBlock.setDirty(position % blkSize, position % blkSize + writeNum);
             position += writeNum;
-            fileSize = position;
-            if(dataBlocksCache.containsKey(locatedBlock))
-                dataBlocksCache.replace(locatedBlock, blockData);
-            else
-                putIntoCache(locatedBlock, blockData);
+            fileSize = max(fileSize, position);
+            blockWritten(blockInfo, cachedBlock);
         }
         return src.position() - pos0;
     }
 
+    /**
+     * A chunk only partly overwritten by [from, to) keeps the rest of its bytes, fetch it first.
+     */
+    private void fetchForPartialWrite(BlockInfo blockInfo, CachedBlock cachedBlock, int from, int to, int storedLength) throws IOException {
+        List<ChunkFetch> fetches = new ArrayList<>();
+        fetch(blockInfo, cachedBlock, cachedBlock.getPartialRanges(from, to, storedLength), fetches);
+        completeFetches(fetches);
+    }
+
     @Override
     public long position() throws IOException {
         //todo your code here
@@ -237,6 +543,12 @@ public class SDFSFileChannel implements SeekableByteChannel, Flushable, Serializ
         long blockAmount = getBlockAmount(fileSize) - getBlockAmount((int)size);
         for(int i = 0; i < blockAmount; i++){
             nameNodeStub.removeLastBlock(uuid);
+            //the removed block must not be written back
+            BlockInfo lastBlock = fileNode.getLastBlockInfo();
+            dataBlocksCache.remove(lastBlock);
+            shortCircuitReader.invalidate(lastBlock);
+            sharedBlocks.remove(lastBlock);
+            cloneOrigins.remove(lastBlock);
             fileNode.removeLastBlockInfo();
         }
         fileSize = (int)size;
@@ -255,12 +567,18 @@ public class SDFSFileChannel implements SeekableByteChannel, Flushable, Serializ
         //todo your code here
         if(closed)
             return;
-        if(!isReadOnly){
-            nameNodeStub.closeReadwriteFile(uuid, fileSize);
-            flush();
-        }else{
-            nameNodeStub.closeReadonlyFile(uuid);
+        try {
+            if(!isReadOnly){
+                //the blocks copied on write must be on the data nodes before their origins may be freed
+                flush();
+                nameNodeStub.closeReadwriteFile(uuid, fileSize);
+            }else{
+                nameNodeStub.closeReadonlyFile(uuid);
+            }
+        } finally {
+            nameNodeStub.getLeaseRenewer().remove(uuid);
         }
+        shortCircuitReader.clear();
         closed = true;
     }
 
@@ -271,40 +589,85 @@ public class SDFSFileChannel implements SeekableByteChannel, Flushable, Serializ
             throw new ClosedChannelException();
         if(isReadOnly)
             throw new NonWritableChannelException();
-        Iterator<LocatedBlock> iterator = dataBlocksCache.keySet().iterator();
-
-        Set<Map.Entry<LocatedBlock, byte[]>> dcache = dataBlocksCache.entrySet();
-        for(Map.Entry<LocatedBlock, byte[]> e :
-           dcache  ) {
-            LocatedBlock locatedBlock = e.getKey();
-            byte[] dataBlock = e.getValue();
-            InetAddress inetAddress = locatedBlock.getInetAddress();
-            DataNodeStub dataNodeStub = new DataNodeStub(inetAddress);
-            if(fileNode.blockAmount > 0 && locatedBlock.equals(fileNode.getLastBlockInfo().iterator().next())){
-                int lastBlkSize = fileSize - (getBlockAmount(fileSize) - 1)* DataNodeServer.BLOCK_SIZE;
-                byte[] wdata = new byte[lastBlkSize];
-                System.arraycopy(dataBlock, 0, wdata, 0, lastBlkSize);
-                dataNodeStub.write(uuid, locatedBlock.getBlockNumber(), 0, wdata);
-            }else{
-                dataNodeStub.write(uuid, locatedBlock.getBlockNumber(), 0, dataBlock);
-            }
+
+        //write all dirty blocks at once and wait for them together with the earlier write backs
+        for(Map.Entry<BlockInfo, CachedBlock> e : dataBlocksCache.entrySet()){
+            if(e.getValue().isDirty() || cloneOrigins.containsKey(e.getKey()))
+                writeBack(e.getKey(), e.getValue());
         }
+        joinPendingWrites();
         dataBlocksCache.clear();
     }
 
+    /**
+     * Wait for the streamed write backs, so that a following read from the data nodes sees them.
+     */
+    private void joinPendingWrites() throws IOException {
+        try {
+            for(CompletableFuture<Void> write : pendingWrites.values())
+                SdfsRmi.join(write);
+        } finally {
+            pendingWrites.clear();
+        }
+    }
+
+
+    @Override
+    public void writeTo(DataOutput out) throws IOException {
+        RpcCodec.writeUuid(out, uuid);
+        out.writeInt(fileSize);
+        out.writeInt(blockAmount);
+        out.writeBoolean(isReadOnly);
+        fileNode.writeTo(out);
+    }
+
+    public static SDFSFileChannel readFrom(DataInput in) throws IOException {
+        UUID uuid = RpcCodec.readUuid(in);
+        int fileSize = in.readInt();
+        int blockAmount = in.readInt();
+        boolean isReadOnly = in.readBoolean();
+        return new SDFSFileChannel(uuid, fileSize, blockAmount, FileNode.readFrom(in), isReadOnly);
+    }
 
     public void fix(NameNodeStub nameNodeStub, int fileDataBlockCacheSize){
         this.nameNodeStub = nameNodeStub;
         this.fileDataBlockCacheSize = fileDataBlockCacheSize;
+        this.shortCircuitReader = new ShortCircuitReader();
+        //name node closes the file if the lease is not renewed
+        nameNodeStub.getLeaseRenewer().add(uuid);
+    }
+
+    public void fix(NameNodeStub nameNodeStub, int fileDataBlockCacheSize, int readChunkSize){
+        fix(nameNodeStub, fileDataBlockCacheSize);
+        this.readChunkSize = readChunkSize;
     }
 
     private static int getBlockAmount(int fileSize) {
         return (fileSize == 0 ? 0 : (((fileSize - 1) / DataNodeServer.BLOCK_SIZE) + 1));
     }
-}
-
-
-
-
 
+    private static class ChunkFetch {
+        private final BlockInfo blockInfo;
+        private final CachedBlock cachedBlock;
+        private final int[] range;
+        //index of the replica read from, or of the unit of an erasure coded block
+        private int replica;
+        //where range starts in the replica or unit
+        private final int offset;
+        private CompletableFuture<Integer> future;
+
+        ChunkFetch(BlockInfo blockInfo, CachedBlock cachedBlock, int[] range, int replica, int offset) {
+            this.blockInfo = blockInfo;
+            this.cachedBlock = cachedBlock;
+            this.range = range;
+            this.replica = replica;
+            this.offset = offset;
+        }
 
+        void start(UUID uuid, ShortCircuitReader shortCircuitReader) {
+            LocatedBlock locatedBlock = blockInfo.getLocatedBlocks().get(replica);
+            int size = range[1] - range[0];
+            future = shortCircuitReader.readAsync(uuid, locatedBlock, offset, size, ByteBuffer.wrap(cachedBlock.getData(), range[0], size));
+        }
+    }
+}
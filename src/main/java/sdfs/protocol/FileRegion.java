@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) Jipzingking 2016.
+ */
+
+package sdfs.protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A range of a file sent as the tail of a response payload with {@link FileChannel#transferTo},
+ * so that the bytes go from page cache to socket without being copied into the heap.
+ * The range could also be given as a slice of a memory mapped file, which is written to socket directly.
+ */
+public class FileRegion {
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    //run once the region is sent or dropped, may be null
+    private Runnable releaseAction;
+    private long position;
+    private long remaining;
+
+    /**
+     * @param closeOnRelease close the channel once the region is sent, false if the channel is cached by its owner
+     */
+    public FileRegion(FileChannel channel, long position, long count, boolean closeOnRelease) {
+        this(channel, position, count, closeOnRelease ? () -> closeQuietly(channel) : null);
+    }
+
+    /**
+     * @param releaseAction run once the region is sent or dropped, e.g. to unpin the channel from its owner
+     */
+    public FileRegion(FileChannel channel, long position, long count, Runnable releaseAction) {
+        this.channel = channel;
+        this.buffer = null;
+        this.position = position;
+        this.remaining = count;
+        this.releaseAction = releaseAction;
+    }
+
+    /**
+     * @param buffer the bytes from its position to its limit are sent, e.g. a slice of a {@link java.nio.MappedByteBuffer}
+     */
+    public FileRegion(ByteBuffer buffer) {
+        this(buffer, null);
+    }
+
+    /**
+     * @param releaseAction run once the region is sent or dropped, e.g. to let the owner reuse the buffer
+     */
+    public FileRegion(ByteBuffer buffer, Runnable releaseAction) {
+        this.channel = null;
+        this.buffer = buffer;
+        this.position = 0;
+        this.remaining = buffer.remaining();
+        this.releaseAction = releaseAction;
+    }
+
+    /**
+     * @return the number of bytes transferred, may be zero if target is non-blocking and full
+     */
+    public long transferTo(WritableByteChannel target) throws IOException {
+        if (buffer != null) {
+            int written = target.write(buffer);
+            remaining -= written;
+            return written;
+        }
+        long transferred = channel.transferTo(position, remaining, target);
+        if (transferred == 0 && position >= channel.size())
+            throw new IOException("file is truncated while being sent");
+        position += transferred;
+        remaining -= transferred;
+        return transferred;
+    }
+
+    public long remaining() {
+        return remaining;
+    }
+
+    public boolean hasRemaining() {
+        return remaining > 0;
+    }
+
+    public void release() {
+        Runnable action = releaseAction;
+        releaseAction = null;
+        if (action != null)
+            action.run();
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -4,8 +4,12 @@
 
 package sdfs.protocol;
 
+import sdfs.datanode.LocalBlock;
+
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.List;
 import java.util.UUID;
 
 public interface IDataNodeProtocol {
@@ -27,6 +31,7 @@ public interface IDataNodeProtocol {
     /**
      * Write data to a block.
      * It should be redirect to [blockNumber].block file
+     * It returns once the data is durable on the data node.
      *
      * @param fileUuid    the file uuid to check whether have permission to write or not. Put off to future lab.
      * @param blockNumber the block number to be written
@@ -37,17 +42,50 @@ public interface IDataNodeProtocol {
      */
     void write(UUID fileUuid, int blockNumber, int offset, byte b[]) throws IllegalStateException, IndexOutOfBoundsException, IOException;
 
-//    put off due to its difficulties
-//    /**
-//     * Copy data from originBlock and then write data to a block.
-//     * It should be redirect to [blockNumber].block file
-//     *
-//     * @param fileUuid          the file uuid to check whether have permission to write or not and check read permission to originalBlockNumber
-//     * @param originBlockNumber the original block number to be copy
-//     * @param blockNumber       the block number to be written
-//     * @param offset            the offset on the block file
-//     * @param b                 the buffer that stores the data
-//     * @throws IndexOutOfBoundsException if offset less than zero, or offset+size larger than block size.
-//     */
-//    void copyOnWrite(UUID fileUuid, int originBlockNumber, int blockNumber, int offset, byte b[]) throws IndexOutOfBoundsException, IOException;
+    /**
+     * Write one packet of a block stream.
+     * A block is streamed as packets numbered from zero, which may arrive in any order.
+     * The stream is tracked until every packet up to the last one has been written.
+     * A packet is forwarded to the next data node of the pipeline, which forwards it further in turn.
+     * It is acknowledged once it is durable on this data node and acknowledged by the next one.
+     * A data node failing down the pipeline only costs its replica and those after it, it is not reported here.
+     *
+     * @param fileUuid    the file uuid to check whether have permission to write or not. Put off to future lab.
+     * @param blockNumber the block number to be written
+     * @param offset      the offset of this packet on the block file
+     * @param seqNo       the sequence number of this packet in the stream
+     * @param last        whether this is the last packet of the stream
+     * @param b           the packet data
+     * @param pipeline    the data nodes after this one holding replicas of the block, in forwarding order
+     * @throws IndexOutOfBoundsException if offset less than zero, or offset+size larger than block size.
+     * @throws IllegalStateException     if uuid is illegal or has no permission on this file
+     */
+    void writePacket(UUID fileUuid, int blockNumber, int offset, int seqNo, boolean last, byte b[], List<InetSocketAddress> pipeline) throws IllegalStateException, IndexOutOfBoundsException, IOException;
+
+    /**
+     * Copy data from originBlock and then write data to a block, as one durable write on the data node.
+     * It should be redirect to [blockNumber].block file
+     * Like a packet, it is forwarded down the pipeline, whose data nodes hold originBlock too.
+     *
+     * @param fileUuid          the file uuid to check whether have permission to write or not and check read permission to originalBlockNumber
+     * @param originBlockNumber the original block number to be copy
+     * @param blockNumber       the block number to be written
+     * @param offset            the offset on the block file
+     * @param b                 the buffer that stores the data
+     * @param pipeline          the data nodes after this one holding replicas of the block, in forwarding order
+     * @throws IndexOutOfBoundsException if offset less than zero, or offset+size larger than block size.
+     * @throws FileNotFoundException     if originBlock does not exist
+     */
+    void copyOnWrite(UUID fileUuid, int originBlockNumber, int blockNumber, int offset, byte b[], List<InetSocketAddress> pipeline) throws IndexOutOfBoundsException, IOException;
+
+    /**
+     * Locate a block in the local file system, for a short-circuit read by a client on the same host.
+     * The client reads the file itself, and reads through the data node again if the file is gone.
+     *
+     * @param fileUuid    the file uuid to check whether have permission to read or not. Put off to future lab.
+     * @param blockNumber the block number to be read
+     * @return null if the data node does not allow it, e.g. the block is being written
+     * @throws FileNotFoundException if the block does not exist
+     */
+    LocalBlock getLocalBlock(UUID fileUuid, int blockNumber) throws IOException;
 }
\ No newline at end of file
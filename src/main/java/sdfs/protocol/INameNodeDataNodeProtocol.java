@@ -4,8 +4,84 @@
 
 package sdfs.protocol;
 
-//Put off to future lab due to its difficulties
+import sdfs.namenode.ReplicationWork;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Called by data nodes, so that name node knows which data nodes are alive and which blocks each of them holds.
+ * A data node registers on startup, sends a full block report, and then a heartbeat every HEARTBEAT_INTERVAL.
+ * Blocks received or deleted since then are reported incrementally.
+ * Blocks left with too few replicas, e.g. by a dead data node, are copied by the data nodes as replication works.
+ */
 public interface INameNodeDataNodeProtocol {
+    /**
+     * Milliseconds between two heartbeats of a data node.
+     */
+    long HEARTBEAT_INTERVAL = 3 * 1000;
+    /**
+     * A data node without any heartbeat for this milliseconds is treated as dead.
+     */
+    long HEARTBEAT_EXPIRE_INTERVAL = 10 * HEARTBEAT_INTERVAL;
+
+    /**
+     * Register a data node, a data node at the same address registered before is replaced.
+     * A full block report should follow.
+     *
+     * @param host the host name or address clients should connect to
+     * @param port the port the data node listens on
+     * @return the id of the data node, sent with every later call
+     */
+    UUID registerDataNode(String host, int port) throws IOException;
+
+    /**
+     * Tell name node that a data node is alive, with its capacity and load.
+     *
+     * @param dataNodeId     the id returned by registerDataNode
+     * @param capacity       total bytes of the disk holding the blocks
+     * @param remaining      free bytes of the disk holding the blocks
+     * @param blockCount     the number of blocks held
+     * @param activeStreams  the number of block streams being written
+     * @return blocks the data node should delete, they are in no file
+     * @throws IllegalStateException if the data node is not registered, e.g. name node restarted or treated it as dead.
+     *                               It should register again.
+     */
+    List<Integer> sendHeartbeat(UUID dataNodeId, long capacity, long remaining, int blockCount, int activeStreams) throws IllegalStateException, IOException;
+
+    /**
+     * Replace everything name node knows about the blocks of a data node.
+     *
+     * @throws IllegalStateException if the data node is not registered
+     */
+    void blockReport(UUID dataNodeId, List<Integer> blockNumbers) throws IllegalStateException, IOException;
+
+    /**
+     * Report the changes since the last report.
+     *
+     * @throws IllegalStateException if the data node is not registered
+     */
+    void blockReceivedAndDeleted(UUID dataNodeId, List<Integer> receivedBlockNumbers, List<Integer> deletedBlockNumbers) throws IllegalStateException, IOException;
+
+    /**
+     * Get the blocks this data node should copy from others, it should be called after a heartbeat
+     * and whenever the last replication work is committed.
+     *
+     * @return ReplicationWork should be done by this datanode, empty if there is nothing to do
+     * @throws IllegalStateException if the data node is not registered
+     */
+    ReplicationWork getReplicationWork(UUID dataNodeId) throws IllegalStateException, IOException;
+
+    /**
+     * Confirm that replication work with replicationWorkUuid has been done. Copied blocks must be reported before.
+     * A block that could not be copied is scheduled again, a work never committed is given up after a while.
+     *
+     * @param replicationWorkUuid The ReplicationWork has been done
+     * @throws IllegalStateException if the data node is not registered
+     */
+    void commitReplicationWork(UUID dataNodeId, UUID replicationWorkUuid) throws IllegalStateException, IOException;
+
 //    /**
 //     * Check uuid have permission to read on this block
 //     *
@@ -23,21 +99,4 @@ public interface INameNodeDataNodeProtocol {
 //     * @return true if uuid have permission, otherwise false
 //     */
 //    boolean checkUuidWritable(UUID uuid, int blockNumber);
-//
-//    /**
-//     * Get get replication work for this datanode as well as a heart beat to the datanode
-//     * It should be trigger every 1 minutes
-//     * If namenode do not receive heartbeat for 5 mintues,
-//     * it should treat datanode have been downed and need to replicate its data (Future lab)
-//     *
-//     * @return ReplicationWork should be done by this datanode
-//     */
-//    ReplicationWork getReplicationWork();
-//
-//    /**
-//     * Confirm that last replication work with replicationWorkUuid has been done successful
-//     *
-//     * @param replicationWorkUuid The ReplicationWork has been done
-//     */
-//    void commitReplicationWork(UUID replicationWorkUuid);
 }
@@ -4,7 +4,8 @@
 
 package sdfs.protocol;
 
-import sdfs.namenode.LocatedBlock;
+import sdfs.filetree.BlockInfo;
+import sdfs.filetree.ErasureCodingPolicy;
 import sdfs.namenode.SDFSFileChannel;
 
 import java.io.FileNotFoundException;
@@ -14,6 +15,11 @@ import java.util.List;
 import java.util.UUID;
 
 public interface INameNodeProtocol {
+    /**
+     * Milliseconds between two lease renewals of a client, for every file it has open.
+     */
+    long LEASE_RENEW_INTERVAL = 10 * 1000;
+
     /**
      * Open a readonly file that is already exist.
      * Allow multi readonly access to the same file.
@@ -45,6 +51,16 @@ public interface INameNodeProtocol {
      */
     SDFSFileChannel create(String fileUri) throws IllegalStateException, IOException;
 
+    /**
+     * Create a empty file whose blocks are erasure coded instead of replicated.
+     *
+     * @param fileUri             The file uri to be create
+     * @param erasureCodingPolicy how the blocks are coded, null to replicate them
+     * @return The SDFSFileChannel represent the file.
+     * @throws FileAlreadyExistsException if the file is already exist
+     */
+    SDFSFileChannel create(String fileUri, ErasureCodingPolicy erasureCodingPolicy) throws IllegalStateException, IOException;
+
     /**
      * Close a readonly file.
      *
@@ -76,10 +92,11 @@ public interface INameNodeProtocol {
      * No metadata should be written to disk until it is correctly close
      *
      * @param fileUuid the file uuid with readwrite state
-     * @return a block that is free and could be used by client
+     * @return a block that is free and could be used by client, with every data node that should hold a replica.
+     * The first replica heads the write pipeline.
      * @throws IllegalStateException if file is readonly
      */
-    LocatedBlock addBlock(UUID fileUuid) throws IllegalStateException;
+    BlockInfo addBlock(UUID fileUuid) throws IllegalStateException;
 
     /**
      * Request a special amount of free blocks for a file
@@ -87,10 +104,10 @@ public interface INameNodeProtocol {
      *
      * @param fileUuid    the file uuid with readwrite state
      * @param blockAmount the request block amount
-     * @return a special amount of blocks that is free and could be used by client
+     * @return a special amount of blocks that is free and could be used by client, each with its replicas
      * @throws IllegalStateException if file is readonly
      */
-    List<LocatedBlock> addBlocks(UUID fileUuid, int blockAmount) throws IllegalStateException;
+    List<BlockInfo> addBlocks(UUID fileUuid, int blockAmount) throws IllegalStateException;
 
     /**
      * Delete the last block for a file
@@ -110,4 +127,24 @@ public interface INameNodeProtocol {
      * @throws IllegalStateException if there is no enough block in this file
      */
     void removeLastBlocks(UUID fileUuid, int blockAmount) throws IllegalStateException;
+
+    /**
+     * Give a block of the file a new block number on the same data nodes, before the block is modified.
+     * Readers opened before the file is closed keep reading the old block, which is freed once they are all closed.
+     * The data nodes create the new block from the old one by copyOnWrite.
+     *
+     * @param fileUuid   the file uuid with readwrite state
+     * @param blockIndex the index of the block in the file
+     * @return the new block
+     * @throws IndexOutOfBoundsException if the file has no such block
+     */
+    BlockInfo copyOnWriteBlock(UUID fileUuid, int blockIndex) throws IllegalStateException, IndexOutOfBoundsException, IOException;
+
+    /**
+     * Keep files open. A file whose lease is not renewed for a while is closed by name node, as the client
+     * that opened it is taken to be dead. Files not open any more are skipped.
+     *
+     * @param fileUuids files opened by the client and not closed yet
+     */
+    void renewLeases(List<UUID> fileUuids) throws IOException;
 }
@@ -0,0 +1,18 @@
+/*
+ * Copyright (c) Jipzingking 2016.
+ */
+
+package sdfs.protocol;
+
+import java.io.DataInput;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Server side of an opcode whose result is only known later, e.g. once another server answers.
+ * The worker thread is released when the handler returns, the result is encoded when the future completes.
+ * The future may complete with null if there is nothing to encode.
+ */
+@FunctionalInterface
+public interface RpcAsyncHandler {
+    CompletableFuture<? extends RpcWritable> handle(DataInput in) throws Exception;
+}
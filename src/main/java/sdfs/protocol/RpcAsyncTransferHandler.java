@@ -0,0 +1,19 @@
+/*
+ * Copyright (c) Jipzingking 2016.
+ */
+
+package sdfs.protocol;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Server side of an opcode whose result ends with raw file content located later, e.g. once a busy disk gets to it.
+ * The leading fields are encoded to out before the future completes with the region sent right after them.
+ * The worker thread is released when the handler returns.
+ */
+@FunctionalInterface
+public interface RpcAsyncTransferHandler {
+    CompletableFuture<FileRegion> handle(DataInput in, DataOutput out) throws Exception;
+}
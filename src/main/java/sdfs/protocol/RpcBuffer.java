@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) Jipzingking 2016.
+ */
+
+package sdfs.protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+
+/**
+ * Growable buffer that a frame payload is encoded into before its length is known.
+ * It is reused by every call on the same connection, so it should never be shared between threads.
+ */
+public class RpcBuffer extends ByteArrayOutputStream {
+    private final DataOutputStream dataOutput = new DataOutputStream(this);
+    private FileRegion region;
+
+    public RpcBuffer() {
+        super(RpcCodec.BUFFER_SIZE);
+    }
+
+    public DataOutputStream dataOutput() {
+        return dataOutput;
+    }
+
+    /**
+     * Send region after the bytes of this buffer.
+     */
+    public void setRegion(FileRegion region) {
+        this.region = region;
+    }
+
+    /**
+     * @return the region to be sent after the bytes of this buffer, it is owned by the caller from now on
+     */
+    public FileRegion takeRegion() {
+        FileRegion region = this.region;
+        this.region = null;
+        return region;
+    }
+
+    @Override
+    public synchronized void reset() {
+        super.reset();
+        if (region != null) {
+            region.release();
+            region = null;
+        }
+    }
+
+    /**
+     * @return the backing array, valid up to {@link #size()}
+     */
+    public byte[] array() {
+        return buf;
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright (c) Jipzingking 2016.
+ */
+
+package sdfs.protocol;
+
+import sdfs.exception.IllegalAccessTokenException;
+import sdfs.exception.SDFSFileAlreadyExistException;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Binary framing shared by clients and servers.
+ * <p>
+ * Request frame:  [version:1][opcode:1][requestId:4][length:4][payload:length]
+ * Response frame: [requestId:4][status:1][length:4][payload:length]
+ * <p>
+ * Many calls could be in flight on one connection, a response carries the id of its request
+ * and may come back in any order.
+ * The payload of an error response is an exception code followed by the message.
+ */
+public final class RpcCodec {
+    public static final byte VERSION = 5;
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_ERROR = 1;
+    public static final int REQUEST_HEADER_LENGTH = 10;
+    public static final int RESPONSE_HEADER_LENGTH = 9;
+    /**
+     * A frame larger than this is treated as a corrupted stream.
+     */
+    public static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+    public static final int BUFFER_SIZE = 8 * 1024;
+
+    //exception codes, subclasses must come before their super classes in writeException
+    private static final byte IO_EXCEPTION = 0;
+    private static final byte FILE_NOT_FOUND = 1;
+    private static final byte FILE_ALREADY_EXIST = 2;
+    private static final byte ILLEGAL_STATE = 3;
+    private static final byte ILLEGAL_ACCESS_TOKEN = 4;
+    private static final byte ILLEGAL_ARGUMENT = 5;
+    private static final byte INDEX_OUT_OF_BOUNDS = 6;
+    private static final byte OVERLAPPING_FILE_LOCK = 7;
+
+    private RpcCodec() {
+    }
+
+    public static void writeRequestHeader(DataOutput out, byte opcode, int requestId, int length) throws IOException {
+        out.writeByte(VERSION);
+        out.writeByte(opcode);
+        out.writeInt(requestId);
+        out.writeInt(length);
+    }
+
+    public static void writeResponseHeader(DataOutput out, int requestId, byte status, int length) throws IOException {
+        out.writeInt(requestId);
+        out.writeByte(status);
+        out.writeInt(length);
+    }
+
+    public static int checkFrameLength(int length) throws IOException {
+        if (length < 0 || length > MAX_FRAME_LENGTH)
+            throw new IOException("illegal frame length " + length);
+        return length;
+    }
+
+    public static void writeUuid(DataOutput out, UUID uuid) throws IOException {
+        out.writeLong(uuid.getMostSignificantBits());
+        out.writeLong(uuid.getLeastSignificantBits());
+    }
+
+    public static UUID readUuid(DataInput in) throws IOException {
+        long most = in.readLong();
+        long least = in.readLong();
+        return new UUID(most, least);
+    }
+
+    /**
+     * The address is sent resolved, as its raw ip bytes and port.
+     */
+    public static void writeAddress(DataOutput out, InetSocketAddress address) throws IOException {
+        byte[] ip = address.getAddress().getAddress();
+        out.writeByte(ip.length);
+        out.write(ip);
+        out.writeInt(address.getPort());
+    }
+
+    public static InetSocketAddress readAddress(DataInput in) throws IOException {
+        int ipLength = in.readUnsignedByte();
+        if (ipLength != 4 && ipLength != 16)
+            throw new IOException("illegal address length " + ipLength);
+        byte[] ip = new byte[ipLength];
+        in.readFully(ip);
+        return new InetSocketAddress(InetAddress.getByAddress(ip), in.readInt());
+    }
+
+    public static void writeAddressList(DataOutput out, List<InetSocketAddress> list) throws IOException {
+        out.writeInt(list.size());
+        for (InetSocketAddress address : list)
+            writeAddress(out, address);
+    }
+
+    public static List<InetSocketAddress> readAddressList(DataInput in) throws IOException {
+        //an ip v4 address and its port at least
+        int size = readSize(in, 9);
+        List<InetSocketAddress> list = new ArrayList<>(size);
+        for (int i = 0; i < size; i++)
+            list.add(readAddress(in));
+        return list;
+    }
+
+    public static void writeBytes(DataOutput out, byte[] b) throws IOException {
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    public static byte[] readBytes(DataInput in) throws IOException {
+        byte[] b = new byte[readSize(in, 1)];
+        in.readFully(b);
+        return b;
+    }
+
+    /**
+     * Write a string as UTF-8, unlike writeUTF it is not limited to 64KB, so any path fits.
+     */
+    public static void writeString(DataOutput out, String s) throws IOException {
+        writeBytes(out, s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static String readString(DataInput in) throws IOException {
+        return new String(readBytes(in), StandardCharsets.UTF_8);
+    }
+
+    public static void writeList(DataOutput out, List<? extends RpcWritable> list) throws IOException {
+        out.writeInt(list.size());
+        for (RpcWritable writable : list)
+            writeNullable(out, writable);
+    }
+
+    public static <T> List<T> readList(RpcInput in, RpcDecoder<T> decoder) throws IOException {
+        //the null flag at least
+        int size = readSize(in, 1);
+        List<T> list = new ArrayList<>(size);
+        for (int i = 0; i < size; i++)
+            list.add(readNullable(in, decoder));
+        return list;
+    }
+
+    public static void writeIntList(DataOutput out, List<Integer> list) throws IOException {
+        out.writeInt(list.size());
+        for (int i : list)
+            out.writeInt(i);
+    }
+
+    public static List<Integer> readIntList(DataInput in) throws IOException {
+        int size = readSize(in, 4);
+        List<Integer> list = new ArrayList<>(size);
+        for (int i = 0; i < size; i++)
+            list.add(in.readInt());
+        return list;
+    }
+
+    public static void writeUuidList(DataOutput out, List<UUID> list) throws IOException {
+        out.writeInt(list.size());
+        for (UUID uuid : list)
+            writeUuid(out, uuid);
+    }
+
+    public static List<UUID> readUuidList(DataInput in) throws IOException {
+        int size = readSize(in, 16);
+        List<UUID> list = new ArrayList<>(size);
+        for (int i = 0; i < size; i++)
+            list.add(readUuid(in));
+        return list;
+    }
+
+    /**
+     * Read the size of an array or list, whose elements must fit in the rest of the payload.
+     * A corrupted or hostile size thus never allocates more than the payload holds.
+     *
+     * @param minLength the least bytes an element takes
+     */
+    private static int readSize(DataInput in, int minLength) throws IOException {
+        int size = in.readInt();
+        //payloads of a file, e.g. edit log records, are only bound by the frame limit
+        long remaining = in instanceof RpcInput ? ((RpcInput) in).remaining() : MAX_FRAME_LENGTH;
+        if (size < 0 || (long) size * minLength > Math.min(remaining, MAX_FRAME_LENGTH))
+            throw new IOException("illegal size " + size);
+        return size;
+    }
+
+    public static void writeNullable(DataOutput out, RpcWritable writable) throws IOException {
+        out.writeBoolean(writable != null);
+        if (writable != null)
+            writable.writeTo(out);
+    }
+
+    public static <T> T readNullable(RpcInput in, RpcDecoder<T> decoder) throws IOException {
+        return in.readBoolean() ? decoder.readFrom(in) : null;
+    }
+
+    public static void writeException(DataOutput out, Throwable e) throws IOException {
+        byte code;
+        if (e instanceof FileNotFoundException)
+            code = FILE_NOT_FOUND;
+        else if (e instanceof SDFSFileAlreadyExistException)
+            code = FILE_ALREADY_EXIST;
+        else if (e instanceof IllegalAccessTokenException)
+            code = ILLEGAL_ACCESS_TOKEN;
+        else if (e instanceof OverlappingFileLockException)
+            code = OVERLAPPING_FILE_LOCK;
+        else if (e instanceof IllegalStateException)
+            code = ILLEGAL_STATE;
+        else if (e instanceof IllegalArgumentException)
+            code = ILLEGAL_ARGUMENT;
+        else if (e instanceof IndexOutOfBoundsException)
+            code = INDEX_OUT_OF_BOUNDS;
+        else
+            code = IO_EXCEPTION;
+        String message = e.getMessage();
+        if (code == IO_EXCEPTION && !(e instanceof IOException))
+            message = e.getClass().getName() + (message == null ? "" : ": " + message);
+        out.writeByte(code);
+        out.writeBoolean(message != null);
+        if (message != null)
+            out.writeUTF(message);
+    }
+
+    /**
+     * @return an IOException or a RuntimeException, the same type as thrown on server if it is known.
+     */
+    public static Exception readException(DataInput in) throws IOException {
+        byte code = in.readByte();
+        String message = in.readBoolean() ? in.readUTF() : null;
+        switch (code) {
+            case FILE_NOT_FOUND:
+                return new FileNotFoundException(message);
+            case FILE_ALREADY_EXIST:
+                return new SDFSFileAlreadyExistException();
+            case ILLEGAL_ACCESS_TOKEN:
+                return new IllegalAccessTokenException();
+            case OVERLAPPING_FILE_LOCK:
+                return new OverlappingFileLockException();
+            case ILLEGAL_STATE:
+                return new IllegalStateException(message);
+            case ILLEGAL_ARGUMENT:
+                return new IllegalArgumentException(message);
+            case INDEX_OUT_OF_BOUNDS:
+                return new IndexOutOfBoundsException(message);
+            default:
+                return new IOException(message);
+        }
+    }
+}
@@ -0,0 +1,12 @@
+/*
+ * Copyright (c) Jipzingking 2016.
+ */
+
+package sdfs.protocol;
+
+import java.io.IOException;
+
+@FunctionalInterface
+public interface RpcDecoder<T> {
+    T readFrom(RpcInput in) throws IOException;
+}
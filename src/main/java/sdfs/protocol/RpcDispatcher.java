@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) Jipzingking 2016.
+ */
+
+package sdfs.protocol;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Opcode to handler table of a server, filled once on startup.
+ */
+public class RpcDispatcher {
+    private final RpcHandler[] handlers = new RpcHandler[256];
+    private final RpcTransferHandler[] transferHandlers = new RpcTransferHandler[256];
+    private final RpcAsyncHandler[] asyncHandlers = new RpcAsyncHandler[256];
+    private final RpcAsyncTransferHandler[] asyncTransferHandlers = new RpcAsyncTransferHandler[256];
+
+    public RpcDispatcher register(byte opcode, RpcHandler handler) {
+        checkUnregistered(opcode);
+        handlers[opcode & 0xFF] = handler;
+        return this;
+    }
+
+    public RpcDispatcher registerTransfer(byte opcode, RpcTransferHandler handler) {
+        checkUnregistered(opcode);
+        transferHandlers[opcode & 0xFF] = handler;
+        return this;
+    }
+
+    public RpcDispatcher registerAsync(byte opcode, RpcAsyncHandler handler) {
+        checkUnregistered(opcode);
+        asyncHandlers[opcode & 0xFF] = handler;
+        return this;
+    }
+
+    public RpcDispatcher registerAsyncTransfer(byte opcode, RpcAsyncTransferHandler handler) {
+        checkUnregistered(opcode);
+        asyncTransferHandlers[opcode & 0xFF] = handler;
+        return this;
+    }
+
+    private void checkUnregistered(byte opcode) {
+        if (handlers[opcode & 0xFF] != null || transferHandlers[opcode & 0xFF] != null
+                || asyncHandlers[opcode & 0xFF] != null || asyncTransferHandlers[opcode & 0xFF] != null)
+            throw new IllegalStateException("opcode " + opcode + " is already registered");
+    }
+
+    /**
+     * Invoke the handler of opcode, the result or the exception is encoded into response.
+     * The file region returned by a transfer handler is attached to response.
+     *
+     * @return response status
+     */
+    public byte dispatch(byte opcode, DataInput in, RpcBuffer response) throws IOException {
+        response.reset();
+        RpcHandler handler = handlers[opcode & 0xFF];
+        RpcTransferHandler transferHandler = transferHandlers[opcode & 0xFF];
+        try {
+            if (handler != null)
+                handler.handle(in, response.dataOutput());
+            else if (transferHandler != null)
+                response.setRegion(transferHandler.handle(in, response.dataOutput()));
+            else
+                throw new IOException("unsupported opcode " + opcode);
+            return RpcCodec.STATUS_OK;
+        } catch (Exception e) {
+            return encodeException(response, e);
+        }
+    }
+
+    /**
+     * @return true if opcode is served by an async handler, it should be dispatched by dispatchAsync
+     */
+    public boolean isAsync(byte opcode) {
+        return asyncHandlers[opcode & 0xFF] != null || asyncTransferHandlers[opcode & 0xFF] != null;
+    }
+
+    /**
+     * Invoke the async handler of opcode. The result or the exception is encoded into response once it is known,
+     * on whatever thread completes it. The file region of an async transfer handler is attached to response.
+     *
+     * @return future of the response status
+     */
+    public CompletableFuture<Byte> dispatchAsync(byte opcode, DataInput in, RpcBuffer response) {
+        response.reset();
+        RpcAsyncHandler handler = asyncHandlers[opcode & 0xFF];
+        CompletableFuture<?> result;
+        try {
+            if (handler != null)
+                result = handler.handle(in);
+            else
+                result = asyncTransferHandlers[opcode & 0xFF].handle(in, response.dataOutput());
+        } catch (Exception e) {
+            return CompletableFuture.completedFuture(encodeException(response, e));
+        }
+        return result.handle((value, error) -> {
+            if (error == null) {
+                try {
+                    if (handler == null)
+                        response.setRegion((FileRegion) value);
+                    else if (value != null)
+                        ((RpcWritable) value).writeTo(response.dataOutput());
+                    return RpcCodec.STATUS_OK;
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+            return encodeException(response, error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+        });
+    }
+
+    private static byte encodeException(RpcBuffer response, Throwable e) {
+        if (!(e instanceof IOException) && !(e instanceof IllegalStateException) && !(e instanceof IllegalArgumentException) && !(e instanceof IndexOutOfBoundsException))
+            e.printStackTrace();
+        response.reset();
+        try {
+            RpcCodec.writeException(response.dataOutput(), e);
+        } catch (IOException impossible) {
+            //written to memory
+        }
+        return RpcCodec.STATUS_ERROR;
+    }
+}
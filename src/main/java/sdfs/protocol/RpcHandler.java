@@ -0,0 +1,17 @@
+/*
+ * Copyright (c) Jipzingking 2016.
+ */
+
+package sdfs.protocol;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+
+/**
+ * Server side of one opcode: decode the arguments from in, invoke the server and encode the result to out.
+ * Any exception thrown is sent back to the client.
+ */
+@FunctionalInterface
+public interface RpcHandler {
+    void handle(DataInput in, DataOutput out) throws Exception;
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) Jipzingking 2016.
+ */
+
+package sdfs.protocol;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Input of a request or response payload.
+ * Bulk data could be read into a ByteBuffer, which a socket backed subclass fills without an intermediate array.
+ */
+public class RpcInput extends DataInputStream {
+
+    public RpcInput(InputStream in) {
+        super(in);
+    }
+
+    /**
+     * @return the bytes of the payload not read yet. The payload is in memory by default, where available() is exact,
+     * a subclass reading it from a stream should override this.
+     */
+    public long remaining() throws IOException {
+        return available();
+    }
+
+    /**
+     * Read exactly dst.remaining() bytes into dst.
+     */
+    public void readFully(ByteBuffer dst) throws IOException {
+        if (dst.hasArray()) {
+            readFully(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+            dst.position(dst.limit());
+            return;
+        }
+        byte[] b = new byte[Math.min(dst.remaining(), RpcCodec.BUFFER_SIZE)];
+        while (dst.hasRemaining()) {
+            int len = Math.min(dst.remaining(), b.length);
+            readFully(b, 0, len);
+            dst.put(b, 0, len);
+        }
+    }
+}
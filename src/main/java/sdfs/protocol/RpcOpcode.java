@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) Jipzingking 2016.
+ */
+
+package sdfs.protocol;
+
+/**
+ * Opcode of every remote call, it is the first byte after the version in a request frame.
+ * Never reuse a retired opcode, old clients may still send it.
+ */
+public final class RpcOpcode {
+    //INameNodeProtocol
+    public static final byte OPEN_READONLY = 1;
+    public static final byte OPEN_READWRITE = 2;
+    public static final byte CREATE = 3;
+    public static final byte CLOSE_READONLY_FILE = 4;
+    public static final byte CLOSE_READWRITE_FILE = 5;
+    public static final byte MKDIR = 6;
+    public static final byte ADD_BLOCK = 7;
+    public static final byte ADD_BLOCKS = 8;
+    public static final byte REMOVE_LAST_BLOCK = 9;
+    public static final byte REMOVE_LAST_BLOCKS = 10;
+    public static final byte DELETE = 11;
+    public static final byte LIST = 12;
+    public static final byte COPY_ON_WRITE_BLOCK = 19;
+    public static final byte RENEW_LEASES = 20;
+
+    //INameNodeDataNodeProtocol
+    public static final byte REGISTER_DATA_NODE = 13;
+    public static final byte HEARTBEAT = 14;
+    public static final byte BLOCK_REPORT = 15;
+    public static final byte BLOCK_RECEIVED_AND_DELETED = 16;
+    public static final byte GET_REPLICATION_WORK = 17;
+    public static final byte COMMIT_REPLICATION_WORK = 18;
+
+    //IDataNodeProtocol
+    public static final byte READ = 32;
+    public static final byte WRITE = 33;
+    public static final byte WRITE_PACKET = 34;
+    public static final byte COPY_ON_WRITE = 35;
+    public static final byte GET_LOCAL_BLOCK = 36;
+    public static final byte READ_IN_BACKGROUND = 37;
+
+    private RpcOpcode() {
+    }
+}
@@ -0,0 +1,17 @@
+/*
+ * Copyright (c) Jipzingking 2016.
+ */
+
+package sdfs.protocol;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+
+/**
+ * Server side of an opcode whose result ends with raw file content.
+ * The leading fields are encoded to out, the returned region is sent right after them without copying.
+ */
+@FunctionalInterface
+public interface RpcTransferHandler {
+    FileRegion handle(DataInput in, DataOutput out) throws Exception;
+}
@@ -0,0 +1,17 @@
+/*
+ * Copyright (c) Jipzingking 2016.
+ */
+
+package sdfs.protocol;
+
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Hand-written encoder of a request or a result.
+ * Every implementation should have a matching {@link RpcDecoder}.
+ */
+@FunctionalInterface
+public interface RpcWritable {
+    void writeTo(DataOutput out) throws IOException;
+}
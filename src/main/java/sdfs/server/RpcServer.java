@@ -0,0 +1,473 @@
+/*
+ * Copyright (c) Jipzingking 2016.
+ */
+
+package sdfs.server;
+
+import sdfs.protocol.FileRegion;
+import sdfs.protocol.RpcBuffer;
+import sdfs.protocol.RpcCodec;
+import sdfs.protocol.RpcDispatcher;
+import sdfs.protocol.RpcInput;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Selector based server core shared by name node and data node.
+ * <p>
+ * One selector thread accepts connections, reads request frames and writes response frames.
+ * Every complete frame is handed to a bounded worker pool which runs the {@link RpcDispatcher},
+ * so requests pipelined on one connection are served concurrently and answered in completion order.
+ * An async handler frees its worker at once, its response is queued by whichever thread completes it.
+ * <p>
+ * Back-pressure: a connection stops being read while it has too many requests in flight,
+ * or while its last frame could not be queued because the worker queue is full.
+ * When there are too many connections, an idle one is closed to make room for a new one.
+ * If none of them is idle, the server stops accepting and leaves new ones in the accept backlog.
+ * A connection that does not send a whole request frame within the read timeout is closed.
+ */
+public class RpcServer implements Closeable {
+    private static final long SELECT_TIMEOUT = 1000;
+
+    private final RpcServerConfig config;
+    private final RpcDispatcher dispatcher;
+    private final ThreadPoolExecutor workers;
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private SelectionKey acceptKey;
+    //only touched by selector thread
+    private final Set<Connection> connections = new HashSet<>();
+    //the size of connections, read by any thread
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    //connections whose interest ops should be recomputed by selector thread
+    private final Queue<Connection> updatedConnections = new ConcurrentLinkedQueue<>();
+    //connections holding a frame rejected by the full worker queue
+    private final Queue<Connection> stalledConnections = new ConcurrentLinkedQueue<>();
+    //stalled connections to resubmit their frame, as a worker slot is free
+    private final Queue<Connection> resumedConnections = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<RpcBuffer> responseBuffers = ThreadLocal.withInitial(RpcBuffer::new);
+    private volatile boolean running;
+    private Thread selectorThread;
+
+    public RpcServer(RpcServerConfig config, RpcDispatcher dispatcher) throws IOException {
+        this.config = config;
+        this.dispatcher = dispatcher;
+        AtomicInteger threadCount = new AtomicInteger();
+        workers = new ThreadPoolExecutor(config.getWorkerThreads(), config.getWorkerThreads(), 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(config.getMaxQueuedRequests()),
+                r -> new Thread(r, "rpc-worker-" + config.getPort() + "-" + threadCount.incrementAndGet()));
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+    }
+
+    public void start() throws IOException {
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.bind(new InetSocketAddress(config.getPort()), config.getAcceptBacklog());
+        serverChannel.configureBlocking(false);
+        acceptKey = serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+        selectorThread = new Thread(this::selectLoop, "rpc-selector-" + config.getPort());
+        selectorThread.start();
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        try {
+            if (selectorThread != null)
+                selectorThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        workers.shutdown();
+    }
+
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    private void selectLoop() {
+        long lastIdleCheckTime = System.currentTimeMillis();
+        while (running) {
+            try {
+                selector.select(SELECT_TIMEOUT);
+                Connection updated;
+                while ((updated = updatedConnections.poll()) != null)
+                    updated.update();
+                Connection resumed;
+                while ((resumed = resumedConnections.poll()) != null)
+                    resumed.resume();
+
+                Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+                while (iter.hasNext()) {
+                    SelectionKey key = iter.next();
+                    iter.remove();
+                    if (!key.isValid())
+                        continue;
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    if (key.isReadable())
+                        connection.read();
+                    if (key.isValid() && key.isWritable())
+                        connection.write();
+                }
+
+                long now = System.currentTimeMillis();
+                if (now - lastIdleCheckTime >= SELECT_TIMEOUT) {
+                    closeIdleConnections(now);
+                    lastIdleCheckTime = now;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        for (Connection connection : new ArrayList<>(connections))
+            connection.close();
+        try {
+            serverChannel.close();
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void accept() throws IOException {
+        while (true) {
+            //make room by closing the longest idle connection, its client will simply reconnect
+            if (connections.size() >= config.getMaxConnections() && !closeLongestIdleConnection()) {
+                //stop accepting, new connections wait in the accept backlog until some connection is closed or idle
+                acceptKey.interestOps(0);
+                return;
+            }
+            SocketChannel channel = serverChannel.accept();
+            if (channel == null)
+                return;
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            connections.add(connection);
+            connectionCount.incrementAndGet();
+        }
+    }
+
+    private boolean closeLongestIdleConnection() {
+        Connection longestIdle = null;
+        for (Connection connection : connections) {
+            //a new connection is not evictable, its first request may not have been read yet
+            if (connection.served > 0 && connection.isIdle() && (longestIdle == null || connection.lastActiveTime < longestIdle.lastActiveTime))
+                longestIdle = connection;
+        }
+        if (longestIdle == null)
+            return false;
+        longestIdle.close();
+        return true;
+    }
+
+    private void closeIdleConnections(long now) {
+        List<Connection> idle = new ArrayList<>();
+        for (Connection connection : connections) {
+            if (connection.isIdle() && now - connection.lastActiveTime > config.getIdleTimeout())
+                idle.add(connection);
+            else if (connection.isReadingFrame() && now - connection.frameStartTime > config.getReadTimeout())
+                idle.add(connection);
+        }
+        for (Connection connection : idle)
+            connection.close();
+        //a slot freed before its stalled connection was queued is not missed for long
+        if (workers.getQueue().remainingCapacity() > 0) {
+            Connection stalled;
+            while ((stalled = stalledConnections.poll()) != null && stalled.closed) ;
+            if (stalled != null)
+                stalled.resume();
+        }
+        //accepting was stopped at the connection limit, some connections may have become idle since then
+        if (acceptKey.interestOps() == 0 && hasIdleConnection())
+            acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+    }
+
+    private boolean hasIdleConnection() {
+        for (Connection connection : connections) {
+            if (connection.served > 0 && connection.isIdle())
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Run on worker thread.
+     */
+    private void process(Connection connection, int requestId, byte opcode, byte[] request) {
+        if (!connection.closed && dispatcher.isAsync(opcode)) {
+            //the buffer is filled on another thread later, it cannot be the thread local one
+            RpcBuffer response = new RpcBuffer();
+            dispatcher.dispatchAsync(opcode, new RpcInput(new ByteArrayInputStream(request)), response)
+                    .thenAccept(status -> {
+                        respond(connection, requestId, status, response);
+                        finish(connection);
+                    });
+            //the worker is free, the request is still in flight
+            wakeUpStalledConnection();
+            return;
+        }
+        try {
+            if (connection.closed)
+                return;
+            RpcBuffer response = responseBuffers.get();
+            byte status = dispatcher.dispatch(opcode, new RpcInput(new ByteArrayInputStream(request)), response);
+            respond(connection, requestId, status, response);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            finish(connection);
+        }
+    }
+
+    private void respond(Connection connection, int requestId, byte status, RpcBuffer response) {
+        FileRegion region = response.takeRegion();
+        int length = response.size() + (region == null ? 0 : (int) region.remaining());
+        ByteBuffer head = ByteBuffer.allocate(RpcCodec.RESPONSE_HEADER_LENGTH + response.size());
+        head.putInt(requestId).put(status).putInt(length).put(response.array(), 0, response.size());
+        head.flip();
+        connection.responses.add(new Response(head, region));
+        if (connection.closed)
+            connection.releaseResponses();
+    }
+
+    /**
+     * A request is answered, the connection may read again.
+     */
+    private void finish(Connection connection) {
+        connection.inFlight.decrementAndGet();
+        updatedConnections.add(connection);
+        wakeUpStalledConnection();
+    }
+
+    private void wakeUpStalledConnection() {
+        //a worker slot is free now, give one stalled connection a chance
+        Connection stalled;
+        while ((stalled = stalledConnections.poll()) != null && stalled.closed) ;
+        if (stalled != null)
+            resumedConnections.add(stalled);
+        selector.wakeup();
+    }
+
+    private class Connection {
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private final ByteBuffer header = ByteBuffer.allocate(RpcCodec.REQUEST_HEADER_LENGTH);
+        private byte opcode;
+        private int requestId;
+        private ByteBuffer payload;
+        //when the first byte of the frame being read came
+        private long frameStartTime;
+        //frame rejected by the full worker queue, it is resubmitted once a worker slot is free, before anything else is read
+        private Runnable stalledTask;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private int served = 0;
+        private final Queue<Response> responses = new ConcurrentLinkedQueue<>();
+        private long lastActiveTime = System.currentTimeMillis();
+        private volatile boolean closed = false;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        private boolean canRead() {
+            return stalledTask == null && inFlight.get() < config.getMaxInFlightPerConnection();
+        }
+
+        private boolean isIdle() {
+            return inFlight.get() == 0 && stalledTask == null && responses.isEmpty() && !isReadingFrame();
+        }
+
+        /**
+         * @return true if part of a frame is received
+         */
+        private boolean isReadingFrame() {
+            return payload != null || header.position() > 0;
+        }
+
+        void read() {
+            try {
+                while (canRead()) {
+                    if (payload == null) {
+                        boolean started = header.position() > 0;
+                        if (channel.read(header) < 0) {
+                            close();
+                            return;
+                        }
+                        if (!started && header.position() > 0)
+                            frameStartTime = System.currentTimeMillis();
+                        if (header.hasRemaining())
+                            break;
+                        header.flip();
+                        byte version = header.get();
+                        opcode = header.get();
+                        requestId = header.getInt();
+                        int length = RpcCodec.checkFrameLength(header.getInt());
+                        header.clear();
+                        if (version != RpcCodec.VERSION)
+                            throw new IOException("unsupported protocol version " + version);
+                        payload = ByteBuffer.allocate(length);
+                    }
+                    if (payload.hasRemaining() && channel.read(payload) < 0) {
+                        close();
+                        return;
+                    }
+                    if (payload.hasRemaining())
+                        break;
+                    byte[] request = payload.array();
+                    byte requestOpcode = opcode;
+                    int id = requestId;
+                    payload = null;
+                    lastActiveTime = System.currentTimeMillis();
+                    submit(() -> process(this, id, requestOpcode, request));
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                close();
+                return;
+            }
+            update();
+        }
+
+        private void submit(Runnable task) {
+            inFlight.incrementAndGet();
+            try {
+                workers.execute(task);
+            } catch (RejectedExecutionException e) {
+                inFlight.decrementAndGet();
+                stalledTask = task;
+                stalledConnections.add(this);
+            }
+        }
+
+        void write() {
+            try {
+                Response response;
+                while ((response = responses.peek()) != null) {
+                    //socket send buffer is full, wait for OP_WRITE
+                    if (!response.writeTo(channel))
+                        break;
+                    responses.poll();
+                    response.release();
+                    served++;
+                }
+                lastActiveTime = System.currentTimeMillis();
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            update();
+        }
+
+        /**
+         * Recompute interest ops, run on selector thread.
+         */
+        void update() {
+            if (closed)
+                return;
+            int ops = 0;
+            if (canRead())
+                ops |= SelectionKey.OP_READ;
+            if (!responses.isEmpty())
+                ops |= SelectionKey.OP_WRITE;
+            key.interestOps(ops);
+        }
+
+        /**
+         * Resubmit the stalled frame, run on selector thread once a worker slot is free.
+         */
+        void resume() {
+            if (closed || stalledTask == null)
+                return;
+            Runnable task = stalledTask;
+            stalledTask = null;
+            submit(task);
+            update();
+        }
+
+        void releaseResponses() {
+            Response response;
+            while ((response = responses.poll()) != null)
+                response.release();
+        }
+
+        void close() {
+            if (closed)
+                return;
+            closed = true;
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            releaseResponses();
+            if (connections.remove(this))
+                connectionCount.decrementAndGet();
+            if (running && acceptKey.isValid() && connections.size() < config.getMaxConnections())
+                acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+        }
+    }
+
+    /**
+     * A response frame, the head holds the header and the encoded fields,
+     * the optional region holds raw file content sent with transferTo.
+     */
+    private static class Response {
+        private final ByteBuffer head;
+        private final FileRegion region;
+
+        Response(ByteBuffer head, FileRegion region) {
+            this.head = head;
+            this.region = region;
+        }
+
+        /**
+         * @return true if the whole response is written
+         */
+        boolean writeTo(SocketChannel channel) throws IOException {
+            if (head.hasRemaining()) {
+                channel.write(head);
+                if (head.hasRemaining())
+                    return false;
+            }
+            if (region == null)
+                return true;
+            region.transferTo(channel);
+            return !region.hasRemaining();
+        }
+
+        void release() {
+            if (region != null)
+                region.release();
+        }
+    }
+}
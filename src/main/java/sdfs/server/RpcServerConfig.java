@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) Jipzingking 2016.
+ */
+
+package sdfs.server;
+
+/**
+ * Limits of a {@link RpcServer}.
+ * Every default could be overridden by a system property, e.g. -Dsdfs.rpc.workerThreads=32
+ */
+public class RpcServerConfig {
+    private final int port;
+    private int workerThreads = Integer.getInteger("sdfs.rpc.workerThreads", 2 * Runtime.getRuntime().availableProcessors());
+    private int maxQueuedRequests = Integer.getInteger("sdfs.rpc.maxQueuedRequests", 1024);
+    private int maxConnections = Integer.getInteger("sdfs.rpc.maxConnections", 4096);
+    private int maxInFlightPerConnection = Integer.getInteger("sdfs.rpc.maxInFlightPerConnection", 16);
+    private int acceptBacklog = Integer.getInteger("sdfs.rpc.acceptBacklog", 128);
+    /**
+     * A connection without any request for this milliseconds will be closed by server.
+     */
+    private int idleTimeout = Integer.getInteger("sdfs.rpc.idleTimeout", 60 * 1000);
+    /**
+     * A request whose frame is not fully received in this milliseconds since its first byte closes its connection,
+     * so that clients sending frames slowly cannot hold connections forever.
+     */
+    private int readTimeout = Integer.getInteger("sdfs.rpc.readTimeout", 30 * 1000);
+
+    public RpcServerConfig(int port) {
+        this.port = port;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    public void setWorkerThreads(int workerThreads) {
+        this.workerThreads = workerThreads;
+    }
+
+    public int getMaxQueuedRequests() {
+        return maxQueuedRequests;
+    }
+
+    public void setMaxQueuedRequests(int maxQueuedRequests) {
+        this.maxQueuedRequests = maxQueuedRequests;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public int getMaxInFlightPerConnection() {
+        return maxInFlightPerConnection;
+    }
+
+    public void setMaxInFlightPerConnection(int maxInFlightPerConnection) {
+        this.maxInFlightPerConnection = maxInFlightPerConnection;
+    }
+
+    public int getAcceptBacklog() {
+        return acceptBacklog;
+    }
+
+    public void setAcceptBacklog(int acceptBacklog) {
+        this.acceptBacklog = acceptBacklog;
+    }
+
+    public int getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public void setIdleTimeout(int idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    public void setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+}